@@ -0,0 +1,1305 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.budjb.xml;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A compact, read-only XML tree for keeping many documents in memory.
+ *
+ * Nodes are numbered in document order and stored in parallel arrays: type, name, namespace,
+ * parent, first child, next sibling, first attribute and the position of the node's value. Names
+ * are kept once per document in a symbol table of interned strings, and all values share a single
+ * character arena. A node takes about 40 bytes, against the few hundred of a DOM node. Nodes are
+ * referred to by int handles; NONE stands for no node, and the root element is always 0.
+ *
+ * Native XDocPath plans run directly against the tree, and it serializes like XDoc.writeTo(...).
+ * Use toXDoc() or toDocument() for anything else. A CompactDoc is immutable and may be read by
+ * any number of threads at once.
+ *
+ * load() keeps every CDATA event as one section. The JDK parser reports each section whole, so the
+ * result matches XDoc.load(); a StAX parser that splits long sections gives several instead.
+ */
+public final class CompactDoc
+{
+	/**
+	 * Handle standing for no node.
+	 */
+	public static final int NONE = -1;
+
+	/**
+	 * Symbol tables up to this size are searched linearly instead of through a hash table.
+	 */
+	private static final int LINEAR_SYMBOLS = 16;
+
+	/**
+	 * Shared StAX factory for load(). Like the default XDoc parser, it is not namespace aware.
+	 */
+	private static final XMLInputFactory factory = createFactory();
+
+	/**
+	 * Node types, as the org.w3c.dom.Node constants.
+	 */
+	private final byte[] types;
+
+	/**
+	 * Name symbols, or NONE for nodes without a name.
+	 */
+	private final int[] names;
+
+	/**
+	 * Namespace symbols, or NONE for nodes that are not namespace aware. Null if no node is.
+	 */
+	private final int[] namespaces;
+
+	/**
+	 * Parent handles. Attributes have their element as parent.
+	 */
+	private final int[] parents;
+
+	/**
+	 * First child handles.
+	 */
+	private final int[] firstChildren;
+
+	/**
+	 * Next sibling handles. Attributes are chained to the next attribute of their element.
+	 */
+	private final int[] nextSiblings;
+
+	/**
+	 * First attribute handles of elements.
+	 */
+	private final int[] firstAttributes;
+
+	/**
+	 * Start of each node's value in the arena.
+	 */
+	private final int[] valueStarts;
+
+	/**
+	 * Length of each node's value in the arena.
+	 */
+	private final int[] valueLengths;
+
+	/**
+	 * Shared storage of every value.
+	 */
+	private final char[] arena;
+
+	/**
+	 * Names and namespaces by symbol.
+	 */
+	private final String[] symbols;
+
+	/**
+	 * Symbols by name for large symbol tables, built on first use.
+	 */
+	private volatile HashMap<String, Integer> symbolTable;
+
+	/**
+	 * Creates a document from a finished builder.
+	 *
+	 * @param builder Builder holding the nodes.
+	 */
+	private CompactDoc(Builder builder)
+	{
+		int size = builder.size;
+		types = Arrays.copyOf(builder.types, size);
+		names = Arrays.copyOf(builder.names, size);
+		namespaces = builder.namespaceAware ? Arrays.copyOf(builder.namespaces, size) : null;
+		parents = Arrays.copyOf(builder.parents, size);
+		firstChildren = Arrays.copyOf(builder.firstChildren, size);
+		nextSiblings = Arrays.copyOf(builder.nextSiblings, size);
+		firstAttributes = Arrays.copyOf(builder.firstAttributes, size);
+		valueStarts = Arrays.copyOf(builder.valueStarts, size);
+		valueLengths = Arrays.copyOf(builder.valueLengths, size);
+		arena = Arrays.copyOf(builder.arena, builder.arenaLength);
+		symbols = builder.symbols.toArray(new String[builder.symbols.size()]);
+	}
+
+	/**
+	 * Creates a compact copy of the current element of an XDoc and its descendants.
+	 *
+	 * @param doc XDoc to copy.
+	 * @return
+	 */
+	public static CompactDoc of(XDoc doc)
+	{
+		// Make sure we're given a document
+		if (doc == null) {
+			throw new IllegalArgumentException("doc");
+		}
+		if (doc.isEmpty()) {
+			throw new IllegalStateException("xdoc is empty");
+		}
+		return of(doc.asNode());
+	}
+
+	/**
+	 * Creates a compact copy of a DOM element and its descendants.
+	 *
+	 * @param node Element to copy, or a Document to copy its document element.
+	 * @return
+	 */
+	public static CompactDoc of(Node node)
+	{
+		// Documents are copied from their document element
+		if (node instanceof Document) {
+			node = ((Document)node).getDocumentElement();
+		}
+		if (!(node instanceof Element)) {
+			throw new IllegalArgumentException("node");
+		}
+
+		// Copy in document order without recursing, so deep trees can't overflow the stack
+		Builder builder = new Builder();
+		Node current = node;
+		int parent = NONE;
+
+		while (true) {
+			int id = builder.copy(current, parent);
+
+			// Descend into elements
+			Node child = current.getFirstChild();
+			if (child != null && id != NONE && current instanceof Element) {
+				parent = id;
+				current = child;
+				continue;
+			}
+
+			// Climb until there is a next sibling
+			while (current != node && current.getNextSibling() == null) {
+				current = current.getParentNode();
+				parent = builder.parents[parent];
+			}
+			if (current == node) {
+				break;
+			}
+			current = current.getNextSibling();
+		}
+
+		return new CompactDoc(builder);
+	}
+
+	/**
+	 * Parses a string straight into a compact document, without building a DOM tree.
+	 *
+	 * @param xml XML to parse.
+	 * @return
+	 */
+	public static CompactDoc load(String xml)
+	{
+		// Make sure we're given input
+		if (xml == null) {
+			throw new IllegalArgumentException("xml");
+		}
+		return load(new StringReader(xml));
+	}
+
+	/**
+	 * Parses a stream straight into a compact document, without building a DOM tree. The encoding
+	 * is detected from the byte order mark and declaration. The stream is not closed.
+	 *
+	 * @param in Stream to parse.
+	 * @return
+	 */
+	public static CompactDoc load(InputStream in)
+	{
+		// Make sure we're given input
+		if (in == null) {
+			throw new IllegalArgumentException("in");
+		}
+
+		try {
+			XMLStreamReader reader;
+			synchronized (factory) {
+				reader = factory.createXMLStreamReader(in);
+			}
+			return load(reader);
+		}
+		catch (XMLStreamException e) {
+			throw new IllegalStateException("could not parse xml", e);
+		}
+	}
+
+	/**
+	 * Parses characters straight into a compact document, without building a DOM tree. The reader
+	 * is not closed.
+	 *
+	 * @param in Reader to parse.
+	 * @return
+	 */
+	public static CompactDoc load(Reader in)
+	{
+		// Make sure we're given input
+		if (in == null) {
+			throw new IllegalArgumentException("in");
+		}
+
+		try {
+			XMLStreamReader reader;
+			synchronized (factory) {
+				reader = factory.createXMLStreamReader(in);
+			}
+			return load(reader);
+		}
+		catch (XMLStreamException e) {
+			throw new IllegalStateException("could not parse xml", e);
+		}
+	}
+
+	/**
+	 * Builds a compact document from StAX events.
+	 *
+	 * @param reader StAX reader positioned at the start of the document.
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	private static CompactDoc load(XMLStreamReader reader) throws XMLStreamException
+	{
+		Builder builder = new Builder();
+		int parent = NONE;
+
+		try {
+			while (reader.hasNext()) {
+				int event = reader.next();
+
+				// Only the root element and its contents are kept
+				if (parent == NONE && event != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+
+				switch (event) {
+				case XMLStreamConstants.START_ELEMENT:
+					parent = builder.add(Node.ELEMENT_NODE, reader.getLocalName(), null, parent);
+
+					// Attributes are kept sorted by name, the order a DOM tree keeps them in
+					int count = reader.getAttributeCount();
+					String[] names = new String[count];
+					Integer[] order = new Integer[count];
+					for (int i = 0; i < count; i++) {
+						String prefix = reader.getAttributePrefix(i);
+						names[i] = (prefix == null || prefix.isEmpty()) ? reader.getAttributeLocalName(i) : prefix + ":" + reader.getAttributeLocalName(i);
+						order[i] = i;
+					}
+					if (count > 1) {
+						Arrays.sort(order, (a, b) -> names[a].compareTo(names[b]));
+					}
+					for (int i : order) {
+						builder.addValue(builder.add(Node.ATTRIBUTE_NODE, names[i], null, parent), reader.getAttributeValue(i));
+					}
+					break;
+
+				case XMLStreamConstants.END_ELEMENT:
+					parent = builder.parents[parent];
+					break;
+
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.SPACE:
+					builder.addText(parent, reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+					break;
+
+				case XMLStreamConstants.CDATA:
+					// Each event is kept as its own section, since adjacent sections can't be told
+					// apart from one split section; the JDK parser reports every section whole
+					builder.addValue(builder.add(Node.CDATA_SECTION_NODE, null, null, parent), reader.getText());
+					break;
+
+				case XMLStreamConstants.COMMENT:
+					builder.addValue(builder.add(Node.COMMENT_NODE, null, null, parent), reader.getText());
+					break;
+
+				case XMLStreamConstants.PROCESSING_INSTRUCTION:
+					builder.addValue(builder.add(Node.PROCESSING_INSTRUCTION_NODE, reader.getPITarget(), null, parent), reader.getPIData());
+					break;
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		if (builder.size == 0) {
+			throw new IllegalStateException("no root element");
+		}
+		return new CompactDoc(builder);
+	}
+
+	/**
+	 * Creates the shared StAX factory.
+	 *
+	 * @return
+	 */
+	private static XMLInputFactory createFactory()
+	{
+		XMLInputFactory factory = XDocRecordReader.createFactory();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+		return factory;
+	}
+
+	/**
+	 * Returns the handle of the root element.
+	 *
+	 * @return
+	 */
+	public int getRoot()
+	{
+		return 0;
+	}
+
+	/**
+	 * Returns the number of nodes, attributes included.
+	 *
+	 * @return
+	 */
+	public int getNodeCount()
+	{
+		return types.length;
+	}
+
+	/**
+	 * Returns the type of a node as one of the org.w3c.dom.Node constants.
+	 *
+	 * @param node Node handle.
+	 * @return
+	 */
+	public int getType(int node)
+	{
+		return types[node];
+	}
+
+	/**
+	 * Returns the name of an element or attribute, or the target of a processing instruction.
+	 *
+	 * @param node Node handle.
+	 * @return The name, or null for other nodes.
+	 */
+	public String getName(int node)
+	{
+		int symbol = names[node];
+		return symbol == NONE ? null : symbols[symbol];
+	}
+
+	/**
+	 * Returns the namespace of a namespace aware element or attribute.
+	 *
+	 * @param node Node handle.
+	 * @return The namespace, or null.
+	 */
+	public String getNamespaceUri(int node)
+	{
+		int symbol = (namespaces == null) ? NONE : namespaces[node];
+		return (symbol == NONE || symbols[symbol].isEmpty()) ? null : symbols[symbol];
+	}
+
+	/**
+	 * Returns the value of a text, CDATA, comment, attribute or processing instruction node.
+	 *
+	 * @param node Node handle.
+	 * @return The value, or null for elements.
+	 */
+	public String getValue(int node)
+	{
+		if (types[node] == Node.ELEMENT_NODE) {
+			return null;
+		}
+		return new String(arena, valueStarts[node], valueLengths[node]);
+	}
+
+	/**
+	 * Returns the parent of a node. The parent of an attribute is its element.
+	 *
+	 * @param node Node handle.
+	 * @return The parent, or NONE for the root element.
+	 */
+	public int getParent(int node)
+	{
+		return parents[node];
+	}
+
+	/**
+	 * Returns the first child of a node.
+	 *
+	 * @param node Node handle.
+	 * @return The first child, or NONE.
+	 */
+	public int getFirstChild(int node)
+	{
+		return firstChildren[node];
+	}
+
+	/**
+	 * Returns the next sibling of a node. For attributes, this is the next attribute.
+	 *
+	 * @param node Node handle.
+	 * @return The next sibling, or NONE.
+	 */
+	public int getNextSibling(int node)
+	{
+		return nextSiblings[node];
+	}
+
+	/**
+	 * Returns the first attribute of an element.
+	 *
+	 * @param node Node handle.
+	 * @return The first attribute, or NONE.
+	 */
+	public int getFirstAttribute(int node)
+	{
+		return firstAttributes[node];
+	}
+
+	/**
+	 * Returns an attribute of an element.
+	 *
+	 * @param node Node handle.
+	 * @param name Attribute name.
+	 * @return The attribute, or NONE.
+	 */
+	public int getAttributeNode(int node, String name)
+	{
+		// Make sure we're given a name
+		if (name == null) {
+			throw new IllegalArgumentException("name");
+		}
+		return findAttribute(node, findSymbol(name));
+	}
+
+	/**
+	 * Returns the value of an attribute of an element.
+	 *
+	 * @param node Node handle.
+	 * @param name Attribute name.
+	 * @return The value, or null if there is no such attribute.
+	 */
+	public String getAttribute(int node, String name)
+	{
+		int attribute = getAttributeNode(node, name);
+		return attribute == NONE ? null : getValue(attribute);
+	}
+
+	/**
+	 * Returns the value of the text nodes that are immediate children of an element, or the value
+	 * of any other node, like XDoc.asText().
+	 *
+	 * @param node Node handle.
+	 * @return
+	 */
+	public String getText(int node)
+	{
+		// Do stuff for elements
+		if (types[node] == Node.ELEMENT_NODE) {
+			// Return an empty string if there are no children
+			int child = firstChildren[node];
+			if (child == NONE) {
+				return "";
+			}
+
+			// A single child hands out its value as is
+			if (nextSiblings[child] == NONE) {
+				return isText(child) ? getValue(child) : null;
+			}
+
+			// Concatenate all consecutive text nodes
+			StringBuilder result = new StringBuilder();
+			for (; child != NONE && isText(child); child = nextSiblings[child]) {
+				result.append(arena, valueStarts[child], valueLengths[child]);
+			}
+			return result.toString();
+		}
+
+		return (isText(node) || types[node] == Node.ATTRIBUTE_NODE) ? getValue(node) : null;
+	}
+
+	/**
+	 * Evaluates a native path against a node.
+	 *
+	 * @param node Context node.
+	 * @param path Compiled path. It must not need the XPath engine.
+	 * @return Selected nodes in document order, possibly none.
+	 */
+	public int[] select(int node, XDocPath path)
+	{
+		// Make sure we're given a path
+		if (path == null) {
+			throw new IllegalArgumentException("path");
+		}
+
+		// Nothing is selected from no node
+		if (node == NONE) {
+			return new int[0];
+		}
+
+		List<Integer> nodes = path.select(new PathNavigator(), node);
+		int[] result = new int[nodes.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = nodes.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Evaluates a native path against a node.
+	 *
+	 * @param node Context node.
+	 * @param path Path. It must not need the XPath engine.
+	 * @return Selected nodes in document order, possibly none.
+	 */
+	public int[] select(int node, String path)
+	{
+		return select(node, XDocPath.compile(path));
+	}
+
+	/**
+	 * Evaluates a native path against a node and returns the first selected node.
+	 *
+	 * @param node Context node.
+	 * @param path Compiled path. It must not need the XPath engine.
+	 * @return The first selected node, or NONE.
+	 */
+	public int selectFirst(int node, XDocPath path)
+	{
+		// Make sure we're given a path
+		if (path == null) {
+			throw new IllegalArgumentException("path");
+		}
+
+		// Nothing is selected from no node
+		if (node == NONE) {
+			return NONE;
+		}
+
+		Integer first = path.selectFirst(new PathNavigator(), node);
+		return (first != null) ? first : NONE;
+	}
+
+	/**
+	 * Evaluates a native path against a node and returns the first selected node.
+	 *
+	 * @param node Context node.
+	 * @param path Path. It must not need the XPath engine.
+	 * @return The first selected node, or NONE.
+	 */
+	public int selectFirst(int node, String path)
+	{
+		return selectFirst(node, XDocPath.compile(path));
+	}
+
+	/**
+	 * Returns whether a node is a text or CDATA node.
+	 *
+	 * @param node Node handle.
+	 * @return
+	 */
+	boolean isText(int node)
+	{
+		return types[node] == Node.TEXT_NODE || types[node] == Node.CDATA_SECTION_NODE;
+	}
+
+	/**
+	 * Returns the symbol of a name.
+	 *
+	 * @param name Name to look up, or null.
+	 * @return The symbol, or NONE if no node uses the name.
+	 */
+	int findSymbol(String name)
+	{
+		if (name == null) {
+			return NONE;
+		}
+
+		// OPTIMIZATION: small documents skip the hash table and its memory entirely
+		if (symbols.length <= LINEAR_SYMBOLS) {
+			for (int i = 0; i < symbols.length; i++) {
+				if (symbols[i].equals(name)) {
+					return i;
+				}
+			}
+			return NONE;
+		}
+
+		// Racing threads build equal tables, so the last one written wins harmlessly
+		HashMap<String, Integer> table = symbolTable;
+		if (table == null) {
+			table = new HashMap<String, Integer>(symbols.length * 2);
+			for (int i = 0; i < symbols.length; i++) {
+				table.put(symbols[i], i);
+			}
+			symbolTable = table;
+		}
+		Integer symbol = table.get(name);
+		return symbol == null ? NONE : symbol;
+	}
+
+	/**
+	 * Returns the attribute of an element with a name symbol.
+	 *
+	 * @param node Node handle.
+	 * @param symbol Name symbol.
+	 * @return The attribute, or NONE.
+	 */
+	int findAttribute(int node, int symbol)
+	{
+		if (symbol == NONE) {
+			return NONE;
+		}
+		for (int attribute = firstAttributes[node]; attribute != NONE; attribute = nextSiblings[attribute]) {
+			if (names[attribute] == symbol) {
+				return attribute;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Compares the value of a node with a string without creating a string for the value.
+	 *
+	 * @param node Node handle.
+	 * @param value Value to compare with.
+	 * @return
+	 */
+	boolean valueEquals(int node, String value)
+	{
+		int length = valueLengths[node];
+		if (length != value.length()) {
+			return false;
+		}
+		for (int i = 0, start = valueStarts[node]; i < length; i++) {
+			if (arena[start + i] != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Converts the document to a DOM Document.
+	 *
+	 * @return
+	 */
+	public Document toDocument()
+	{
+		Document doc = XDoc.getDocumentBuilderPool().newDocument();
+		Node parent = doc;
+		int node = 0;
+
+		// Create the nodes in document order
+		while (true) {
+			Node created = createNode(doc, node);
+			parent.appendChild(created);
+
+			// Descend into elements
+			if (firstChildren[node] != NONE) {
+				parent = created;
+				node = firstChildren[node];
+				continue;
+			}
+
+			// Climb until there is a next sibling
+			while (node != 0 && nextSiblings[node] == NONE) {
+				node = parents[node];
+				parent = parent.getParentNode();
+			}
+			if (node == 0) {
+				break;
+			}
+			node = nextSiblings[node];
+		}
+
+		return doc;
+	}
+
+	/**
+	 * Converts the document to a DOM-backed XDoc.
+	 *
+	 * @return
+	 */
+	public XDoc toXDoc()
+	{
+		return new XDoc(toDocument());
+	}
+
+	/**
+	 * Creates the DOM node for a node, attributes included.
+	 *
+	 * @param doc Document to create the node in.
+	 * @param node Node handle.
+	 * @return
+	 */
+	private Node createNode(Document doc, int node)
+	{
+		switch (types[node]) {
+		case Node.ELEMENT_NODE:
+			Element element;
+			if (namespaces != null && namespaces[node] != NONE) {
+				element = doc.createElementNS(getNamespaceUri(node), getName(node));
+			}
+			else {
+				element = doc.createElement(getName(node));
+			}
+			for (int attribute = firstAttributes[node]; attribute != NONE; attribute = nextSiblings[attribute]) {
+				if (namespaces != null && namespaces[attribute] != NONE) {
+					element.setAttributeNS(getNamespaceUri(attribute), getName(attribute), getValue(attribute));
+				}
+				else {
+					element.setAttribute(getName(attribute), getValue(attribute));
+				}
+			}
+			return element;
+
+		case Node.CDATA_SECTION_NODE:
+			return doc.createCDATASection(getValue(node));
+
+		case Node.COMMENT_NODE:
+			return doc.createComment(getValue(node));
+
+		case Node.PROCESSING_INSTRUCTION_NODE:
+			return doc.createProcessingInstruction(getName(node), getValue(node));
+
+		default:
+			return doc.createTextNode(getValue(node));
+		}
+	}
+
+	/**
+	 * Writes the document to a writer. The writer is flushed but not closed.
+	 *
+	 * @param out The writer to write to.
+	 * @throws IOException
+	 */
+	public void writeTo(Writer out) throws IOException
+	{
+		// Make sure we're given a target
+		if (out == null) {
+			throw new IllegalArgumentException("out");
+		}
+		write(XDocSerializer.open(out, false, null));
+	}
+
+	/**
+	 * Writes the document to a stream. The stream is flushed but not closed.
+	 *
+	 * @param out The stream to write to.
+	 * @param charset The charset to encode with.
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out, Charset charset) throws IOException
+	{
+		// Make sure we're given a target and a charset
+		if (out == null) {
+			throw new IllegalArgumentException("out");
+		}
+		if (charset == null) {
+			throw new IllegalArgumentException("charset");
+		}
+		write(XDocSerializer.open(new OutputStreamWriter(out, charset), false, charset));
+	}
+
+	/**
+	 * Returns the document as a string, like XDoc.toString().
+	 *
+	 * @return
+	 */
+	@Override
+	public String toString()
+	{
+		StringWriter out = new StringWriter();
+		try {
+			write(XDocSerializer.open(out, false, null));
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Returns the document as an indented string with the declaration, like XDoc.toPrettyString().
+	 *
+	 * @return
+	 */
+	public String toPrettyString()
+	{
+		StringWriter out = new StringWriter();
+		try {
+			XDocSerializer serializer = XDocSerializer.open(out, true, null);
+			serializer.startDocument(XDocSerializer.DEFAULT_ENCODING);
+			write(serializer);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Drives a serializer through the whole document.
+	 *
+	 * @param serializer Serializer to write with.
+	 * @throws IOException
+	 */
+	private void write(XDocSerializer serializer) throws IOException
+	{
+		int node = 0;
+
+		// Write the nodes in document order
+		while (true) {
+			switch (types[node]) {
+			case Node.ELEMENT_NODE:
+				writeStartTag(serializer, node);
+				if (firstChildren[node] != NONE) {
+					node = firstChildren[node];
+					continue;
+				}
+				serializer.endElement(getName(node));
+				break;
+
+			case Node.CDATA_SECTION_NODE:
+				serializer.cData(getValue(node));
+				break;
+
+			case Node.COMMENT_NODE:
+				serializer.comment(getValue(node));
+				break;
+
+			case Node.PROCESSING_INSTRUCTION_NODE:
+				serializer.processingInstruction(getName(node), getValue(node));
+				break;
+
+			default:
+				serializer.text(getValue(node));
+			}
+
+			// Close elements until there is a next sibling
+			while (node != 0 && nextSiblings[node] == NONE) {
+				node = parents[node];
+				serializer.endElement(getName(node));
+			}
+			if (node == 0) {
+				break;
+			}
+			node = nextSiblings[node];
+		}
+
+		serializer.endDocument();
+	}
+
+	/**
+	 * Writes the start tag of an element in the same order as the DOM serializer: namespace
+	 * declarations, attributes and the element's own namespace.
+	 *
+	 * @param serializer Serializer to write with.
+	 * @param node Element handle.
+	 * @throws IOException
+	 */
+	private void writeStartTag(XDocSerializer serializer, int node) throws IOException
+	{
+		serializer.startElement(getName(node), null);
+
+		// Namespace declarations come first
+		for (int attribute = firstAttributes[node]; attribute != NONE; attribute = nextSiblings[attribute]) {
+			if (isDeclaration(attribute)) {
+				serializer.attribute(getName(attribute), getValue(attribute));
+			}
+		}
+
+		// Then the attributes, declaring the namespaces of namespace aware ones
+		for (int attribute = firstAttributes[node]; attribute != NONE; attribute = nextSiblings[attribute]) {
+			if (isDeclaration(attribute)) {
+				continue;
+			}
+			String name = getName(attribute);
+			String uri = getNamespaceUri(attribute);
+			if (uri != null && name.indexOf(':') > 0) {
+				serializer.namespace(name, uri);
+			}
+			serializer.attribute(name, getValue(attribute));
+		}
+
+		// Then the element's own namespace
+		if (namespaces != null && namespaces[node] != NONE) {
+			serializer.namespace(getName(node), symbols[namespaces[node]]);
+		}
+	}
+
+	/**
+	 * Returns whether an attribute is a namespace declaration.
+	 *
+	 * @param attribute Attribute handle.
+	 * @return
+	 */
+	private boolean isDeclaration(int attribute)
+	{
+		String name = getName(attribute);
+		return name.equals("xmlns") || name.startsWith("xmlns:");
+	}
+
+	/**
+	 * Gives XDocPath access to the nodes of this document.
+	 */
+	private final class PathNavigator implements XDocPath.Navigator<Integer>
+	{
+		/**
+		 * Name last looked up in the symbol table. Steps look up the same name again and again.
+		 */
+		private String name;
+
+		/**
+		 * Symbol of the name last looked up.
+		 */
+		private int symbol = NONE;
+
+		/**
+		 * Returns the symbol of a name.
+		 *
+		 * @param name Name to look up.
+		 * @return The symbol, or NONE if no node uses the name.
+		 */
+		private int symbol(String name)
+		{
+			if (name != this.name) {
+				this.symbol = findSymbol(name);
+				this.name = name;
+			}
+			return symbol;
+		}
+
+		@Override
+		public void addElements(Integer context, String name, int limit, List<Integer> result)
+		{
+			// Names are matched by symbol
+			int symbol = symbol(name);
+			if (name != null && symbol == NONE) {
+				return;
+			}
+
+			int count = 0;
+			for (int child = firstChildren[context]; child != NONE; child = nextSiblings[child]) {
+				if (types[child] == Node.ELEMENT_NODE && (name == null || names[child] == symbol)) {
+					result.add(child);
+					if (++count == limit) {
+						return;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void addAttributes(Integer context, String name, List<Integer> result)
+		{
+			if (name != null) {
+				int attribute = findAttribute(context, symbol(name));
+				if (attribute != NONE) {
+					result.add(attribute);
+				}
+			}
+			else {
+				for (int attribute = firstAttributes[context]; attribute != NONE; attribute = nextSiblings[attribute]) {
+					result.add(attribute);
+				}
+			}
+		}
+
+		@Override
+		public void addTexts(Integer context, List<Integer> result)
+		{
+			boolean inText = false;
+			for (int child = firstChildren[context]; child != NONE; child = nextSiblings[child]) {
+				boolean text = isText(child);
+				if (text && !inText) {
+					result.add(child);
+				}
+				inText = text;
+			}
+		}
+
+		@Override
+		public boolean matchesAttribute(Integer node, String name, String value)
+		{
+			int attribute = findAttribute(node, symbol(name));
+			return attribute != NONE && (value == null || valueEquals(attribute, value));
+		}
+	}
+
+	/**
+	 * Collects nodes into growable parallel arrays.
+	 */
+	private static final class Builder
+	{
+		// Node storage, laid out as in CompactDoc
+		byte[] types = new byte[64];
+		int[] names = new int[64];
+		int[] namespaces = new int[64];
+		int[] parents = new int[64];
+		int[] firstChildren = new int[64];
+		int[] nextSiblings = new int[64];
+		int[] firstAttributes = new int[64];
+		int[] valueStarts = new int[64];
+		int[] valueLengths = new int[64];
+
+		/**
+		 * Last child of each node, to append children in order.
+		 */
+		int[] lastChildren = new int[64];
+
+		/**
+		 * Last attribute of each element, to append attributes in order.
+		 */
+		int[] lastAttributes = new int[64];
+
+		/**
+		 * Number of nodes.
+		 */
+		int size;
+
+		/**
+		 * Value storage.
+		 */
+		char[] arena = new char[256];
+
+		/**
+		 * Number of characters used in the arena.
+		 */
+		int arenaLength;
+
+		/**
+		 * Names and namespaces by symbol.
+		 */
+		final ArrayList<String> symbols = new ArrayList<String>();
+
+		/**
+		 * Symbols by name.
+		 */
+		final HashMap<String, Integer> symbolTable = new HashMap<String, Integer>();
+
+		/**
+		 * Whether any node is namespace aware.
+		 */
+		boolean namespaceAware;
+
+		/**
+		 * Adds a copy of a DOM node, with its attributes and value but without its children.
+		 *
+		 * @param node Node to copy.
+		 * @param parent Parent handle, or NONE.
+		 * @return The handle, or NONE if the node type is not kept.
+		 */
+		int copy(Node node, int parent)
+		{
+			switch (node.getNodeType()) {
+			case Node.ELEMENT_NODE:
+				// Namespace aware elements without a namespace still need to undeclare a default one
+				String namespace = node.getNamespaceURI();
+				if (namespace == null && node.getLocalName() != null) {
+					namespace = "";
+				}
+				int element = add(Node.ELEMENT_NODE, node.getNodeName(), namespace, parent);
+
+				NamedNodeMap attributes = node.getAttributes();
+				for (int i = 0, end = attributes.getLength(); i < end; i++) {
+					Node attribute = attributes.item(i);
+					addValue(add(Node.ATTRIBUTE_NODE, attribute.getNodeName(), attribute.getNamespaceURI(), element), attribute.getNodeValue());
+				}
+				return element;
+
+			case Node.TEXT_NODE:
+			case Node.CDATA_SECTION_NODE:
+			case Node.COMMENT_NODE:
+				int id = add(node.getNodeType(), null, null, parent);
+				addValue(id, node.getNodeValue());
+				return id;
+
+			case Node.PROCESSING_INSTRUCTION_NODE:
+				int instruction = add(Node.PROCESSING_INSTRUCTION_NODE, node.getNodeName(), null, parent);
+				addValue(instruction, node.getNodeValue());
+				return instruction;
+			}
+
+			return NONE;
+		}
+
+		/**
+		 * Adds a node at the end of its parent's children or attributes.
+		 *
+		 * @param type Node type.
+		 * @param name Name, or null.
+		 * @param namespace Namespace, or null if the node is not namespace aware.
+		 * @param parent Parent handle, or NONE.
+		 * @return The handle of the new node.
+		 */
+		int add(short type, String name, String namespace, int parent)
+		{
+			if (size == types.length) {
+				grow();
+			}
+
+			int node = size++;
+			types[node] = (byte)type;
+			names[node] = (name == null) ? NONE : symbol(name);
+			namespaces[node] = (namespace == null) ? NONE : symbol(namespace);
+			parents[node] = parent;
+			firstChildren[node] = NONE;
+			nextSiblings[node] = NONE;
+			firstAttributes[node] = NONE;
+			lastChildren[node] = NONE;
+			lastAttributes[node] = NONE;
+			valueStarts[node] = arenaLength;
+			valueLengths[node] = 0;
+
+			if (namespace != null) {
+				namespaceAware = true;
+			}
+
+			// Link the node to its parent
+			if (parent != NONE) {
+				if (type == Node.ATTRIBUTE_NODE) {
+					if (lastAttributes[parent] == NONE) {
+						firstAttributes[parent] = node;
+					}
+					else {
+						nextSiblings[lastAttributes[parent]] = node;
+					}
+					lastAttributes[parent] = node;
+				}
+				else {
+					if (lastChildren[parent] == NONE) {
+						firstChildren[parent] = node;
+					}
+					else {
+						nextSiblings[lastChildren[parent]] = node;
+					}
+					lastChildren[parent] = node;
+				}
+			}
+
+			return node;
+		}
+
+		/**
+		 * Sets the value of the node just added.
+		 *
+		 * @param node Node handle.
+		 * @param value Value of the node, or null.
+		 */
+		void addValue(int node, String value)
+		{
+			if (value == null) {
+				return;
+			}
+			int length = value.length();
+			reserve(length);
+			value.getChars(0, length, arena, arenaLength);
+			arenaLength += length;
+			valueLengths[node] += length;
+		}
+
+		/**
+		 * Adds character data to an element, merging it into a text node that was just added.
+		 *
+		 * @param parent Element handle.
+		 * @param text Characters to add.
+		 * @param start Index of the first character.
+		 * @param length Number of characters.
+		 */
+		void addText(int parent, char[] text, int start, int length)
+		{
+			// Parsers may split one text node into several events
+			int node = lastChildren[parent];
+			if (node == NONE || types[node] != Node.TEXT_NODE || valueStarts[node] + valueLengths[node] != arenaLength) {
+				node = add(Node.TEXT_NODE, null, null, parent);
+			}
+			reserve(length);
+			System.arraycopy(text, start, arena, arenaLength, length);
+			arenaLength += length;
+			valueLengths[node] += length;
+		}
+
+		/**
+		 * Returns the symbol of a name, adding it if needed.
+		 *
+		 * @param name Name to look up.
+		 * @return
+		 */
+		private int symbol(String name)
+		{
+			Integer symbol = symbolTable.get(name);
+			if (symbol == null) {
+				// Interned names are shared by every document that uses them
+				symbol = symbols.size();
+				symbols.add(name.intern());
+				symbolTable.put(name, symbol);
+			}
+			return symbol;
+		}
+
+		/**
+		 * Makes room in the arena.
+		 *
+		 * @param length Number of characters to be added.
+		 */
+		private void reserve(int length)
+		{
+			if (arenaLength + length > arena.length) {
+				arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + length));
+			}
+		}
+
+		/**
+		 * Doubles the node capacity.
+		 */
+		private void grow()
+		{
+			int capacity = types.length * 2;
+			types = Arrays.copyOf(types, capacity);
+			names = Arrays.copyOf(names, capacity);
+			namespaces = Arrays.copyOf(namespaces, capacity);
+			parents = Arrays.copyOf(parents, capacity);
+			firstChildren = Arrays.copyOf(firstChildren, capacity);
+			nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+			firstAttributes = Arrays.copyOf(firstAttributes, capacity);
+			valueStarts = Arrays.copyOf(valueStarts, capacity);
+			valueLengths = Arrays.copyOf(valueLengths, capacity);
+			lastChildren = Arrays.copyOf(lastChildren, capacity);
+			lastAttributes = Arrays.copyOf(lastAttributes, capacity);
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.budjb.xml;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.w3c.dom.Node;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class CompactDocTest
+{
+	private static final String XML = "<root id=\"1\" kind=\"a&amp;b\"><item k=\"v\"><name>first</name></item>"
+		+ "<item><name>sec&lt;ond</name><!--note--></item>text<![CDATA[raw]]><?pi data?><empty/></root>";
+	
+	@Test
+	public void loadMatchesXDoc()
+	{
+		CompactDoc doc = CompactDoc.load(XML);
+		
+		assertEquals(XDoc.load(XML).toString(), doc.toString());
+		assertEquals(XDoc.load(XML).toPrettyString(), doc.toPrettyString());
+		assertEquals(XML, CompactDoc.load(new ByteArrayInputStream(XML.getBytes(StandardCharsets.UTF_8))).toString());
+	}
+	
+	@Test
+	public void loadMergesSplitEvents()
+	{
+		StringBuilder data = new StringBuilder("\n\nfoo\u00e9");
+		for (int i = 0; i < 10000; i++) {
+			data.append("line ").append(i).append('\n');
+		}
+		String xml = "<r z=\"1\" b=\"2\" a=\"3\"><![CDATA[" + data + "]]>a&amp;b<![CDATA[x]]></r>";
+		CompactDoc doc = CompactDoc.load(xml);
+		
+		assertEquals(XDoc.load(xml).toString(), doc.toString());
+		assertEquals(3, doc.toXDoc().asNode().getChildNodes().getLength());
+		assertEquals(XDoc.load(xml), doc.toXDoc());
+		
+		// Adjacent sections stay apart
+		xml = "<p><![CDATA[c]]><![CDATA[d]]></p>";
+		assertEquals("<p><![CDATA[c]]><![CDATA[d]]></p>", CompactDoc.load(xml).toString());
+		assertEquals(XDoc.load(xml).toString(), CompactDoc.load(xml).toString());
+		assertEquals(XDoc.load(xml).toString(), CompactDoc.of(XDoc.load(xml)).toString());
+	}
+	
+	@Test
+	public void copyMatchesXDoc()
+	{
+		XDoc xdoc = XDoc.load(XML);
+		CompactDoc doc = xdoc.compact();
+		
+		assertEquals(xdoc.toString(), doc.toString());
+		assertEquals(xdoc.at("item").compact().toString(), "<item k=\"v\"><name>first</name></item>");
+		assertEquals(xdoc.toString(), doc.toXDoc().toString());
+		assertEquals(xdoc.toString(), CompactDoc.of(doc.toDocument()).toString());
+	}
+	
+	@Test
+	public void navigation()
+	{
+		CompactDoc doc = CompactDoc.load(XML);
+		int root = doc.getRoot();
+		int item = doc.getFirstChild(root);
+		
+		assertEquals(Node.ELEMENT_NODE, doc.getType(root));
+		assertEquals("root", doc.getName(root));
+		assertEquals("a&b", doc.getAttribute(root, "kind"));
+		assertNull(doc.getAttribute(root, "missing"));
+		assertEquals("item", doc.getName(item));
+		assertEquals(root, doc.getParent(item));
+		assertEquals("k", doc.getName(doc.getFirstAttribute(item)));
+		assertEquals(CompactDoc.NONE, doc.getNextSibling(doc.getFirstAttribute(item)));
+		assertEquals("v", doc.getValue(doc.getFirstAttribute(item)));
+		assertNull(doc.getValue(root));
+	}
+	
+	@Test
+	public void selectMatchesXDoc()
+	{
+		XDoc xdoc = XDoc.load(XML);
+		CompactDoc doc = xdoc.compact();
+		String[] paths = { "item", "@id", "item/name", "item[2]/name", "item[@k='v']/name", "item[@k]", "*", "text()", "item[last()]", "@*", "missing" };
+		
+		for (String path : paths) {
+			int[] nodes = doc.select(doc.getRoot(), path);
+			XDoc expected = xdoc.at(path);
+			
+			assertEquals(path, expected.length(), nodes.length);
+			int i = 0;
+			for (XDoc node : expected) {
+				assertEquals(path, node.asText(), doc.getText(nodes[i++]));
+			}
+		}
+		
+		assertEquals("sec<ond", doc.getText(doc.selectFirst(doc.getRoot(), "item[2]/name")));
+		assertEquals(CompactDoc.NONE, doc.selectFirst(doc.getRoot(), "nothing"));
+		assertEquals(xdoc.asText(), doc.getText(doc.getRoot()));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void xpathPlan()
+	{
+		CompactDoc.load(XML).select(0, "//name");
+	}
+	
+	@Test
+	public void deepDocument() throws Exception
+	{
+		StringBuilder xml = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			xml.append("<a>");
+		}
+		for (int i = 0; i < 20000; i++) {
+			xml.append("</a>");
+		}
+		
+		CompactDoc doc = CompactDoc.load(xml.toString());
+		assertEquals(20000, doc.getNodeCount());
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		doc.writeTo(out, StandardCharsets.UTF_8);
+		assertEquals(19999 * 7 + 4, out.size());
+		assertEquals(20000, CompactDoc.of(doc.toDocument()).getNodeCount());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void writeToNullStream() throws IOException
+	{
+		CompactDoc.load(XML).writeTo(null, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reuses configured DocumentBuilder instances instead of looking up a factory and building a
+ * new parser for every document.
+ *
+ * DocumentBuilder is not thread-safe, so each thread keeps its own builder and resets it after
+ * every parse. A builder that is already in use further up the same thread's stack is not
+ * shared; a temporary one is created instead. The counters are shared across all threads.
+ */
+public final class DocumentBuilderPool
+{
+	/**
+	 * Factory configured from the pool's settings.
+	 */
+	private final DocumentBuilderFactory factory;
+
+	/**
+	 * Settings the pool was created with.
+	 */
+	private final ParserConfig config;
+
+	/**
+	 * Per-thread builder, or null while it is in use.
+	 */
+	private final ThreadLocal<DocumentBuilder> builders = new ThreadLocal<DocumentBuilder>();
+
+	/**
+	 * Number of builders created.
+	 */
+	private final AtomicLong created = new AtomicLong();
+
+	/**
+	 * Number of times an existing builder was reused.
+	 */
+	private final AtomicLong reused = new AtomicLong();
+
+	/**
+	 * Number of builders dropped because they could not be reset.
+	 */
+	private final AtomicLong discarded = new AtomicLong();
+
+	/**
+	 * Creates a pool with the default settings.
+	 */
+	public DocumentBuilderPool()
+	{
+		this(new ParserConfig());
+	}
+
+	/**
+	 * Creates a pool with the given settings. Later changes to the settings object do not
+	 * affect the pool.
+	 *
+	 * @param config Parser settings.
+	 */
+	public DocumentBuilderPool(ParserConfig config)
+	{
+		// Make sure we're given settings
+		if (config == null) {
+			throw new IllegalArgumentException("config");
+		}
+		this.config = new ParserConfig(config);
+
+		// Configure the factory once
+		factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(config.isNamespaceAware());
+		factory.setIgnoringElementContentWhitespace(config.isIgnoringWhitespace());
+		if (config.isSecureProcessing()) {
+			try {
+				factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			}
+			catch (ParserConfigurationException e) {
+				throw new IllegalStateException("secure processing is not supported", e);
+			}
+		}
+	}
+
+	/**
+	 * Parses a document with this thread's builder.
+	 *
+	 * @param source Source to parse.
+	 * @return
+	 * @throws SAXException
+	 * @throws IOException
+	 */
+	public Document parse(InputSource source) throws SAXException, IOException
+	{
+		DocumentBuilder builder = borrow();
+		try {
+			return builder.parse(source);
+		}
+		finally {
+			release(builder);
+		}
+	}
+
+	/**
+	 * Creates a new, empty document with this thread's builder.
+	 *
+	 * @return
+	 */
+	public Document newDocument()
+	{
+		DocumentBuilder builder = borrow();
+		try {
+			return builder.newDocument();
+		}
+		finally {
+			release(builder);
+		}
+	}
+
+	/**
+	 * Returns a copy of the settings the pool was created with.
+	 *
+	 * @return
+	 */
+	public ParserConfig getConfig()
+	{
+		return new ParserConfig(config);
+	}
+
+	/**
+	 * Returns the number of builders created.
+	 *
+	 * @return
+	 */
+	public long getCreated()
+	{
+		return created.get();
+	}
+
+	/**
+	 * Returns the number of times an existing builder was reused.
+	 *
+	 * @return
+	 */
+	public long getReused()
+	{
+		return reused.get();
+	}
+
+	/**
+	 * Returns the number of builders dropped because they could not be reset.
+	 *
+	 * @return
+	 */
+	public long getDiscarded()
+	{
+		return discarded.get();
+	}
+
+	/**
+	 * Takes this thread's builder, creating one if the thread has none or it is in use.
+	 *
+	 * @return
+	 */
+	private DocumentBuilder borrow()
+	{
+		DocumentBuilder builder = builders.get();
+		if (builder != null) {
+			builders.set(null);
+			reused.incrementAndGet();
+			return builder;
+		}
+
+		// JAXP does not promise the factory is thread-safe
+		try {
+			synchronized (factory) {
+				builder = factory.newDocumentBuilder();
+			}
+		}
+		catch (ParserConfigurationException e) {
+			throw new IllegalStateException("could not create DocumentBuilder instance", e);
+		}
+		created.incrementAndGet();
+		return builder;
+	}
+
+	/**
+	 * Resets a builder and gives it back to this thread.
+	 *
+	 * @param builder Builder to give back.
+	 */
+	private void release(DocumentBuilder builder)
+	{
+		try {
+			builder.reset();
+		}
+		catch (UnsupportedOperationException e) {
+			discarded.incrementAndGet();
+			return;
+		}
+
+		// Keep the first builder if a nested call already returned one
+		if (builders.get() == null) {
+			builders.set(builder);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+public class DocumentBuilderPoolTest
+{
+	@Test
+	public void builderIsReused() throws SAXException, IOException
+	{
+		DocumentBuilderPool pool = new DocumentBuilderPool();
+		pool.newDocument();
+		pool.parse(new InputSource(new StringReader("<a/>")));
+		pool.parse(new InputSource(new StringReader("<b/>")));
+		
+		assertEquals(1, pool.getCreated());
+		assertEquals(2, pool.getReused());
+	}
+	
+	@Test
+	public void builderIsResetAfterFailure() throws IOException, SAXException
+	{
+		DocumentBuilderPool pool = new DocumentBuilderPool();
+		try {
+			pool.parse(new InputSource(new StringReader("<a>")));
+			fail();
+		}
+		catch (SAXException e) {
+			// expected
+		}
+		
+		Document doc = pool.parse(new InputSource(new StringReader("<b/>")));
+		assertEquals("b", doc.getDocumentElement().getTagName());
+		assertEquals(1, pool.getCreated());
+	}
+	
+	@Test
+	public void configIsApplied() throws SAXException, IOException
+	{
+		String xml = "<p:a xmlns:p=\"urn:p\"/>";
+		
+		Document plain = new DocumentBuilderPool().parse(new InputSource(new StringReader(xml)));
+		assertNull(plain.getDocumentElement().getNamespaceURI());
+		
+		DocumentBuilderPool pool = new DocumentBuilderPool(new ParserConfig().setNamespaceAware(true).setSecureProcessing(true));
+		Document aware = pool.parse(new InputSource(new StringReader(xml)));
+		assertEquals("urn:p", aware.getDocumentElement().getNamespaceURI());
+		assertTrue(pool.getConfig().isNamespaceAware());
+	}
+	
+	@Test
+	public void loadUsesConfiguredPool()
+	{
+		DocumentBuilderPool previous = XDoc.getDocumentBuilderPool();
+		DocumentBuilderPool pool = new DocumentBuilderPool(new ParserConfig().setNamespaceAware(true));
+		XDoc.setDocumentBuilderPool(pool);
+		try {
+			XDoc doc = XDoc.load("<p:a xmlns:p=\"urn:p\"/>");
+			assertEquals("urn:p", doc.asNode().getNamespaceURI());
+			new XDoc("b");
+			assertEquals(1, pool.getCreated());
+			assertEquals(1, pool.getReused());
+		}
+		finally {
+			XDoc.setDocumentBuilderPool(previous);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml;
+
+/**
+ * Options for loading xml files with XDoc.load(Path, LoadOptions).
+ *
+ * By default files of at least DEFAULT_MAP_THRESHOLD bytes are memory-mapped and fed to the
+ * parser from the mapped region, so the raw file never has to be copied onto the heap. Smaller
+ * files are read through a buffered stream, which is cheaper than setting up a mapping.
+ */
+public final class LoadOptions
+{
+	/**
+	 * Default size from which files are memory-mapped.
+	 */
+	public static final long DEFAULT_MAP_THRESHOLD = 1024 * 1024;
+
+	/**
+	 * Whether large files are memory-mapped.
+	 */
+	private boolean memoryMapped = true;
+
+	/**
+	 * Size from which files are memory-mapped.
+	 */
+	private long mapThreshold = DEFAULT_MAP_THRESHOLD;
+
+	/**
+	 * Largest file size in bytes that will be loaded.
+	 */
+	private long maxSize = Long.MAX_VALUE;
+
+	/**
+	 * Returns whether large files are memory-mapped.
+	 *
+	 * @return
+	 */
+	public boolean isMemoryMapped()
+	{
+		return memoryMapped;
+	}
+
+	/**
+	 * Sets whether large files are memory-mapped.
+	 *
+	 * @param memoryMapped
+	 * @return
+	 */
+	public LoadOptions setMemoryMapped(boolean memoryMapped)
+	{
+		this.memoryMapped = memoryMapped;
+		return this;
+	}
+
+	/**
+	 * Returns the size in bytes from which files are memory-mapped.
+	 *
+	 * @return
+	 */
+	public long getMapThreshold()
+	{
+		return mapThreshold;
+	}
+
+	/**
+	 * Sets the size in bytes from which files are memory-mapped.
+	 *
+	 * @param mapThreshold Size in bytes. Must not be negative.
+	 * @return
+	 */
+	public LoadOptions setMapThreshold(long mapThreshold)
+	{
+		if (mapThreshold < 0) {
+			throw new IllegalArgumentException("mapThreshold");
+		}
+		this.mapThreshold = mapThreshold;
+		return this;
+	}
+
+	/**
+	 * Returns the file size limit in bytes.
+	 *
+	 * @return
+	 */
+	public long getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * Sets the file size limit in bytes. Larger files are refused with IllegalArgumentException
+	 * before parsing starts. The limit applies to the file, not to the heap: the resulting DOM
+	 * takes several times the file size.
+	 *
+	 * @param maxSize Size in bytes. Must be positive.
+	 * @return
+	 */
+	public LoadOptions setMaxSize(long maxSize)
+	{
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize");
+		}
+		this.maxSize = maxSize;
+		return this;
+	}
+}
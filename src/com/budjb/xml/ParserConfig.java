@@ -0,0 +1,130 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml;
+
+/**
+ * Parser settings used to configure the DocumentBuilder instances behind XDoc.load().
+ *
+ * The defaults match a plain DocumentBuilderFactory: not namespace aware, whitespace kept and
+ * secure processing left at the platform default.
+ */
+public final class ParserConfig
+{
+	/**
+	 * Whether the parser is namespace aware.
+	 */
+	private boolean namespaceAware;
+
+	/**
+	 * Whether whitespace in element content is dropped.
+	 */
+	private boolean ignoringWhitespace;
+
+	/**
+	 * Whether the secure processing feature is turned on.
+	 */
+	private boolean secureProcessing;
+
+	/**
+	 * Creates a configuration with the default settings.
+	 */
+	public ParserConfig()
+	{
+	}
+
+	/**
+	 * Creates a copy of another configuration.
+	 *
+	 * @param other Configuration to copy.
+	 */
+	public ParserConfig(ParserConfig other)
+	{
+		if (other == null) {
+			throw new IllegalArgumentException("other");
+		}
+		namespaceAware = other.namespaceAware;
+		ignoringWhitespace = other.ignoringWhitespace;
+		secureProcessing = other.secureProcessing;
+	}
+
+	/**
+	 * Returns whether the parser is namespace aware.
+	 *
+	 * @return
+	 */
+	public boolean isNamespaceAware()
+	{
+		return namespaceAware;
+	}
+
+	/**
+	 * Sets whether the parser is namespace aware.
+	 *
+	 * @param namespaceAware
+	 * @return
+	 */
+	public ParserConfig setNamespaceAware(boolean namespaceAware)
+	{
+		this.namespaceAware = namespaceAware;
+		return this;
+	}
+
+	/**
+	 * Returns whether whitespace in element content is dropped.
+	 *
+	 * @return
+	 */
+	public boolean isIgnoringWhitespace()
+	{
+		return ignoringWhitespace;
+	}
+
+	/**
+	 * Sets whether whitespace in element content is dropped. The parser can only tell element
+	 * content apart from mixed content when the document is validated against a DTD.
+	 *
+	 * @param ignoringWhitespace
+	 * @return
+	 */
+	public ParserConfig setIgnoringWhitespace(boolean ignoringWhitespace)
+	{
+		this.ignoringWhitespace = ignoringWhitespace;
+		return this;
+	}
+
+	/**
+	 * Returns whether the secure processing feature is turned on.
+	 *
+	 * @return
+	 */
+	public boolean isSecureProcessing()
+	{
+		return secureProcessing;
+	}
+
+	/**
+	 * Sets whether the secure processing feature is turned on.
+	 *
+	 * @param secureProcessing
+	 * @return
+	 */
+	public ParserConfig setSecureProcessing(boolean secureProcessing)
+	{
+		this.secureProcessing = secureProcessing;
+		return this;
+	}
+}
@@ -0,0 +1,1240 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.budjb.xml;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable XML tree where every change yields a new version of the document.
+ *
+ * A PersistentDoc is one version of a document together with a selected node, much like an XDoc
+ * cursor. attr(), replaceValue(), insertValueAt(), remove() and rename() never touch the version
+ * they are called on; they return the matching selection in a new version, and getRoot() returns
+ * that version's root. Only the changed node and its ancestors are copied. Every other subtree is
+ * shared with the previous version, so keeping many versions costs memory in proportion to the
+ * changes rather than to the size of the document.
+ *
+ * Native XDocPath plans select nodes with at() and select(). Use of(...) and toXDoc() to convert
+ * from and to the DOM-backed XDoc. PersistentDoc instances may be shared between threads.
+ */
+public final class PersistentDoc
+{
+	/**
+	 * A node of the tree. Items are never changed once created, so any number of versions may
+	 * share them.
+	 */
+	static final class Item
+	{
+		/**
+		 * Node type, as the org.w3c.dom.Node constants.
+		 */
+		final short type;
+
+		/**
+		 * Element, attribute or processing instruction name, or null.
+		 */
+		final String name;
+
+		/**
+		 * Namespace URI, "" for namespace aware nodes without one, or null for nodes that are not
+		 * namespace aware.
+		 */
+		final String namespaceUri;
+
+		/**
+		 * Value of attributes, text, comments and processing instructions, or null.
+		 */
+		final String value;
+
+		/**
+		 * Attributes of elements, sorted by name like the DOM keeps them.
+		 */
+		final Item[] attributes;
+
+		/**
+		 * Children of elements.
+		 */
+		final Item[] children;
+
+		/**
+		 * Creates a new node.
+		 *
+		 * @param type Node type.
+		 * @param name Node name, or null.
+		 * @param namespaceUri Namespace URI, or null.
+		 * @param value Node value, or null.
+		 * @param attributes Attributes.
+		 * @param children Children.
+		 */
+		Item(short type, String name, String namespaceUri, String value, Item[] attributes, Item[] children)
+		{
+			this.type = type;
+			this.name = name;
+			this.namespaceUri = namespaceUri;
+			this.value = value;
+			this.attributes = attributes;
+			this.children = children;
+		}
+
+		/**
+		 * Returns whether the node is a text or CDATA node.
+		 *
+		 * @return
+		 */
+		boolean isText()
+		{
+			return type == Node.TEXT_NODE || type == Node.CDATA_SECTION_NODE;
+		}
+
+		/**
+		 * Returns the position of the named attribute, or -1.
+		 *
+		 * @param name Attribute name.
+		 * @return
+		 */
+		int findAttribute(String name)
+		{
+			for (int i = 0; i < attributes.length; i++) {
+				if (attributes[i].name.equals(name)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Returns a copy of the node with other children.
+		 *
+		 * @param children The new children.
+		 * @return
+		 */
+		Item withChildren(Item[] children)
+		{
+			return new Item(type, name, namespaceUri, value, attributes, children);
+		}
+
+		/**
+		 * Returns a copy of the node with other attributes.
+		 *
+		 * @param attributes The new attributes.
+		 * @return
+		 */
+		Item withAttributes(Item[] attributes)
+		{
+			return new Item(type, name, namespaceUri, value, attributes, children);
+		}
+
+		/**
+		 * Returns a copy of the node with another value.
+		 *
+		 * @param value The new value.
+		 * @return
+		 */
+		Item withValue(String value)
+		{
+			return new Item(type, name, namespaceUri, value, attributes, children);
+		}
+	}
+
+	/**
+	 * Shared marker for nodes without attributes or children.
+	 */
+	private static final Item[] NO_ITEMS = new Item[0];
+
+	/**
+	 * Gives XDocPath access to the nodes of persistent documents.
+	 */
+	private static final PathNavigator NAVIGATOR = new PathNavigator();
+
+	/**
+	 * Matches a path step with a position, as in insertValueAt().
+	 */
+	private static final Pattern INDEXED_STEP = Pattern.compile("(.+)\\[(\\d+)\\]");
+
+	/**
+	 * Nodes from the root element down to the selected node.
+	 */
+	private final Item[] path;
+
+	/**
+	 * Position of each node of the path among its parent's children, or among its element's
+	 * attributes for a selected attribute. The root element's position is 0.
+	 */
+	private final int[] positions;
+
+	/**
+	 * Creates a selection. The arrays are never changed, so selections may share them.
+	 *
+	 * @param path Nodes from the root element down to the selected node.
+	 * @param positions Position of each node of the path.
+	 */
+	private PersistentDoc(Item[] path, int[] positions)
+	{
+		this.path = path;
+		this.positions = positions;
+	}
+
+	/**
+	 * Creates the first version of a document from the current element of an XDoc and its
+	 * descendants.
+	 *
+	 * @param doc XDoc to copy.
+	 * @return
+	 */
+	public static PersistentDoc of(XDoc doc)
+	{
+		// Make sure we're given a document
+		if (doc == null) {
+			throw new IllegalArgumentException("doc");
+		}
+		if (doc.isEmpty()) {
+			throw new IllegalStateException("xdoc is empty");
+		}
+		return of(doc.asNode());
+	}
+
+	/**
+	 * Creates the first version of a document from a DOM element and its descendants.
+	 *
+	 * @param node Element to copy, or a Document to copy its document element.
+	 * @return
+	 */
+	public static PersistentDoc of(Node node)
+	{
+		// Documents are copied from their document element
+		if (node instanceof Document) {
+			node = ((Document)node).getDocumentElement();
+		}
+		if (!(node instanceof Element)) {
+			throw new IllegalArgumentException("node");
+		}
+
+		// Copy in document order without recursing, so deep trees can't overflow the stack
+		ArrayList<ArrayList<Item>> open = new ArrayList<ArrayList<Item>>();
+		ArrayList<Item> siblings = new ArrayList<Item>(1);
+		Node current = node;
+
+		while (true) {
+			// Descend into elements, collecting their children before creating them
+			if (current instanceof Element && current.getFirstChild() != null) {
+				open.add(siblings);
+				siblings = new ArrayList<Item>();
+				current = current.getFirstChild();
+				continue;
+			}
+
+			Item item = copy(current, NO_ITEMS);
+			if (item != null) {
+				siblings.add(item);
+			}
+
+			// Create elements until there is a next sibling
+			while (current != node && current.getNextSibling() == null) {
+				current = current.getParentNode();
+				Item[] children = siblings.toArray(new Item[siblings.size()]);
+				siblings = open.remove(open.size() - 1);
+				siblings.add(copy(current, children));
+			}
+			if (current == node) {
+				break;
+			}
+			current = current.getNextSibling();
+		}
+
+		return new PersistentDoc(new Item[] { siblings.get(0) }, new int[1]);
+	}
+
+	/**
+	 * Creates the first version of a document from xml text.
+	 *
+	 * @param xml Xml string to parse.
+	 * @return The document, or null if the xml could not be parsed.
+	 */
+	public static PersistentDoc load(String xml)
+	{
+		XDoc doc = XDoc.load(xml);
+		return doc.isEmpty() ? null : of(doc);
+	}
+
+	/**
+	 * Copies a single DOM node.
+	 *
+	 * @param node The node to copy.
+	 * @param children The node's children, if it is an element.
+	 * @return The copy, or null for node types that aren't kept.
+	 */
+	private static Item copy(Node node, Item[] children)
+	{
+		switch (node.getNodeType()) {
+		case Node.ELEMENT_NODE:
+			// Namespace aware elements without a namespace still need to undeclare a default one
+			String namespace = node.getNamespaceURI();
+			if (namespace == null && node.getLocalName() != null) {
+				namespace = "";
+			}
+
+			NamedNodeMap list = node.getAttributes();
+			Item[] attributes = (list.getLength() == 0) ? NO_ITEMS : new Item[list.getLength()];
+			for (int i = 0; i < attributes.length; i++) {
+				Node attribute = list.item(i);
+				attributes[i] = new Item(Node.ATTRIBUTE_NODE, attribute.getNodeName(), attribute.getNamespaceURI(), attribute.getNodeValue(), NO_ITEMS, NO_ITEMS);
+			}
+			return new Item(Node.ELEMENT_NODE, node.getNodeName(), namespace, null, attributes, children);
+
+		case Node.TEXT_NODE:
+		case Node.CDATA_SECTION_NODE:
+		case Node.COMMENT_NODE:
+			return new Item(node.getNodeType(), null, null, node.getNodeValue(), NO_ITEMS, NO_ITEMS);
+
+		case Node.PROCESSING_INSTRUCTION_NODE:
+			return new Item(Node.PROCESSING_INSTRUCTION_NODE, node.getNodeName(), null, node.getNodeValue(), NO_ITEMS, NO_ITEMS);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the selected node.
+	 *
+	 * @return
+	 */
+	Item getItem()
+	{
+		return path[path.length - 1];
+	}
+
+	/**
+	 * Selects a child of the selected element.
+	 *
+	 * @param index Position of the child.
+	 * @return
+	 */
+	PersistentDoc child(int index)
+	{
+		return descend(getItem().children[index], index);
+	}
+
+	/**
+	 * Selects an attribute of the selected element.
+	 *
+	 * @param index Position of the attribute.
+	 * @return
+	 */
+	PersistentDoc attribute(int index)
+	{
+		return descend(getItem().attributes[index], index);
+	}
+
+	/**
+	 * Selects a node one level below the selected one.
+	 *
+	 * @param item The node.
+	 * @param position Its position.
+	 * @return
+	 */
+	private PersistentDoc descend(Item item, int position)
+	{
+		Item[] path = Arrays.copyOf(this.path, this.path.length + 1);
+		int[] positions = Arrays.copyOf(this.positions, this.positions.length + 1);
+		path[path.length - 1] = item;
+		positions[positions.length - 1] = position;
+		return new PersistentDoc(path, positions);
+	}
+
+	/**
+	 * Selects the ancestor of the selected node at the given depth.
+	 *
+	 * @param depth Depth of the ancestor; 0 is the root element.
+	 * @return
+	 */
+	private PersistentDoc ancestor(int depth)
+	{
+		if (depth == path.length - 1) {
+			return this;
+		}
+		return new PersistentDoc(Arrays.copyOf(path, depth + 1), Arrays.copyOf(positions, depth + 1));
+	}
+
+	/**
+	 * Replaces the selected node, copying its ancestors into a new version.
+	 *
+	 * @param item The replacement node.
+	 * @return The same selection in the new version.
+	 */
+	private PersistentDoc update(Item item)
+	{
+		Item[] path = this.path.clone();
+		path[path.length - 1] = item;
+
+		// OPTIMIZATION: only the ancestors are copied; everything else is shared with this version
+		for (int depth = path.length - 1; depth > 0; depth--) {
+			Item parent = path[depth - 1];
+			if (path[depth].type == Node.ATTRIBUTE_NODE) {
+				path[depth - 1] = parent.withAttributes(set(parent.attributes, positions[depth], path[depth]));
+			}
+			else {
+				path[depth - 1] = parent.withChildren(set(parent.children, positions[depth], path[depth]));
+			}
+		}
+
+		return new PersistentDoc(path, positions);
+	}
+
+	/**
+	 * Returns a copy of an array with one entry replaced.
+	 *
+	 * @param items The array.
+	 * @param index Position to replace.
+	 * @param item The new entry.
+	 * @return
+	 */
+	private static Item[] set(Item[] items, int index, Item item)
+	{
+		Item[] result = items.clone();
+		result[index] = item;
+		return result;
+	}
+
+	/**
+	 * Returns a copy of an array with an entry inserted.
+	 *
+	 * @param items The array.
+	 * @param index Position to insert at.
+	 * @param item The new entry.
+	 * @return
+	 */
+	private static Item[] insert(Item[] items, int index, Item item)
+	{
+		Item[] result = new Item[items.length + 1];
+		System.arraycopy(items, 0, result, 0, index);
+		result[index] = item;
+		System.arraycopy(items, index, result, index + 1, items.length - index);
+		return result;
+	}
+
+	/**
+	 * Returns a copy of an array with an entry removed.
+	 *
+	 * @param items The array.
+	 * @param index Position to remove.
+	 * @return
+	 */
+	private static Item[] delete(Item[] items, int index)
+	{
+		if (items.length == 1) {
+			return NO_ITEMS;
+		}
+		Item[] result = new Item[items.length - 1];
+		System.arraycopy(items, 0, result, 0, index);
+		System.arraycopy(items, index + 1, result, index, items.length - index - 1);
+		return result;
+	}
+
+	/**
+	 * Makes sure the selected node is an element.
+	 */
+	private void checkElement()
+	{
+		if (getItem().type != Node.ELEMENT_NODE) {
+			throw new IllegalStateException("xdoc is not an element");
+		}
+	}
+
+	/**
+	 * Returns the root element of this version.
+	 *
+	 * @return
+	 */
+	public PersistentDoc getRoot()
+	{
+		return ancestor(0);
+	}
+
+	/**
+	 * Returns the parent element of the selected node, or null at the root.
+	 *
+	 * @return
+	 */
+	public PersistentDoc getParent()
+	{
+		return (path.length > 1) ? ancestor(path.length - 2) : null;
+	}
+
+	/**
+	 * Evaluates a native path from the selected node and returns the first selection.
+	 *
+	 * @param path Path. It must not need the XPath engine.
+	 * @return The first selection, or null.
+	 */
+	public PersistentDoc at(String path)
+	{
+		return at(XDocPath.compile(path));
+	}
+
+	/**
+	 * Evaluates a native path from the selected node and returns the first selection.
+	 *
+	 * @param path Compiled path. It must not need the XPath engine.
+	 * @return The first selection, or null.
+	 */
+	public PersistentDoc at(XDocPath path)
+	{
+		// Make sure we're given a path
+		if (path == null) {
+			throw new IllegalArgumentException("path");
+		}
+		return path.selectFirst(NAVIGATOR, this);
+	}
+
+	/**
+	 * Evaluates a native path from the selected node.
+	 *
+	 * @param path Path. It must not need the XPath engine.
+	 * @return Selections in document order, possibly none.
+	 */
+	public PersistentDoc[] select(String path)
+	{
+		return select(XDocPath.compile(path));
+	}
+
+	/**
+	 * Evaluates a native path from the selected node.
+	 *
+	 * @param path Compiled path. It must not need the XPath engine.
+	 * @return Selections in document order, possibly none.
+	 */
+	public PersistentDoc[] select(XDocPath path)
+	{
+		// Make sure we're given a path
+		if (path == null) {
+			throw new IllegalArgumentException("path");
+		}
+		List<PersistentDoc> selections = path.select(NAVIGATOR, this);
+		return selections.toArray(new PersistentDoc[selections.size()]);
+	}
+
+	/**
+	 * Returns the type of the selected node, as the org.w3c.dom.Node constants.
+	 *
+	 * @return
+	 */
+	public short getType()
+	{
+		return getItem().type;
+	}
+
+	/**
+	 * Returns the element, attribute or processing instruction name of the selected node, or null.
+	 *
+	 * @return
+	 */
+	public String getName()
+	{
+		return getItem().name;
+	}
+
+	/**
+	 * Returns the namespace URI of the selected node, or null.
+	 *
+	 * @return
+	 */
+	public String getNamespaceURI()
+	{
+		String namespaceUri = getItem().namespaceUri;
+		return (namespaceUri == null || namespaceUri.isEmpty()) ? null : namespaceUri;
+	}
+
+	/**
+	 * Returns the value of the selected attribute, text, comment or processing instruction, or null.
+	 *
+	 * @return
+	 */
+	public String getValue()
+	{
+		return getItem().value;
+	}
+
+	/**
+	 * Returns the value of an attribute of the selected element, or null.
+	 *
+	 * @param name Attribute name.
+	 * @return
+	 */
+	public String getAttribute(String name)
+	{
+		Item item = getItem();
+		int attribute = item.findAttribute(name);
+		return (attribute >= 0) ? item.attributes[attribute].value : null;
+	}
+
+	/**
+	 * Returns the value of the text nodes that are immediate children of the selected element, or
+	 * the value of any other node, like XDoc.asText().
+	 *
+	 * @return
+	 */
+	public String asText()
+	{
+		Item item = getItem();
+
+		// Do stuff for elements
+		if (item.type == Node.ELEMENT_NODE) {
+			// Return an empty string if there are no children
+			if (item.children.length == 0) {
+				return "";
+			}
+
+			// A single child hands out its value as is
+			if (item.children.length == 1) {
+				return item.children[0].isText() ? item.children[0].value : null;
+			}
+
+			// Concatenate all consecutive text nodes
+			StringBuilder result = new StringBuilder();
+			for (int i = 0; i < item.children.length && item.children[i].isText(); i++) {
+				result.append(item.children[i].value);
+			}
+			return result.toString();
+		}
+
+		return (item.isText() || item.type == Node.ATTRIBUTE_NODE) ? item.value : null;
+	}
+
+	/**
+	 * Sets an attribute of the selected element, replacing any attribute of the same name.
+	 *
+	 * @param name Attribute name.
+	 * @param value Value of the attribute.
+	 * @return The same selection in the new version, or this one if the value is null.
+	 */
+	public PersistentDoc attr(String name, String value)
+	{
+		// Make sure they gave us a name
+		if (name == null) {
+			throw new IllegalArgumentException("name");
+		}
+
+		// Make sure they gave us a value
+		if (value == null) {
+			return this;
+		}
+
+		// Make sure there's an element to set it on
+		checkElement();
+
+		// Replace an existing attribute
+		Item item = getItem();
+		int index = item.findAttribute(name);
+		if (index >= 0) {
+			if (value.equals(item.attributes[index].value)) {
+				return this;
+			}
+			return update(item.withAttributes(set(item.attributes, index, item.attributes[index].withValue(value))));
+		}
+
+		// Insert a new one where the DOM would keep it
+		index = 0;
+		while (index < item.attributes.length && item.attributes[index].name.compareTo(name) < 0) {
+			index++;
+		}
+		Item attribute = new Item(Node.ATTRIBUTE_NODE, name, null, value, NO_ITEMS, NO_ITEMS);
+		return update(item.withAttributes(insert(item.attributes, index, attribute)));
+	}
+
+	/**
+	 * Sets an attribute of the selected element.
+	 *
+	 * @param name Attribute name.
+	 * @param value Value of the attribute.
+	 * @return The same selection in the new version.
+	 */
+	public PersistentDoc attr(String name, Object value)
+	{
+		return attr(name, (value != null) ? value.toString() : null);
+	}
+
+	/**
+	 * Replaces the value of the selected node. Elements lose their text children and get a single
+	 * new one at the end.
+	 *
+	 * @param value The new value.
+	 * @return The same selection in the new version.
+	 */
+	public PersistentDoc replaceValue(String value)
+	{
+		// Make sure the value isn't null
+		if (value == null) {
+			throw new IllegalArgumentException("value");
+		}
+
+		Item item = getItem();
+
+		// Handle elements
+		if (item.type == Node.ELEMENT_NODE) {
+			ArrayList<Item> children = new ArrayList<Item>(item.children.length + 1);
+			for (Item child : item.children) {
+				if (!child.isText()) {
+					children.add(child);
+				}
+			}
+			if (!value.isEmpty()) {
+				children.add(newText(value));
+			}
+			return update(item.withChildren(children.isEmpty() ? NO_ITEMS : children.toArray(new Item[children.size()])));
+		}
+
+		// Handle text nodes and attributes
+		if (item.isText() || item.type == Node.ATTRIBUTE_NODE) {
+			return update(item.withValue(value));
+		}
+
+		// Unknown type
+		throw new IllegalStateException("xdoc has no value");
+	}
+
+	/**
+	 * Replaces the value of the selected node.
+	 *
+	 * @param value The new value.
+	 * @return The same selection in the new version.
+	 */
+	public PersistentDoc replaceValue(Object value)
+	{
+		return replaceValue(value.toString());
+	}
+
+	/**
+	 * Inserts a text or attribute node at the given path below the selected element, creating
+	 * elements as needed, like XDoc.insertValueAt().
+	 *
+	 * @param xpath Path of "/" separated element names, each with an optional [n] position, and
+	 * an optional final "@name" or "#text" step.
+	 * @param value Value to insert.
+	 * @return The same selection in the new version, or this one if the value is null.
+	 */
+	public PersistentDoc insertValueAt(String xpath, String value)
+	{
+		// Make sure we have a path
+		if (xpath == null) {
+			throw new IllegalArgumentException("xpath");
+		}
+
+		// Make sure we have a value
+		if (value == null) {
+			return this;
+		}
+
+		// Create our cursor
+		PersistentDoc cursor = this;
+		int depth = path.length - 1;
+
+		// Check if the path is empty
+		if (xpath.length() > 0) {
+			// Split up the path
+			String[] steps = xpath.replaceAll("^/*|/*$", "").split("/");
+
+			// Iterate through each path piece
+			for (int i = 0; i < steps.length; i++) {
+				String token = steps[i];
+				int index = -1;
+
+				// Check if we find an index
+				Matcher match = INDEXED_STEP.matcher(token);
+				if (match.find()) {
+					index = Integer.parseInt(match.group(2)) - 1;
+					token = match.group(1);
+				}
+
+				// Sanity check token
+				if (token.length() == 0) {
+					throw new IllegalArgumentException("token");
+				}
+
+				// Check if this is the last token in the path
+				if (i == steps.length - 1) {
+					// Check if the last token is an attribute
+					if (token.charAt(0) == '@') {
+						return cursor.attr(token.substring(1), value).ancestor(depth);
+					}
+
+					// Always create the last token (unless it's a text node)
+					if (token.charAt(0) != '#') {
+						cursor = cursor.append(newElement(token));
+					}
+				}
+				else {
+					cursor.checkElement();
+
+					// Find the element at the index, or the last one without an index
+					Item[] children = cursor.getItem().children;
+					int found = -1;
+					int count = 0;
+					for (int j = 0; j < children.length; j++) {
+						if (children[j].type == Node.ELEMENT_NODE && children[j].name.equals(token)) {
+							found = j;
+							if (count++ == index) {
+								break;
+							}
+						}
+					}
+
+					// Add as many nodes as required
+					if (found < 0 || count <= index) {
+						for (int j = count + 1; j < index + 1; j++) {
+							cursor = cursor.append(newElement(token)).getParent();
+						}
+						cursor = cursor.append(newElement(token));
+					}
+					else {
+						cursor = cursor.child(found);
+					}
+				}
+			}
+		}
+
+		// Add value to the current position
+		if (value.length() > 0) {
+			cursor = cursor.append(newText(value));
+		}
+
+		return cursor.ancestor(depth);
+	}
+
+	/**
+	 * Removes the selected node.
+	 *
+	 * @return The parent element in the new version.
+	 */
+	public PersistentDoc remove()
+	{
+		// The root element can't be removed
+		if (path.length == 1) {
+			throw new IllegalStateException("xdoc is at root");
+		}
+
+		Item parent = path[path.length - 2];
+		int position = positions[positions.length - 1];
+
+		if (getItem().type == Node.ATTRIBUTE_NODE) {
+			return getParent().update(parent.withAttributes(delete(parent.attributes, position)));
+		}
+		return getParent().update(parent.withChildren(delete(parent.children, position)));
+	}
+
+	/**
+	 * Changes the name of the selected element. Like XDoc.rename(), the element loses its namespace.
+	 *
+	 * @param name The new name.
+	 * @return The same selection in the new version.
+	 */
+	public PersistentDoc rename(String name)
+	{
+		// Make sure the name was given
+		if (name == null) {
+			throw new IllegalArgumentException("name");
+		}
+
+		checkElement();
+
+		// If the names match, quit
+		Item item = getItem();
+		if (name.equals(item.name)) {
+			return this;
+		}
+
+		return update(new Item(Node.ELEMENT_NODE, name, null, null, item.attributes, item.children));
+	}
+
+	/**
+	 * Appends a node to the selected element.
+	 *
+	 * @param child The new node.
+	 * @return The new node's selection in the new version.
+	 */
+	private PersistentDoc append(Item child)
+	{
+		checkElement();
+
+		Item item = getItem();
+		int position = item.children.length;
+		return update(item.withChildren(insert(item.children, position, child))).child(position);
+	}
+
+	/**
+	 * Creates an element without attributes or children.
+	 *
+	 * @param name Element name.
+	 * @return
+	 */
+	private static Item newElement(String name)
+	{
+		return new Item(Node.ELEMENT_NODE, name, null, null, NO_ITEMS, NO_ITEMS);
+	}
+
+	/**
+	 * Creates a text node.
+	 *
+	 * @param value Text value.
+	 * @return
+	 */
+	private static Item newText(String value)
+	{
+		return new Item(Node.TEXT_NODE, null, null, value, NO_ITEMS, NO_ITEMS);
+	}
+
+	/**
+	 * Returns this version of the document as a new DOM document.
+	 *
+	 * @return
+	 */
+	public Document toDocument()
+	{
+		Document doc = XDoc.getDocumentBuilderPool().newDocument();
+		Node parent = doc.appendChild(createNode(doc, path[0]));
+
+		// Create the nodes in document order
+		Item[] items = new Item[16];
+		int[] next = new int[16];
+		int depth = 0;
+		items[0] = path[0];
+
+		while (depth >= 0) {
+			Item item = items[depth];
+
+			// Climb once every child is done
+			if (next[depth] == item.children.length) {
+				depth--;
+				parent = parent.getParentNode();
+				continue;
+			}
+
+			Item child = item.children[next[depth]++];
+			Node created = parent.appendChild(createNode(doc, child));
+
+			// Descend into elements with children
+			if (child.children.length > 0) {
+				if (++depth == items.length) {
+					items = Arrays.copyOf(items, depth * 2);
+					next = Arrays.copyOf(next, depth * 2);
+				}
+				items[depth] = child;
+				next[depth] = 0;
+				parent = created;
+			}
+		}
+
+		return doc;
+	}
+
+	/**
+	 * Returns this version of the document as a new XDoc.
+	 *
+	 * @return
+	 */
+	public XDoc toXDoc()
+	{
+		return new XDoc(toDocument());
+	}
+
+	/**
+	 * Creates a DOM node, with its attributes but without its children.
+	 *
+	 * @param doc Document to create the node in.
+	 * @param item Node to copy.
+	 * @return
+	 */
+	private static Node createNode(Document doc, Item item)
+	{
+		switch (item.type) {
+		case Node.ELEMENT_NODE:
+			Element element;
+			if (item.namespaceUri != null) {
+				element = doc.createElementNS(item.namespaceUri.isEmpty() ? null : item.namespaceUri, item.name);
+			}
+			else {
+				element = doc.createElement(item.name);
+			}
+			for (Item attribute : item.attributes) {
+				if (attribute.namespaceUri != null) {
+					element.setAttributeNS(attribute.namespaceUri, attribute.name, attribute.value);
+				}
+				else {
+					element.setAttribute(attribute.name, attribute.value);
+				}
+			}
+			return element;
+
+		case Node.CDATA_SECTION_NODE:
+			return doc.createCDATASection(item.value);
+
+		case Node.COMMENT_NODE:
+			return doc.createComment(item.value);
+
+		case Node.PROCESSING_INSTRUCTION_NODE:
+			return doc.createProcessingInstruction(item.name, item.value);
+
+		default:
+			return doc.createTextNode(item.value);
+		}
+	}
+
+	/**
+	 * Writes this version of the document to a writer. The writer is flushed but not closed.
+	 *
+	 * @param out The writer to write to.
+	 * @throws IOException
+	 */
+	public void writeTo(Writer out) throws IOException
+	{
+		// Make sure we're given a target
+		if (out == null) {
+			throw new IllegalArgumentException("out");
+		}
+		write(XDocSerializer.open(out, false, null));
+	}
+
+	/**
+	 * Writes this version of the document to a stream. The stream is flushed but not closed.
+	 *
+	 * @param out The stream to write to.
+	 * @param charset The charset to encode with.
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out, Charset charset) throws IOException
+	{
+		// Make sure we're given a target and a charset
+		if (out == null) {
+			throw new IllegalArgumentException("out");
+		}
+		if (charset == null) {
+			throw new IllegalArgumentException("charset");
+		}
+		write(XDocSerializer.open(new OutputStreamWriter(out, charset), false, charset));
+	}
+
+	/**
+	 * Returns this version of the document as a string, like XDoc.toString().
+	 *
+	 * @return
+	 */
+	@Override
+	public String toString()
+	{
+		StringWriter out = new StringWriter();
+		try {
+			write(XDocSerializer.open(out, false, null));
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Returns this version of the document as an indented string with the declaration, like
+	 * XDoc.toPrettyString().
+	 *
+	 * @return
+	 */
+	public String toPrettyString()
+	{
+		StringWriter out = new StringWriter();
+		try {
+			XDocSerializer serializer = XDocSerializer.open(out, true, null);
+			serializer.startDocument(XDocSerializer.DEFAULT_ENCODING);
+			write(serializer);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Drives a serializer through this version of the document.
+	 *
+	 * @param serializer Serializer to write with.
+	 * @throws IOException
+	 */
+	private void write(XDocSerializer serializer) throws IOException
+	{
+		// Write the items in document order
+		Item[] items = new Item[16];
+		int[] next = new int[16];
+		int depth = 0;
+		items[0] = path[0];
+		writeStartTag(serializer, path[0]);
+
+		while (depth >= 0) {
+			Item item = items[depth];
+
+			// Close elements once every child is done
+			if (next[depth] == item.children.length) {
+				serializer.endElement(item.name);
+				depth--;
+				continue;
+			}
+
+			Item child = item.children[next[depth]++];
+			switch (child.type) {
+			case Node.ELEMENT_NODE:
+				writeStartTag(serializer, child);
+				if (++depth == items.length) {
+					items = Arrays.copyOf(items, depth * 2);
+					next = Arrays.copyOf(next, depth * 2);
+				}
+				items[depth] = child;
+				next[depth] = 0;
+				break;
+
+			case Node.CDATA_SECTION_NODE:
+				serializer.cData(child.value);
+				break;
+
+			case Node.COMMENT_NODE:
+				serializer.comment(child.value);
+				break;
+
+			case Node.PROCESSING_INSTRUCTION_NODE:
+				serializer.processingInstruction(child.name, child.value);
+				break;
+
+			default:
+				serializer.text(child.value);
+			}
+		}
+
+		serializer.endDocument();
+	}
+
+	/**
+	 * Writes the start tag of an element in the same order as the DOM serializer: namespace
+	 * declarations, attributes and the element's own namespace.
+	 *
+	 * @param serializer Serializer to write with.
+	 * @param item Element.
+	 * @throws IOException
+	 */
+	private static void writeStartTag(XDocSerializer serializer, Item item) throws IOException
+	{
+		serializer.startElement(item.name, null);
+
+		// Namespace declarations come first
+		for (Item attribute : item.attributes) {
+			if (isDeclaration(attribute)) {
+				serializer.attribute(attribute.name, attribute.value);
+			}
+		}
+
+		// Then the attributes, declaring the namespaces of namespace aware ones
+		for (Item attribute : item.attributes) {
+			if (isDeclaration(attribute)) {
+				continue;
+			}
+			if (attribute.namespaceUri != null && attribute.name.indexOf(':') > 0) {
+				serializer.namespace(attribute.name, attribute.namespaceUri);
+			}
+			serializer.attribute(attribute.name, attribute.value);
+		}
+
+		// Then the element's own namespace
+		if (item.namespaceUri != null) {
+			serializer.namespace(item.name, item.namespaceUri);
+		}
+	}
+
+	/**
+	 * Returns whether an attribute is a namespace declaration.
+	 *
+	 * @param attribute Attribute.
+	 * @return
+	 */
+	private static boolean isDeclaration(Item attribute)
+	{
+		return attribute.name.equals("xmlns") || attribute.name.startsWith("xmlns:");
+	}
+
+	/**
+	 * Gives XDocPath access to the nodes of persistent documents, as selections.
+	 */
+	private static final class PathNavigator implements XDocPath.Navigator<PersistentDoc>
+	{
+		@Override
+		public void addElements(PersistentDoc context, String name, int limit, List<PersistentDoc> result)
+		{
+			// Only matches are turned into selections
+			Item[] children = context.getItem().children;
+			int count = 0;
+			for (int i = 0; i < children.length; i++) {
+				if (children[i].type == Node.ELEMENT_NODE && (name == null || children[i].name.equals(name))) {
+					result.add(context.child(i));
+					if (++count == limit) {
+						return;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void addAttributes(PersistentDoc context, String name, List<PersistentDoc> result)
+		{
+			Item[] attributes = context.getItem().attributes;
+			for (int i = 0; i < attributes.length; i++) {
+				if (name == null || attributes[i].name.equals(name)) {
+					result.add(context.attribute(i));
+				}
+			}
+		}
+
+		@Override
+		public void addTexts(PersistentDoc context, List<PersistentDoc> result)
+		{
+			Item[] children = context.getItem().children;
+			boolean inText = false;
+			for (int i = 0; i < children.length; i++) {
+				boolean text = children[i].isText();
+				if (text && !inText) {
+					result.add(context.child(i));
+				}
+				inText = text;
+			}
+		}
+
+		@Override
+		public boolean matchesAttribute(PersistentDoc node, String name, String value)
+		{
+			String attribute = node.getAttribute(name);
+			return attribute != null && (value == null || value.equals(attribute));
+		}
+	}
+}
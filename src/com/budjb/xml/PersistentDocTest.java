@@ -0,0 +1,169 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.budjb.xml;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class PersistentDocTest
+{
+	private static final String XML = "<root id=\"1\" kind=\"a&amp;b\"><item k=\"v\"><name>first</name></item>"
+		+ "<item><name>sec&lt;ond</name><!--note--></item>text<![CDATA[raw]]><?pi data?><empty/></root>";
+	
+	@Test
+	public void copyMatchesXDoc()
+	{
+		XDoc xdoc = XDoc.load(XML);
+		PersistentDoc doc = PersistentDoc.of(xdoc);
+		
+		assertEquals(xdoc.toString(), doc.toString());
+		assertEquals(xdoc.toPrettyString(), doc.toPrettyString());
+		assertEquals(xdoc.toString(), doc.toXDoc().toString());
+		assertEquals(xdoc.toString(), PersistentDoc.of(doc.toDocument()).toString());
+		assertEquals(XML, PersistentDoc.load(XML).toString());
+		assertNull(PersistentDoc.load("<a>"));
+	}
+	
+	@Test
+	public void navigation()
+	{
+		PersistentDoc doc = PersistentDoc.load(XML);
+		
+		assertEquals("root", doc.getName());
+		assertEquals("a&b", doc.getAttribute("kind"));
+		assertEquals("sec<ond", doc.at("item[2]/name").asText());
+		assertEquals("v", doc.at("item/@k").asText());
+		assertEquals("v", doc.at("item[@k='v']").getAttribute("k"));
+		assertEquals(2, doc.select("item/name").length);
+		assertEquals(2, doc.select("@*").length);
+		assertEquals("text", doc.at("text()").getValue());
+		assertNull(doc.at("missing"));
+		assertEquals("item", doc.at("item[2]/name").getParent().getName());
+		assertEquals("root", doc.at("item[2]/name").getRoot().getName());
+		assertNull(doc.getParent());
+	}
+	
+	@Test
+	public void changesMakeNewVersions()
+	{
+		PersistentDoc v1 = PersistentDoc.load(XML);
+		PersistentDoc v2 = v1.at("item[2]/name").replaceValue("second").getRoot();
+		PersistentDoc v3 = v2.at("item").attr("k", "w").attr("a", "b").getRoot();
+		PersistentDoc v4 = v3.at("empty").rename("full").getRoot();
+		PersistentDoc v5 = v4.at("item/@k").remove().getRoot().at("item[2]").remove().getRoot();
+		
+		// Older versions are untouched
+		assertEquals(XML, v1.toString());
+		assertEquals("second", v2.at("item[2]/name").asText());
+		assertEquals("<item a=\"b\" k=\"w\"><name>first</name></item>", v3.at("item").toXDoc().at("item").toString());
+		assertEquals("<root id=\"1\" kind=\"a&amp;b\"><item a=\"b\" k=\"w\"><name>first</name></item>"
+			+ "<item><name>second</name><!--note--></item>text<![CDATA[raw]]><?pi data?><full/></root>", v4.toString());
+		assertEquals("<root id=\"1\" kind=\"a&amp;b\"><item a=\"b\"><name>first</name></item>"
+			+ "text<![CDATA[raw]]><?pi data?><full/></root>", v5.toString());
+		
+		// Untouched subtrees are shared between versions
+		assertSame(v1.at("item").getItem(), v2.at("item").getItem());
+		assertSame(v2.at("item[2]").getItem(), v3.at("item[2]").getItem());
+		assertNotSame(v1.at("item[2]").getItem(), v2.at("item[2]").getItem());
+		assertSame(v1.at("item[2]").getItem().children[1], v2.at("item[2]").getItem().children[1]);
+		
+		// Output matches the DOM after the same changes
+		XDoc xdoc = v4.toXDoc();
+		assertEquals(xdoc.toString(), v4.toString());
+		
+		try {
+			v1.remove();
+			fail();
+		}
+		catch (IllegalStateException e) {
+			assertEquals("xdoc is at root", e.getMessage());
+		}
+	}
+	
+	@Test
+	public void insertValueAtMatchesXDoc()
+	{
+		String[][] inserts = {
+			{ "a/b", "1" },
+			{ "a/b", "2" },
+			{ "a/c[3]/d", "3" },
+			{ "a/c[2]/@x", "4" },
+			{ "a/#text", "5" },
+			{ "", "6" },
+		};
+		
+		XDoc xdoc = new XDoc("root");
+		PersistentDoc doc = PersistentDoc.of(xdoc);
+		for (String[] insert : inserts) {
+			xdoc.insertValueAt(insert[0], insert[1]);
+			doc = doc.insertValueAt(insert[0], insert[1]);
+		}
+		
+		assertEquals(xdoc.toString(), doc.toString());
+		assertEquals("root", doc.getName());
+	}
+	
+	@Test
+	public void manyVersionsShareTheTree()
+	{
+		XDoc xdoc = new XDoc("root");
+		for (int i = 0; i < 1000; i++) {
+			xdoc.start("item").attr("id", i).elem("value", "v" + i).end();
+		}
+		
+		// Every version changes one value and keeps every other item
+		PersistentDoc[] versions = new PersistentDoc[100];
+		versions[0] = PersistentDoc.of(xdoc);
+		for (int i = 1; i < versions.length; i++) {
+			versions[i] = versions[i - 1].at("item[" + i + "]/value").replaceValue("changed").getRoot();
+		}
+		
+		assertEquals("v49", versions[48].at("item[50]/value").asText());
+		assertEquals("changed", versions[50].at("item[50]/value").asText());
+		assertSame(versions[0].at("item[500]").getItem(), versions[99].at("item[500]").getItem());
+	}
+	
+	@Test
+	public void deepDocuments()
+	{
+		StringBuilder xml = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			xml.append("<a>");
+			expected.append(i < 19999 ? "<a>" : "<a/>");
+		}
+		for (int i = 0; i < 20000; i++) {
+			xml.append("</a>");
+			expected.append(i < 19999 ? "</a>" : "");
+		}
+		
+		// Nothing recurses per level
+		PersistentDoc doc = PersistentDoc.load(xml.toString());
+		assertEquals(expected.toString(), doc.toString());
+		assertEquals(expected.toString(), PersistentDoc.of(doc.toDocument()).toString());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void writeToNullStream() throws IOException
+	{
+		PersistentDoc.load(XML).writeTo(null, StandardCharsets.UTF_8);
+	}
+}
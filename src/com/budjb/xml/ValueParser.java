@@ -0,0 +1,645 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * Parses typed values straight from node text.
+ *
+ * The parsers accept the XML Schema lexical forms (surrounding whitespace, a leading '+', "INF"
+ * and "NaN" for doubles, "1" and "0" for booleans) and work on index ranges of the text, so
+ * the common cases allocate nothing. Each parser either returns a default value or throws when
+ * the text cannot be converted, depending on the caller's choice.
+ */
+final class ValueParser
+{
+	/**
+	 * Largest number of significant decimal digits that a double holds exactly.
+	 */
+	private static final int MAX_EXACT_DIGITS = 15;
+
+	/**
+	 * Powers of ten that a double holds exactly.
+	 */
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private ValueParser()
+	{
+	}
+
+	/**
+	 * Parses a long.
+	 *
+	 * @param text Text to parse, or null.
+	 * @param defaultValue Value returned when the text is not a long and strict is false.
+	 * @param strict Whether to throw instead of returning the default value.
+	 * @return
+	 */
+	static long parseLong(CharSequence text, long defaultValue, boolean strict)
+	{
+		if (text != null) {
+			int start = skipLeading(text);
+			int end = skipTrailing(text, start);
+
+			if (start < end) {
+				// Optional sign
+				boolean negative = false;
+				int i = start;
+				char c = text.charAt(i);
+				if (c == '-' || c == '+') {
+					negative = c == '-';
+					i++;
+				}
+
+				// Accumulate as a negative number so Long.MIN_VALUE fits
+				long result = 0;
+				boolean valid = i < end;
+				for (; valid && i < end; i++) {
+					int digit = text.charAt(i) - '0';
+					if (digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10) {
+						valid = false;
+					}
+					else {
+						result = result * 10 - digit;
+					}
+				}
+
+				if (valid && (negative || result != Long.MIN_VALUE)) {
+					return negative ? result : -result;
+				}
+			}
+		}
+		return fail(text, defaultValue, strict);
+	}
+
+	/**
+	 * Parses an int.
+	 *
+	 * @param text Text to parse, or null.
+	 * @param defaultValue Value returned when the text is not an int and strict is false.
+	 * @param strict Whether to throw instead of returning the default value.
+	 * @return
+	 */
+	static int parseInt(CharSequence text, int defaultValue, boolean strict)
+	{
+		return (int)parseRange(text, Integer.MIN_VALUE, Integer.MAX_VALUE, defaultValue, strict);
+	}
+
+	/**
+	 * Parses an integer that has to fall within a range.
+	 *
+	 * @param text Text to parse, or null.
+	 * @param min Smallest allowed value. Must be greater than Long.MIN_VALUE.
+	 * @param max Largest allowed value.
+	 * @param defaultValue Value returned when the text is not in range and strict is false.
+	 * @param strict Whether to throw instead of returning the default value.
+	 * @return
+	 */
+	static long parseRange(CharSequence text, long min, long max, long defaultValue, boolean strict)
+	{
+		// Long.MIN_VALUE marks text that is not a long; it is outside every range used here
+		long value = parseLong(text, Long.MIN_VALUE, false);
+		if (value < min || value > max) {
+			return fail(text, defaultValue, strict);
+		}
+		return value;
+	}
+
+	/**
+	 * Parses a double.
+	 *
+	 * @param text Text to parse, or null.
+	 * @param defaultValue Value returned when the text is not a double and strict is false.
+	 * @param strict Whether to throw instead of returning the default value.
+	 * @return
+	 */
+	static double parseDouble(CharSequence text, double defaultValue, boolean strict)
+	{
+		if (text != null) {
+			int start = skipLeading(text);
+			int end = skipTrailing(text, start);
+
+			if (start < end) {
+				// Special values
+				if (matches(text, start, end, "INF") || matches(text, start, end, "+INF")) {
+					return Double.POSITIVE_INFINITY;
+				}
+				if (matches(text, start, end, "-INF")) {
+					return Double.NEGATIVE_INFINITY;
+				}
+				if (matches(text, start, end, "NaN")) {
+					return Double.NaN;
+				}
+
+				// Optional sign
+				boolean negative = false;
+				int i = start;
+				char c = text.charAt(i);
+				if (c == '-' || c == '+') {
+					negative = c == '-';
+					i++;
+				}
+
+				// Mantissa digits, with an optional decimal point
+				long mantissa = 0;
+				int digits = 0;
+				int significant = 0;
+				int scale = 0;
+				boolean point = false;
+				boolean valid = true;
+				for (; i < end; i++) {
+					c = text.charAt(i);
+					if (c >= '0' && c <= '9') {
+						digits++;
+						if (mantissa != 0 || c != '0') {
+							significant++;
+						}
+						if (significant <= MAX_EXACT_DIGITS) {
+							mantissa = mantissa * 10 + (c - '0');
+							if (point) {
+								scale++;
+							}
+						}
+						else if (!point) {
+							scale--;
+						}
+					}
+					else if (c == '.' && !point) {
+						point = true;
+					}
+					else {
+						break;
+					}
+				}
+				if (digits == 0) {
+					valid = false;
+				}
+
+				// Optional exponent
+				int exponent = 0;
+				if (valid && i < end) {
+					c = text.charAt(i++);
+					if (c != 'e' && c != 'E') {
+						valid = false;
+					}
+					else {
+						boolean negativeExponent = false;
+						if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+							negativeExponent = text.charAt(i) == '-';
+							i++;
+						}
+						if (i == end) {
+							valid = false;
+						}
+						for (; valid && i < end; i++) {
+							int digit = text.charAt(i) - '0';
+							if (digit < 0 || digit > 9) {
+								valid = false;
+							}
+							else if (exponent < 100000) {
+								exponent = exponent * 10 + digit;
+							}
+						}
+						if (negativeExponent) {
+							exponent = -exponent;
+						}
+					}
+				}
+
+				if (valid) {
+					// OPTIMIZATION: a mantissa and power of ten that are both exact give a correctly
+					// rounded result with a single multiplication or division
+					int power = exponent - scale;
+					if (significant <= MAX_EXACT_DIGITS && power >= -22 && power <= 22) {
+						double value = power < 0 ? mantissa / POWERS_OF_TEN[-power] : mantissa * POWERS_OF_TEN[power];
+						return negative ? -value : value;
+					}
+
+					// Rare cases go through the JDK parser for correct rounding
+					return Double.parseDouble(text.subSequence(start, end).toString());
+				}
+			}
+		}
+		return fail(text, defaultValue, strict);
+	}
+
+	/**
+	 * Parses a float.
+	 *
+	 * @param text Text to parse, or null.
+	 * @param defaultValue Value returned when the text is not a float and strict is false.
+	 * @param strict Whether to throw instead of returning the default value.
+	 * @return
+	 */
+	static float parseFloat(CharSequence text, float defaultValue, boolean strict)
+	{
+		double value = parseDouble(text, defaultValue, strict);
+		float result = (float)value;
+		if (value != value || Double.isInfinite(value) || result == value) {
+			return result;
+		}
+
+		// Narrowing the correctly rounded double is only wrong when the double sits exactly halfway
+		// between two floats, so only those few are parsed again
+		double nearest = Float.isInfinite(result) ? Math.copySign(0x1p128, value) : result;
+		double other = value > nearest ? Math.nextUp((float)nearest) : Math.nextDown((float)nearest);
+		if ((nearest + other) / 2 == value) {
+			int start = skipLeading(text);
+			return Float.parseFloat(text.subSequence(start, skipTrailing(text, start)).toString());
+		}
+		return result;
+	}
+
+	/**
+	 * Parses a decimal.
+	 *
+	 * @param text Text to parse, or null.
+	 * @param defaultValue Value returned when the text is not a decimal and strict is false.
+	 * @param strict Whether to throw instead of returning the default value.
+	 * @return
+	 */
+	static BigDecimal parseDecimal(CharSequence text, BigDecimal defaultValue, boolean strict)
+	{
+		if (text != null) {
+			int start = skipLeading(text);
+			int end = skipTrailing(text, start);
+
+			if (start < end) {
+				// Optional sign
+				boolean negative = false;
+				int i = start;
+				char c = text.charAt(i);
+				if (c == '-' || c == '+') {
+					negative = c == '-';
+					i++;
+				}
+
+				// Digits with an optional decimal point, as long as they fit in a long
+				long unscaled = 0;
+				int digits = 0;
+				int scale = 0;
+				boolean point = false;
+				boolean valid = true;
+				boolean small = true;
+				for (; valid && i < end; i++) {
+					c = text.charAt(i);
+					if (c >= '0' && c <= '9') {
+						digits++;
+						if (unscaled > (Long.MAX_VALUE - (c - '0')) / 10) {
+							small = false;
+						}
+						else {
+							unscaled = unscaled * 10 + (c - '0');
+						}
+						if (point) {
+							scale++;
+						}
+					}
+					else if (c == '.' && !point) {
+						point = true;
+					}
+					else {
+						valid = false;
+					}
+				}
+
+				if (valid && digits > 0) {
+					// Small values are built from their unscaled long
+					if (small) {
+						return BigDecimal.valueOf(negative ? -unscaled : unscaled, scale);
+					}
+					return new BigDecimal(text.subSequence(start, end).toString());
+				}
+			}
+		}
+		if (strict) {
+			throw new NumberFormatException("For input string: \"" + text + "\"");
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Parses a boolean: "true" or "1", and "false" or "0".
+	 *
+	 * @param text Text to parse, or null.
+	 * @param defaultValue Value returned when the text is not a boolean and strict is false.
+	 * @param strict Whether to throw instead of returning the default value.
+	 * @return
+	 */
+	static boolean parseBoolean(CharSequence text, boolean defaultValue, boolean strict)
+	{
+		if (text != null) {
+			int start = skipLeading(text);
+			int end = skipTrailing(text, start);
+
+			if (matches(text, start, end, "true") || matches(text, start, end, "1")) {
+				return true;
+			}
+			if (matches(text, start, end, "false") || matches(text, start, end, "0")) {
+				return false;
+			}
+		}
+		if (strict) {
+			throw new IllegalArgumentException("For input string: \"" + text + "\"");
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Parses an ISO-8601 timestamp such as "2012-06-30T12:00:00.5Z". Accepts a date with an
+	 * optional time ("T" then hours and minutes, optional seconds and fraction) and an optional
+	 * offset ("Z", "+HH:MM", "+HHMM" or "+HH"). Timestamps without an offset are taken as UTC.
+	 *
+	 * @param text Text to parse, or null.
+	 * @return The instant, or null if the text is not a timestamp.
+	 */
+	static Instant parseInstant(CharSequence text)
+	{
+		if (text == null) {
+			return null;
+		}
+		int start = skipLeading(text);
+		int end = skipTrailing(text, start);
+
+		// Date
+		int i = start;
+		int year = parseDigits(text, i, end, 4);
+		if (year < 0 || !isChar(text, i + 4, end, '-')) {
+			return null;
+		}
+		int month = parseDigits(text, i + 5, end, 2);
+		if (month < 1 || month > 12 || !isChar(text, i + 7, end, '-')) {
+			return null;
+		}
+		int day = parseDigits(text, i + 8, end, 2);
+		if (day < 1 || day > lengthOfMonth(year, month)) {
+			return null;
+		}
+		i += 10;
+
+		// Time
+		int hour = 0;
+		int minute = 0;
+		int second = 0;
+		int nanos = 0;
+		if (isChar(text, i, end, 'T')) {
+			hour = parseDigits(text, i + 1, end, 2);
+			minute = isChar(text, i + 3, end, ':') ? parseDigits(text, i + 4, end, 2) : -1;
+			if (hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+				return null;
+			}
+			i += 6;
+
+			if (isChar(text, i, end, ':')) {
+				second = parseDigits(text, i + 1, end, 2);
+				if (second < 0 || second > 59) {
+					return null;
+				}
+				i += 3;
+
+				// Fraction; digits past nanoseconds are dropped
+				if (isChar(text, i, end, '.')) {
+					int digits = 0;
+					for (i++; i < end && text.charAt(i) >= '0' && text.charAt(i) <= '9'; i++, digits++) {
+						if (digits < 9) {
+							nanos = nanos * 10 + (text.charAt(i) - '0');
+						}
+					}
+					if (digits == 0) {
+						return null;
+					}
+					for (; digits < 9; digits++) {
+						nanos *= 10;
+					}
+				}
+			}
+		}
+
+		// Offset
+		int offset = 0;
+		if (isChar(text, i, end, 'Z')) {
+			i++;
+		}
+		else if (isChar(text, i, end, '+') || isChar(text, i, end, '-')) {
+			int sign = text.charAt(i) == '-' ? -1 : 1;
+			int hours = parseDigits(text, i + 1, end, 2);
+			int minutes = 0;
+			i += 3;
+			if (isChar(text, i, end, ':')) {
+				minutes = parseDigits(text, i + 1, end, 2);
+				i += 3;
+			}
+			else if (i < end) {
+				minutes = parseDigits(text, i, end, 2);
+				i += 2;
+			}
+			if (hours < 0 || hours > 18 || minutes < 0 || minutes > 59) {
+				return null;
+			}
+			offset = sign * (hours * 3600 + minutes * 60);
+		}
+		if (i != end) {
+			return null;
+		}
+
+		// Compute the epoch second directly rather than through LocalDateTime
+		long seconds = toEpochDay(year, month, day) * 86400 + hour * 3600 + minute * 60 + second - offset;
+		return Instant.ofEpochSecond(seconds, nanos);
+	}
+
+	/**
+	 * Parses a fixed number of digits.
+	 *
+	 * @param text Text to parse.
+	 * @param start Index of the first digit.
+	 * @param end Index past the end of the text.
+	 * @param count Number of digits.
+	 * @return The value, or -1 if the digits are not there.
+	 */
+	private static int parseDigits(CharSequence text, int start, int end, int count)
+	{
+		if (start + count > end) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Returns whether the text has a given character at an index.
+	 *
+	 * @param text Text to check.
+	 * @param index Index to check.
+	 * @param end Index past the end of the text.
+	 * @param c Expected character.
+	 * @return
+	 */
+	private static boolean isChar(CharSequence text, int index, int end, char c)
+	{
+		return index < end && text.charAt(index) == c;
+	}
+
+	/**
+	 * Returns the number of days in a month of the proleptic Gregorian calendar.
+	 *
+	 * @param year Year.
+	 * @param month Month, 1 to 12.
+	 * @return
+	 */
+	private static int lengthOfMonth(int year, int month)
+	{
+		switch (month) {
+		case 2:
+			return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	/**
+	 * Returns the number of days from 1970-01-01 to a date of the proleptic Gregorian calendar.
+	 *
+	 * @param year Year.
+	 * @param month Month, 1 to 12.
+	 * @param day Day of the month.
+	 * @return
+	 */
+	private static long toEpochDay(int year, int month, int day)
+	{
+		// Count from March so the leap day is the last day of the year
+		long y = month <= 2 ? year - 1 : year;
+		long era = Math.floorDiv(y, 400);
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * Returns the index of the first non-whitespace character.
+	 *
+	 * @param text Text to check.
+	 * @return
+	 */
+	static int skipLeading(CharSequence text)
+	{
+		int start = 0;
+		int end = text.length();
+		while (start < end && isWhitespace(text.charAt(start))) {
+			start++;
+		}
+		return start;
+	}
+
+	/**
+	 * Returns the index past the last non-whitespace character.
+	 *
+	 * @param text Text to check.
+	 * @param start Index of the first non-whitespace character.
+	 * @return
+	 */
+	static int skipTrailing(CharSequence text, int start)
+	{
+		int end = text.length();
+		while (end > start && isWhitespace(text.charAt(end - 1))) {
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	 * Returns whether a character is xml whitespace.
+	 *
+	 * @param c Character to check.
+	 * @return
+	 */
+	private static boolean isWhitespace(char c)
+	{
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+	/**
+	 * Returns whether a range of the text equals a literal.
+	 *
+	 * @param text Text to check.
+	 * @param start Start of the range.
+	 * @param end End of the range.
+	 * @param literal Literal to compare with.
+	 * @return
+	 */
+	private static boolean matches(CharSequence text, int start, int end, String literal)
+	{
+		if (end - start != literal.length()) {
+			return false;
+		}
+		for (int i = 0; i < literal.length(); i++) {
+			if (text.charAt(start + i) != literal.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the default value, or throws when strict.
+	 *
+	 * @param text Text that could not be parsed.
+	 * @param defaultValue Value to return.
+	 * @param strict Whether to throw.
+	 * @return
+	 */
+	private static long fail(CharSequence text, long defaultValue, boolean strict)
+	{
+		if (strict) {
+			throw new NumberFormatException("For input string: \"" + text + "\"");
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Returns the default value, or throws when strict.
+	 *
+	 * @param text Text that could not be parsed.
+	 * @param defaultValue Value to return.
+	 * @param strict Whether to throw.
+	 * @return
+	 */
+	private static double fail(CharSequence text, double defaultValue, boolean strict)
+	{
+		if (strict) {
+			throw new NumberFormatException("For input string: \"" + text + "\"");
+		}
+		return defaultValue;
+	}
+}
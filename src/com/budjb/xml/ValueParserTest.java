@@ -0,0 +1,130 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+public class ValueParserTest
+{
+	@Test
+	public void longs()
+	{
+		assertEquals(42, ValueParser.parseLong(" 42\n", -1, true));
+		assertEquals(-42, ValueParser.parseLong("-42", -1, true));
+		assertEquals(42, ValueParser.parseLong("+42", -1, true));
+		assertEquals(Long.MAX_VALUE, ValueParser.parseLong("9223372036854775807", -1, true));
+		assertEquals(Long.MIN_VALUE, ValueParser.parseLong("-9223372036854775808", -1, true));
+		assertEquals(-1, ValueParser.parseLong("9223372036854775808", -1, false));
+		assertEquals(-1, ValueParser.parseLong("4 2", -1, false));
+		assertEquals(-1, ValueParser.parseLong("-", -1, false));
+		assertEquals(-1, ValueParser.parseLong("", -1, false));
+		assertEquals(-1, ValueParser.parseLong(null, -1, false));
+	}
+	
+	@Test(expected = NumberFormatException.class)
+	public void longStrict()
+	{
+		ValueParser.parseLong("1.5", 0, true);
+	}
+	
+	@Test
+	public void ints()
+	{
+		assertEquals(Integer.MAX_VALUE, ValueParser.parseInt("2147483647", -1, true));
+		assertEquals(Integer.MIN_VALUE, ValueParser.parseInt("-2147483648", -1, true));
+		assertEquals(-1, ValueParser.parseInt("2147483648", -1, false));
+		assertEquals(-1, ValueParser.parseInt("-9223372036854775808", -1, false));
+	}
+	
+	@Test
+	public void doubles()
+	{
+		String[] values = {
+			"0", "-0", "1", "1.5", "-1.5", ".5", "5.", "3.141592653589793", "1e10", "1E-5", "-2.5e+3",
+			"0.1", "0.3", "123456789012345", "1234567890123456789", "1e300", "4.9e-324", "1.7976931348623157e308",
+			"0.000000000000000000001", "9007199254740993", "2.2250738585072014E-308"
+		};
+		for (String value : values) {
+			assertEquals(value, Double.doubleToLongBits(Double.parseDouble(value)), Double.doubleToLongBits(ValueParser.parseDouble(value, -1, true)));
+		}
+		assertEquals(Double.POSITIVE_INFINITY, ValueParser.parseDouble("INF", -1, true), 0);
+		assertEquals(Double.NEGATIVE_INFINITY, ValueParser.parseDouble(" -INF ", -1, true), 0);
+		assertTrue(Double.isNaN(ValueParser.parseDouble("NaN", -1, true)));
+		assertEquals(-1, ValueParser.parseDouble("1.0f", -1, false), 0);
+		assertEquals(-1, ValueParser.parseDouble("Infinity", -1, false), 0);
+		assertEquals(-1, ValueParser.parseDouble("1e", -1, false), 0);
+		assertEquals(-1, ValueParser.parseDouble(".", -1, false), 0);
+	}
+	
+	@Test
+	public void floats()
+	{
+		String[] values = {
+			"0", "-1.5", "19.99", "0.1", "3.4028235e38", "1.4e-45", "1e39", "-1e39", "1e-50",
+			"1.00000005960464477539062500000000001", "16777217", "3.4028235677973366e38", "3.4028235677973366163753939545814256844e38"
+		};
+		for (String value : values) {
+			assertEquals(value, Float.floatToIntBits(Float.parseFloat(value)), Float.floatToIntBits(ValueParser.parseFloat(value, -1, true)));
+		}
+		assertEquals(Float.NEGATIVE_INFINITY, ValueParser.parseFloat(" -INF ", -1, true), 0);
+		assertEquals(-1, ValueParser.parseFloat("1.0f", -1, false), 0);
+	}
+	
+	@Test
+	public void decimals()
+	{
+		assertEquals(new BigDecimal("12.50"), ValueParser.parseDecimal("12.50", null, true));
+		assertEquals(new BigDecimal("-0.001"), ValueParser.parseDecimal(" -0.001 ", null, true));
+		assertEquals(new BigDecimal("123456789012345678901234567890.5"), ValueParser.parseDecimal("123456789012345678901234567890.5", null, true));
+		assertNull(ValueParser.parseDecimal("1e5", null, false));
+		assertNull(ValueParser.parseDecimal("1.2.3", null, false));
+	}
+	
+	@Test
+	public void booleans()
+	{
+		assertTrue(ValueParser.parseBoolean("true", false, true));
+		assertTrue(ValueParser.parseBoolean(" 1 ", false, true));
+		assertFalse(ValueParser.parseBoolean("false", true, true));
+		assertFalse(ValueParser.parseBoolean("0", true, true));
+		assertTrue(ValueParser.parseBoolean("yes", true, false));
+	}
+	
+	@Test
+	public void instants()
+	{
+		assertEquals(Instant.parse("2012-06-30T12:34:56Z"), ValueParser.parseInstant("2012-06-30T12:34:56Z"));
+		assertEquals(Instant.parse("2012-06-30T12:34:56.123456789Z"), ValueParser.parseInstant(" 2012-06-30T12:34:56.1234567891Z "));
+		assertEquals(Instant.parse("2012-06-30T10:34:56.500Z"), ValueParser.parseInstant("2012-06-30T12:34:56.5+02:00"));
+		assertEquals(Instant.parse("2012-06-30T17:34:00Z"), ValueParser.parseInstant("2012-06-30T12:34-0500"));
+		assertEquals(Instant.parse("2012-06-30T12:34:56Z"), ValueParser.parseInstant("2012-06-30T12:34:56"));
+		assertEquals(Instant.parse("2000-02-29T00:00:00Z"), ValueParser.parseInstant("2000-02-29"));
+		assertEquals(Instant.parse("1969-12-31T23:59:59Z"), ValueParser.parseInstant("1969-12-31T23:59:59Z"));
+		assertEquals(Instant.parse("0001-01-01T00:00:00Z"), ValueParser.parseInstant("0001-01-01T00:00:00Z"));
+		assertNull(ValueParser.parseInstant("2013-02-29"));
+		assertNull(ValueParser.parseInstant("2012-13-01"));
+		assertNull(ValueParser.parseInstant("2012-06-30T25:00:00Z"));
+		assertNull(ValueParser.parseInstant("2012-06-30T12:34:56Zjunk"));
+		assertNull(ValueParser.parseInstant("2012-06-30T12:34:56."));
+		assertNull(ValueParser.parseInstant("yesterday"));
+		assertNull(ValueParser.parseInstant(null));
+	}
+}
@@ -16,44 +16,91 @@
 
 package com.budjb.xml;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.w3c.dom.*;
 import org.w3c.dom.ls.DOMImplementationLS;
 import org.w3c.dom.ls.LSSerializer;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterReader;
 import java.io.IOException;
-import java.io.StringWriter;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class XDoc implements Cloneable
+public class XDoc implements Cloneable, Iterable<XDoc>
 {
 	/**
 	 *  Timestamp constant.
 	 */
-	public static final String RFC_TIMESTAMP_FORMAT = "yyyy-MM-dd\\THH:mm:ssZ";
+	public static final String RFC_TIMESTAMP_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
+	
+	/**
+	 * Number of leading bytes or characters of a stream checked for garbage before parsing.
+	 */
+	private static final int PEEK_SIZE = 256;
+	
+	/**
+	 * Smallest number of rows that bulk extraction parses in parallel.
+	 */
+	private static final int PARALLEL_EXTRACT_THRESHOLD = 4096;
+	
+	/**
+	 * Shared, immutable formatter for RFC_TIMESTAMP_FORMAT.
+	 */
+	private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern(RFC_TIMESTAMP_FORMAT, Locale.ROOT);
+	
+	/**
+	 * User data key of a document's change stamp, which every change made through an XDoc bumps.
+	 */
+	private static final String STAMP = "com.budjb.xml.XDoc.stamp";
 	
 	/**
 	 * Internal Document instance.
@@ -74,6 +121,17 @@ public class XDoc implements Cloneable
 	 * The current index in the selection list.
 	 */
 	private int index;
+	
+	/**
+	 * Parent node whose live child list is the current selection, or null if the selection is held in list.
+	 * Child selections walk siblings instead of copying the child list.
+	 */
+	private Node children;
+	
+	/**
+	 * The selected node of a child selection.
+	 */
+	private Node current;
 
 	/**
 	 * Whether the document is currently exclusive.
@@ -81,11 +139,75 @@ public class XDoc implements Cloneable
 	 */
 	private boolean exclusive;
 	
+	/**
+	 * Whether the document is a frozen snapshot that can't be changed.
+	 */
+	private boolean frozen;
+	
+	/**
+	 * Children of the root of a frozen instance, or null until at(int) first needs them.
+	 */
+	private volatile Node[] rootChildren;
+	
+	/**
+	 * Structural hash of the root, or null until hashCode() is first called.
+	 */
+	private CachedHash hash;
+	
+	/**
+	 * Shared pool of DocumentBuilder instances used by load() and getNewDocument().
+	 */
+	private static volatile DocumentBuilderPool builderPool = new DocumentBuilderPool();
+	
 	/**
 	 * Quick access to an empty XDoc.
 	 */
 	public static XDoc empty = new XDoc();
 	
+	/**
+	 * Shared cache of compiled XPath expressions used by atPath().
+	 */
+	private static final XPathCache xpathCache = new XPathCache();
+	
+	/**
+	 * Sequential comparer used by equals().
+	 */
+	private static final XDocComparer comparer = new XDocComparer();
+	
+	/**
+	 * Returns the cache of compiled XPath expressions used by atPath().
+	 * 
+	 * @return
+	 */
+	public static XPathCache getXPathCache()
+	{
+		return xpathCache;
+	}
+	
+	/**
+	 * Returns the pool of DocumentBuilder instances used by load() and getNewDocument().
+	 * 
+	 * @return
+	 */
+	public static DocumentBuilderPool getDocumentBuilderPool()
+	{
+		return builderPool;
+	}
+	
+	/**
+	 * Replaces the pool of DocumentBuilder instances used by load() and getNewDocument(),
+	 * for example to parse with different settings.
+	 * 
+	 * @param pool The new pool.
+	 */
+	public static void setDocumentBuilderPool(DocumentBuilderPool pool)
+	{
+		if (pool == null) {
+			throw new IllegalArgumentException("pool");
+		}
+		builderPool = pool;
+	}
+	
 	/**
 	 * Converts a NodeList instance into a Node array.
 	 * 
@@ -106,7 +228,7 @@ public class XDoc implements Cloneable
 	}
 
 	/**
-	 * Recursively compares two XmlNode instances. Immediately returns false upon finding the first differnece between the two nodes.
+	 * Compares two XmlNode instances. Immediately returns false upon finding the first differnece between the two nodes.
 	 * 
 	 * @param left The left node.
 	 * @param right The right node.
@@ -114,26 +236,97 @@ public class XDoc implements Cloneable
 	 */
 	private static boolean compareNode(Node left, Node right)
 	{
-		// Compare node types
-		if (left.getNodeType() != right.getNodeType()) {
-			return false;
+		// The comparer doesn't recurse, so deep documents can't overflow the stack
+		return comparer.isEqual(left, right);
+	}
+	
+	/**
+	 * Computes the structural hash of a node: its type, name, namespace, value, attributes and
+	 * children, exactly what compareNode() looks at.
+	 * 
+	 * @param node The node.
+	 * @return
+	 */
+	private static int hashNode(Node node)
+	{
+		return hashNode(node, null);
+	}
+	
+	/**
+	 * Computes the structural hash of a node and optionally records the hash of every node beneath it.
+	 * 
+	 * @param node The node.
+	 * @param record Map to record the hash of each subtree in, or null.
+	 * @return
+	 */
+	static int hashNode(Node node, IdentityHashMap<Node, Integer> record)
+	{
+		// Walk with an explicit stack, so deep documents can't overflow the call stack
+		int[] hashes = new int[16];
+		int depth = 0;
+		hashes[0] = hashShallow(node);
+		Node current = node;
+		
+		while (true) {
+			// Descend into the nodes whose children compareNode() compares
+			Node child = XDocComparer.hasComparedChildren(current) ? current.getFirstChild() : null;
+			if (child != null) {
+				if (++depth == hashes.length) {
+					hashes = Arrays.copyOf(hashes, depth * 2);
+				}
+				hashes[depth] = hashShallow(child);
+				current = child;
+				continue;
+			}
+			
+			// Fold finished nodes into their parents until there is a next sibling
+			while (true) {
+				if (depth == 0) {
+					if (record != null) {
+						record.put(current, hashes[0]);
+					}
+					return hashes[0];
+				}
+				int hash = hashes[depth--];
+				if (record != null) {
+					record.put(current, hash);
+				}
+				hashes[depth] = 31 * hashes[depth] + hash;
+				
+				Node next = current.getNextSibling();
+				if (next != null) {
+					hashes[++depth] = hashShallow(next);
+					current = next;
+					break;
+				}
+				current = current.getParentNode();
+			}
 		}
+	}
+	
+	/**
+	 * Hashes a node without its children.
+	 * 
+	 * @param node The node.
+	 * @return
+	 */
+	private static int hashShallow(Node node)
+	{
+		int hash = node.getNodeType();
 		
-		// Check if values need to be compared
-		switch (left.getNodeType()) {
+		// Values, as far as compareNode() compares them
+		switch (node.getNodeType()) {
 		case Node.ATTRIBUTE_NODE:
 		case Node.CDATA_SECTION_NODE:
 		case Node.COMMENT_NODE:
 		case Node.PROCESSING_INSTRUCTION_NODE:
 		case Node.TEXT_NODE:
-			if (left.getNodeValue() != right.getNodeValue()) {
-				return false;
-			}
+			hash = 31 * hash + Objects.hashCode(node.getNodeValue());
 			break;
 		}
 		
-		// Check if the names need to be compared
-		switch (left.getNodeType()) {
+		// Names and namespaces
+		switch (node.getNodeType()) {
 		case Node.ATTRIBUTE_NODE:
 		case Node.DOCUMENT_TYPE_NODE:
 		case Node.ELEMENT_NODE:
@@ -141,88 +334,30 @@ public class XDoc implements Cloneable
 		case Node.ENTITY_REFERENCE_NODE:
 		case Node.NOTATION_NODE:
 		case Node.PROCESSING_INSTRUCTION_NODE:
-			if (left.getNamespaceURI() != right.getNamespaceURI()) {
-				return false;
-			}
-			if (left.getNodeName() != right.getNodeName()) {
-				return false;
-			}
-		}
-		
-		// Check if attributes need to be compared
-		switch (left.getNodeType()) {
-		case Node.ELEMENT_NODE:
-			NamedNodeMap leftAttr = left.getAttributes();
-			NamedNodeMap rightAttr = right.getAttributes();
-			
-			if (leftAttr == null && rightAttr == null) {
-				break;
-			}
-			
-			if (leftAttr == null || rightAttr == null) {
-				return false;
-			}
-			
-			if (leftAttr.getLength() != rightAttr.getLength()) {
-				return false;
-			}
-			
-			for (int i = 0, end = leftAttr.getLength(); i < end; i++) {
-				if (!compareNode(leftAttr.item(i), rightAttr.item(i))) {
-					return false;
-				}
-			}
+			hash = 31 * hash + Objects.hashCode(node.getNamespaceURI());
+			hash = 31 * hash + Objects.hashCode(node.getNodeName());
 		}
 		
-		
-		// Check if child nodes need to be compared
-		switch (left.getNodeType()) {
-		case Node.ELEMENT_NODE:
-		case Node.DOCUMENT_NODE:
-		case Node.DOCUMENT_FRAGMENT_NODE:
-			NodeList leftChildren = left.getChildNodes();
-			NodeList rightChildren = right.getChildNodes();
-			
-			if (leftChildren == null && rightChildren == null) {
-				break;
-			}
-			
-			if (leftChildren == null || rightChildren == null) {
-				return false;
-			}
-			
-			if (leftChildren.getLength() != rightChildren.getLength()) {
-				return false;
+		// Attributes, in order
+		if (node.getNodeType() == Node.ELEMENT_NODE) {
+			NamedNodeMap attributes = node.getAttributes();
+			for (int i = 0, end = attributes.getLength(); i < end; i++) {
+				hash = 31 * hash + hashShallow(attributes.item(i));
 			}
-			
-			for (int i = 0, end = leftChildren.getLength(); i < end; i++) {
-				if (!compareNode(leftChildren.item(i), rightChildren.item(i))) {
-					return false;
-				}
-			}			
 		}
 		
-		return true;
+		return hash;
 	}
 	
 	/**
 	 * Helper function to create a new Document instance.
 	 * 
 	 * @return A new, empty Document instance.
-	 * @throws ParserConfigurationException 
 	 */
 	public static Document getNewDocument()
 	{
-		Document doc = null;
-		
-		try {
-			doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-		}
-		catch (ParserConfigurationException e) {
-			throw new IllegalStateException("could not create Document instance");
-		}
-		
-		return doc;
+		// Reuse this thread's builder instead of looking up a new factory
+		return builderPool.newDocument();
 	}
 
 	/**
@@ -300,6 +435,7 @@ public class XDoc implements Cloneable
 		
 		// Initialize the new doc
 		initialize(new Node[] { node }, 0, node);
+		frozen = doc.frozen;
 	}
 	
 	/**
@@ -314,6 +450,22 @@ public class XDoc implements Cloneable
 		initialize(list, index, root);
 	}
 	
+	/**
+	 * Private constructor for a selection over the live child list of a node.
+	 * 
+	 * @param children Parent node whose children are selected.
+	 * @param index Index of the selected child.
+	 * @param current The selected child node.
+	 */
+	private XDoc(Node children, int index, Node current)
+	{
+		this.children = children;
+		this.index = index;
+		this.current = current;
+		this.root = current;
+		this.doc = current.getOwnerDocument();
+	}
+	
 	/**
 	 * Internal constructor that creates an empty, non-usable doc. 
 	 */
@@ -354,8 +506,24 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc at(int index)
 	{
-		if (!isEmpty() && index >= 0 && index < root.getChildNodes().getLength()) {
-			return new XDoc(newListNode(root.getChildNodes()), index, null);
+		if (!isEmpty() && index >= 0) {
+			// Select the child in place rather than copying the whole child list
+			Node child;
+			if (frozen) {
+				// Frozen documents stay clear of the shared NodeList cache; the children are listed once per instance instead
+				Node[] nodes = rootChildren;
+				if (nodes == null) {
+					nodes = XDocComparer.children(root);
+					rootChildren = nodes;
+				}
+				child = (index < nodes.length) ? nodes[index] : null;
+			}
+			else {
+				child = root.getChildNodes().item(index);
+			}
+			if (child != null) {
+				return derive(new XDoc(root, index, child));
+			}
 		}
 		
 		return empty;
@@ -369,59 +537,31 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc at(String path)
 	{
-		// Simple lookup marker
-		boolean simple = true;
-		
-		// OPTIMIZATION: check if xpath is just looking for a specific attribute or element
-		for (int i = 0; i < path.length(); i++) {
-			char c = path.charAt(i);
-			if (!((i == 0 && c == '@') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || (c == '-') || (c == '.'))) {
-				simple = false;
-				break;
-			}
+		return at(XDocPath.compile(path));
+	}
+	
+	/**
+	 * Returns a new rooted XDoc instance based on the supplied precompiled path. The selection starts at the first result.
+	 * Single element or attribute names are looked up on the current node; all other paths are evaluated from the root.
+	 * 
+	 * @param path Precompiled path to select XDoc instances in the current XDoc instance.
+	 * @return
+	 */
+	public XDoc at(XDocPath path)
+	{
+		// Make sure we're given a path
+		if (path == null) {
+			throw new IllegalArgumentException("path");
 		}
-
-		// If it's a simple lookup, do the lookup!
-		if (simple) {
-			// Get the current node
-			Element element = (Element)getCurrentNode();
-			
-			// Process it if we have a node
-			if (element != null) {
-				// Check for attributes or elements
-				if (path.charAt(0) == '@') {
-					// Get the attribute
-					Node child = element.getAttributeNode(path.substring(1));
-					
-					// If we got a match, return it
-					if (child != null) {
-						return new XDoc(new Node[] { child }, 0, null);
-					}
-				}
-				else {
-					// Create a container for matching children elements
-					ArrayList<Node> children = new ArrayList<Node>();
-					
-					// Iterate through all children looking for matches
-					for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
-						// We got a match
-						if (child instanceof Element && child.getNodeName().equals(path)) {
-							children.add(child);
-						}
-					}
-					
-					// Return a new xdoc with the matches if anything actually matched
-					if (children.size() > 0) {
-						return new XDoc(children.toArray(new Node[children.size()]), 0, null);
-					}
-				}
+		
+		// OPTIMIZATION: simple lookups of a specific attribute or element run against the current node
+		if (path.getPlan() == XDocPath.Plan.SIMPLE) {
+			if (!(getCurrentNode() instanceof Element)) {
+				return empty;
 			}
-			
-			// Nothing matched, return an empty xdoc
-			return empty;
+			return derive(newSelection(path.select(getCurrentNode())));
 		}
 		
-		// Return a full-blow xpath search
 		return atPath(path);
 	}
 	
@@ -438,18 +578,20 @@ public class XDoc implements Cloneable
 			throw new IllegalArgumentException("path");
 		}
 		
+		// Nothing to search in an empty doc
+		if (isEmpty()) {
+			return empty;
+		}
+		
 		// Do a lookup if the path isn't empty
 		if (!path.isEmpty()) {
 			ArrayList<Node> list = new ArrayList<Node>();
 			
-			// Create the xpath instance
-			XPath xpath = XPathFactory.newInstance().newXPath();
-			
-			// Do the search
+			// Do the search with the cached compiled expression
 			NodeList results;
 			
 			try {
-				results = (NodeList) xpath.evaluate(path, root, XPathConstants.NODESET);
+				results = (NodeList) xpathCache.compile(path).evaluate(root, XPathConstants.NODESET);
 			} catch (XPathExpressionException e) {
 				return empty;
 			}
@@ -461,13 +603,54 @@ public class XDoc implements Cloneable
 			
 			// Return a new doc if we got results
 			if (list.size() > 0) {
-				return new XDoc(list.toArray(new Node[list.size()]), 0, null);
+				return derive(new XDoc(list.toArray(new Node[list.size()]), 0, null));
 			}
 		}
 		
 		return empty;
 	}
 	
+	/**
+	 * Returns a new rooted XDoc instance based on the supplied precompiled path, evaluated from the root.
+	 * The selection starts at the first result.
+	 * 
+	 * @param path Precompiled path to select XDoc instances in the current XDoc instance.
+	 * @return
+	 */
+	public XDoc atPath(XDocPath path)
+	{
+		// Make sure we're given a path
+		if (path == null) {
+			throw new IllegalArgumentException("path");
+		}
+		
+		// Hand anything we can't walk natively to the xpath engine
+		if (!path.isNative()) {
+			return atPath(path.getExpression());
+		}
+		
+		// Nothing to search in an empty doc
+		if (isEmpty()) {
+			return empty;
+		}
+		
+		return derive(newSelection(path.select(root)));
+	}
+	
+	/**
+	 * Wraps a list of selected nodes in a new XDoc instance, or returns empty if there are none.
+	 * 
+	 * @param nodes Selected nodes.
+	 * @return
+	 */
+	private static XDoc newSelection(Node[] nodes)
+	{
+		if (nodes.length == 0) {
+			return empty;
+		}
+		return new XDoc(nodes, 0, null);
+	}
+	
 	public XDoc at(Node node)
 	{
 		// Make sure we got a node
@@ -485,7 +668,7 @@ public class XDoc implements Cloneable
 			return empty;
 		}
 		
-		return new XDoc(new Node[] { node }, 0, null);
+		return derive(new XDoc(new Node[] { node }, 0, null));
 	}
 	
 	/**
@@ -495,12 +678,13 @@ public class XDoc implements Cloneable
 	 */
 	public String getContents()
 	{
-		if (doc != null) {
+		if (!isEmpty()) {
 			Node current = getCurrentNode();
 			
 			// Check for elements with only a text value
-			if (current instanceof Element && current.hasChildNodes() && current.getChildNodes().getLength() == 1 && current.getChildNodes().item(0) instanceof Text) {
-				return current.getChildNodes().item(0).getNodeValue();
+			Node first = current.getFirstChild();
+			if (current instanceof Element && first instanceof Text && first.getNextSibling() == null) {
+				return first.getNodeValue();
 			}
 			
 			// Check for text blocks or attributes
@@ -526,10 +710,9 @@ public class XDoc implements Cloneable
 	{
 	    DOMImplementationLS lsImpl = (DOMImplementationLS)node.getOwnerDocument().getImplementation().getFeature("LS", "3.0");
 	    LSSerializer lsSerializer = lsImpl.createLSSerializer();
-	    NodeList childNodes = node.getChildNodes();
 	    StringBuilder sb = new StringBuilder();
-	    for (int i = 0; i < childNodes.getLength(); i++) {
-	       sb.append(lsSerializer.writeToString(childNodes.item(i)));
+	    for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+	       sb.append(lsSerializer.writeToString(child));
 	    }
 	    return sb.toString(); 
 	}
@@ -541,7 +724,7 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc getElements()
 	{
-		if (doc != null) {
+		if (!isEmpty()) {
 			return at("*");
 		}
 		return empty;
@@ -554,8 +737,13 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc getFirst()
 	{
+		if (!isEmpty() && children != null) {
+			Node first = children.getFirstChild();
+			return (first != null) ? derive(new XDoc(children, 0, first)) : empty;
+		}
+		
 		if (!isEmpty() && list != null) {
-			return new XDoc(list, 0, null);
+			return derive(new XDoc(list, 0, null));
 		}
 		
 		return empty;
@@ -568,9 +756,16 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc getNext()
 	{
+		if (!isEmpty() && children != null) {
+			Node next = current.getNextSibling();
+			if (next != null) {
+				return derive(new XDoc(children, index + 1, next));
+			}
+		}
+		
 		if (!isEmpty() && list != null) {
 			if (index < list.length - 1) {
-				return new XDoc(list, index + 1, null);
+				return derive(new XDoc(list, index + 1, null));
 			}
 		}
 		
@@ -617,7 +812,10 @@ public class XDoc implements Cloneable
 	 */
 	public Node getCurrentNode()
 	{
-		if (doc != null) {
+		if (!isEmpty()) {
+			if (children != null) {
+				return current;
+			}
 			return (list != null) ? list[index] : doc;
 		}
 		return null;
@@ -649,6 +847,17 @@ public class XDoc implements Cloneable
 		return getCurrentNode().getPrefix();
 	}
 	
+	/**
+	 * Returns a compact, read-only copy of the current element and its descendants, for keeping
+	 * many documents in memory.
+	 * 
+	 * @return
+	 */
+	public CompactDoc compact()
+	{
+		return CompactDoc.of(this);
+	}
+	
 	/**
 	 * Return the Node wrapped by the XDoc instance. Use with caution and only if absolutely necessary.
 	 * 
@@ -665,7 +874,7 @@ public class XDoc implements Cloneable
 	 * @param node The node to get the value of.
 	 * @return
 	 */
-    private String getNodeText(Node node)
+    private static String getNodeText(Node node)
     {
         switch(node.getNodeType()) {
         	case Node.TEXT_NODE:
@@ -702,31 +911,34 @@ public class XDoc implements Cloneable
 			return null;
 		}
 		
-		// Get the current node
-		Node current = getCurrentNode();
-
+		return getText(getCurrentNode());
+	}
+	
+	/**
+	 * Returns the value of a text node or attribute, or the leading immediate text of an element.
+	 * 
+	 * @param node The node to get the text of, or null.
+	 * @return
+	 */
+	private static String getText(Node node)
+	{
 		// Do stuff for elements
-		if (current instanceof Element) {
+		if (node instanceof Element) {
 			// Return an empty string if there are no children
-			if (!current.hasChildNodes()) {
+			Node child = node.getFirstChild();
+			if (child == null) {
 				return "";
 			}
 			
-			// Get the child nodes
-			NodeList children = current.getChildNodes();
-			
-			// Get the number of child nodes
-			int count = children.getLength();
-			
-			// Check for exactly one text/cdata node
-			if (count == 1) {
-				return getNodeText(current.getChildNodes().item(0));
+			// A single text/cdata node hands out its value as is
+			if (child.getNextSibling() == null) {
+				return getNodeText(child);
 			}
 			
 			// Concatenate all consecutive text nodes
 			StringBuilder result = new StringBuilder();
-			for (int i = 0; i < count; i++) {
-				String text = getNodeText(children.item(i));
+			for (; child != null; child = child.getNextSibling()) {
+				String text = getNodeText(child);
 				if (text == null) {
 					break;
 				}
@@ -736,100 +948,234 @@ public class XDoc implements Cloneable
 			return result.toString();
 		}
 		
-		return getNodeText(current);
+		return node == null ? null : getNodeText(node);
 	}
 	
 	/**
-	 * Returns the contents as boolean or null if contents could not be converted.
+	 * Returns the contents as boolean ("true" or "1", "false" or "0").
 	 * 
 	 * @return
+	 * @throws IllegalArgumentException If the contents are not a boolean.
 	 */
 	public boolean asBoolean()
 	{
-		return as(boolean.class);
+		return ValueParser.parseBoolean(asText(), false, true);
+	}
+	
+	/**
+	 * Returns the contents as boolean ("true" or "1", "false" or "0"), or the default value if
+	 * the contents could not be converted.
+	 * 
+	 * @param defaultValue Value returned if the contents are not a boolean.
+	 * @return
+	 */
+	public boolean asBoolean(boolean defaultValue)
+	{
+		return ValueParser.parseBoolean(asText(), defaultValue, false);
 	}
 	
 	/**
-	 * Returns the contents as byte or null if contents could not be converted.
+	 * Returns the contents as byte.
 	 * 
 	 * @return
+	 * @throws NumberFormatException If the contents are not a byte.
 	 */
 	public byte asByte()
 	{
-		return as(byte.class);
+		return (byte)ValueParser.parseRange(asText(), Byte.MIN_VALUE, Byte.MAX_VALUE, 0, true);
 	}
 	
 	/**
-	 * Returns the contents as signed byte or null if contents could not be converted.
+	 * Returns the contents as signed byte.
 	 * 
 	 * @return
+	 * @throws NumberFormatException If the contents are not a short.
 	 */
 	public short asShort()
 	{
-		return as(short.class);
+		return (short)ValueParser.parseRange(asText(), Short.MIN_VALUE, Short.MAX_VALUE, 0, true);
 	}
 	
 	/**
-	 * Returns the contents as integer or null if contents could not be converted.
+	 * Returns the contents as integer.
 	 * 
 	 * @return
+	 * @throws NumberFormatException If the contents are not an integer.
 	 */
 	public int asInt()
 	{
-		return as(int.class);
+		return ValueParser.parseInt(asText(), 0, true);
 	}
 	
 	/**
-	 * Returns the contents as long integer or null if contents could not be converted.
+	 * Returns the contents as integer, or the default value if the contents could not be converted.
 	 * 
+	 * @param defaultValue Value returned if the contents are not an integer.
 	 * @return
 	 */
-	public long asLong()
+	public int asInt(int defaultValue)
 	{
-		return as(long.class);
+		return ValueParser.parseInt(asText(), defaultValue, false);
 	}
 	
 	/**
-	 * Returns the contents as floating-point number or null if contents could not be converted.
+	 * Returns the contents as long integer.
 	 * 
 	 * @return
+	 * @throws NumberFormatException If the contents are not a long integer.
 	 */
-	public float asFloat()
+	public long asLong()
 	{
-		return as(float.class);
+		return ValueParser.parseLong(asText(), 0, true);
 	}
 	
 	/**
-	 * Returns the contents as double floating-point number or null if contents could not be converted.
+	 * Returns the contents as long integer, or the default value if the contents could not be converted.
 	 * 
+	 * @param defaultValue Value returned if the contents are not a long integer.
 	 * @return
 	 */
-	public double asDouble()
+	public long asLong(long defaultValue)
 	{
-		return as(double.class);
+		return ValueParser.parseLong(asText(), defaultValue, false);
 	}
 	
 	/**
-	 * Returns the contents as date/time or null if contents could not be converted.
+	 * Returns the contents as floating-point number.
 	 * 
 	 * @return
+	 * @throws NumberFormatException If the contents are not a number.
 	 */
-	public Date asDate()
+	public float asFloat()
 	{
-		if (isEmpty()) {
-			return null;
-		}
-		try {
-			return DateFormat.getInstance().parse(getContents());
-		} catch (ParseException e) {
-			return null;
-		}
+		return ValueParser.parseFloat(asText(), 0, true);
 	}
-
+	
 	/**
-	 * Generic type conversion for the asX() family of methods.
+	 * Returns the contents as double floating-point number.
 	 * 
-	 * @param type The type to convert to.
+	 * @return
+	 * @throws NumberFormatException If the contents are not a number.
+	 */
+	public double asDouble()
+	{
+		return ValueParser.parseDouble(asText(), 0, true);
+	}
+	
+	/**
+	 * Returns the contents as double floating-point number, or the default value if the contents
+	 * could not be converted.
+	 * 
+	 * @param defaultValue Value returned if the contents are not a number.
+	 * @return
+	 */
+	public double asDouble(double defaultValue)
+	{
+		return ValueParser.parseDouble(asText(), defaultValue, false);
+	}
+	
+	/**
+	 * Returns the contents as decimal number.
+	 * 
+	 * @return
+	 * @throws NumberFormatException If the contents are not a decimal number.
+	 */
+	public BigDecimal asDecimal()
+	{
+		return ValueParser.parseDecimal(asText(), null, true);
+	}
+	
+	/**
+	 * Returns the contents as decimal number, or the default value if the contents could not be
+	 * converted.
+	 * 
+	 * @param defaultValue Value returned if the contents are not a decimal number.
+	 * @return
+	 */
+	public BigDecimal asDecimal(BigDecimal defaultValue)
+	{
+		return ValueParser.parseDecimal(asText(), defaultValue, false);
+	}
+	
+	/**
+	 * Returns the contents as date/time or null if contents could not be converted.  Reads
+	 * RFC_TIMESTAMP_FORMAT and ISO-8601 timestamps; see asInstant().
+	 * 
+	 * @return
+	 */
+	public Date asDate()
+	{
+		Instant instant = asInstant();
+		return instant == null ? null : Date.from(instant);
+	}
+	
+	/**
+	 * Returns the contents as an instant or null if contents could not be converted.  Reads
+	 * ISO-8601 timestamps such as 2012-06-30T12:00:00Z, with an optional fraction of a second
+	 * and an offset of Z, +HH:MM or +HHMM.  Timestamps without an offset are taken as UTC.
+	 * 
+	 * @return
+	 */
+	public Instant asInstant()
+	{
+		return ValueParser.parseInstant(asText());
+	}
+	
+	/**
+	 * Returns the contents as a date/time with offset (e.g. 2012-06-30T12:00:00+02:00) or null
+	 * if contents could not be converted.
+	 * 
+	 * @return
+	 */
+	public OffsetDateTime asOffsetDateTime()
+	{
+		String text = asText();
+		if (text == null) {
+			return null;
+		}
+		try {
+			return OffsetDateTime.parse(text.trim(), DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+		}
+		catch (DateTimeParseException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns the contents as a date (e.g. 2012-06-30) or null if contents could not be converted.
+	 * 
+	 * @return
+	 */
+	public LocalDate asLocalDate()
+	{
+		String text = asText();
+		if (text == null) {
+			return null;
+		}
+		try {
+			return LocalDate.parse(text.trim(), DateTimeFormatter.ISO_LOCAL_DATE);
+		}
+		catch (DateTimeParseException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Formats a date with RFC_TIMESTAMP_FORMAT in the default time zone.
+	 * 
+	 * @param value Date to format.
+	 * @return
+	 */
+	static String formatDate(Date value)
+	{
+		// The formatter is immutable, so one instance is shared
+		return TIMESTAMP_FORMATTER.format(value.toInstant().atZone(ZoneId.systemDefault()));
+	}
+
+	/**
+	 * Generic type conversion for the asX() family of methods.
+	 * 
+	 * @param type The type to convert to.
 	 * @return
 	 */
 	public <T> T as(Class<T> type)
@@ -890,6 +1236,9 @@ public class XDoc implements Cloneable
 	 */
 	public void setLanguage(String language)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		if (language != null) {
             attr("xml:lang", language);
         }
@@ -959,6 +1308,10 @@ public class XDoc implements Cloneable
 	
 	/**
 	 * Returns a deep clone of the XDoc instance starting at the root XDoc instance.
+	 * 
+	 * The clone always has a private copy of the DOM, since DOM nodes can't be shared between
+	 * documents. To change a few values of a large template per use without copying it, keep the
+	 * template as a PersistentDoc, whose changes only copy the path to the changed node.
 	 */
 	public XDoc clone() throws CloneNotSupportedException
 	{
@@ -983,6 +1336,214 @@ public class XDoc implements Cloneable
 		return new XDoc(doc);
 	}
 	
+	/**
+	 * Returns a frozen snapshot of the document starting at the root XDoc instance.
+	 * 
+	 * The snapshot is a private copy that many threads may read at once without locking, once it
+	 * has been safely published (e.g. through a final or volatile field). Every method that would
+	 * change the document or move the cursor, such as attr, start, end, replace or remove, throws
+	 * IllegalStateException on it and on every XDoc instance taken from it. clone() returns a
+	 * mutable copy again. Freezing a frozen XDoc instance returns it as is.
+	 * 
+	 * @return
+	 */
+	public XDoc freeze()
+	{
+		if (isEmpty() || frozen) {
+			return this;
+		}
+		
+		// A plain (not deferred) copy is fully expanded, so reads never build nodes
+		Document doc = getNewDocument();
+		Node node = doc.importNode(root instanceof Document ? ((Document)root).getDocumentElement() : root, true);
+		doc.appendChild(node);
+		
+		// Create the lazily allocated attribute maps now, before other threads can see them
+		Node current = node;
+		while (current != null) {
+			current.getAttributes();
+			
+			// Move to the next node in document order
+			if (current.getFirstChild() != null) {
+				current = current.getFirstChild();
+				continue;
+			}
+			while (current != node && current.getNextSibling() == null) {
+				current = current.getParentNode();
+			}
+			current = (current == node) ? null : current.getNextSibling();
+		}
+		
+		XDoc result = new XDoc(doc);
+		result.frozen = true;
+		return result;
+	}
+	
+	/**
+	 * Returns true if the XDoc instance is a frozen snapshot.
+	 * 
+	 * @return
+	 */
+	public boolean isFrozen()
+	{
+		return frozen;
+	}
+	
+	/**
+	 * Makes sure the document can be changed.
+	 */
+	private void checkMutable()
+	{
+		if (frozen) {
+			throw new IllegalStateException("xdoc is frozen");
+		}
+		
+		// Cached structural hashes of the document go stale
+		if (doc != null) {
+			int[] stamp = (int[])doc.getUserData(STAMP);
+			if (stamp != null) {
+				stamp[0]++;
+			}
+			else {
+				doc.setUserData(STAMP, new int[] { 1 }, null);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the change stamp of the document.
+	 * 
+	 * @return
+	 */
+	private int getStamp()
+	{
+		// Frozen documents never change, and reading user data isn't safe between threads
+		if (frozen) {
+			return 0;
+		}
+		int[] stamp = (int[])doc.getUserData(STAMP);
+		return (stamp != null) ? stamp[0] : 0;
+	}
+	
+	/**
+	 * Carries the frozen state over to an XDoc instance taken from this one.
+	 * 
+	 * @param result The derived instance.
+	 * @return
+	 */
+	private XDoc derive(XDoc result)
+	{
+		if (result != empty) {
+			result.frozen = frozen;
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns a child node by position by walking the siblings.
+	 * 
+	 * @param parent Parent node.
+	 * @param index Position of the child.
+	 * @return The child, or null if there are not that many.
+	 */
+	private static Node getChild(Node parent, int index)
+	{
+		Node child = parent.getFirstChild();
+		for (int i = 0; i < index && child != null; i++) {
+			child = child.getNextSibling();
+		}
+		return child;
+	}
+	
+	/**
+	 * Copies a node and everything beneath it into a document without recursing, so deep trees
+	 * can't overflow the stack the way Document.importNode() does.
+	 * 
+	 * @param target The document to copy into.
+	 * @param node The node to copy.
+	 * @return The copy, not yet attached to a parent.
+	 */
+	static Node copyTree(Document target, Node node)
+	{
+		Node copy = copyNode(target, node);
+		if (node.getNodeType() != Node.ELEMENT_NODE || node.getFirstChild() == null) {
+			return copy;
+		}
+		
+		// Copy in document order; anything but elements was copied whole
+		Node source = node.getFirstChild();
+		Node parent = copy;
+		while (true) {
+			Node child = copyNode(target, source);
+			parent.appendChild(child);
+			
+			if (source.getNodeType() == Node.ELEMENT_NODE && source.getFirstChild() != null) {
+				source = source.getFirstChild();
+				parent = child;
+				continue;
+			}
+			
+			while (source.getNextSibling() == null) {
+				source = source.getParentNode();
+				if (source == node) {
+					return copy;
+				}
+				parent = parent.getParentNode();
+			}
+			source = source.getNextSibling();
+		}
+	}
+	
+	/**
+	 * Copies a node without its children into another document. Element attributes are copied
+	 * too.
+	 * 
+	 * @param target The document to copy into.
+	 * @param node The node to copy.
+	 * @return
+	 */
+	private static Node copyNode(Document target, Node node)
+	{
+		switch (node.getNodeType()) {
+		case Node.ELEMENT_NODE:
+			Element element = (node.getLocalName() == null)
+				? target.createElement(node.getNodeName())
+				: target.createElementNS(node.getNamespaceURI(), node.getNodeName());
+			
+			NamedNodeMap attributes = node.getAttributes();
+			for (int i = 0, end = attributes.getLength(); i < end; i++) {
+				Node attribute = attributes.item(i);
+				Attr copy;
+				if (attribute.getLocalName() == null) {
+					copy = target.createAttribute(attribute.getNodeName());
+					copy.setValue(attribute.getNodeValue());
+					element.setAttributeNode(copy);
+				}
+				else {
+					copy = target.createAttributeNS(attribute.getNamespaceURI(), attribute.getNodeName());
+					copy.setValue(attribute.getNodeValue());
+					element.setAttributeNodeNS(copy);
+				}
+			}
+			return element;
+			
+		case Node.TEXT_NODE:
+			return target.createTextNode(node.getNodeValue());
+			
+		case Node.CDATA_SECTION_NODE:
+			return target.createCDATASection(node.getNodeValue());
+			
+		case Node.COMMENT_NODE:
+			return target.createComment(node.getNodeValue());
+			
+		case Node.PROCESSING_INSTRUCTION_NODE:
+			return target.createProcessingInstruction(node.getNodeName(), node.getNodeValue());
+			
+		default:
+			return target.importNode(node, true);
+		}
+	}
+	
 	/**
 	 * Mark the current XDoc instance as exclusive.  This will skip the next Clone() operation when it occurs.
 	 * 
@@ -990,6 +1551,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc setExclusive()
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		if (!isEmpty()) {
 			if (!(root.getParentNode() instanceof Document)) {
 				throw new IllegalStateException("only the root node can be marked exclusive");
@@ -1009,7 +1573,7 @@ public class XDoc implements Cloneable
 		if (isEmpty()) {
 			return this;
 		}
-		return new XDoc(list, index, root);
+		return duplicate();
 	}
 	
 	/**
@@ -1021,6 +1585,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc attr(String tag, String value)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -1042,8 +1609,8 @@ public class XDoc implements Cloneable
 		// Set the value
 		node.setNodeValue(value);
 		
-		// Add it to the doc
-		getCurrentNode().getAttributes().setNamedItemNS(node);
+		// Add it to the doc, replacing an attribute of the same name
+		getCurrentNode().getAttributes().setNamedItem(node);
 		
 		return this;
 	}
@@ -1069,8 +1636,43 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc attr(String tag, Date value)
 	{
-		SimpleDateFormat formatter = new SimpleDateFormat(RFC_TIMESTAMP_FORMAT);
-		return attr(tag, formatter.format(value));
+		return attr(tag, formatDate(value));
+	}
+	
+	/**
+	 * Adds an attribute to the XDoc instance.
+	 * 
+	 * @param tag Attribute name.
+	 * @param value Instant value of the attribute.
+	 * @return
+	 */
+	public XDoc attr(String tag, Instant value)
+	{
+		return attr(tag, DateTimeFormatter.ISO_INSTANT.format(value));
+	}
+	
+	/**
+	 * Adds an attribute to the XDoc instance.
+	 * 
+	 * @param tag Attribute name.
+	 * @param value OffsetDateTime value of the attribute.
+	 * @return
+	 */
+	public XDoc attr(String tag, OffsetDateTime value)
+	{
+		return attr(tag, DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(value));
+	}
+	
+	/**
+	 * Adds an attribute to the XDoc instance.
+	 * 
+	 * @param tag Attribute name.
+	 * @param value LocalDate value of the attribute.
+	 * @return
+	 */
+	public XDoc attr(String tag, LocalDate value)
+	{
+		return attr(tag, DateTimeFormatter.ISO_LOCAL_DATE.format(value));
 	}
 	
 	/**
@@ -1081,6 +1683,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc start(String tag)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -1097,9 +1702,8 @@ public class XDoc implements Cloneable
 		// Add it to the current node
 		getCurrentNode().appendChild(node);
 		
-		// Reset the list and index
-		list = new Node[] { node };
-		index = 0;
+		// Reset the selection
+		select(node);
 		
 		return this;
 	}
@@ -1113,6 +1717,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc start(String tag, String namespaceUri)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the namespace was given
 		if (namespaceUri == null) {
 			return start(tag);
@@ -1134,9 +1741,8 @@ public class XDoc implements Cloneable
 		// Add it to the current node
 		getCurrentNode().appendChild(node);
 		
-		// Reset the list and index
-		list = new Node[] { node };
-		index = 0;
+		// Reset the selection
+		select(node);
 		
 		return this;
 	}
@@ -1176,6 +1782,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc value(String value)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -1203,8 +1812,40 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc value(Date value)
 	{
-		SimpleDateFormat formatter = new SimpleDateFormat(RFC_TIMESTAMP_FORMAT);
-		return value(formatter.format(value));
+		return value(formatDate(value));
+	}
+	
+	/**
+	 * Adds a text node.
+	 * 
+	 * @param value Value to add.
+	 * @return
+	 */
+	public XDoc value(Instant value)
+	{
+		return value(DateTimeFormatter.ISO_INSTANT.format(value));
+	}
+	
+	/**
+	 * Adds a text node.
+	 * 
+	 * @param value Value to add.
+	 * @return
+	 */
+	public XDoc value(OffsetDateTime value)
+	{
+		return value(DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(value));
+	}
+	
+	/**
+	 * Adds a text node.
+	 * 
+	 * @param value Value to add.
+	 * @return
+	 */
+	public XDoc value(LocalDate value)
+	{
+		return value(DateTimeFormatter.ISO_LOCAL_DATE.format(value));
 	}
 	
 	/**
@@ -1226,6 +1867,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc replaceValue(String value)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -1288,6 +1932,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc insertValueAt(String xpath, String value)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Regex Pattern
 		Pattern pattern = Pattern.compile("(.+)\\[(\\d+)\\]");
 
@@ -1395,6 +2042,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc cDataSection(String value)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -1422,6 +2072,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc comment(String value)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -1450,6 +2103,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc conditionalComment(String condition, XDoc contents)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -1481,6 +2137,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc end()
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -1494,14 +2153,7 @@ public class XDoc implements Cloneable
 		// Get the parent node
 		Node parent = getCurrentNode().getParentNode();
 		
-		if (parent == doc) {
-			list = null;
-			index = -1;
-		}
-		else {
-			list = new Node[] { parent };
-			index = 0;
-		}
+		select((parent == doc) ? null : parent);
 		
 		return this;
 	}
@@ -1513,20 +2165,52 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc getRoot()
 	{
-		return new XDoc(list, index, root);
+		return duplicate();
 	}
 	
 	/**
-	 * Ends child elements until the current node is the same as the marker node.
+	 * Creates a new XDoc instance with the same selection and root as this one.
 	 * 
-	 * @param markerNode Xml node to use a marker of where the document was before the target start(string) was called.
 	 * @return
 	 */
-	public XDoc end(Node markerNode)
+	private XDoc duplicate()
 	{
-		// Make sure it's not empty
-		if (isEmpty()) {
-			throw new IllegalStateException("xdoc is empty");
+		if (children != null) {
+			XDoc result = new XDoc(children, index, current);
+			result.root = root;
+			result.doc = doc;
+			return derive(result);
+		}
+		return derive(new XDoc(list, index, root));
+	}
+	
+	/**
+	 * Replaces the selection with a single node.
+	 * 
+	 * @param node The node to select, or null to select the document.
+	 */
+	private void select(Node node)
+	{
+		list = (node != null) ? new Node[] { node } : null;
+		index = (node != null) ? 0 : -1;
+		children = null;
+		current = null;
+	}
+	
+	/**
+	 * Ends child elements until the current node is the same as the marker node.
+	 * 
+	 * @param markerNode Xml node to use a marker of where the document was before the target start(string) was called.
+	 * @return
+	 */
+	public XDoc end(Node markerNode)
+	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
+		// Make sure it's not empty
+		if (isEmpty()) {
+			throw new IllegalStateException("xdoc is empty");
 		}
 		
 		Node currentNode = asNode();
@@ -1545,6 +2229,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc endAll()
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure it's not empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -1563,44 +2250,12 @@ public class XDoc implements Cloneable
 	 * 
 	 * @param node The node to get the outer xml of.
 	 * @param decl Whether to include the declaration.
+	 * @param indent Whether to indent the output.
 	 * @return
 	 */
 	private String getOuterXml(Node node, boolean decl, boolean indent)
 	{
-		// Create the transformer
-		Transformer transformer;
-		try {
-			transformer = TransformerFactory.newInstance().newTransformer();
-		} catch (TransformerConfigurationException | TransformerFactoryConfigurationError e1) {
-			return "";
-		}
-		
-		// Force xml
-		transformer.setOutputProperty("method", "xml");
-		
-		// Declaration
-		if (decl == false) {
-			transformer.setOutputProperty("omit-xml-declaration", "yes");
-		}
-
-		// Indention
-		if (indent) {
-			transformer.setOutputProperty("indent", "yes");
-			transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
-		}
-		
-		// Create the string writer
-		StringWriter writer = new StringWriter();
-		
-		// Transform
-		try {
-			transformer.transform(new DOMSource(node), new StreamResult(writer));
-		} catch (TransformerException e) {
-			return "";
-		}
-		
-		// Return the string result
-		return writer.toString();       
+		return XDocSerializer.toString(node, decl, indent);
 	}
 	
 	/**
@@ -1637,9 +2292,186 @@ public class XDoc implements Cloneable
 	 */
 	public String toPrettyString()
 	{
+		// Check for an empty doc
+		if (isEmpty()) {
+			return "";
+		}
+		
 		return getOuterXml(root, true, true);
 	}
 	
+	/**
+	 * Writes the document from the current root to a writer. The writer is flushed but not closed.
+	 * 
+	 * @param out The writer to write to.
+	 * @throws IOException
+	 */
+	public void writeTo(Writer out) throws IOException
+	{
+		writeTo(out, false);
+	}
+	
+	/**
+	 * Writes the document from the current root to a writer. The writer is flushed but not closed.
+	 * 
+	 * @param out The writer to write to.
+	 * @param decl Whether to include the declaration.  Only works from the root of the document.
+	 * @throws IOException
+	 */
+	public void writeTo(Writer out, boolean decl) throws IOException
+	{
+		writeOuterXml(out, null, decl, false);
+	}
+	
+	/**
+	 * Writes the document from the current root to a writer with indention.  The writer is flushed
+	 * but not closed.
+	 * 
+	 * @param out The writer to write to.
+	 * @throws IOException
+	 */
+	public void writePrettyTo(Writer out) throws IOException
+	{
+		writeOuterXml(out, null, true, true);
+	}
+	
+	/**
+	 * Writes the document from the current root to a stream. The stream is flushed but not closed.
+	 * 
+	 * @param out The stream to write to.
+	 * @param charset The charset to encode with.
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out, Charset charset) throws IOException
+	{
+		writeTo(out, charset, false);
+	}
+	
+	/**
+	 * Writes the document from the current root to a stream. The stream is flushed but not closed.
+	 * 
+	 * @param out The stream to write to.
+	 * @param charset The charset to encode with.
+	 * @param decl Whether to include the declaration.  Only works from the root of the document.
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out, Charset charset, boolean decl) throws IOException
+	{
+		// Make sure we're given a target and a charset
+		if (out == null) {
+			throw new IllegalArgumentException("out");
+		}
+		if (charset == null) {
+			throw new IllegalArgumentException("charset");
+		}
+		
+		writeOuterXml(new OutputStreamWriter(out, charset), charset, decl, false);
+	}
+	
+	/**
+	 * Writes the document from the current root to a stream with indention.  The stream is flushed
+	 * but not closed.
+	 * 
+	 * @param out The stream to write to.
+	 * @param charset The charset to encode with.
+	 * @throws IOException
+	 */
+	public void writePrettyTo(OutputStream out, Charset charset) throws IOException
+	{
+		// Make sure we're given a target and a charset
+		if (out == null) {
+			throw new IllegalArgumentException("out");
+		}
+		if (charset == null) {
+			throw new IllegalArgumentException("charset");
+		}
+		
+		writeOuterXml(new OutputStreamWriter(out, charset), charset, true, true);
+	}
+	
+	/**
+	 * Writes the document from the current root to a channel as UTF-8.  The channel is not closed.
+	 * 
+	 * @param channel The channel to write to.
+	 * @throws IOException
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException
+	{
+		writeTo(channel, StandardCharsets.UTF_8, false);
+	}
+	
+	/**
+	 * Writes the document from the current root to a channel.  The channel is not closed.
+	 * 
+	 * @param channel The channel to write to.
+	 * @param charset The charset to encode with.
+	 * @param decl Whether to include the declaration.  Only works from the root of the document.
+	 * @throws IOException
+	 */
+	public void writeTo(WritableByteChannel channel, Charset charset, boolean decl) throws IOException
+	{
+		// Make sure we're given a target and a charset
+		if (channel == null) {
+			throw new IllegalArgumentException("channel");
+		}
+		if (charset == null) {
+			throw new IllegalArgumentException("charset");
+		}
+		
+		writeOuterXml(Channels.newWriter(channel, charset.newEncoder(), -1), charset, decl, false);
+	}
+	
+	/**
+	 * Writes the document from the current root to a channel with indention.  The channel is not closed.
+	 * 
+	 * @param channel The channel to write to.
+	 * @param charset The charset to encode with.
+	 * @throws IOException
+	 */
+	public void writePrettyTo(WritableByteChannel channel, Charset charset) throws IOException
+	{
+		// Make sure we're given a target and a charset
+		if (channel == null) {
+			throw new IllegalArgumentException("channel");
+		}
+		if (charset == null) {
+			throw new IllegalArgumentException("charset");
+		}
+		
+		writeOuterXml(Channels.newWriter(channel, charset.newEncoder(), -1), charset, true, true);
+	}
+	
+	/**
+	 * Streams the outer xml of the current root to a writer, the same way toString(boolean) and
+	 * toPrettyString() render it.
+	 * 
+	 * @param out The writer to write to.
+	 * @param charset The charset the writer encodes to, or null if unknown.
+	 * @param decl Whether to include the declaration.
+	 * @param indent Whether to indent the output.
+	 * @throws IOException
+	 */
+	private void writeOuterXml(Writer out, Charset charset, boolean decl, boolean indent) throws IOException
+	{
+		// Make sure we're given a target
+		if (out == null) {
+			throw new IllegalArgumentException("out");
+		}
+		
+		// Nothing to write for an empty doc
+		if (isEmpty()) {
+			return;
+		}
+		
+		// Pretty output always carries the declaration
+		if (!indent) {
+			decl = (decl == true && root.getParentNode() == doc);
+		}
+		
+		// The serializer hands its bounded buffer straight to the writer
+		XDocSerializer.write(root, decl, indent, charset, out);
+	}
+	
 	/**
 	 * Removes this XDoc instance from the containing document.
 	 * 
@@ -1647,6 +2479,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc remove()
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Only do work if the doc isn't empty
 		if (!isEmpty()) {
 			// Get the current node
@@ -1667,8 +2502,10 @@ public class XDoc implements Cloneable
 				current.getParentNode().removeChild(current);
 			}
 			
-			// Reset the list
+			// Reset the selection
 			list = null;
+			children = null;
+			current = null;
 		}
 		
 		return empty;
@@ -1682,6 +2519,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc removeAttr(String name)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Nothing to do for empty docs
 		if (isEmpty()) {
 			return this;
@@ -1703,6 +2543,9 @@ public class XDoc implements Cloneable
 	 */
 	public void removeAll()
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		for (XDoc doc : toList()) {
 			doc.remove();
 		}
@@ -1715,6 +2558,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc removeNodes()
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			return this;
@@ -1739,6 +2585,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc replace(XDoc doc)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc's not empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -1811,6 +2660,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc replaceWithNodes(XDoc doc)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Check for empty doc
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -1846,6 +2698,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc replace(String value)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -1879,8 +2734,40 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc replace(Date value)
 	{
-		SimpleDateFormat formatter = new SimpleDateFormat(RFC_TIMESTAMP_FORMAT);
-		return replace(formatter.format(value));
+		return replace(formatDate(value));
+	}
+	
+	/**
+	 * Replaces this XDoc instance with a text node.
+	 * 
+	 * @param value Value to replace with.
+	 * @return
+	 */
+	public XDoc replace(Instant value)
+	{
+		return replace(DateTimeFormatter.ISO_INSTANT.format(value));
+	}
+	
+	/**
+	 * Replaces this XDoc instance with a text node.
+	 * 
+	 * @param value Value to replace with.
+	 * @return
+	 */
+	public XDoc replace(OffsetDateTime value)
+	{
+		return replace(DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(value));
+	}
+	
+	/**
+	 * Replaces this XDoc instance with a text node.
+	 * 
+	 * @param value Value to replace with.
+	 * @return
+	 */
+	public XDoc replace(LocalDate value)
+	{
+		return replace(DateTimeFormatter.ISO_LOCAL_DATE.format(value));
 	}
 	
 	/**
@@ -1891,6 +2778,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc rename(String name)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -1936,6 +2826,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc addNodesInFront(XDoc doc)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -1986,8 +2879,13 @@ public class XDoc implements Cloneable
 		// Replace the nodes
 		parent.replaceChild(newNode, current);
 		
-		// Reset the list
-		list[index] = newNode;
+		// Reset the selection
+		if (children != null) {
+			this.current = newNode;
+		}
+		else {
+			list[index] = newNode;
+		}
 		
 		// If the root changed, update that as well
 		if (current == root) {
@@ -2005,6 +2903,16 @@ public class XDoc implements Cloneable
 	 */
 	public ArrayList<XDoc> toList()
 	{
+		// Walk the siblings of child selections
+		if (!isEmpty() && children != null) {
+			ArrayList<XDoc> result = new ArrayList<XDoc>();
+			int i = 0;
+			for (Node child = children.getFirstChild(); child != null; child = child.getNextSibling()) {
+				result.add(derive(new XDoc(children, i++, child)));
+			}
+			return result;
+		}
+		
 		// Return an empty list if the doc is empty
 		if (isEmpty() || list == null) {
 			return new ArrayList<XDoc>();
@@ -2015,125 +2923,464 @@ public class XDoc implements Cloneable
 		
 		// Add each xdoc
 		for (int i = 0; i < list.length; i++) {
-			result.add(new XDoc(list, i, null));
+			result.add(derive(new XDoc(list, i, null)));
 		}
 		
 		return result;
 	}
 	
 	/**
-	 * Add child nodes from another XDoc instance before this one.
+	 * Returns the nodes of the XDoc selection, or null if there is no selection.
 	 * 
-	 * @param doc Container of prepended nodes.
 	 * @return
 	 */
-	public XDoc addNodesBefore(XDoc doc)
+	private Node[] getSelectedNodes()
 	{
-		// Make sure the doc isn't empty
 		if (isEmpty()) {
-			throw new IllegalStateException("xdoc is empty");
-		}
-		
-		// Check for null doc
-		if (doc == null) {
-			return this;
-		}
-		
-		// Make sure the root's an element
-		if (!(root instanceof Element)) {
-			throw new IllegalStateException("xdoc is not an element");
+			return null;
 		}
-		
-		// Do work if the doc isn't empty
-		if (!doc.isEmpty()) {
-			// Get the parent node
-			Node parent = getCurrentNode().getParentNode();
-			
-			// Check if the parent was null (i.e. we're the root element)
-			if (parent == null) {
-				throw new IllegalStateException("xdoc is top node");
-			}
-			
-			// Create our marker node
-			Node marker = parent.insertBefore(this.doc.createTextNode("#"), getCurrentNode());
-			
-			// Insert marker
-			Node insertNode = marker;
-			
-			// Add each node
-			for (Node node : newListNode(doc.getRootElement().getChildNodes())) {
-				insertNode = insertAfter(parent, this.doc.importNode(node, true), insertNode);
+		if (children != null) {
+			ArrayList<Node> nodes = new ArrayList<Node>();
+			for (Node child = children.getFirstChild(); child != null; child = child.getNextSibling()) {
+				nodes.add(child);
 			}
-			
-			// Remove the marker node
-			parent.removeChild(marker);
+			return nodes.toArray(new Node[nodes.size()]);
 		}
-		
-		return this;
+		return list;
 	}
 	
 	/**
-	 * Add child nodes from another XDoc instance after this one.
+	 * Returns an iterator over the XDoc selection.
 	 * 
-	 * @param doc Container of prepended nodes.
 	 * @return
 	 */
-	public XDoc addNodesAfter(XDoc doc)
+	public Iterator<XDoc> iterator()
 	{
-		// Make sure the doc isn't empty
-		if (isEmpty()) {
-			throw new IllegalStateException("xdoc is empty");
-		}
-		
-		// Check for null doc
-		if (doc == null) {
-			return this;
-		}
-		
-		// Make sure the root's an element
-		if (!(root instanceof Element)) {
-			throw new IllegalStateException("xdoc is not an element");
-		}
-		
-		// Do work if the doc isn't empty
-		if (!doc.isEmpty()) {
-			// Get the parent node
-			Node parent = getCurrentNode().getParentNode();
-			if (parent == null) {
-				throw new IllegalStateException("xdoc is top node");
-			}
-			
-			// Create our marker node
-			Node insertNode = getCurrentNode();
-			
-			// Add each node
-			for (Node node : newListNode(doc.getRootElement().getChildNodes())) {
-				insertNode = insertAfter(parent, this.doc.importNode(node, true), insertNode);
-			}
-		}
-		
-		return this;
+		return Spliterators.iterator(spliterator());
 	}
 	
 	/**
-	 * Adds child nodes from another XDoc instance.
+	 * Returns a sized, splittable spliterator over the XDoc selection.
 	 * 
-	 * @param doc Container of added nodes.
 	 * @return
 	 */
-	public XDoc addNodes(XDoc doc)
+	public Spliterator<XDoc> spliterator()
 	{
-		// Make sure the doc isn't empty
-		if (isEmpty()) {
-			throw new IllegalStateException("xdoc is empty");
-		}
-		
-		// Check for null doc
-		if (doc == null) {
-			return this;
+		Node[] nodes = getSelectedNodes();
+		if (nodes == null) {
+			return Spliterators.emptySpliterator();
 		}
-		
-		// Do work if the doc isn't empty
+		return new SelectionSpliterator(nodes, 0, nodes.length, frozen);
+	}
+	
+	/**
+	 * Returns a sequential stream over the XDoc selection.
+	 * 
+	 * @return
+	 */
+	public Stream<XDoc> stream()
+	{
+		return StreamSupport.stream(spliterator(), false);
+	}
+	
+	/**
+	 * Returns a parallel stream over the XDoc selection of a frozen document. A live DOM isn't safe
+	 * to read from several threads at once (parsed documents expand their nodes lazily and share a
+	 * child list cache), so the stream is sequential unless the selection is frozen.
+	 * 
+	 * @return
+	 */
+	public Stream<XDoc> parallelStream()
+	{
+		return StreamSupport.stream(spliterator(), frozen);
+	}
+	
+	/**
+	 * Returns the text found at a relative path under each selected node, in selection order.
+	 * Rows where the path selects nothing hold null.  A null, empty or "." path reads the selected
+	 * nodes themselves.
+	 * 
+	 * @param relativePath Path evaluated against each selected node.
+	 * @return
+	 */
+	public String[] extractStrings(String relativePath)
+	{
+		// Check for an empty doc
+		Node[] nodes = getSelectedNodes();
+		if (nodes == null) {
+			return new String[0];
+		}
+		
+		String[] values = new String[nodes.length];
+		
+		// No path reads the selected nodes
+		if (relativePath == null || relativePath.isEmpty() || relativePath.equals(".")) {
+			for (int i = 0; i < nodes.length; i++) {
+				values[i] = getText(nodes[i]);
+			}
+			return values;
+		}
+		
+		// Compile the path once for every row
+		XDocPath path = XDocPath.compile(relativePath);
+		
+		// Single names stop at the first matching child or attribute
+		if (path.getPlan() == XDocPath.Plan.SIMPLE) {
+			for (int i = 0; i < nodes.length; i++) {
+				values[i] = getText(path.selectFirst(nodes[i]));
+			}
+			return values;
+		}
+		
+		// Other native paths use the step walker
+		if (path.isNative()) {
+			for (int i = 0; i < nodes.length; i++) {
+				Node[] matches = path.select(nodes[i]);
+				values[i] = matches.length == 0 ? null : getText(matches[0]);
+			}
+			return values;
+		}
+		
+		// Everything else goes through the xpath engine
+		try {
+			XPathExpression expression = xpathCache.compile(relativePath);
+			for (int i = 0; i < nodes.length; i++) {
+				values[i] = getText((Node)expression.evaluate(nodes[i], XPathConstants.NODE));
+			}
+		}
+		catch (XPathExpressionException e) {
+			throw new IllegalArgumentException("relativePath", e);
+		}
+		return values;
+	}
+	
+	/**
+	 * Returns the number found at a relative path under each selected node, in selection order.
+	 * Rows without a number hold NaN.
+	 * 
+	 * @param relativePath Path evaluated against each selected node.
+	 * @return
+	 */
+	public double[] extractDoubles(String relativePath)
+	{
+		return extractDoubles(relativePath, Double.NaN, false);
+	}
+	
+	/**
+	 * Returns the number found at a relative path under each selected node, in selection order.
+	 * 
+	 * The nodes are always walked on the calling thread, because reading a DOM is not safe from
+	 * several threads at once (parsed documents expand their nodes lazily); the parallel mode
+	 * parses the collected text on the common fork-join pool.
+	 * 
+	 * @param relativePath Path evaluated against each selected node.
+	 * @param defaultValue Value for rows without a number.
+	 * @param parallel Whether to parse in parallel.
+	 * @return
+	 */
+	public double[] extractDoubles(String relativePath, double defaultValue, boolean parallel)
+	{
+		String[] values = extractStrings(relativePath);
+		double[] result = new double[values.length];
+		forEachRow(values.length, parallel, i -> result[i] = ValueParser.parseDouble(values[i], defaultValue, false));
+		return result;
+	}
+	
+	/**
+	 * Returns the integer found at a relative path under each selected node, in selection order.
+	 * Rows without an integer hold 0.
+	 * 
+	 * @param relativePath Path evaluated against each selected node.
+	 * @return
+	 */
+	public long[] extractLongs(String relativePath)
+	{
+		return extractLongs(relativePath, 0, false);
+	}
+	
+	/**
+	 * Returns the integer found at a relative path under each selected node, in selection order.
+	 * The nodes are always walked on the calling thread; the parallel mode parses the collected
+	 * text on the common fork-join pool.
+	 * 
+	 * @param relativePath Path evaluated against each selected node.
+	 * @param defaultValue Value for rows without an integer.
+	 * @param parallel Whether to parse in parallel.
+	 * @return
+	 */
+	public long[] extractLongs(String relativePath, long defaultValue, boolean parallel)
+	{
+		String[] values = extractStrings(relativePath);
+		long[] result = new long[values.length];
+		forEachRow(values.length, parallel, i -> result[i] = ValueParser.parseLong(values[i], defaultValue, false));
+		return result;
+	}
+	
+	/**
+	 * Runs an action for each row index, in parallel for large enough requests.
+	 * 
+	 * @param rows Number of rows.
+	 * @param parallel Whether parallel processing was requested.
+	 * @param action Action to run.
+	 */
+	private static void forEachRow(int rows, boolean parallel, IntConsumer action)
+	{
+		// Small selections are not worth the fork-join overhead
+		if (parallel && rows >= PARALLEL_EXTRACT_THRESHOLD) {
+			IntStream.range(0, rows).parallel().forEach(action);
+		}
+		else {
+			for (int i = 0; i < rows; i++) {
+				action.accept(i);
+			}
+		}
+	}
+	
+	/**
+	 * Spliterator over a range of a selection's nodes. Splitting halves the range, so large selections
+	 * divide evenly across fork-join workers.
+	 */
+	private static final class SelectionSpliterator implements Spliterator<XDoc>
+	{
+		/**
+		 * The selection's nodes.
+		 */
+		private final Node[] nodes;
+		
+		/**
+		 * Next index to visit.
+		 */
+		private int index;
+		
+		/**
+		 * One past the last index to visit.
+		 */
+		private final int fence;
+		
+		/**
+		 * Whether the selection belongs to a frozen document.
+		 */
+		private final boolean frozen;
+		
+		/**
+		 * Creates a new spliterator over the given range.
+		 * 
+		 * @param nodes The selection's nodes.
+		 * @param index First index to visit.
+		 * @param fence One past the last index to visit.
+		 * @param frozen Whether the selection belongs to a frozen document.
+		 */
+		SelectionSpliterator(Node[] nodes, int index, int fence, boolean frozen)
+		{
+			this.nodes = nodes;
+			this.index = index;
+			this.fence = fence;
+			this.frozen = frozen;
+		}
+		
+		/**
+		 * Creates the XDoc instance for an index.
+		 * 
+		 * @param i Index of the node.
+		 * @return
+		 */
+		private XDoc item(int i)
+		{
+			XDoc result = new XDoc(nodes, i, null);
+			result.frozen = frozen;
+			return result;
+		}
+		
+		public boolean tryAdvance(Consumer<? super XDoc> action)
+		{
+			if (index >= fence) {
+				return false;
+			}
+			action.accept(item(index++));
+			return true;
+		}
+		
+		public void forEachRemaining(Consumer<? super XDoc> action)
+		{
+			for (int i = index; i < fence; i++) {
+				action.accept(item(i));
+			}
+			index = fence;
+		}
+		
+		public Spliterator<XDoc> trySplit()
+		{
+			int middle = (index + fence) >>> 1;
+			if (middle <= index) {
+				return null;
+			}
+			Spliterator<XDoc> prefix = new SelectionSpliterator(nodes, index, middle, frozen);
+			index = middle;
+			return prefix;
+		}
+		
+		public long estimateSize()
+		{
+			return fence - index;
+		}
+		
+		public int characteristics()
+		{
+			return ORDERED | SIZED | SUBSIZED | NONNULL;
+		}
+	}
+	
+	/**
+	 * A structural hash and the change stamp of the document it was computed at. Instances are
+	 * immutable, so frozen documents can cache them while other threads read.
+	 */
+	private static final class CachedHash
+	{
+		/**
+		 * Change stamp of the document.
+		 */
+		final int stamp;
+		
+		/**
+		 * The hash.
+		 */
+		final int value;
+		
+		/**
+		 * Creates a new cache entry.
+		 * 
+		 * @param stamp Change stamp of the document.
+		 * @param value The hash.
+		 */
+		CachedHash(int stamp, int value)
+		{
+			this.stamp = stamp;
+			this.value = value;
+		}
+	}
+	
+	/**
+	 * Add child nodes from another XDoc instance before this one.
+	 * 
+	 * @param doc Container of prepended nodes.
+	 * @return
+	 */
+	public XDoc addNodesBefore(XDoc doc)
+	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
+		// Make sure the doc isn't empty
+		if (isEmpty()) {
+			throw new IllegalStateException("xdoc is empty");
+		}
+		
+		// Check for null doc
+		if (doc == null) {
+			return this;
+		}
+		
+		// Make sure the root's an element
+		if (!(root instanceof Element)) {
+			throw new IllegalStateException("xdoc is not an element");
+		}
+		
+		// Do work if the doc isn't empty
+		if (!doc.isEmpty()) {
+			// Get the parent node
+			Node parent = getCurrentNode().getParentNode();
+			
+			// Check if the parent was null (i.e. we're the root element)
+			if (parent == null) {
+				throw new IllegalStateException("xdoc is top node");
+			}
+			
+			// Create our marker node
+			Node marker = parent.insertBefore(this.doc.createTextNode("#"), getCurrentNode());
+			
+			// Insert marker
+			Node insertNode = marker;
+			
+			// Add each node
+			for (Node node : newListNode(doc.getRootElement().getChildNodes())) {
+				insertNode = insertAfter(parent, this.doc.importNode(node, true), insertNode);
+			}
+			
+			// Remove the marker node
+			parent.removeChild(marker);
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Add child nodes from another XDoc instance after this one.
+	 * 
+	 * @param doc Container of prepended nodes.
+	 * @return
+	 */
+	public XDoc addNodesAfter(XDoc doc)
+	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
+		// Make sure the doc isn't empty
+		if (isEmpty()) {
+			throw new IllegalStateException("xdoc is empty");
+		}
+		
+		// Check for null doc
+		if (doc == null) {
+			return this;
+		}
+		
+		// Make sure the root's an element
+		if (!(root instanceof Element)) {
+			throw new IllegalStateException("xdoc is not an element");
+		}
+		
+		// Do work if the doc isn't empty
+		if (!doc.isEmpty()) {
+			// Get the parent node
+			Node parent = getCurrentNode().getParentNode();
+			if (parent == null) {
+				throw new IllegalStateException("xdoc is top node");
+			}
+			
+			// Create our marker node
+			Node insertNode = getCurrentNode();
+			
+			// Add each node
+			for (Node node : newListNode(doc.getRootElement().getChildNodes())) {
+				insertNode = insertAfter(parent, this.doc.importNode(node, true), insertNode);
+			}
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Adds child nodes from another XDoc instance.
+	 * 
+	 * @param doc Container of added nodes.
+	 * @return
+	 */
+	public XDoc addNodes(XDoc doc)
+	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
+		// Make sure the doc isn't empty
+		if (isEmpty()) {
+			throw new IllegalStateException("xdoc is empty");
+		}
+		
+		// Check for null doc
+		if (doc == null) {
+			return this;
+		}
+		
+		// Do work if the doc isn't empty
 		if (!doc.isEmpty()) {
 			// Add each node
 			for (Node node : newListNode(doc.getRootElement().getChildNodes())) {
@@ -2152,6 +3399,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc add(XDoc doc)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -2178,6 +3428,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc addAfter(String value)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -2208,8 +3461,40 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc addAfter(Date value)
 	{
-		SimpleDateFormat formatter = new SimpleDateFormat(RFC_TIMESTAMP_FORMAT);
-		return addAfter(formatter.format(value));
+		return addAfter(formatDate(value));
+	}
+	
+	/**
+	 * Adds a value after this XDoc instance.
+	 * 
+	 * @param value Value to add.
+	 * @return
+	 */
+	public XDoc addAfter(Instant value)
+	{
+		return addAfter(DateTimeFormatter.ISO_INSTANT.format(value));
+	}
+	
+	/**
+	 * Adds a value after this XDoc instance.
+	 * 
+	 * @param value Value to add.
+	 * @return
+	 */
+	public XDoc addAfter(OffsetDateTime value)
+	{
+		return addAfter(DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(value));
+	}
+	
+	/**
+	 * Adds a value after this XDoc instance.
+	 * 
+	 * @param value Value to add.
+	 * @return
+	 */
+	public XDoc addAfter(LocalDate value)
+	{
+		return addAfter(DateTimeFormatter.ISO_LOCAL_DATE.format(value));
 	}
 	
 	/**
@@ -2231,6 +3516,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc addAfter(XDoc doc)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -2258,6 +3546,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc addBefore(String value)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -2290,8 +3581,7 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc addBefore(Date value)
 	{
-		SimpleDateFormat formatter = new SimpleDateFormat(RFC_TIMESTAMP_FORMAT);
-		return addBefore(formatter.format(value));
+		return addBefore(formatDate(value));
 	}
 	
 	/**
@@ -2300,9 +3590,42 @@ public class XDoc implements Cloneable
 	 * @param value Value to add.
 	 * @return
 	 */
-	public XDoc addBefore(Object value)
+	public XDoc addBefore(Instant value)
 	{
-		return addBefore(value.toString());
+		return addBefore(DateTimeFormatter.ISO_INSTANT.format(value));
+	}
+	
+	/**
+	 * Adds a value before this XDoc instance.
+	 * 
+	 * @param value Value to add.
+	 * @return
+	 */
+	public XDoc addBefore(OffsetDateTime value)
+	{
+		return addBefore(DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(value));
+	}
+	
+	/**
+	 * Adds a value before this XDoc instance.
+	 * 
+	 * @param value Value to add.
+	 * @return
+	 */
+	public XDoc addBefore(LocalDate value)
+	{
+		return addBefore(DateTimeFormatter.ISO_LOCAL_DATE.format(value));
+	}
+	
+	/**
+	 * Adds a value before this XDoc instance.
+	 * 
+	 * @param value Value to add.
+	 * @return
+	 */
+	public XDoc addBefore(Object value)
+	{
+		return addBefore(value.toString());
 	}
 	
 	/**
@@ -2313,6 +3636,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc addBefore(XDoc doc)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -2345,6 +3671,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc addAll(XDoc doc)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -2367,6 +3696,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc addAllBefore(XDoc doc)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -2389,6 +3721,9 @@ public class XDoc implements Cloneable
 	 */
 	public XDoc addAllAfter(XDoc doc)
 	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
 		// Make sure the doc isn't empty
 		if (isEmpty()) {
 			throw new IllegalStateException("xdoc is empty");
@@ -2424,6 +3759,14 @@ public class XDoc implements Cloneable
 			return 0;
 		}
 		
+		if (children != null) {
+			int length = 0;
+			for (Node child = children.getFirstChild(); child != null; child = child.getNextSibling()) {
+				length++;
+			}
+			return length;
+		}
+		
 		if (list == null) {
 			return 1;
 		}
@@ -2448,9 +3791,208 @@ public class XDoc implements Cloneable
 		if (!(other instanceof XDoc)) {
 			return false;
 		}
+		
+		// Documents whose hashes are known and differ can't be equal
+		CachedHash left = hash;
+		CachedHash right = ((XDoc)other).hash;
+		if (left != null && right != null && left.value != right.value && left.stamp == getStamp() && right.stamp == ((XDoc)other).getStamp()) {
+			return false;
+		}
+		
 		return compareNode(root, ((XDoc)other).root);
 	}
 	
+	/**
+	 * Returns the structural hash of the document from the root XDoc instance, over node types,
+	 * names, namespaces, attributes and values. Equal documents have equal hashes. The hash is
+	 * cached until the document is changed through an XDoc, so equals() can reject documents
+	 * with different hashes right away. Changes made to the DOM directly aren't noticed.
+	 * 
+	 * @return
+	 */
+	@Override
+	public int hashCode()
+	{
+		if (isEmpty()) {
+			return 0;
+		}
+		
+		// Reuse the cached hash until the document changes
+		int stamp = getStamp();
+		CachedHash cached = hash;
+		if (cached != null && cached.stamp == stamp) {
+			return cached.value;
+		}
+		
+		int value = hashNode(root);
+		hash = new CachedHash(stamp, value);
+		return value;
+	}
+	
+	/**
+	 * Compares the document with another one from their root XDoc instances, the same way equals()
+	 * does, and returns where they first differ.
+	 * 
+	 * @param other The document to compare with.
+	 * @return The first difference, or null if the documents are equal.
+	 */
+	public XDocComparer.Difference findDifference(XDoc other)
+	{
+		List<XDocComparer.Difference> differences = comparer.compare(this, other);
+		return differences.isEmpty() ? null : differences.get(0);
+	}
+	
+	/**
+	 * Creates the patch that turns this document into another one, from their root XDoc instances.
+	 * Unchanged subtrees are skipped by their structural hashes, so the patch only holds what changed.
+	 * 
+	 * @param other The document to end up with.
+	 * @return
+	 */
+	public XDocPatch diff(XDoc other)
+	{
+		// Make sure we got a document
+		if (other == null || other.isEmpty()) {
+			throw new IllegalArgumentException("other");
+		}
+		
+		// Make sure the doc isn't empty
+		if (isEmpty()) {
+			throw new IllegalStateException("xdoc is empty");
+		}
+		
+		return XDocPatch.create(root, other.root);
+	}
+	
+	/**
+	 * Applies a patch made by diff() to the document. The document has to be equal to the one the
+	 * patch was made from; an edit that doesn't find its node stops the patch halfway.
+	 * 
+	 * @param patch The patch to apply.
+	 * @return
+	 */
+	public XDoc apply(XDocPatch patch)
+	{
+		// Make sure the doc isn't frozen
+		checkMutable();
+		
+		// Make sure we got a patch
+		if (patch == null) {
+			throw new IllegalArgumentException("patch");
+		}
+		
+		// Make sure the doc isn't empty
+		if (isEmpty()) {
+			throw new IllegalStateException("xdoc is empty");
+		}
+		
+		for (XDocPatch.Edit edit : patch.getEdits()) {
+			// Find the node to change
+			Node node = XDocPatch.resolve(doc, edit.getPath());
+			if (node == null) {
+				throw new IllegalStateException("patch does not apply at " + edit.getPath());
+			}
+			
+			switch (edit.getKind()) {
+			case INSERT:
+				// Insert after the child before the position
+				Node ref = (edit.getPosition() > 0) ? getChild(node, edit.getPosition() - 1) : null;
+				if (ref == null && edit.getPosition() > 0) {
+					throw new IllegalStateException("patch does not apply at " + edit.getPath());
+				}
+				insertAfter(node, copyTree(doc, edit.getNode()), ref);
+				break;
+				
+			case DELETE:
+				at(node).remove();
+				break;
+				
+			case REPLACE:
+				Node replacement = copyTree(doc, edit.getNode());
+				node.getParentNode().replaceChild(replacement, node);
+				replaced(node, replacement);
+				break;
+				
+			case REPLACE_VALUE:
+				if (node instanceof Text || node instanceof Attr) {
+					at(node).replaceValue(edit.getValue());
+				}
+				else {
+					node.setNodeValue(edit.getValue());
+				}
+				break;
+				
+			case SET_ATTR:
+				// Change attributes in place, keeping their namespace
+				Attr attribute = ((Element)node).getAttributeNode(edit.getName());
+				if (attribute != null && Objects.equals(attribute.getNamespaceURI(), edit.getNamespaceURI())) {
+					at(attribute).replaceValue(edit.getValue());
+				}
+				else {
+					if (attribute != null) {
+						at(attribute).remove();
+					}
+					if (edit.getNamespaceURI() != null) {
+						((Element)node).setAttributeNS(edit.getNamespaceURI(), edit.getName(), edit.getValue());
+					}
+					else {
+						at(node).attr(edit.getName(), edit.getValue());
+					}
+				}
+				break;
+				
+			case RENAME:
+				replaced(node, at(node).rename(edit.getName()).getCurrentNode());
+				break;
+			}
+		}
+		
+		return this;
+	}
+	
+	/**
+	 * Points the cursor at a node that took the place of another one.
+	 * 
+	 * @param old The node that was replaced.
+	 * @param node The node that replaced it.
+	 */
+	private void replaced(Node old, Node node)
+	{
+		if (root == old) {
+			root = node;
+		}
+		if (current == old) {
+			current = node;
+		}
+		if (list != null) {
+			for (int i = 0; i < list.length; i++) {
+				if (list[i] == old) {
+					list[i] = node;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the root node of the XDoc instance.
+	 * 
+	 * @return
+	 */
+	Node getRootNode()
+	{
+		return isEmpty() ? null : root;
+	}
+	
+	/**
+	 * Returns whether the document never changes and may be read by several threads at once.
+	 * 
+	 * @return
+	 */
+	boolean isShared()
+	{
+		return !isEmpty() && frozen;
+	}
+	
 	/**
 	 * Loads the passed xml into a new XDoc instance.
 	 * 
@@ -2464,34 +4006,578 @@ public class XDoc implements Cloneable
 			return empty;
 		}
 		
-		// Create the document builder factory
-		DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+		// Read the string in place past any leading garbage
+		StringReader reader = new StringReader(xml);
+		try {
+			reader.skip(skipLeadingGarbage(xml, 0, xml.length()));
+		}
+		catch (IOException e) {
+			return empty;
+		}
 		
-		// Create the document builder
-		DocumentBuilder dBuilder;
+		return parse(new InputSource(reader));
+	}
+	
+	/**
+	 * Loads xml from a stream into a new XDoc instance.  The encoding is detected from the
+	 * byte order mark and declaration.  The stream is not closed; a read failure throws
+	 * IllegalStateException.
+	 * 
+	 * @param in Stream to parse.
+	 * @return The loaded XDoc, or an empty XDoc on failure.
+	 */
+	public static XDoc load(InputStream in)
+	{
+		// Check for empty input
+		if (in == null) {
+			return empty;
+		}
+		
+		// Peek at the start of the stream for leading garbage
+		if (!in.markSupported()) {
+			in = new BufferedInputStream(in);
+		}
 		try {
-			dBuilder = dbFactory.newDocumentBuilder();
+			byte[] peek = new byte[PEEK_SIZE];
+			in.mark(PEEK_SIZE);
+			int length = 0;
+			int read;
+			while (length < PEEK_SIZE && (read = in.read(peek, length, PEEK_SIZE - length)) > 0) {
+				length += read;
+			}
+			in.reset();
+			
+			// Check for an empty stream
+			if (length == 0) {
+				return empty;
+			}
+			
+			in.skip(skipLeadingGarbage(peek, 0, length));
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("could not read xml", e);
 		}
-		catch (ParserConfigurationException e) {
+		
+		// The parser closes its source, which must not reach the caller's stream
+		return parse(new InputSource(new UnclosedInputStream(in)));
+	}
+	
+	/**
+	 * Loads xml from part of a byte array into a new XDoc instance.  The encoding is detected
+	 * from the byte order mark and declaration.
+	 * 
+	 * @param bytes Array holding the xml.
+	 * @param offset Index of the first byte.
+	 * @param length Number of bytes.
+	 * @return The loaded XDoc, or an empty XDoc on failure.
+	 */
+	public static XDoc load(byte[] bytes, int offset, int length)
+	{
+		// Check for empty input
+		if (bytes == null || length == 0) {
 			return empty;
 		}
 		
-		// Clean up the input string
-		xml = xml.trim().replaceFirst("^([\\W]+)<","<");
-
-	    // Parse the input xml
+		// Check the range
+		if (offset < 0 || length < 0 || offset + length > bytes.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		
+		// Skip leading garbage
+		int skipped = skipLeadingGarbage(bytes, offset, offset + length);
+		
+		return parse(new InputSource(new ByteArrayInputStream(bytes, offset + skipped, length - skipped)));
+	}
+	
+	/**
+	 * Loads xml from the remaining bytes of a buffer into a new XDoc instance.  The encoding is
+	 * detected from the byte order mark and declaration.  The buffer's position is not changed.
+	 * 
+	 * @param buffer Buffer holding the xml.
+	 * @return The loaded XDoc, or an empty XDoc on failure.
+	 */
+	public static XDoc load(ByteBuffer buffer)
+	{
+		// Check for empty input
+		if (buffer == null || !buffer.hasRemaining()) {
+			return empty;
+		}
+		
+		// Heap buffers are parsed straight from their backing array
+		if (buffer.hasArray()) {
+			return load(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		}
+		
+		return load(new ByteBufferInputStream(buffer.duplicate()));
+	}
+	
+	/**
+	 * Loads xml from a reader into a new XDoc instance.  Any encoding in the declaration is
+	 * ignored.  The reader is not closed; a read failure throws IllegalStateException.
+	 * 
+	 * @param reader Reader to parse.
+	 * @return The loaded XDoc, or an empty XDoc on failure.
+	 */
+	public static XDoc load(Reader reader)
+	{
+		// Check for empty input
+		if (reader == null) {
+			return empty;
+		}
+		
+		// Peek at the start of the reader for leading garbage
+		if (!reader.markSupported()) {
+			reader = new BufferedReader(reader);
+		}
+		try {
+			char[] peek = new char[PEEK_SIZE];
+			reader.mark(PEEK_SIZE);
+			int length = 0;
+			int read;
+			while (length < PEEK_SIZE && (read = reader.read(peek, length, PEEK_SIZE - length)) > 0) {
+				length += read;
+			}
+			reader.reset();
+			
+			// Check for an empty reader
+			if (length == 0) {
+				return empty;
+			}
+			
+			reader.skip(skipLeadingGarbage(CharBuffer.wrap(peek, 0, length), 0, length));
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("could not read xml", e);
+		}
+		
+		// The parser closes its source, which must not reach the caller's reader
+		return parse(new InputSource(new UnclosedReader(reader)));
+	}
+	
+	/**
+	 * Loads an xml file into a new XDoc instance.  The encoding is detected from the byte order
+	 * mark and declaration.  A read failure throws IllegalStateException.
+	 * 
+	 * @param path Path of the file.
+	 * @return The loaded XDoc, or an empty XDoc on failure.
+	 */
+	public static XDoc load(Path path)
+	{
+		// Check for empty input
+		if (path == null) {
+			return empty;
+		}
+		
+		try (InputStream in = Files.newInputStream(path)) {
+			return load(in);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("could not read xml", e);
+		}
+	}
+	
+	/**
+	 * Loads an xml file into a new XDoc instance.  The encoding is detected from the byte order
+	 * mark and declaration.  Large files are memory-mapped so that only the resulting DOM is
+	 * held on the heap.  A read failure throws IllegalStateException, and a file over the size
+	 * limit of the options throws IllegalArgumentException.
+	 * 
+	 * @param path Path of the file.
+	 * @param options Load options, or null for the defaults.
+	 * @return The loaded XDoc, or an empty XDoc if the xml does not parse.
+	 */
+	public static XDoc load(Path path, LoadOptions options)
+	{
+		// Check for empty input
+		if (path == null) {
+			return empty;
+		}
+		if (options == null) {
+			options = new LoadOptions();
+		}
+		
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			// Refuse files over the cap before any parsing happens
+			long size = channel.size();
+			if (size > options.getMaxSize()) {
+				throw new IllegalArgumentException("file is " + size + " bytes, over the limit of " + options.getMaxSize());
+			}
+			
+			// Small files are cheaper to read than to map
+			if (!options.isMemoryMapped() || size < options.getMapThreshold()) {
+				return load(Channels.newInputStream(channel));
+			}
+			
+			// The parser reads straight from the mapped region, so the raw file is never copied onto the heap
+			return load(new MappedFileInputStream(channel, size));
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("could not read xml", e);
+		}
+	}
+	
+	/**
+	 * Streams the records of a large xml document, one small, self-contained XDoc per element
+	 * matching the record path.  Only the current record is held in memory.  Closing the returned
+	 * stream releases the parser but does not close the input stream.
+	 * 
+	 * @param in Stream to read.
+	 * @param recordPath Element names from the document element down to a record, such as
+	 *        "records/record".  A step may be "*".
+	 * @return
+	 */
+	public static Stream<XDoc> streamRecords(InputStream in, String recordPath)
+	{
+		XDocRecordReader reader = new XDocRecordReader(in, recordPath);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(reader, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(reader::close);
+	}
+	
+	/**
+	 * Parses an input source into a new XDoc instance.
+	 * 
+	 * @param source Source to parse.
+	 * @return The loaded XDoc, or an empty XDoc on failure.
+	 */
+	private static XDoc parse(InputSource source)
+	{
+		// Parse the input xml with this thread's builder
 		Document doc = null;
 		try {
-			doc = dBuilder.parse(new ByteArrayInputStream(xml.getBytes()));
+			doc = builderPool.parse(source);
 		} catch (SAXException | IOException e) {
 			e.printStackTrace();
 			return empty;
 		}
-
+		
 		// Load into a new xdoc
 		return new XDoc(doc);
 	}
 	
+	/**
+	 * Returns how many leading characters to drop before parsing.  Leading whitespace is dropped,
+	 * as is a run of non-word characters (such as a byte order mark) up to the last '<' in it.
+	 * 
+	 * @param xml Characters to check.
+	 * @param start Index of the first character.
+	 * @param end Index past the last character.
+	 * @return
+	 */
+	private static int skipLeadingGarbage(CharSequence xml, int start, int end)
+	{
+		// Well-formed input starts with '<' and needs no cleanup
+		if (start == end || xml.charAt(start) == '<') {
+			return 0;
+		}
+		
+		// Skip whitespace
+		int i = start;
+		while (i < end && xml.charAt(i) <= ' ') {
+			i++;
+		}
+		int first = i;
+		
+		// Find the last '<' in the run of non-word characters
+		int last = -1;
+		for (; i < end && !isWordChar(xml.charAt(i)); i++) {
+			if (xml.charAt(i) == '<' && i > first) {
+				last = i;
+			}
+		}
+		
+		return (last < 0 ? first : last) - start;
+	}
+	
+	/**
+	 * Returns how many leading bytes to drop before parsing, following the same rules as for
+	 * characters.  Input that may be UTF-16 or UTF-32 is left to the parser's encoding detection.
+	 * 
+	 * @param xml Bytes to check.
+	 * @param start Index of the first byte.
+	 * @param end Index past the last byte.
+	 * @return
+	 */
+	private static int skipLeadingGarbage(byte[] xml, int start, int end)
+	{
+		// Well-formed input starts with '<' and needs no cleanup
+		if (start == end || xml[start] == '<') {
+			return 0;
+		}
+		
+		// Leave UTF-16 and UTF-32 byte order marks and zero bytes alone
+		int b = xml[start] & 0xff;
+		if (b == 0x00 || b == 0xfe || b == 0xff) {
+			return 0;
+		}
+		
+		// Skip whitespace
+		int i = start;
+		while (i < end && (xml[i] & 0xff) <= ' ') {
+			i++;
+		}
+		int first = i;
+		
+		// Find the last '<' in the run of non-word bytes; multi-byte characters are all non-word
+		int last = -1;
+		for (; i < end && !isWordChar((char)(xml[i] & 0xff)); i++) {
+			if (xml[i] == '<' && i > first) {
+				last = i;
+			}
+		}
+		
+		return (last < 0 ? first : last) - start;
+	}
+	
+	/**
+	 * Returns whether a character is an ascii word character ([a-zA-Z_0-9]).
+	 * 
+	 * @param c Character to check.
+	 * @return
+	 */
+	private static boolean isWordChar(char c)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
+	
+	/**
+	 * Input stream that leaves the stream it reads open when it is closed.
+	 */
+	private static final class UnclosedInputStream extends FilterInputStream
+	{
+		/**
+		 * Creates a stream over another one.
+		 * 
+		 * @param in Stream to read.
+		 */
+		UnclosedInputStream(InputStream in)
+		{
+			super(in);
+		}
+		
+		@Override
+		public void close()
+		{
+		}
+	}
+	
+	/**
+	 * Reader that leaves the reader it reads open when it is closed.
+	 */
+	private static final class UnclosedReader extends FilterReader
+	{
+		/**
+		 * Creates a reader over another one.
+		 * 
+		 * @param in Reader to read.
+		 */
+		UnclosedReader(Reader in)
+		{
+			super(in);
+		}
+		
+		@Override
+		public void close()
+		{
+		}
+	}
+	
+	/**
+	 * Input stream over the remaining bytes of a buffer.
+	 */
+	private static final class ByteBufferInputStream extends InputStream
+	{
+		/**
+		 * Buffer being read.
+		 */
+		private final ByteBuffer buffer;
+		
+		/**
+		 * Creates a stream over a buffer.  The buffer's position advances as it is read.
+		 * 
+		 * @param buffer Buffer to read.
+		 */
+		ByteBufferInputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public int read()
+		{
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+		
+		@Override
+		public int read(byte[] bytes, int offset, int length)
+		{
+			if (length == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			length = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, length);
+			return length;
+		}
+		
+		@Override
+		public int available()
+		{
+			return buffer.remaining();
+		}
+	}
+	
+	/**
+	 * Input stream over a memory-mapped file.  The file is mapped in regions of at most
+	 * MAP_REGION_SIZE bytes, so files larger than 2GB can be read.
+	 */
+	private static final class MappedFileInputStream extends InputStream
+	{
+		/**
+		 * Largest region mapped at once.
+		 */
+		private static final long MAP_REGION_SIZE = 256L * 1024 * 1024;
+		
+		/**
+		 * Channel of the mapped file.
+		 */
+		private final FileChannel channel;
+		
+		/**
+		 * Size of the file.
+		 */
+		private final long size;
+		
+		/**
+		 * File offset of the current region.
+		 */
+		private long regionStart;
+		
+		/**
+		 * Currently mapped region, or null before the first read.
+		 */
+		private MappedByteBuffer region;
+		
+		/**
+		 * File offset saved by mark().
+		 */
+		private long mark;
+		
+		/**
+		 * Creates a stream over a file channel.
+		 * 
+		 * @param channel Channel to map.
+		 * @param size Size of the file.
+		 */
+		MappedFileInputStream(FileChannel channel, long size)
+		{
+			this.channel = channel;
+			this.size = size;
+		}
+		
+		@Override
+		public int read() throws IOException
+		{
+			if (!nextRegion()) {
+				return -1;
+			}
+			return region.get() & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException
+		{
+			if (length == 0) {
+				return 0;
+			}
+			if (!nextRegion()) {
+				return -1;
+			}
+			length = Math.min(length, region.remaining());
+			region.get(bytes, offset, length);
+			return length;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long position = getPosition();
+			long target = Math.max(position, Math.min(size, position + n));
+			seek(target);
+			return target - position;
+		}
+		
+		@Override
+		public int available()
+		{
+			return (int)Math.min(Integer.MAX_VALUE, size - getPosition());
+		}
+		
+		@Override
+		public boolean markSupported()
+		{
+			return true;
+		}
+		
+		@Override
+		public synchronized void mark(int readlimit)
+		{
+			mark = getPosition();
+		}
+		
+		@Override
+		public synchronized void reset() throws IOException
+		{
+			seek(mark);
+		}
+		
+		/**
+		 * Returns the file offset of the next byte.
+		 * 
+		 * @return
+		 */
+		private long getPosition()
+		{
+			return region == null ? regionStart : regionStart + region.position();
+		}
+		
+		/**
+		 * Moves to a file offset, mapping its region if needed.
+		 * 
+		 * @param position File offset.
+		 * @throws IOException
+		 */
+		private void seek(long position) throws IOException
+		{
+			if (region != null && position >= regionStart && position <= regionStart + region.limit()) {
+				region.position((int)(position - regionStart));
+				return;
+			}
+			region = null;
+			regionStart = position;
+		}
+		
+		/**
+		 * Makes sure the current region has bytes left, mapping the next one if needed.
+		 * 
+		 * @return Whether there are bytes left in the file.
+		 * @throws IOException
+		 */
+		private boolean nextRegion() throws IOException
+		{
+			if (region != null && region.hasRemaining()) {
+				return true;
+			}
+			long position = getPosition();
+			if (position >= size) {
+				return false;
+			}
+			regionStart = position;
+			region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_REGION_SIZE, size - position));
+			return true;
+		}
+	}
+	
 	/**
 	 * Creates a single selection from multiple XDocs.
 	 * 
@@ -2505,9 +4591,11 @@ public class XDoc implements Cloneable
 		}
 		
 		ArrayList<Node> list = new ArrayList<Node>();
+		boolean frozen = false;
 		for (XDoc doc : documents) {
 			if (!doc.isEmpty()) {
 				list.add(doc.asNode());
+				frozen |= doc.frozen;
 			}
 		}
 		
@@ -2515,7 +4603,10 @@ public class XDoc implements Cloneable
 			return empty;
 		}
 		
-		return new XDoc(list.toArray(new Node[list.size()]), 0, null);
+		// A selection touching a frozen document can't change it either
+		XDoc result = new XDoc(list.toArray(new Node[list.size()]), 0, null);
+		result.frozen = frozen;
+		return result;
 	}
 	
 	/**
@@ -0,0 +1,835 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.budjb.xml;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Compares two xml trees node by node, the same way XDoc.equals() does.
+ *
+ * Two nodes are equal when their types, names, namespaces, values and attributes match and their
+ * children are equal in order. Trees are walked without recursion, so the depth of a document
+ * doesn't matter. A comparison either stops at the first difference (the default) or collects
+ * every difference, and each difference says where it is.
+ *
+ * In parallel mode the children of wide elements are split into ranges that are compared on a
+ * ForkJoinPool. Several threads read both trees at once then, so only use it on trees that no one
+ * changes meanwhile and that are fully built, such as frozen documents; compare(XDoc, XDoc) falls
+ * back to a sequential comparison for anything else. A parallel comparison that stops at the first
+ * difference reports a difference, though not necessarily the first one in document order.
+ *
+ * The settings of a comparer should not change while it is in use; otherwise it may be shared.
+ */
+public final class XDocComparer
+{
+	/**
+	 * Default number of children from which an element's children are compared in parallel.
+	 */
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 1024;
+
+	/**
+	 * Kinds of differences.
+	 */
+	public enum Kind
+	{
+		/**
+		 * The nodes have different types.
+		 */
+		TYPE,
+
+		/**
+		 * The nodes have different names.
+		 */
+		NAME,
+
+		/**
+		 * The nodes have different namespaces.
+		 */
+		NAMESPACE,
+
+		/**
+		 * The nodes, or attributes of the same name, have different values.
+		 */
+		VALUE,
+
+		/**
+		 * A node or attribute of the left tree has no counterpart in the right tree.
+		 */
+		MISSING,
+
+		/**
+		 * A node or attribute of the right tree has no counterpart in the left tree.
+		 */
+		EXTRA
+	}
+
+	/**
+	 * A difference between two trees.
+	 */
+	public static final class Difference
+	{
+		/**
+		 * What differs.
+		 */
+		private final Kind kind;
+
+		/**
+		 * The node of the left tree, or null for EXTRA differences.
+		 */
+		private final Node left;
+
+		/**
+		 * The node of the right tree, or null for MISSING differences.
+		 */
+		private final Node right;
+
+		/**
+		 * Creates a new difference.
+		 *
+		 * @param kind What differs.
+		 * @param left The node of the left tree.
+		 * @param right The node of the right tree.
+		 */
+		Difference(Kind kind, Node left, Node right)
+		{
+			this.kind = kind;
+			this.left = left;
+			this.right = right;
+		}
+
+		/**
+		 * Returns what differs.
+		 *
+		 * @return
+		 */
+		public Kind getKind()
+		{
+			return kind;
+		}
+
+		/**
+		 * Returns the node of the left tree, or null for EXTRA differences.
+		 *
+		 * @return
+		 */
+		public Node getLeft()
+		{
+			return left;
+		}
+
+		/**
+		 * Returns the node of the right tree, or null for MISSING differences.
+		 *
+		 * @return
+		 */
+		public Node getRight()
+		{
+			return right;
+		}
+
+		/**
+		 * Returns the location of the difference as an XPath expression, such as
+		 * "/config[1]/item[2]/@id". It is taken from the left node unless there is none.
+		 *
+		 * @return
+		 */
+		public String getPath()
+		{
+			return pathOf(left != null ? left : right);
+		}
+
+		/**
+		 * Returns a description of the difference.
+		 */
+		@Override
+		public String toString()
+		{
+			return kind + " at " + getPath();
+		}
+	}
+
+	/**
+	 * Whether the comparison stops at the first difference.
+	 */
+	private boolean stopAtFirst = true;
+
+	/**
+	 * Whether wide elements are compared in parallel.
+	 */
+	private boolean parallel;
+
+	/**
+	 * Number of children from which an element's children are compared in parallel.
+	 */
+	private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+	/**
+	 * Pool for parallel comparisons, or null for the common pool.
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * Returns whether the comparison stops at the first difference.
+	 *
+	 * @return
+	 */
+	public boolean isStopAtFirst()
+	{
+		return stopAtFirst;
+	}
+
+	/**
+	 * Sets whether the comparison stops at the first difference, or collects every difference.
+	 *
+	 * @param stopAtFirst
+	 * @return
+	 */
+	public XDocComparer setStopAtFirst(boolean stopAtFirst)
+	{
+		this.stopAtFirst = stopAtFirst;
+		return this;
+	}
+
+	/**
+	 * Returns whether wide elements are compared in parallel.
+	 *
+	 * @return
+	 */
+	public boolean isParallel()
+	{
+		return parallel;
+	}
+
+	/**
+	 * Sets whether wide elements are compared in parallel.
+	 *
+	 * @param parallel
+	 * @return
+	 */
+	public XDocComparer setParallel(boolean parallel)
+	{
+		this.parallel = parallel;
+		return this;
+	}
+
+	/**
+	 * Returns the number of children from which an element's children are compared in parallel.
+	 *
+	 * @return
+	 */
+	public int getParallelThreshold()
+	{
+		return parallelThreshold;
+	}
+
+	/**
+	 * Sets the number of children from which an element's children are compared in parallel.
+	 * Ranges of children are split until they are no larger than this.
+	 *
+	 * @param parallelThreshold Number of children. Must be at least 2.
+	 * @return
+	 */
+	public XDocComparer setParallelThreshold(int parallelThreshold)
+	{
+		if (parallelThreshold < 2) {
+			throw new IllegalArgumentException("parallelThreshold");
+		}
+		this.parallelThreshold = parallelThreshold;
+		return this;
+	}
+
+	/**
+	 * Returns the pool for parallel comparisons.
+	 *
+	 * @return
+	 */
+	public ForkJoinPool getPool()
+	{
+		return (pool != null) ? pool : ForkJoinPool.commonPool();
+	}
+
+	/**
+	 * Sets the pool for parallel comparisons.
+	 *
+	 * @param pool The pool, or null for the common pool.
+	 * @return
+	 */
+	public XDocComparer setPool(ForkJoinPool pool)
+	{
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * Compares the trees from the root XDoc instances of two documents. Documents that aren't
+	 * frozen are always compared sequentially.
+	 *
+	 * @param left The left document.
+	 * @param right The right document.
+	 * @return The differences in document order, or an empty list if the documents are equal.
+	 */
+	public List<Difference> compare(XDoc left, XDoc right)
+	{
+		// Make sure we're given documents
+		if (left == null || left.isEmpty()) {
+			throw new IllegalArgumentException("left");
+		}
+		if (right == null || right.isEmpty()) {
+			throw new IllegalArgumentException("right");
+		}
+
+		boolean shared = left.isShared() && right.isShared();
+		return compare(left.getRootNode(), right.getRootNode(), parallel && shared);
+	}
+
+	/**
+	 * Compares two trees.
+	 *
+	 * @param left Root of the left tree.
+	 * @param right Root of the right tree.
+	 * @return The differences in document order, or an empty list if the trees are equal.
+	 */
+	public List<Difference> compare(Node left, Node right)
+	{
+		// Make sure we're given nodes
+		if (left == null) {
+			throw new IllegalArgumentException("left");
+		}
+		if (right == null) {
+			throw new IllegalArgumentException("right");
+		}
+
+		return compare(left, right, parallel);
+	}
+
+	/**
+	 * Returns whether two trees are equal.
+	 *
+	 * @param left Root of the left tree.
+	 * @param right Root of the right tree.
+	 * @return
+	 */
+	public boolean isEqual(Node left, Node right)
+	{
+		return compare(left, right).isEmpty();
+	}
+
+	/**
+	 * Runs a comparison.
+	 *
+	 * @param left Root of the left tree.
+	 * @param right Root of the right tree.
+	 * @param parallel Whether to compare in parallel.
+	 * @return
+	 */
+	private List<Difference> compare(Node left, Node right, boolean parallel)
+	{
+		Run run = new Run(stopAtFirst, parallelThreshold);
+
+		List<Difference> differences;
+		if (parallel) {
+			differences = getPool().invoke(run.new Pair(left, right));
+		}
+		else {
+			differences = new ArrayList<Difference>(1);
+			run.walk(left, right, differences);
+		}
+
+		// Parallel ranges may each have stopped at a difference of their own
+		if (stopAtFirst && differences.size() > 1) {
+			return Collections.singletonList(differences.get(0));
+		}
+		return differences;
+	}
+
+	/**
+	 * State of a single comparison.
+	 */
+	private static final class Run
+	{
+		/**
+		 * Whether the comparison stops at the first difference.
+		 */
+		private final boolean stopAtFirst;
+
+		/**
+		 * Number of children from which an element's children are compared in parallel.
+		 */
+		private final int threshold;
+
+		/**
+		 * Set once a difference is found when stopping at the first one, so every task stops.
+		 */
+		private volatile boolean stopped;
+
+		/**
+		 * Creates the state of a comparison.
+		 *
+		 * @param stopAtFirst Whether the comparison stops at the first difference.
+		 * @param threshold Number of children from which children are compared in parallel.
+		 */
+		Run(boolean stopAtFirst, int threshold)
+		{
+			this.stopAtFirst = stopAtFirst;
+			this.threshold = threshold;
+		}
+
+		/**
+		 * Records a difference.
+		 *
+		 * @param differences Differences found so far.
+		 * @param kind What differs.
+		 * @param left The node of the left tree.
+		 * @param right The node of the right tree.
+		 */
+		private void report(List<Difference> differences, Kind kind, Node left, Node right)
+		{
+			differences.add(new Difference(kind, left, right));
+			if (stopAtFirst) {
+				stopped = true;
+			}
+		}
+
+		/**
+		 * Compares two trees in document order.
+		 *
+		 * @param left Root of the left tree.
+		 * @param right Root of the right tree.
+		 * @param differences Differences found so far.
+		 */
+		void walk(Node left, Node right, List<Difference> differences)
+		{
+			Node l = left;
+			Node r = right;
+
+			// Walk along parent and sibling links, so deep documents can't overflow the stack
+			while (!stopped) {
+				// Descend when the nodes match and have children to compare
+				if (compareNodes(l, r, differences) && hasComparedChildren(l)) {
+					Node leftChild = l.getFirstChild();
+					Node rightChild = r.getFirstChild();
+					if (leftChild != null && rightChild != null) {
+						l = leftChild;
+						r = rightChild;
+						continue;
+					}
+					reportRest(leftChild, rightChild, differences);
+				}
+
+				// Move to the next pair of siblings, climbing as needed
+				while (true) {
+					if (l == left || stopped) {
+						return;
+					}
+					Node leftNext = l.getNextSibling();
+					Node rightNext = r.getNextSibling();
+					if (leftNext != null && rightNext != null) {
+						l = leftNext;
+						r = rightNext;
+						break;
+					}
+					reportRest(leftNext, rightNext, differences);
+					l = l.getParentNode();
+					r = r.getParentNode();
+				}
+			}
+		}
+
+		/**
+		 * Reports the siblings left over on one side once the other side has run out.
+		 *
+		 * @param left First left-over sibling of the left tree, or null.
+		 * @param right First left-over sibling of the right tree, or null.
+		 * @param differences Differences found so far.
+		 */
+		private void reportRest(Node left, Node right, List<Difference> differences)
+		{
+			for (; left != null && !stopped; left = left.getNextSibling()) {
+				report(differences, Kind.MISSING, left, null);
+			}
+			for (; right != null && !stopped; right = right.getNextSibling()) {
+				report(differences, Kind.EXTRA, null, right);
+			}
+		}
+
+		/**
+		 * Reports the children left over on one side once the other side has run out.
+		 *
+		 * @param left Children of the left element.
+		 * @param right Children of the right element.
+		 * @param common Number of children both sides have.
+		 * @param differences Differences found so far.
+		 */
+		private void reportRest(Node[] left, Node[] right, int common, List<Difference> differences)
+		{
+			reportRest(common < left.length ? left[common] : null, common < right.length ? right[common] : null, differences);
+		}
+
+		/**
+		 * Compares two nodes without their children.
+		 *
+		 * @param left The left node.
+		 * @param right The right node.
+		 * @param differences Differences found so far.
+		 * @return Whether the nodes are the same kind of node, so their children can be compared.
+		 */
+		private boolean compareNodes(Node left, Node right, List<Difference> differences)
+		{
+			// Compare node types
+			if (left.getNodeType() != right.getNodeType()) {
+				report(differences, Kind.TYPE, left, right);
+				return false;
+			}
+
+			// Check if the names need to be compared
+			switch (left.getNodeType()) {
+			case Node.ATTRIBUTE_NODE:
+			case Node.DOCUMENT_TYPE_NODE:
+			case Node.ELEMENT_NODE:
+			case Node.ENTITY_NODE:
+			case Node.ENTITY_REFERENCE_NODE:
+			case Node.NOTATION_NODE:
+			case Node.PROCESSING_INSTRUCTION_NODE:
+				if (!Objects.equals(left.getNamespaceURI(), right.getNamespaceURI())) {
+					report(differences, Kind.NAMESPACE, left, right);
+					return false;
+				}
+				if (!Objects.equals(left.getNodeName(), right.getNodeName())) {
+					report(differences, Kind.NAME, left, right);
+					return false;
+				}
+			}
+
+			// Check if values need to be compared
+			switch (left.getNodeType()) {
+			case Node.ATTRIBUTE_NODE:
+			case Node.CDATA_SECTION_NODE:
+			case Node.COMMENT_NODE:
+			case Node.PROCESSING_INSTRUCTION_NODE:
+			case Node.TEXT_NODE:
+				if (!Objects.equals(left.getNodeValue(), right.getNodeValue())) {
+					report(differences, Kind.VALUE, left, right);
+				}
+				return true;
+			}
+
+			// Compare attributes by name
+			if (left.getNodeType() == Node.ELEMENT_NODE) {
+				compareAttributes(left.getAttributes(), right.getAttributes(), differences);
+			}
+
+			return true;
+		}
+
+		/**
+		 * Compares the attributes of two elements.
+		 *
+		 * @param left Attributes of the left element.
+		 * @param right Attributes of the right element.
+		 * @param differences Differences found so far.
+		 */
+		private void compareAttributes(NamedNodeMap left, NamedNodeMap right, List<Difference> differences)
+		{
+			for (int i = 0, end = left.getLength(); i < end && !stopped; i++) {
+				Node attribute = left.item(i);
+				Node other = right.getNamedItem(attribute.getNodeName());
+				if (other == null) {
+					report(differences, Kind.MISSING, attribute, null);
+				}
+				else {
+					compareNodes(attribute, other, differences);
+				}
+			}
+
+			// Attributes only the right element has
+			if (right.getLength() != left.getLength()) {
+				for (int i = 0, end = right.getLength(); i < end && !stopped; i++) {
+					Node attribute = right.item(i);
+					if (left.getNamedItem(attribute.getNodeName()) == null) {
+						report(differences, Kind.EXTRA, null, attribute);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Compares a pair of trees, splitting the children of wide elements into parallel ranges.
+		 */
+		final class Pair extends RecursiveTask<List<Difference>>
+		{
+			private static final long serialVersionUID = 1L;
+
+			/**
+			 * Root of the left tree.
+			 */
+			private final Node left;
+
+			/**
+			 * Root of the right tree.
+			 */
+			private final Node right;
+
+			/**
+			 * Creates a new task.
+			 *
+			 * @param left Root of the left tree.
+			 * @param right Root of the right tree.
+			 */
+			Pair(Node left, Node right)
+			{
+				this.left = left;
+				this.right = right;
+			}
+
+			@Override
+			protected List<Difference> compute()
+			{
+				List<Difference> differences = new ArrayList<Difference>(1);
+				ArrayList<Node> followed = new ArrayList<Node>();
+				Node l = left;
+				Node r = right;
+
+				while (!stopped) {
+					if (!compareNodes(l, r, differences) || !hasComparedChildren(l)) {
+						break;
+					}
+					Node[] leftChildren = children(l);
+					Node[] rightChildren = children(r);
+					int common = Math.min(leftChildren.length, rightChildren.length);
+
+					// Split wide elements
+					if (common >= threshold) {
+						differences.addAll(new Range(leftChildren, rightChildren, 0, common).compute());
+						reportRest(leftChildren, rightChildren, common, differences);
+						break;
+					}
+
+					// Follow the only child with children of its own, such as a wrapper element, so
+					// wide elements below it are split too
+					int only = -1;
+					for (int i = 0; i < common; i++) {
+						if (leftChildren[i].getFirstChild() != null && hasComparedChildren(leftChildren[i])) {
+							if (only != -1) {
+								only = -2;
+								break;
+							}
+							only = i;
+						}
+					}
+
+					// Narrow elements are compared in place
+					if (only < 0) {
+						for (int i = 0; i < common && !stopped; i++) {
+							walk(leftChildren[i], rightChildren[i], differences);
+						}
+						reportRest(leftChildren, rightChildren, common, differences);
+						break;
+					}
+
+					for (int i = 0; i < only && !stopped; i++) {
+						walk(leftChildren[i], rightChildren[i], differences);
+					}
+					l = leftChildren[only];
+					r = rightChildren[only];
+					followed.add(l);
+					followed.add(r);
+				}
+
+				// Compare the siblings after each followed child, innermost first
+				for (int i = followed.size() - 2; i >= 0 && !stopped; i -= 2) {
+					Node leftNext = followed.get(i).getNextSibling();
+					Node rightNext = followed.get(i + 1).getNextSibling();
+					for (; leftNext != null && rightNext != null && !stopped; leftNext = leftNext.getNextSibling(), rightNext = rightNext.getNextSibling()) {
+						walk(leftNext, rightNext, differences);
+					}
+					reportRest(leftNext, rightNext, differences);
+				}
+
+				return differences;
+			}
+		}
+
+		/**
+		 * Compares a range of child pairs, forking halves until the range is small enough.
+		 */
+		final class Range extends RecursiveTask<List<Difference>>
+		{
+			private static final long serialVersionUID = 1L;
+
+			/**
+			 * Children of the left element.
+			 */
+			private final Node[] left;
+
+			/**
+			 * Children of the right element.
+			 */
+			private final Node[] right;
+
+			/**
+			 * First index to compare.
+			 */
+			private final int from;
+
+			/**
+			 * One past the last index to compare.
+			 */
+			private final int to;
+
+			/**
+			 * Creates a new task.
+			 *
+			 * @param left Children of the left element.
+			 * @param right Children of the right element.
+			 * @param from First index to compare.
+			 * @param to One past the last index to compare.
+			 */
+			Range(Node[] left, Node[] right, int from, int to)
+			{
+				this.left = left;
+				this.right = right;
+				this.from = from;
+				this.to = to;
+			}
+
+			@Override
+			protected List<Difference> compute()
+			{
+				// Small ranges compare each pair, splitting wide children again
+				if (to - from <= threshold) {
+					List<Difference> differences = new ArrayList<Difference>(1);
+					for (int i = from; i < to && !stopped; i++) {
+						differences.addAll(new Pair(left[i], right[i]).compute());
+					}
+					return differences;
+				}
+
+				// Keep the differences in document order
+				int middle = (from + to) >>> 1;
+				Range first = new Range(left, right, from, middle);
+				first.fork();
+				List<Difference> second = new Range(left, right, middle, to).compute();
+				List<Difference> differences = first.join();
+				differences.addAll(second);
+				return differences;
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the children of a node are compared.
+	 *
+	 * @param node The node.
+	 * @return
+	 */
+	static boolean hasComparedChildren(Node node)
+	{
+		switch (node.getNodeType()) {
+		case Node.ELEMENT_NODE:
+		case Node.DOCUMENT_NODE:
+		case Node.DOCUMENT_FRAGMENT_NODE:
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the children of a node.
+	 *
+	 * @param node The node.
+	 * @return
+	 */
+	static Node[] children(Node node)
+	{
+		ArrayList<Node> children = new ArrayList<Node>();
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			children.add(child);
+		}
+		return children.toArray(new Node[children.size()]);
+	}
+
+	/**
+	 * Returns the location of a node in its document as an XPath expression. Every step has a
+	 * position, so the expression selects exactly that node.
+	 *
+	 * @param node The node.
+	 * @return
+	 */
+	static String pathOf(Node node)
+	{
+		ArrayList<String> steps = new ArrayList<String>();
+
+		// Attributes hang off their element
+		if (node.getNodeType() == Node.ATTRIBUTE_NODE) {
+			steps.add("@" + node.getNodeName());
+			node = ((Attr)node).getOwnerElement();
+		}
+
+		for (; node != null && node.getNodeType() != Node.DOCUMENT_NODE && node.getNodeType() != Node.DOCUMENT_FRAGMENT_NODE; node = node.getParentNode()) {
+			String test = nodeTest(node);
+
+			// Count the earlier siblings the same test selects
+			int position = 1;
+			for (Node sibling = node.getPreviousSibling(); sibling != null; sibling = sibling.getPreviousSibling()) {
+				if (test.equals(nodeTest(sibling))) {
+					position++;
+				}
+			}
+			steps.add(test + "[" + position + "]");
+		}
+
+		// Put the steps in document order
+		StringBuilder path = new StringBuilder();
+		for (int i = steps.size() - 1; i >= 0; i--) {
+			path.append('/').append(steps.get(i));
+		}
+		return (path.length() > 0) ? path.toString() : "/";
+	}
+
+	/**
+	 * Returns the XPath node test that selects a node among its siblings.
+	 *
+	 * @param node The node.
+	 * @return
+	 */
+	static String nodeTest(Node node)
+	{
+		switch (node.getNodeType()) {
+		case Node.ELEMENT_NODE:
+			return node.getNodeName();
+		case Node.TEXT_NODE:
+		case Node.CDATA_SECTION_NODE:
+			return "text()";
+		case Node.COMMENT_NODE:
+			return "comment()";
+		case Node.PROCESSING_INSTRUCTION_NODE:
+			return "processing-instruction('" + node.getNodeName() + "')";
+		default:
+			return "node()";
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.budjb.xml;
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class XDocComparerTest
+{
+	private static final String XML = "<config a=\"1\"><item id=\"1\">a</item><!-- c --><item id=\"2\">b</item></config>";
+	
+	@Test
+	public void equalDocuments()
+	{
+		XDocComparer comparer = new XDocComparer();
+		
+		assertTrue(comparer.compare(XDoc.load(XML), XDoc.load(XML)).isEmpty());
+		assertTrue(comparer.isEqual(XDoc.load(XML).asNode(), XDoc.load(XML).asNode()));
+		assertNull(XDoc.load(XML).findDifference(XDoc.load(XML)));
+	}
+	
+	@Test
+	public void firstDifference()
+	{
+		XDoc doc = XDoc.load(XML);
+		
+		XDocComparer.Difference difference = doc.findDifference(XDoc.load(XML.replace(">b<", ">x<")));
+		assertEquals(XDocComparer.Kind.VALUE, difference.getKind());
+		assertEquals("/config[1]/item[2]/text()[1]", difference.getPath());
+		assertEquals("b", difference.getLeft().getNodeValue());
+		assertEquals("x", difference.getRight().getNodeValue());
+		
+		difference = doc.findDifference(XDoc.load(XML.replace("id=\"2\"", "id=\"3\"")));
+		assertEquals("VALUE at /config[1]/item[2]/@id", difference.toString());
+		
+		difference = doc.findDifference(XDoc.load(XML.replace("<!-- c -->", "")));
+		assertEquals(XDocComparer.Kind.TYPE, difference.getKind());
+		assertEquals("/config[1]/comment()[1]", difference.getPath());
+		
+		difference = doc.findDifference(XDoc.load(XML.replace("</config>", "<more/></config>")));
+		assertEquals(XDocComparer.Kind.EXTRA, difference.getKind());
+		assertNull(difference.getLeft());
+		assertEquals("/config[1]/more[1]", difference.getPath());
+		
+		difference = doc.findDifference(XDoc.load(XML.replace(" a=\"1\"", "")));
+		assertEquals(XDocComparer.Kind.MISSING, difference.getKind());
+		assertEquals("/config[1]/@a", difference.getPath());
+	}
+	
+	@Test
+	public void everyDifference()
+	{
+		XDoc left = XDoc.load("<r><a x=\"1\">1</a><b>2</b><c/></r>");
+		XDoc right = XDoc.load("<r><a y=\"1\">9</a><d>2</d></r>");
+		
+		List<XDocComparer.Difference> differences = new XDocComparer().setStopAtFirst(false).compare(left, right);
+		assertEquals("[MISSING at /r[1]/a[1]/@x, VALUE at /r[1]/a[1]/text()[1], NAME at /r[1]/b[1], MISSING at /r[1]/c[1]]",
+			differences.toString());
+	}
+	
+	@Test
+	public void deepDocuments()
+	{
+		XDoc left = new XDoc("a");
+		XDoc same = new XDoc("a");
+		XDoc right = new XDoc("a");
+		for (int i = 0; i < 20000; i++) {
+			left.start("a");
+			same.start("a");
+			right.start("a");
+		}
+		right.value("x");
+		
+		assertTrue(left.equals(same));
+		assertFalse(left.equals(right));
+		assertEquals(XDocComparer.Kind.EXTRA, left.findDifference(right).getKind());
+	}
+	
+	@Test
+	public void parallel() throws CloneNotSupportedException
+	{
+		XDoc doc = new XDoc("config").start("wrapper");
+		for (int i = 0; i < 5000; i++) {
+			doc.start("item").attr("id", i).elem("name", "n" + i).end();
+		}
+		XDoc left = doc.freeze();
+		doc.at("wrapper/item[1234]/name").replaceValue("changed");
+		doc.at("wrapper/item[4321]/@id").replaceValue("x");
+		XDoc right = doc.freeze();
+		
+		XDocComparer comparer = new XDocComparer().setParallel(true).setParallelThreshold(16).setPool(new ForkJoinPool(4));
+		assertTrue(comparer.compare(left, left.clone()).isEmpty());
+		
+		// One of the differences is reported when stopping at the first
+		List<XDocComparer.Difference> differences = comparer.compare(left, right);
+		assertEquals(1, differences.size());
+		
+		// Every difference is found, in document order
+		differences = comparer.setStopAtFirst(false).compare(left, right);
+		assertEquals("[VALUE at /config[1]/wrapper[1]/item[1234]/name[1]/text()[1], VALUE at /config[1]/wrapper[1]/item[4321]/@id]", differences.toString());
+		assertEquals(differences.toString(), new XDocComparer().setStopAtFirst(false).compare(left, right).toString());
+	}
+}
@@ -0,0 +1,906 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.budjb.xml;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * An edit script that turns one xml document into another, made by XDoc.diff() and applied with
+ * XDoc.apply().
+ *
+ * Each edit names the node it changes with a positional XPath expression, such as
+ * "/config[1]/item[2]/@id". The edits are ordered so that every path is valid at the moment its
+ * edit is applied: the children of an element are edited from last to first, and an element's own
+ * attributes and name change after its children. A patch therefore only applies to a document equal
+ * to the one it was made from.
+ *
+ * Unchanged subtrees are recognized by their structural hashes and left out entirely, so the size of
+ * a patch follows the size of the change rather than the size of the document. Changed children
+ * between unchanged ones are paired by position. A patch may be shipped in its xml form, see
+ * toString() and load().
+ */
+public final class XDocPatch
+{
+	/**
+	 * Kinds of edits.
+	 */
+	public enum Kind
+	{
+		/**
+		 * Inserts a copy of a node into the element at the path, before the child at the position.
+		 */
+		INSERT,
+
+		/**
+		 * Removes the node or attribute at the path.
+		 */
+		DELETE,
+
+		/**
+		 * Replaces the node at the path with a copy of another node.
+		 */
+		REPLACE,
+
+		/**
+		 * Changes the value of the text, comment or processing instruction node at the path.
+		 */
+		REPLACE_VALUE,
+
+		/**
+		 * Adds or changes an attribute of the element at the path.
+		 */
+		SET_ATTR,
+
+		/**
+		 * Renames the element at the path.
+		 */
+		RENAME
+	}
+
+	/**
+	 * A single edit.
+	 */
+	public static final class Edit
+	{
+		/**
+		 * What the edit does.
+		 */
+		private final Kind kind;
+
+		/**
+		 * Location of the node to change.
+		 */
+		private final String path;
+
+		/**
+		 * Position among the children to insert at.
+		 */
+		private final int position;
+
+		/**
+		 * Attribute or element name.
+		 */
+		private final String name;
+
+		/**
+		 * Namespace of the attribute, if it has one.
+		 */
+		private final String namespaceUri;
+
+		/**
+		 * New value.
+		 */
+		private final String value;
+
+		/**
+		 * Node to insert or replace with. It belongs to the patch and is copied when applied.
+		 */
+		private final Node node;
+
+		/**
+		 * Creates a new edit.
+		 *
+		 * @param kind What the edit does.
+		 * @param path Location of the node to change.
+		 * @param position Position among the children to insert at.
+		 * @param name Attribute or element name.
+		 * @param namespaceUri Namespace of the attribute.
+		 * @param value New value.
+		 * @param node Node to insert or replace with.
+		 */
+		Edit(Kind kind, String path, int position, String name, String namespaceUri, String value, Node node)
+		{
+			this.kind = kind;
+			this.path = path;
+			this.position = position;
+			this.name = name;
+			this.namespaceUri = namespaceUri;
+			this.value = value;
+			this.node = node;
+		}
+
+		/**
+		 * Returns what the edit does.
+		 *
+		 * @return
+		 */
+		public Kind getKind()
+		{
+			return kind;
+		}
+
+		/**
+		 * Returns the location of the node to change as an XPath expression.
+		 *
+		 * @return
+		 */
+		public String getPath()
+		{
+			return path;
+		}
+
+		/**
+		 * Returns the position among the children of the element that an INSERT edit inserts at,
+		 * counting every kind of child node from 0.
+		 *
+		 * @return
+		 */
+		public int getPosition()
+		{
+			return position;
+		}
+
+		/**
+		 * Returns the attribute name of SET_ATTR edits or the new name of RENAME edits.
+		 *
+		 * @return
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * Returns the namespace of the attribute of SET_ATTR edits, or null if it has none.
+		 *
+		 * @return
+		 */
+		public String getNamespaceURI()
+		{
+			return namespaceUri;
+		}
+
+		/**
+		 * Returns the new value of REPLACE_VALUE and SET_ATTR edits.
+		 *
+		 * @return
+		 */
+		public String getValue()
+		{
+			return value;
+		}
+
+		/**
+		 * Returns the node that INSERT and REPLACE edits put in place. Don't change it.
+		 *
+		 * @return
+		 */
+		public Node getNode()
+		{
+			return node;
+		}
+
+		/**
+		 * Returns a description of the edit.
+		 */
+		@Override
+		public String toString()
+		{
+			switch (kind) {
+			case INSERT:
+				return kind + " at " + path + " position " + position;
+			case SET_ATTR:
+			case RENAME:
+				return kind + " at " + path + " " + name;
+			default:
+				return kind + " at " + path;
+			}
+		}
+	}
+
+	/**
+	 * Largest number of child pairs aligned by their longest common subsequence. Longer lists of
+	 * changed children are paired by position only.
+	 */
+	private static final int MAX_ALIGNMENT = 1 << 20;
+
+	/**
+	 * Comparer used to confirm that subtrees with equal hashes are equal.
+	 */
+	private static final XDocComparer comparer = new XDocComparer();
+
+	/**
+	 * The edits, in the order they are applied.
+	 */
+	private final List<Edit> edits;
+
+	/**
+	 * Creates a new patch.
+	 *
+	 * @param edits The edits, in the order they are applied.
+	 */
+	private XDocPatch(List<Edit> edits)
+	{
+		this.edits = Collections.unmodifiableList(edits);
+	}
+
+	/**
+	 * Returns the edits, in the order they are applied.
+	 *
+	 * @return
+	 */
+	public List<Edit> getEdits()
+	{
+		return edits;
+	}
+
+	/**
+	 * Returns the number of edits.
+	 *
+	 * @return
+	 */
+	public int size()
+	{
+		return edits.size();
+	}
+
+	/**
+	 * Returns true if the patch changes nothing.
+	 *
+	 * @return
+	 */
+	public boolean isEmpty()
+	{
+		return edits.isEmpty();
+	}
+
+	/**
+	 * Returns the patch as an xml document.
+	 *
+	 * @return
+	 */
+	public XDoc toXDoc()
+	{
+		Document out = XDoc.getNewDocument();
+		Element patch = out.createElement("patch");
+		out.appendChild(patch);
+
+		for (Edit edit : edits) {
+			Element element = out.createElement(edit.kind.name().toLowerCase().replace('_', '-'));
+			element.setAttribute("path", edit.path);
+
+			switch (edit.kind) {
+			case INSERT:
+				element.setAttribute("position", Integer.toString(edit.position));
+				element.appendChild(XDoc.copyTree(out, edit.node));
+				break;
+			case REPLACE:
+				element.appendChild(XDoc.copyTree(out, edit.node));
+				break;
+			case REPLACE_VALUE:
+				element.setTextContent(edit.value);
+				break;
+			case SET_ATTR:
+				element.setAttribute("name", edit.name);
+				if (edit.namespaceUri != null) {
+					element.setAttribute("ns", edit.namespaceUri);
+				}
+				element.setTextContent(edit.value);
+				break;
+			case RENAME:
+				element.setAttribute("name", edit.name);
+				break;
+			default:
+				break;
+			}
+
+			patch.appendChild(element);
+		}
+
+		return new XDoc(out);
+	}
+
+	/**
+	 * Returns the patch as an xml string that load() reads back.
+	 */
+	@Override
+	public String toString()
+	{
+		return toXDoc().toString();
+	}
+
+	/**
+	 * Reads a patch from its xml form.
+	 *
+	 * @param xml Xml produced by toString().
+	 * @return The patch, or null if the xml could not be parsed.
+	 */
+	public static XDocPatch load(String xml)
+	{
+		XDoc doc = XDoc.load(xml);
+		return doc.isEmpty() ? null : load(doc);
+	}
+
+	/**
+	 * Reads a patch from its xml form.
+	 *
+	 * @param doc Document produced by toXDoc().
+	 * @return
+	 */
+	public static XDocPatch load(XDoc doc)
+	{
+		// Make sure we got a patch
+		if (doc == null || doc.isEmpty() || !"patch".equals(doc.getRootNode().getNodeName())) {
+			throw new IllegalArgumentException("doc");
+		}
+
+		Document content = XDoc.getNewDocument();
+		ArrayList<Edit> edits = new ArrayList<Edit>();
+
+		for (Node child = doc.getRootNode().getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() != Node.ELEMENT_NODE) {
+				continue;
+			}
+			Element element = (Element)child;
+
+			// Look up the kind of edit
+			Kind kind;
+			try {
+				kind = Kind.valueOf(element.getNodeName().toUpperCase().replace('-', '_'));
+			}
+			catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("unknown edit " + element.getNodeName());
+			}
+
+			String path = element.getAttribute("path");
+			String name = element.hasAttribute("name") ? element.getAttribute("name") : null;
+			String namespaceUri = element.hasAttribute("ns") ? element.getAttribute("ns") : null;
+			int position = element.hasAttribute("position") ? Integer.parseInt(element.getAttribute("position")) : 0;
+			String value = null;
+			Node node = null;
+
+			switch (kind) {
+			case INSERT:
+			case REPLACE:
+				if (element.getFirstChild() == null) {
+					throw new IllegalArgumentException("edit has no node");
+				}
+				node = XDoc.copyTree(content, element.getFirstChild());
+				break;
+			case REPLACE_VALUE:
+			case SET_ATTR:
+				value = element.getTextContent();
+				break;
+			default:
+				break;
+			}
+
+			edits.add(new Edit(kind, path, position, name, namespaceUri, value, node));
+		}
+
+		return new XDocPatch(edits);
+	}
+
+	/**
+	 * Finds the node a path of the patch names.
+	 *
+	 * @param doc Document to look in.
+	 * @param path Path made of positional steps, optionally ending in an attribute.
+	 * @return The node, or null if there is none.
+	 */
+	static Node resolve(Document doc, String path)
+	{
+		if (path == null || !path.startsWith("/")) {
+			return null;
+		}
+
+		Node node = doc;
+		for (int start = 1; start < path.length(); ) {
+			int end = path.indexOf('/', start);
+			if (end < 0) {
+				end = path.length();
+			}
+			String step = path.substring(start, end);
+
+			// Attributes end the path
+			if (step.startsWith("@")) {
+				if (end != path.length() || node.getNodeType() != Node.ELEMENT_NODE) {
+					return null;
+				}
+				return node.getAttributes().getNamedItem(step.substring(1));
+			}
+
+			// Split the step into its node test and position
+			int bracket = step.lastIndexOf('[');
+			if (bracket < 0 || !step.endsWith("]")) {
+				return null;
+			}
+			String test = step.substring(0, bracket);
+			int position;
+			try {
+				position = Integer.parseInt(step.substring(bracket + 1, step.length() - 1));
+			}
+			catch (NumberFormatException e) {
+				return null;
+			}
+
+			// Count the children the test selects
+			Node match = null;
+			for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+				if (test.equals(XDocComparer.nodeTest(child)) && --position == 0) {
+					match = child;
+					break;
+				}
+			}
+			if (match == null) {
+				return null;
+			}
+
+			node = match;
+			start = end + 1;
+		}
+
+		return node;
+	}
+
+	/**
+	 * Creates the patch that turns one tree into another.
+	 *
+	 * @param left The tree to change.
+	 * @param right The tree to end up with.
+	 * @return
+	 */
+	static XDocPatch create(Node left, Node right)
+	{
+		// OPTIMIZATION: every subtree is hashed in one pass per tree, so unchanged subtrees are
+		// recognized without walking them again at each level
+		IdentityHashMap<Node, Integer> hashes = new IdentityHashMap<Node, Integer>();
+		XDoc.hashNode(left, hashes);
+		XDoc.hashNode(right, hashes);
+
+		Diff diff = new Diff(hashes);
+		if (!diff.same(left, right)) {
+			Frame frame = diff.pair(left, right, XDocComparer.pathOf(left));
+
+			// Walk the changed elements without recursing, since documents may be deep
+			ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+			if (frame != null) {
+				stack.push(frame);
+			}
+			while (!stack.isEmpty()) {
+				frame = stack.peek();
+				if (frame.next == 0) {
+					stack.pop();
+					diff.finish(frame);
+					continue;
+				}
+
+				// Children are edited from last to first, so the paths of earlier ones stay valid
+				frame.next -= 3;
+				int op = frame.ops[frame.next];
+				int l = frame.ops[frame.next + 1];
+				int r = frame.ops[frame.next + 2];
+
+				if (op == Frame.PAIR) {
+					Frame child = diff.pair(frame.leftChildren[l], frame.rightChildren[r], frame.childPath(l));
+					if (child != null) {
+						stack.push(child);
+					}
+				}
+				else if (op == Frame.DELETE) {
+					diff.edits.add(new Edit(Kind.DELETE, frame.childPath(l), 0, null, null, null, null));
+				}
+				else {
+					diff.edits.add(new Edit(Kind.INSERT, frame.path, l, null, null, null, diff.copy(frame.rightChildren[r])));
+				}
+			}
+		}
+
+		return new XDocPatch(diff.edits);
+	}
+
+	/**
+	 * State of a diff.
+	 */
+	private static final class Diff
+	{
+		/**
+		 * Structural hashes of the subtrees of both trees.
+		 */
+		final IdentityHashMap<Node, Integer> hashes;
+
+		/**
+		 * Document that owns the nodes of the patch.
+		 */
+		final Document content = XDoc.getNewDocument();
+
+		/**
+		 * The edits so far.
+		 */
+		final ArrayList<Edit> edits = new ArrayList<Edit>();
+
+		/**
+		 * Creates the state of a new diff.
+		 *
+		 * @param hashes Structural hashes of the subtrees of both trees.
+		 */
+		Diff(IdentityHashMap<Node, Integer> hashes)
+		{
+			this.hashes = hashes;
+		}
+
+		/**
+		 * Returns whether two subtrees are equal. Different hashes settle it right away.
+		 *
+		 * @param left Left subtree.
+		 * @param right Right subtree.
+		 * @return
+		 */
+		boolean same(Node left, Node right)
+		{
+			return hashes.get(left).intValue() == hashes.get(right).intValue() && comparer.isEqual(left, right);
+		}
+
+		/**
+		 * Copies a node of the right tree into the patch.
+		 *
+		 * @param node The node.
+		 * @return
+		 */
+		Node copy(Node node)
+		{
+			return XDoc.copyTree(content, node);
+		}
+
+		/**
+		 * Edits a changed node into its counterpart. Nodes that can't be changed into each other are
+		 * replaced.
+		 *
+		 * @param left The changed node of the left tree.
+		 * @param right The node of the right tree.
+		 * @param path Location of the left node.
+		 * @return The frame that edits the children of an element pair, or null.
+		 */
+		Frame pair(Node left, Node right, String path)
+		{
+			if (!isPairable(left, right)) {
+				edits.add(new Edit(Kind.REPLACE, path, 0, null, null, null, copy(right)));
+				return null;
+			}
+
+			if (left.getNodeType() == Node.ELEMENT_NODE) {
+				return new Frame(this, left, right, path);
+			}
+
+			if (!Objects.equals(left.getNodeValue(), right.getNodeValue())) {
+				edits.add(new Edit(Kind.REPLACE_VALUE, path, 0, null, null, right.getNodeValue(), null));
+			}
+			return null;
+		}
+
+		/**
+		 * Edits the attributes and name of an element after its children.
+		 *
+		 * @param frame The finished frame.
+		 */
+		void finish(Frame frame)
+		{
+			NamedNodeMap left = frame.left.getAttributes();
+			NamedNodeMap right = frame.right.getAttributes();
+
+			// Attributes are matched by name, as the comparer does
+			for (int i = 0, end = right.getLength(); i < end; i++) {
+				Node attribute = right.item(i);
+				Node other = left.getNamedItem(attribute.getNodeName());
+				if (other == null || !Objects.equals(other.getNodeValue(), attribute.getNodeValue()) || !Objects.equals(other.getNamespaceURI(), attribute.getNamespaceURI())) {
+					edits.add(new Edit(Kind.SET_ATTR, frame.path, 0, attribute.getNodeName(), attribute.getNamespaceURI(), attribute.getNodeValue(), null));
+				}
+			}
+			for (int i = 0, end = left.getLength(); i < end; i++) {
+				Node attribute = left.item(i);
+				if (right.getNamedItem(attribute.getNodeName()) == null) {
+					edits.add(new Edit(Kind.DELETE, frame.path + "/@" + attribute.getNodeName(), 0, null, null, null, null));
+				}
+			}
+
+			// Renaming last keeps the paths of the attribute edits valid
+			if (!frame.left.getNodeName().equals(frame.right.getNodeName())) {
+				edits.add(new Edit(Kind.RENAME, frame.path, 0, frame.right.getNodeName(), null, null, null));
+			}
+		}
+
+		/**
+		 * Returns whether a node can be edited into another rather than replaced.
+		 *
+		 * @param left The node of the left tree.
+		 * @param right The node of the right tree.
+		 * @return
+		 */
+		private static boolean isPairable(Node left, Node right)
+		{
+			if (left.getNodeType() != right.getNodeType()) {
+				return false;
+			}
+
+			switch (left.getNodeType()) {
+			case Node.ELEMENT_NODE:
+				if (!Objects.equals(left.getNamespaceURI(), right.getNamespaceURI())) {
+					return false;
+				}
+				if (left.getNodeName().equals(right.getNodeName())) {
+					return true;
+				}
+
+				// XDoc.rename() creates elements and attributes without namespaces
+				if (right.getNamespaceURI() != null) {
+					return false;
+				}
+				NamedNodeMap attributes = right.getAttributes();
+				for (int i = 0, end = attributes.getLength(); i < end; i++) {
+					if (attributes.item(i).getNamespaceURI() != null) {
+						return false;
+					}
+				}
+				return true;
+
+			case Node.PROCESSING_INSTRUCTION_NODE:
+				return left.getNodeName().equals(right.getNodeName());
+
+			case Node.TEXT_NODE:
+			case Node.CDATA_SECTION_NODE:
+			case Node.COMMENT_NODE:
+				return true;
+
+			default:
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * A pair of changed elements whose children are being edited.
+	 */
+	private static final class Frame
+	{
+		/**
+		 * Edits a changed child into its counterpart.
+		 */
+		static final int PAIR = 0;
+
+		/**
+		 * Removes a child of the left element.
+		 */
+		static final int DELETE = 1;
+
+		/**
+		 * Inserts a child of the right element.
+		 */
+		static final int INSERT = 2;
+
+		/**
+		 * The element of the left tree.
+		 */
+		final Node left;
+
+		/**
+		 * The element of the right tree.
+		 */
+		final Node right;
+
+		/**
+		 * Location of the left element.
+		 */
+		final String path;
+
+		/**
+		 * Children of the left element.
+		 */
+		final Node[] leftChildren;
+
+		/**
+		 * Children of the right element.
+		 */
+		final Node[] rightChildren;
+
+		/**
+		 * Operations on the children as triples of operation, left index and right index, in
+		 * document order. For INSERT the left index is the position to insert at.
+		 */
+		int[] ops = new int[24];
+
+		/**
+		 * End of the operations still to do.
+		 */
+		int next;
+
+		/**
+		 * Positions of the left children among the siblings with the same node test, or null until
+		 * a child path is needed.
+		 */
+		private int[] positions;
+
+		/**
+		 * Aligns the children of two changed elements.
+		 *
+		 * @param diff State of the diff.
+		 * @param left The element of the left tree.
+		 * @param right The element of the right tree.
+		 * @param path Location of the left element.
+		 */
+		Frame(Diff diff, Node left, Node right, String path)
+		{
+			this.left = left;
+			this.right = right;
+			this.path = path;
+			this.leftChildren = XDocComparer.children(left);
+			this.rightChildren = XDocComparer.children(right);
+			align(diff);
+		}
+
+		/**
+		 * Returns the location of a child of the left element.
+		 *
+		 * @param index Index of the child.
+		 * @return
+		 */
+		String childPath(int index)
+		{
+			if (positions == null) {
+				positions = new int[leftChildren.length];
+				HashMap<String, Integer> counts = new HashMap<String, Integer>();
+				for (int i = 0; i < leftChildren.length; i++) {
+					String test = XDocComparer.nodeTest(leftChildren[i]);
+					Integer count = counts.get(test);
+					positions[i] = (count != null) ? count.intValue() + 1 : 1;
+					counts.put(test, positions[i]);
+				}
+			}
+			return path + "/" + XDocComparer.nodeTest(leftChildren[index]) + "[" + positions[index] + "]";
+		}
+
+		/**
+		 * Finds the unchanged children and records the operations for the rest.
+		 *
+		 * @param diff State of the diff.
+		 */
+		private void align(Diff diff)
+		{
+			Node[] l = leftChildren;
+			Node[] r = rightChildren;
+
+			// Skip the unchanged children at both ends
+			int start = 0;
+			while (start < l.length && start < r.length && diff.same(l[start], r[start])) {
+				start++;
+			}
+			int leftEnd = l.length;
+			int rightEnd = r.length;
+			while (leftEnd > start && rightEnd > start && diff.same(l[leftEnd - 1], r[rightEnd - 1])) {
+				leftEnd--;
+				rightEnd--;
+			}
+
+			int rows = leftEnd - start;
+			int columns = rightEnd - start;
+			if (rows == 0 || columns == 0 || (long)rows * columns > MAX_ALIGNMENT) {
+				gap(start, leftEnd, start, rightEnd);
+				return;
+			}
+
+			// Find the longest common subsequence of the rest by hash
+			int[] hl = new int[rows];
+			int[] hr = new int[columns];
+			for (int i = 0; i < rows; i++) {
+				hl[i] = diff.hashes.get(l[start + i]).intValue();
+			}
+			for (int j = 0; j < columns; j++) {
+				hr[j] = diff.hashes.get(r[start + j]).intValue();
+			}
+			int[][] lengths = new int[rows + 1][columns + 1];
+			for (int i = rows - 1; i >= 0; i--) {
+				for (int j = columns - 1; j >= 0; j--) {
+					lengths[i][j] = (hl[i] == hr[j]) ? lengths[i + 1][j + 1] + 1 : Math.max(lengths[i + 1][j], lengths[i][j + 1]);
+				}
+			}
+
+			// Keep the children it matches that really are equal; the ones in between are changed
+			int i = 0;
+			int j = 0;
+			int gapLeft = 0;
+			int gapRight = 0;
+			while (i < rows && j < columns) {
+				if (hl[i] == hr[j] && lengths[i][j] == lengths[i + 1][j + 1] + 1 && comparer.isEqual(l[start + i], r[start + j])) {
+					gap(start + gapLeft, start + i, start + gapRight, start + j);
+					gapLeft = ++i;
+					gapRight = ++j;
+				}
+				else if (lengths[i + 1][j] >= lengths[i][j + 1]) {
+					i++;
+				}
+				else {
+					j++;
+				}
+			}
+			gap(start + gapLeft, leftEnd, start + gapRight, rightEnd);
+		}
+
+		/**
+		 * Records the operations for a run of changed children between unchanged ones. They are
+		 * paired by position; the rest are removed or inserted.
+		 *
+		 * @param leftStart First changed left child.
+		 * @param leftEnd End of the changed left children.
+		 * @param rightStart First changed right child.
+		 * @param rightEnd End of the changed right children.
+		 */
+		private void gap(int leftStart, int leftEnd, int rightStart, int rightEnd)
+		{
+			int common = Math.min(leftEnd - leftStart, rightEnd - rightStart);
+			for (int k = 0; k < common; k++) {
+				add(PAIR, leftStart + k, rightStart + k);
+			}
+			for (int i = leftStart + common; i < leftEnd; i++) {
+				add(DELETE, i, -1);
+			}
+
+			// Everything before the insertion point is still unchanged when the inserts are applied
+			for (int j = rightStart + common; j < rightEnd; j++) {
+				add(INSERT, leftEnd, j);
+			}
+		}
+
+		/**
+		 * Records an operation.
+		 *
+		 * @param op The operation.
+		 * @param l Left index.
+		 * @param r Right index.
+		 */
+		private void add(int op, int l, int r)
+		{
+			if (next + 3 > ops.length) {
+				ops = Arrays.copyOf(ops, ops.length * 2);
+			}
+			ops[next++] = op;
+			ops[next++] = l;
+			ops[next++] = r;
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.budjb.xml;
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class XDocPatchTest
+{
+	private static final String XML = "<config a=\"1\">\n  <item id=\"1\">a</item>\n  <!-- c -->\n  <item id=\"2\">b</item>\n</config>";
+	
+	private static XDocPatch check(String left, String right)
+	{
+		XDoc doc = XDoc.load(left);
+		XDoc target = XDoc.load(right);
+		XDocPatch patch = doc.diff(target);
+		
+		assertSame(doc, doc.apply(patch));
+		assertEquals(target.toString(), doc.toString());
+		assertEquals(target, doc);
+		
+		// The xml form applies the same way
+		XDoc other = XDoc.load(left).apply(XDocPatch.load(patch.toString()));
+		assertEquals(target.toString(), other.toString());
+		return patch;
+	}
+	
+	@Test
+	public void equalDocuments()
+	{
+		XDocPatch patch = XDoc.load(XML).diff(XDoc.load(XML));
+		assertTrue(patch.isEmpty());
+		assertEquals("<patch/>", patch.toString());
+		assertNull(XDocPatch.load("<patch>"));
+	}
+	
+	@Test
+	public void edits()
+	{
+		XDocPatch patch = check(XML, XML.replace(">b<", ">x<"));
+		assertEquals("[REPLACE_VALUE at /config[1]/item[2]/text()[1]]", patch.getEdits().toString());
+		assertEquals("x", patch.getEdits().get(0).getValue());
+		
+		patch = check(XML, XML.replace("id=\"2\"", "id=\"3\" z=\"4\"").replace(" a=\"1\"", ""));
+		assertEquals("[SET_ATTR at /config[1]/item[2] id, SET_ATTR at /config[1]/item[2] z, DELETE at /config[1]/@a]", patch.getEdits().toString());
+		
+		patch = check(XML, XML.replace("<!-- c -->", "<!-- d -->"));
+		assertEquals("[REPLACE_VALUE at /config[1]/comment()[1]]", patch.getEdits().toString());
+		
+		patch = check(XML, XML.replace("<item id=\"2\">", "<entry id=\"2\">").replace("b</item>", "b</entry>"));
+		assertEquals("[RENAME at /config[1]/item[2] entry]", patch.getEdits().toString());
+		
+		patch = check(XML, XML.replace("<!-- c -->\n  ", ""));
+		assertEquals("[DELETE at /config[1]/text()[3], DELETE at /config[1]/comment()[1]]", patch.getEdits().toString());
+		
+		patch = check(XML, XML.replace("<!-- c -->", "<!-- c --><new>n</new>"));
+		assertEquals("[INSERT at /config[1] position 4]", patch.getEdits().toString());
+		assertEquals("new", patch.getEdits().get(0).getNode().getNodeName());
+		
+		patch = check(XML, XML.replace("<!-- c -->", "<?pi x?>"));
+		assertEquals("[REPLACE at /config[1]/comment()[1]]", patch.getEdits().toString());
+	}
+	
+	@Test
+	public void rootChanges()
+	{
+		XDocPatch patch = check("<a x=\"1\"><b/></a>", "<z x=\"2\"><b/></z>");
+		assertEquals("[SET_ATTR at /a[1] x, RENAME at /a[1] z]", patch.getEdits().toString());
+		
+		// The root XDoc follows the renamed root
+		XDoc doc = XDoc.load("<a><b/></a>");
+		doc.apply(doc.diff(XDoc.load("<z><b/><c/></z>")));
+		assertEquals("z", doc.getName());
+		assertEquals("<z><b/><c/></z>", doc.toString());
+	}
+	
+	@Test
+	public void moves()
+	{
+		check("<r><a/><b/><c/><d/></r>", "<r><d/><a/><c/><b/></r>");
+		check("<r><a>1</a><b>2</b></r>", "<r>text<b>2</b><a>1</a><!-- x --></r>");
+		check("<r><a/><b/></r>", "<r/>");
+		check("<r/>", "<r><a/><b/></r>");
+		check("<r>\n<a/>\n<a/>\n<a/>\n</r>", "<r>\n<a/>\n<a x=\"1\"/>\n</r>");
+	}
+	
+	@Test
+	public void largeDocuments()
+	{
+		XDoc left = new XDoc("config");
+		for (int i = 0; i < 10000; i++) {
+			left.start("item").attr("id", i).elem("name", "n" + i).end();
+		}
+		XDoc right = XDoc.load(left.toString());
+		right.at("item[5000]/name").replaceValue("changed");
+		right.at("item[9000]").remove();
+		
+		XDocPatch patch = left.diff(right);
+		assertEquals("[DELETE at /config[1]/item[9000], REPLACE_VALUE at /config[1]/item[5000]/name[1]/text()[1]]", patch.getEdits().toString());
+		assertTrue(patch.toString().length() < 200);
+		
+		left.apply(patch);
+		assertEquals(right, left);
+	}
+	
+	@Test
+	public void deepDocuments()
+	{
+		XDoc left = new XDoc("a");
+		XDoc right = new XDoc("a");
+		for (int i = 0; i < 20000; i++) {
+			left.start("a");
+			right.start("a");
+		}
+		left.value("x");
+		right.value("y").elem("b");
+		
+		XDocPatch patch = left.getRoot().diff(right.getRoot());
+		assertEquals(2, patch.size());
+		
+		left.getRoot().apply(patch);
+		assertEquals(right.getRoot(), left.getRoot());
+	}
+	
+	@Test
+	public void frozenDocuments() throws CloneNotSupportedException
+	{
+		XDoc frozen = XDoc.load(XML).freeze();
+		XDocPatch patch = frozen.diff(XDoc.load(XML.replace(">a<", ">z<")));
+		
+		try {
+			frozen.apply(patch);
+			fail();
+		}
+		catch (IllegalStateException e) {
+		}
+		
+		// Clones take the patch and leave the frozen document alone
+		XDoc clone = frozen.clone().apply(patch);
+		assertEquals("z", clone.at("item[1]").asText());
+		assertEquals("a", frozen.at("item[1]").asText());
+	}
+	
+	@Test
+	public void mismatchedDocuments()
+	{
+		XDocPatch patch = XDoc.load(XML).diff(XDoc.load(XML.replace(">b<", ">x<")));
+		
+		try {
+			XDoc.load("<config><item/></config>").apply(patch);
+			fail();
+		}
+		catch (IllegalStateException e) {
+		}
+	}
+	
+	@Test
+	public void randomEdits()
+	{
+		Random random = new Random(42);
+		String[] names = { "a", "b", "c" };
+		
+		for (int round = 0; round < 200; round++) {
+			XDoc left = randomDoc(random, names);
+			XDoc right = XDoc.load(left.toString());
+			
+			// Change a few random nodes
+			for (int k = random.nextInt(4); k >= 0; k--) {
+				XDoc node = right.at("(//*)[" + (1 + random.nextInt(10)) + "]");
+				if (node.isEmpty()) {
+					continue;
+				}
+				switch (random.nextInt(5)) {
+				case 0:
+					node.attr(names[random.nextInt(3)] + "x", random.nextInt(3));
+					break;
+				case 1:
+					if (node.getCurrentNode() != right.getCurrentNode()) {
+						node.remove();
+					}
+					break;
+				case 2:
+					node.rename(names[random.nextInt(3)]);
+					break;
+				case 3:
+					node.elem(names[random.nextInt(3)], random.nextInt(3));
+					break;
+				default:
+					node.replaceValue(Integer.toString(random.nextInt(3)));
+					break;
+				}
+			}
+			
+			String expected = right.toString();
+			XDocPatch patch = left.diff(XDoc.load(expected));
+			assertEquals(expected, left.apply(patch).toString());
+		}
+	}
+	
+	private static XDoc randomDoc(Random random, String[] names)
+	{
+		XDoc doc = new XDoc("r");
+		int depth = 0;
+		for (int i = random.nextInt(20); i >= 0; i--) {
+			int choice = random.nextInt(4);
+			if (choice == 0 && depth > 0) {
+				doc.end();
+				depth--;
+			}
+			else if (choice == 1) {
+				doc.value(Integer.toString(random.nextInt(3)));
+			}
+			else {
+				doc.start(names[random.nextInt(3)]);
+				if (random.nextBoolean()) {
+					doc.attr("x", random.nextInt(3));
+				}
+				depth++;
+			}
+		}
+		return XDoc.load(doc.toString());
+	}
+}
@@ -0,0 +1,822 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A precompiled, reusable query for XDoc.at() and XDoc.atPath().
+ *
+ * Compiling a path decides once how it will be evaluated: a single element or attribute name is
+ * looked up directly on the current node, a chain of child steps is walked natively, and anything
+ * else is handed to the JAXP XPath engine. The native walker understands relative paths built from
+ * element names, "*", a final "@name", "@*" or "text()" step, and the predicates [n], [last()],
+ * [@name] and [@name='value']. Native plans also run against CompactDoc and PersistentDoc trees,
+ * each through its own Navigator.
+ * XDocPath instances are immutable and may be shared between threads.
+ */
+public final class XDocPath
+{
+	/**
+	 * Evaluation plans.
+	 */
+	enum Plan
+	{
+		/**
+		 * A single element or attribute name looked up on the current node.
+		 */
+		SIMPLE,
+
+		/**
+		 * A chain of child steps, possibly with predicates, walked from the root node.
+		 */
+		STEPS,
+
+		/**
+		 * A full XPath 1.0 expression evaluated by JAXP.
+		 */
+		XPATH
+	}
+
+	/**
+	 * A predicate applied to the nodes selected by a step from one context node.
+	 */
+	private static final class Predicate
+	{
+		/**
+		 * Predicate kinds.
+		 */
+		enum Kind
+		{
+			/**
+			 * [n]
+			 */
+			POSITION,
+
+			/**
+			 * [last()]
+			 */
+			LAST,
+
+			/**
+			 * [@attr]
+			 */
+			HAS_ATTRIBUTE,
+
+			/**
+			 * [@attr='value']
+			 */
+			ATTRIBUTE_EQUALS
+		}
+
+		/**
+		 * The predicate kind.
+		 */
+		final Kind kind;
+
+		/**
+		 * One-based position for POSITION predicates.
+		 */
+		final int position;
+
+		/**
+		 * Attribute name for attribute predicates.
+		 */
+		final String name;
+
+		/**
+		 * Attribute value for ATTRIBUTE_EQUALS predicates.
+		 */
+		final String value;
+
+		/**
+		 * Creates a new predicate.
+		 *
+		 * @param kind The predicate kind.
+		 * @param position One-based position.
+		 * @param name Attribute name.
+		 * @param value Attribute value.
+		 */
+		Predicate(Kind kind, int position, String name, String value)
+		{
+			this.kind = kind;
+			this.position = position;
+			this.name = name;
+			this.value = value;
+		}
+
+		/**
+		 * Filters the nodes in place.
+		 *
+		 * @param navigator Access to the nodes.
+		 * @param nodes Nodes selected from a single context node, in document order.
+		 */
+		<N> void filter(Navigator<N> navigator, List<N> nodes)
+		{
+			switch (kind) {
+			case POSITION:
+				if (position > nodes.size()) {
+					nodes.clear();
+				}
+				else {
+					N node = nodes.get(position - 1);
+					nodes.clear();
+					nodes.add(node);
+				}
+				break;
+
+			case LAST:
+				if (!nodes.isEmpty()) {
+					N node = nodes.get(nodes.size() - 1);
+					nodes.clear();
+					nodes.add(node);
+				}
+				break;
+
+			default:
+				String expected = (kind == Kind.ATTRIBUTE_EQUALS) ? value : null;
+				int kept = 0;
+				for (int i = 0, end = nodes.size(); i < end; i++) {
+					if (navigator.matchesAttribute(nodes.get(i), name, expected)) {
+						nodes.set(kept++, nodes.get(i));
+					}
+				}
+				while (nodes.size() > kept) {
+					nodes.remove(nodes.size() - 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A single location step of a natively evaluated path.
+	 */
+	private static final class Step
+	{
+		/**
+		 * Step kinds.
+		 */
+		enum Kind
+		{
+			/**
+			 * Child elements, by name or "*".
+			 */
+			ELEMENT,
+
+			/**
+			 * Attributes, by name or "@*".
+			 */
+			ATTRIBUTE,
+
+			/**
+			 * Child text nodes, "text()".
+			 */
+			TEXT
+		}
+
+		/**
+		 * The step kind.
+		 */
+		final Kind kind;
+
+		/**
+		 * Element or attribute name to match, or null to match any name.
+		 */
+		final String name;
+
+		/**
+		 * Predicates applied in order to the nodes selected from each context node.
+		 */
+		final Predicate[] predicates;
+
+		/**
+		 * Creates a new step.
+		 *
+		 * @param kind The step kind.
+		 * @param name Element or attribute name to match, or null for any name.
+		 * @param predicates Predicates to apply.
+		 */
+		Step(Kind kind, String name, Predicate[] predicates)
+		{
+			this.kind = kind;
+			this.name = name;
+			this.predicates = predicates;
+		}
+
+		/**
+		 * Adds the nodes selected by this step from the given context node to the result.
+		 *
+		 * @param navigator Access to the nodes.
+		 * @param context Context node.
+		 * @param result Selected nodes, in document order.
+		 * @param scratch Reusable buffer for steps with predicates.
+		 */
+		<N> void select(Navigator<N> navigator, N context, List<N> result, List<N> scratch)
+		{
+			// Without predicates, matches go straight into the result
+			if (predicates.length == 0) {
+				collect(navigator, context, Integer.MAX_VALUE, result);
+				return;
+			}
+
+			// OPTIMIZATION: a lone [n] stops walking at the n-th match
+			if (predicates.length == 1 && predicates[0].kind == Predicate.Kind.POSITION && kind == Kind.ELEMENT) {
+				int position = predicates[0].position;
+				scratch.clear();
+				navigator.addElements(context, name, position, scratch);
+				if (scratch.size() == position) {
+					result.add(scratch.get(position - 1));
+				}
+				return;
+			}
+
+			// Predicates are evaluated against the matches of a single context node
+			scratch.clear();
+			collect(navigator, context, Integer.MAX_VALUE, scratch);
+			for (Predicate predicate : predicates) {
+				if (scratch.isEmpty()) {
+					return;
+				}
+				predicate.filter(navigator, scratch);
+			}
+			result.addAll(scratch);
+		}
+
+		/**
+		 * Adds the nodes matched by this step, before predicates, to the result.
+		 *
+		 * @param navigator Access to the nodes.
+		 * @param context Context node.
+		 * @param limit Most elements to add.
+		 * @param result Matched nodes, in document order.
+		 */
+		<N> void collect(Navigator<N> navigator, N context, int limit, List<N> result)
+		{
+			switch (kind) {
+			case ATTRIBUTE:
+				navigator.addAttributes(context, name, result);
+				return;
+
+			case TEXT:
+				navigator.addTexts(context, result);
+				return;
+
+			default:
+				navigator.addElements(context, name, limit, result);
+			}
+		}
+	}
+
+	/**
+	 * Access to the nodes of one kind of tree, so the steps and predicates of a path are walked the
+	 * same way for every tree.
+	 *
+	 * @param <N> Node type.
+	 */
+	interface Navigator<N>
+	{
+		/**
+		 * Adds the child elements of a node with a name, in document order, until limit of them have
+		 * been added.
+		 *
+		 * @param context Context node.
+		 * @param name Element name, or null for any name.
+		 * @param limit Most elements to add.
+		 * @param result Matched elements.
+		 */
+		void addElements(N context, String name, int limit, List<N> result);
+
+		/**
+		 * Adds the attributes of an element with a name. Other nodes have none.
+		 *
+		 * @param context Context node.
+		 * @param name Attribute name, or null for every attribute.
+		 * @param result Matched attributes.
+		 */
+		void addAttributes(N context, String name, List<N> result);
+
+		/**
+		 * Adds the text children of a node. Adjacent text and CDATA nodes are a single text node in
+		 * the XPath data model, so only the first of each run is added.
+		 *
+		 * @param context Context node.
+		 * @param result Matched text nodes.
+		 */
+		void addTexts(N context, List<N> result);
+
+		/**
+		 * Returns whether a node is an element with an attribute.
+		 *
+		 * @param node Node to check.
+		 * @param name Attribute name.
+		 * @param value Attribute value, or null for any value.
+		 * @return
+		 */
+		boolean matchesAttribute(N node, String name, String value);
+	}
+
+	/**
+	 * Navigator over DOM nodes.
+	 */
+	private static final class DomNavigator implements Navigator<Node>
+	{
+		@Override
+		public void addElements(Node context, String name, int limit, List<Node> result)
+		{
+			int count = 0;
+			for (Node child = context.getFirstChild(); child != null; child = child.getNextSibling()) {
+				if (child instanceof Element && (name == null || child.getNodeName().equals(name))) {
+					result.add(child);
+					if (++count == limit) {
+						return;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void addAttributes(Node context, String name, List<Node> result)
+		{
+			// Attributes only exist on elements
+			if (!(context instanceof Element)) {
+				return;
+			}
+			if (name != null) {
+				Node attribute = ((Element)context).getAttributeNode(name);
+				if (attribute != null) {
+					result.add(attribute);
+				}
+			}
+			else {
+				NamedNodeMap attributes = context.getAttributes();
+				for (int i = 0, end = attributes.getLength(); i < end; i++) {
+					result.add(attributes.item(i));
+				}
+			}
+		}
+
+		@Override
+		public void addTexts(Node context, List<Node> result)
+		{
+			boolean inText = false;
+			for (Node child = context.getFirstChild(); child != null; child = child.getNextSibling()) {
+				boolean text = (child instanceof Text);
+				if (text && !inText) {
+					result.add(child);
+				}
+				inText = text;
+			}
+		}
+
+		@Override
+		public boolean matchesAttribute(Node node, String name, String value)
+		{
+			if (!(node instanceof Element)) {
+				return false;
+			}
+			Node attribute = ((Element)node).getAttributeNode(name);
+			return attribute != null && (value == null || value.equals(attribute.getNodeValue()));
+		}
+	}
+
+	/**
+	 * Parser for the subset of XPath that is evaluated natively.
+	 */
+	private static final class Parser
+	{
+		/**
+		 * Path being parsed.
+		 */
+		private final String path;
+
+		/**
+		 * Current position in the path.
+		 */
+		private int pos;
+
+		/**
+		 * Creates a new parser.
+		 *
+		 * @param path Path to parse.
+		 */
+		Parser(String path)
+		{
+			this.path = path;
+		}
+
+		/**
+		 * Parses the whole path.
+		 *
+		 * @return The steps, or null if the path needs the XPath engine.
+		 */
+		Step[] parse()
+		{
+			ArrayList<Step> steps = new ArrayList<Step>();
+
+			while (true) {
+				Step step = parseStep();
+				if (step == null) {
+					return null;
+				}
+				steps.add(step);
+
+				// End of path
+				if (pos == path.length()) {
+					break;
+				}
+
+				// Only attributes and text nodes may be the last step
+				if (step.kind != Step.Kind.ELEMENT || !consume('/')) {
+					return null;
+				}
+			}
+
+			return steps.toArray(new Step[steps.size()]);
+		}
+
+		/**
+		 * Parses a single step with its predicates.
+		 *
+		 * @return The step, or null if it needs the XPath engine.
+		 */
+		private Step parseStep()
+		{
+			// Attributes
+			if (consume('@')) {
+				if (consume('*')) {
+					return new Step(Step.Kind.ATTRIBUTE, null, NO_PREDICATES);
+				}
+				String name = parseName();
+				if (name == null) {
+					return null;
+				}
+				return new Step(Step.Kind.ATTRIBUTE, name, NO_PREDICATES);
+			}
+
+			// Text nodes
+			if (path.startsWith("text()", pos)) {
+				pos += 6;
+				return new Step(Step.Kind.TEXT, null, NO_PREDICATES);
+			}
+
+			// Elements
+			String name = null;
+			if (!consume('*')) {
+				name = parseName();
+				if (name == null) {
+					return null;
+				}
+			}
+
+			// Predicates
+			ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+			while (consume('[')) {
+				Predicate predicate = parsePredicate();
+				if (predicate == null || !consume(']')) {
+					return null;
+				}
+				predicates.add(predicate);
+			}
+
+			return new Step(Step.Kind.ELEMENT, name, predicates.isEmpty() ? NO_PREDICATES : predicates.toArray(new Predicate[predicates.size()]));
+		}
+
+		/**
+		 * Parses the inside of a predicate.
+		 *
+		 * @return The predicate, or null if it needs the XPath engine.
+		 */
+		private Predicate parsePredicate()
+		{
+			// [last()]
+			if (path.startsWith("last()", pos)) {
+				pos += 6;
+				return new Predicate(Predicate.Kind.LAST, 0, null, null);
+			}
+
+			// [@attr] and [@attr='value']
+			if (consume('@')) {
+				String name = parseName();
+				if (name == null) {
+					return null;
+				}
+				if (!consume('=')) {
+					return new Predicate(Predicate.Kind.HAS_ATTRIBUTE, 0, name, null);
+				}
+				String value = parseLiteral();
+				if (value == null) {
+					return null;
+				}
+				return new Predicate(Predicate.Kind.ATTRIBUTE_EQUALS, 0, name, value);
+			}
+
+			// [n]
+			int start = pos;
+			int position = 0;
+			while (pos < path.length() && path.charAt(pos) >= '0' && path.charAt(pos) <= '9' && pos - start < 9) {
+				position = position * 10 + (path.charAt(pos++) - '0');
+			}
+			if (pos == start || position < 1) {
+				return null;
+			}
+			return new Predicate(Predicate.Kind.POSITION, position, null, null);
+		}
+
+		/**
+		 * Parses a name made of the characters the native plans handle.
+		 *
+		 * @return The name, or null if there isn't one.
+		 */
+		private String parseName()
+		{
+			int start = pos;
+			while (pos < path.length()) {
+				char c = path.charAt(pos);
+				if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (pos > start && ((c >= '0' && c <= '9') || c == '-' || c == '.')))) {
+					break;
+				}
+				pos++;
+			}
+
+			// Names can't be function calls or carry a namespace prefix
+			if (pos == start || (pos < path.length() && (path.charAt(pos) == '(' || path.charAt(pos) == ':'))) {
+				return null;
+			}
+
+			return path.substring(start, pos);
+		}
+
+		/**
+		 * Parses a quoted string literal.
+		 *
+		 * @return The literal without quotes, or null if there isn't one.
+		 */
+		private String parseLiteral()
+		{
+			if (pos >= path.length() || (path.charAt(pos) != '\'' && path.charAt(pos) != '"')) {
+				return null;
+			}
+
+			int end = path.indexOf(path.charAt(pos), pos + 1);
+			if (end < 0) {
+				return null;
+			}
+
+			String value = path.substring(pos + 1, end);
+			pos = end + 1;
+			return value;
+		}
+
+		/**
+		 * Consumes the given character if it is next.
+		 *
+		 * @param c Character to consume.
+		 * @return True if the character was consumed.
+		 */
+		private boolean consume(char c)
+		{
+			if (pos < path.length() && path.charAt(pos) == c) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Shared marker for steps without predicates.
+	 */
+	private static final Predicate[] NO_PREDICATES = new Predicate[0];
+
+	/**
+	 * Empty result marker.
+	 */
+	private static final Node[] NONE = new Node[0];
+
+	/**
+	 * Navigator over DOM nodes.
+	 */
+	private static final DomNavigator DOM = new DomNavigator();
+
+	/**
+	 * Maximum number of compiled paths compile() keeps.
+	 */
+	static final int CACHE_CAPACITY = 512;
+
+	/**
+	 * Paths compiled so far, shared by all threads. It is emptied when it fills up, so the paths
+	 * in use are soon compiled again while one-off paths don't pile up.
+	 */
+	private static final ConcurrentHashMap<String, XDocPath> cache = new ConcurrentHashMap<String, XDocPath>();
+
+	/**
+	 * The original expression text.
+	 */
+	private final String expression;
+
+	/**
+	 * How the path is evaluated.
+	 */
+	private final Plan plan;
+
+	/**
+	 * Location steps for native plans, or null for XPath plans.
+	 */
+	private final Step[] steps;
+
+	/**
+	 * Compiles the given path. Recently compiled paths are reused, since XDoc.at(String) compiles
+	 * its path on every call.
+	 *
+	 * @param path XPath 1.0 expression.
+	 * @return The compiled path.
+	 */
+	public static XDocPath compile(String path)
+	{
+		// Make sure we're given a path
+		if (path == null) {
+			throw new IllegalArgumentException("path");
+		}
+
+		// Check the cache
+		XDocPath compiled = cache.get(path);
+		if (compiled != null) {
+			return compiled;
+		}
+
+		// Parse the steps, falling back to xpath on anything we don't handle natively
+		Step[] steps = path.isEmpty() ? null : new Parser(path).parse();
+
+		if (steps == null) {
+			compiled = new XDocPath(path, Plan.XPATH, null);
+		}
+		else if (steps.length == 1 && steps[0].name != null && steps[0].predicates.length == 0 && steps[0].kind != Step.Kind.TEXT) {
+			// A bare element or attribute name keeps the direct lookup on the current node
+			compiled = new XDocPath(path, Plan.SIMPLE, steps);
+		}
+		else {
+			compiled = new XDocPath(path, Plan.STEPS, steps);
+		}
+
+		// Keep it, making room first if the cache is full
+		if (cache.size() >= CACHE_CAPACITY) {
+			cache.clear();
+		}
+		cache.put(path, compiled);
+
+		return compiled;
+	}
+
+	/**
+	 * Private constructor; use compile().
+	 *
+	 * @param expression The original expression text.
+	 * @param plan How the path is evaluated.
+	 * @param steps Location steps for native plans.
+	 */
+	private XDocPath(String expression, Plan plan, Step[] steps)
+	{
+		this.expression = expression;
+		this.plan = plan;
+		this.steps = steps;
+	}
+
+	/**
+	 * Returns the original expression text.
+	 *
+	 * @return
+	 */
+	public String getExpression()
+	{
+		return expression;
+	}
+
+	/**
+	 * Returns true if the path is evaluated without the XPath engine.
+	 *
+	 * @return
+	 */
+	public boolean isNative()
+	{
+		return plan != Plan.XPATH;
+	}
+
+	/**
+	 * Returns how the path is evaluated.
+	 *
+	 * @return
+	 */
+	Plan getPlan()
+	{
+		return plan;
+	}
+
+	/**
+	 * Evaluates a native plan against the given context node.
+	 *
+	 * @param navigator Access to the nodes.
+	 * @param context Context node.
+	 * @return Selected nodes in document order, possibly none.
+	 */
+	<N> List<N> select(Navigator<N> navigator, N context)
+	{
+		if (steps == null) {
+			throw new IllegalStateException("path requires the xpath engine");
+		}
+
+		// Walk each step from the current set of context nodes
+		ArrayList<N> current = new ArrayList<N>(1);
+		ArrayList<N> scratch = new ArrayList<N>();
+		current.add(context);
+
+		for (Step step : steps) {
+			ArrayList<N> next = new ArrayList<N>();
+			for (N node : current) {
+				step.select(navigator, node, next, scratch);
+			}
+			if (next.isEmpty()) {
+				return next;
+			}
+			current = next;
+		}
+
+		return current;
+	}
+
+	/**
+	 * Evaluates a native plan against the given context node and returns the first selected node.
+	 *
+	 * @param navigator Access to the nodes.
+	 * @param context Context node.
+	 * @return The first selected node in document order, or null.
+	 */
+	<N> N selectFirst(Navigator<N> navigator, N context)
+	{
+		// Simple plans stop at the first match instead of collecting every match
+		if (plan == Plan.SIMPLE) {
+			ArrayList<N> nodes = new ArrayList<N>(1);
+			steps[0].collect(navigator, context, 1, nodes);
+			return nodes.isEmpty() ? null : nodes.get(0);
+		}
+
+		List<N> nodes = select(navigator, context);
+		return nodes.isEmpty() ? null : nodes.get(0);
+	}
+
+	/**
+	 * Evaluates a native plan against the given DOM node.
+	 *
+	 * @param context Context node.
+	 * @return Selected nodes in document order, possibly none.
+	 */
+	Node[] select(Node context)
+	{
+		// Nothing is selected from no node
+		if (context == null) {
+			return NONE;
+		}
+
+		List<Node> nodes = select(DOM, context);
+		return nodes.isEmpty() ? NONE : nodes.toArray(new Node[nodes.size()]);
+	}
+
+	/**
+	 * Evaluates a native plan against the given DOM node and returns the first selected node.
+	 *
+	 * @param context Context node.
+	 * @return The first selected node in document order, or null.
+	 */
+	Node selectFirst(Node context)
+	{
+		return (context != null) ? selectFirst(DOM, context) : null;
+	}
+
+	/**
+	 * Returns the original expression text.
+	 */
+	public String toString()
+	{
+		return expression;
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml;
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class XDocPathTest
+{
+	XDoc testDoc;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		testDoc = new XDoc("root")
+				.start("a").attr("id", "1").elem("b", "one").elem("b", "two").end()
+				.start("a").attr("id", "2").elem("b", "three").end()
+				.elem("c", "four");
+	}
+	
+	@Test
+	public void simpleNamesAreNative()
+	{
+		assertEquals(XDocPath.Plan.SIMPLE, XDocPath.compile("a").getPlan());
+		assertEquals(XDocPath.Plan.SIMPLE, XDocPath.compile("@id").getPlan());
+	}
+	
+	@Test
+	public void childStepsAreNative()
+	{
+		assertEquals(XDocPath.Plan.STEPS, XDocPath.compile("a/b").getPlan());
+		assertEquals(XDocPath.Plan.STEPS, XDocPath.compile("a/@id").getPlan());
+	}
+	
+	@Test
+	public void predicatesAndWildcardsAreNative()
+	{
+		for (String path : new String[] { "*", "a[2]/b", "a[last()]", "a/*[1]", "a[@id='2']/b", "a[@id]", "a/@*", "c/text()", "a[@id=\"1\"][1]" }) {
+			assertTrue(path, XDocPath.compile(path).isNative());
+		}
+	}
+	
+	@Test
+	public void complexPathsUseXPath()
+	{
+		for (String path : new String[] { "", "//b", "/root/a", "a/b/..", "@id/b", "text()/a", "a[0]", "a[position()>1]", "a[@id=2]", "@xml:lang", "a|c", "node()", "a[ 1 ]" }) {
+			assertFalse(path, XDocPath.compile(path).isNative());
+		}
+	}
+	
+	@Test
+	public void compiledPathIsReusable()
+	{
+		XDocPath path = XDocPath.compile("a/b");
+		assertEquals(3, testDoc.at(path).length());
+		assertEquals("one", testDoc.at(path).asText());
+		assertEquals("three", testDoc.at(path).getNext().getNext().asText());
+	}
+	
+	@Test
+	public void attributeStep()
+	{
+		XDoc ids = testDoc.at(XDocPath.compile("a/@id"));
+		assertEquals(2, ids.length());
+		assertEquals("2", ids.getNext().asText());
+	}
+	
+	@Test
+	public void nativeMatchesXPath()
+	{
+		testDoc.at("c").attr("id", "3").value(" and more");
+		String[] paths = new String[] {
+			"a", "a/b", "a/@id", "c", "a/c", "missing/b", "*", "*/b", "a/*", "a[2]", "a[3]", "a[last()]",
+			"a/b[1]", "a/b[2]", "a/b[last()]", "a[@id='2']/b", "a[@id=\"1\"]/b[2]", "*[@id]", "*[@id][2]",
+			"a[1][@id='2']", "a[@id='9']", "c/text()", "a/b/text()", "*/@*", "a[last()]/@id"
+		};
+		for (String path : paths) {
+			XDoc expected = testDoc.atPath(path);
+			XDoc actual = testDoc.atPath(XDocPath.compile(path));
+			assertEquals(path, expected.length(), actual.length());
+			for (int i = 0; i < expected.length(); i++) {
+				assertSame(path, expected.toList().get(i).asNode(), actual.toList().get(i).asNode());
+			}
+		}
+	}
+	
+	@Test
+	public void positionalPredicateAppliesPerContext()
+	{
+		assertEquals("three", testDoc.at("a/b[1]").getNext().asText());
+	}
+	
+	@Test
+	public void adjacentTextNodesSelectedOnce()
+	{
+		XDoc doc = new XDoc("root").value("a").value("b").elem("x").value("c");
+		assertEquals(2, doc.at("text()").length());
+	}
+	
+	@Test
+	public void fallbackEvaluatesXPath()
+	{
+		XDocPath path = XDocPath.compile("a/b[position() = 2]");
+		assertFalse(path.isNative());
+		assertEquals("two", testDoc.at(path).asText());
+		assertEquals("two", testDoc.at("a/b[position() = 2]").asText());
+	}
+	
+	@Test
+	public void compiledPathsAreReused()
+	{
+		assertSame(XDocPath.compile("a/b[2]"), XDocPath.compile("a/b[2]"));
+		assertSame(XDocPath.compile("a"), XDocPath.compile("a"));
+		
+		// A full cache makes room for new paths
+		for (int i = 0; i <= XDocPath.CACHE_CAPACITY; i++) {
+			XDocPath.compile("a" + i);
+		}
+		assertEquals(XDocPath.Plan.SIMPLE, XDocPath.compile("a").getPlan());
+		assertSame(XDocPath.compile("a"), XDocPath.compile("a"));
+	}
+	
+	@Test
+	public void emptyDocSelectsNothing()
+	{
+		assertTrue(XDoc.empty.at(XDocPath.compile("a/b")).isEmpty());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void nullPathThrows()
+	{
+		XDocPath.compile(null);
+	}
+}
@@ -0,0 +1,717 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Processes the records of one large xml input on several threads.
+ *
+ * A single reader thread splits the input with an XDocRecordReader and hands each record to a
+ * pool of worker threads, which apply the processing function. Results are passed to a sink on
+ * the thread that called run(), either in input order or as soon as they are ready. At most
+ * getQueueCapacity() records are in flight at once (queued, being processed or waiting to be
+ * emitted), so a slow stage holds the reader back instead of letting memory grow.
+ *
+ * Threads come from a ThreadFactory, so any kind of thread the platform offers can be used.
+ * A pipeline may be run repeatedly, but not by several threads at once.
+ *
+ * @param <T> Result type of the processing function.
+ */
+public final class XDocRecordPipeline<T>
+{
+	/**
+	 * Default number of records in flight.
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+	/**
+	 * Marks the end of the work queue for one worker.
+	 */
+	private static final Task END = new Task(-1, null);
+
+	/**
+	 * Element names leading to a record.
+	 */
+	private final String recordPath;
+
+	/**
+	 * Function applied to each record.
+	 */
+	private final Function<? super XDoc, ? extends T> function;
+
+	/**
+	 * Number of worker threads.
+	 */
+	private int workers = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Maximum number of records in flight.
+	 */
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+	/**
+	 * Whether results are emitted in input order.
+	 */
+	private boolean preserveOrder;
+
+	/**
+	 * Factory for the reader and worker threads.
+	 */
+	private ThreadFactory threadFactory = new DaemonThreadFactory();
+
+	/**
+	 * Statistics of the last run.
+	 */
+	private Stats stats = new Stats();
+
+	/**
+	 * Creates a pipeline.
+	 *
+	 * @param recordPath Element names from the document element down to a record.
+	 * @param function Function applied to each record on a worker thread.
+	 */
+	public XDocRecordPipeline(String recordPath, Function<? super XDoc, ? extends T> function)
+	{
+		if (recordPath == null) {
+			throw new IllegalArgumentException("recordPath");
+		}
+		if (function == null) {
+			throw new IllegalArgumentException("function");
+		}
+		this.recordPath = recordPath;
+		this.function = function;
+	}
+
+	/**
+	 * Returns the number of worker threads.
+	 *
+	 * @return
+	 */
+	public int getWorkers()
+	{
+		return workers;
+	}
+
+	/**
+	 * Sets the number of worker threads. Defaults to the number of processors.
+	 *
+	 * @param workers Number of workers. Must be positive.
+	 * @return
+	 */
+	public XDocRecordPipeline<T> setWorkers(int workers)
+	{
+		if (workers <= 0) {
+			throw new IllegalArgumentException("workers");
+		}
+		this.workers = workers;
+		return this;
+	}
+
+	/**
+	 * Returns the maximum number of records in flight.
+	 *
+	 * @return
+	 */
+	public int getQueueCapacity()
+	{
+		return queueCapacity;
+	}
+
+	/**
+	 * Sets the maximum number of records in flight.
+	 *
+	 * @param queueCapacity Number of records. Must be positive.
+	 * @return
+	 */
+	public XDocRecordPipeline<T> setQueueCapacity(int queueCapacity)
+	{
+		if (queueCapacity <= 0) {
+			throw new IllegalArgumentException("queueCapacity");
+		}
+		this.queueCapacity = queueCapacity;
+		return this;
+	}
+
+	/**
+	 * Returns whether results are emitted in input order.
+	 *
+	 * @return
+	 */
+	public boolean isPreserveOrder()
+	{
+		return preserveOrder;
+	}
+
+	/**
+	 * Sets whether results are emitted in input order. Otherwise they are emitted as soon as
+	 * they are ready.
+	 *
+	 * @param preserveOrder
+	 * @return
+	 */
+	public XDocRecordPipeline<T> setPreserveOrder(boolean preserveOrder)
+	{
+		this.preserveOrder = preserveOrder;
+		return this;
+	}
+
+	/**
+	 * Sets the factory used for the reader and worker threads. Defaults to daemon platform
+	 * threads.
+	 *
+	 * @param threadFactory
+	 * @return
+	 */
+	public XDocRecordPipeline<T> setThreadFactory(ThreadFactory threadFactory)
+	{
+		if (threadFactory == null) {
+			throw new IllegalArgumentException("threadFactory");
+		}
+		this.threadFactory = threadFactory;
+		return this;
+	}
+
+	/**
+	 * Returns the statistics of the last run, or of the current run while it is going.
+	 *
+	 * @return
+	 */
+	public Stats getStats()
+	{
+		return stats;
+	}
+
+	/**
+	 * Processes every record of the input and passes the results to the sink. Blocks until the
+	 * input is exhausted and every result has been emitted. The input stream is not closed.
+	 *
+	 * If the reader, a worker or the sink fails, the remaining records are dropped and the first
+	 * failure is rethrown once all threads have stopped.
+	 *
+	 * @param in Stream to read.
+	 * @param sink Receives the results on the calling thread.
+	 */
+	public void run(InputStream in, Consumer<? super T> sink)
+	{
+		if (sink == null) {
+			throw new IllegalArgumentException("sink");
+		}
+		XDocRecordReader reader = new XDocRecordReader(in, recordPath);
+
+		Run run = new Run(reader);
+		stats = run.stats;
+		run.execute(sink);
+	}
+
+	/**
+	 * State of a single run.
+	 */
+	private final class Run
+	{
+		/**
+		 * Source of the records.
+		 */
+		private final XDocRecordReader reader;
+
+		/**
+		 * Records waiting for a worker.
+		 */
+		private final BlockingQueue<Task> work = new LinkedBlockingQueue<Task>();
+
+		/**
+		 * Results waiting to be emitted; a task without a sequence number marks a finished worker.
+		 */
+		private final BlockingQueue<Task> results = new LinkedBlockingQueue<Task>();
+
+		/**
+		 * Permits for records in flight.
+		 */
+		private final Semaphore permits = new Semaphore(queueCapacity);
+
+		/**
+		 * Statistics of this run.
+		 */
+		private final Stats stats = new Stats();
+
+		/**
+		 * First failure of any stage.
+		 */
+		private volatile Throwable failure;
+
+		/**
+		 * Creates a run.
+		 *
+		 * @param reader Source of the records.
+		 */
+		Run(XDocRecordReader reader)
+		{
+			this.reader = reader;
+		}
+
+		/**
+		 * Starts the threads, emits the results and waits for the threads to stop.
+		 *
+		 * @param sink Receives the results.
+		 */
+		void execute(Consumer<? super T> sink)
+		{
+			long start = System.nanoTime();
+
+			// Start the stages
+			ArrayList<Thread> threads = new ArrayList<Thread>();
+			threads.add(threadFactory.newThread(this::read));
+			for (int i = 0; i < workers; i++) {
+				threads.add(threadFactory.newThread(this::work));
+			}
+			for (Thread thread : threads) {
+				thread.start();
+			}
+
+			try {
+				emit(sink);
+			}
+			finally {
+				// Wait for the stages to stop
+				boolean interrupted = false;
+				for (Thread thread : threads) {
+					while (thread.isAlive()) {
+						try {
+							thread.join();
+						}
+						catch (InterruptedException e) {
+							interrupted = true;
+							fail(e);
+						}
+					}
+				}
+				reader.close();
+				stats.elapsed.set(System.nanoTime() - start);
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			// Rethrow the first failure
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException)failure;
+			}
+			if (failure instanceof Error) {
+				throw (Error)failure;
+			}
+			if (failure != null) {
+				throw new IllegalStateException("record pipeline failed", failure);
+			}
+		}
+
+		/**
+		 * Reader stage: splits the input into records and queues them.
+		 */
+		private void read()
+		{
+			try {
+				long sequence = 0;
+				while (failure == null) {
+					// Wait for room in the pipeline
+					long waitStart = System.nanoTime();
+					permits.acquire();
+					long readStart = System.nanoTime();
+					stats.readWait.addAndGet(readStart - waitStart);
+
+					if (failure != null || !reader.hasNext()) {
+						permits.release();
+						break;
+					}
+					XDoc record = reader.next();
+					stats.readTime.addAndGet(System.nanoTime() - readStart);
+					stats.read.incrementAndGet();
+
+					work.add(new Task(sequence++, record));
+				}
+			}
+			catch (Throwable e) {
+				fail(e);
+			}
+			finally {
+				// Let every worker know the input is done
+				for (int i = 0; i < workers; i++) {
+					work.add(END);
+				}
+			}
+		}
+
+		/**
+		 * Worker stage: applies the function to queued records.
+		 */
+		private void work()
+		{
+			try {
+				while (true) {
+					Task task = work.take();
+					if (task == END) {
+						break;
+					}
+
+					// Drop records once something has failed, but keep the permits flowing
+					if (failure == null) {
+						long workStart = System.nanoTime();
+						try {
+							task.result = function.apply(task.record);
+						}
+						catch (Throwable e) {
+							fail(e);
+						}
+						stats.workTime.addAndGet(System.nanoTime() - workStart);
+						stats.processed.incrementAndGet();
+					}
+					task.record = null;
+					results.add(task);
+				}
+			}
+			catch (Throwable e) {
+				fail(e);
+			}
+			finally {
+				results.add(END);
+			}
+		}
+
+		/**
+		 * Emit stage: passes results to the sink on the calling thread until every worker is done.
+		 *
+		 * @param sink Receives the results.
+		 */
+		@SuppressWarnings("unchecked")
+		private void emit(Consumer<? super T> sink)
+		{
+			HashMap<Long, Task> pending = new HashMap<Long, Task>();
+			long nextSequence = 0;
+			int running = workers;
+			boolean interrupted = false;
+
+			while (running > 0) {
+				// An interrupt fails the run, but the workers still have to drain
+				Task task;
+				try {
+					task = results.take();
+				}
+				catch (InterruptedException e) {
+					fail(e);
+					interrupted = true;
+					continue;
+				}
+				if (task == END) {
+					running--;
+					continue;
+				}
+
+				// OPTIMIZATION: out-of-order results wait in a map keyed by sequence; the permits
+				// bound its size to the queue capacity
+				if (preserveOrder) {
+					pending.put(task.sequence, task);
+					while ((task = pending.remove(nextSequence)) != null) {
+						nextSequence++;
+						deliver(sink, (T)task.result);
+					}
+				}
+				else {
+					deliver(sink, (T)task.result);
+				}
+			}
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Passes one result to the sink and frees its permit.
+		 *
+		 * @param sink Receives the result.
+		 * @param result Result to pass on.
+		 */
+		private void deliver(Consumer<? super T> sink, T result)
+		{
+			try {
+				if (failure == null) {
+					long emitStart = System.nanoTime();
+					sink.accept(result);
+					stats.emitTime.addAndGet(System.nanoTime() - emitStart);
+					stats.emitted.incrementAndGet();
+				}
+			}
+			catch (Throwable e) {
+				fail(e);
+			}
+			finally {
+				permits.release();
+			}
+		}
+
+		/**
+		 * Records the first failure.
+		 *
+		 * @param e Failure.
+		 */
+		private void fail(Throwable e)
+		{
+			synchronized (this) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A record travelling through the pipeline.
+	 */
+	private static final class Task
+	{
+		/**
+		 * Position of the record in the input.
+		 */
+		final long sequence;
+
+		/**
+		 * The record, until it has been processed.
+		 */
+		XDoc record;
+
+		/**
+		 * The result of processing the record.
+		 */
+		Object result;
+
+		/**
+		 * Creates a task.
+		 *
+		 * @param sequence Position of the record in the input.
+		 * @param record The record.
+		 */
+		Task(long sequence, XDoc record)
+		{
+			this.sequence = sequence;
+			this.record = record;
+		}
+	}
+
+	/**
+	 * Creates named daemon threads.
+	 */
+	private static final class DaemonThreadFactory implements ThreadFactory
+	{
+		/**
+		 * Number of threads created.
+		 */
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "xdoc-pipeline-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * Per-stage counters and timings of a pipeline run. Times are in nanoseconds; worker time is
+	 * summed over all workers.
+	 */
+	public static final class Stats
+	{
+		/**
+		 * Records read from the input.
+		 */
+		private final AtomicLong read = new AtomicLong();
+
+		/**
+		 * Records processed by the workers.
+		 */
+		private final AtomicLong processed = new AtomicLong();
+
+		/**
+		 * Results passed to the sink.
+		 */
+		private final AtomicLong emitted = new AtomicLong();
+
+		/**
+		 * Time spent reading records.
+		 */
+		private final AtomicLong readTime = new AtomicLong();
+
+		/**
+		 * Time the reader spent waiting for room in the pipeline.
+		 */
+		private final AtomicLong readWait = new AtomicLong();
+
+		/**
+		 * Time spent in the processing function.
+		 */
+		private final AtomicLong workTime = new AtomicLong();
+
+		/**
+		 * Time spent in the sink.
+		 */
+		private final AtomicLong emitTime = new AtomicLong();
+
+		/**
+		 * Wall-clock time of the run.
+		 */
+		private final AtomicLong elapsed = new AtomicLong();
+
+		/**
+		 * Returns the number of records read from the input.
+		 *
+		 * @return
+		 */
+		public long getRead()
+		{
+			return read.get();
+		}
+
+		/**
+		 * Returns the number of records processed by the workers.
+		 *
+		 * @return
+		 */
+		public long getProcessed()
+		{
+			return processed.get();
+		}
+
+		/**
+		 * Returns the number of results passed to the sink.
+		 *
+		 * @return
+		 */
+		public long getEmitted()
+		{
+			return emitted.get();
+		}
+
+		/**
+		 * Returns the time spent reading records.
+		 *
+		 * @return
+		 */
+		public long getReadNanos()
+		{
+			return readTime.get();
+		}
+
+		/**
+		 * Returns the time the reader spent blocked because the pipeline was full.
+		 *
+		 * @return
+		 */
+		public long getReadWaitNanos()
+		{
+			return readWait.get();
+		}
+
+		/**
+		 * Returns the time spent in the processing function, summed over all workers.
+		 *
+		 * @return
+		 */
+		public long getWorkNanos()
+		{
+			return workTime.get();
+		}
+
+		/**
+		 * Returns the time spent in the sink.
+		 *
+		 * @return
+		 */
+		public long getEmitNanos()
+		{
+			return emitTime.get();
+		}
+
+		/**
+		 * Returns the wall-clock time of the run.
+		 *
+		 * @return
+		 */
+		public long getElapsedNanos()
+		{
+			return elapsed.get();
+		}
+
+		/**
+		 * Returns the records read per second of reading time.
+		 *
+		 * @return
+		 */
+		public double getReadThroughput()
+		{
+			return throughput(read.get(), readTime.get());
+		}
+
+		/**
+		 * Returns the records processed per second of worker time.
+		 *
+		 * @return
+		 */
+		public double getWorkThroughput()
+		{
+			return throughput(processed.get(), workTime.get());
+		}
+
+		/**
+		 * Returns the results emitted per second of wall-clock time.
+		 *
+		 * @return
+		 */
+		public double getThroughput()
+		{
+			return throughput(emitted.get(), elapsed.get());
+		}
+
+		/**
+		 * Returns a rate per second.
+		 *
+		 * @param count Number of items.
+		 * @param nanos Time taken.
+		 * @return
+		 */
+		private static double throughput(long count, long nanos)
+		{
+			return nanos == 0 ? 0 : count * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("read=%d processed=%d emitted=%d read/s=%.0f work/s=%.0f total/s=%.0f",
+				getRead(), getProcessed(), getEmitted(), getReadThroughput(), getWorkThroughput(), getThroughput());
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class XDocRecordPipelineTest
+{
+	private static InputStream records(int count)
+	{
+		XDoc doc = new XDoc("records");
+		for (int i = 0; i < count; i++) {
+			doc.start("record").attr("id", i).elem("value", i * 2).end();
+		}
+		return new ByteArrayInputStream(doc.toString().getBytes(StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void preservesOrder()
+	{
+		XDocRecordPipeline<Integer> pipeline = new XDocRecordPipeline<Integer>("records/record", doc -> {
+			int id = Integer.parseInt(doc.at("@id").getContents());
+			if (id % 7 == 0) {
+				Thread.yield();
+			}
+			return id;
+		}).setWorkers(4).setQueueCapacity(8).setPreserveOrder(true);
+		
+		List<Integer> result = new ArrayList<Integer>();
+		pipeline.run(records(1000), result::add);
+		
+		assertEquals(1000, result.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, (int)result.get(i));
+		}
+		assertEquals(1000, pipeline.getStats().getRead());
+		assertEquals(1000, pipeline.getStats().getProcessed());
+		assertEquals(1000, pipeline.getStats().getEmitted());
+	}
+	
+	@Test
+	public void unorderedResults()
+	{
+		XDocRecordPipeline<String> pipeline = new XDocRecordPipeline<String>("records/record", doc -> doc.at("value").getContents())
+			.setWorkers(3).setQueueCapacity(1);
+		
+		List<Integer> result = new ArrayList<Integer>();
+		pipeline.run(records(500), value -> result.add(Integer.parseInt(value)));
+		
+		Collections.sort(result);
+		assertEquals(500, result.size());
+		assertEquals(998, (int)result.get(499));
+	}
+	
+	@Test
+	public void usesThreadFactory()
+	{
+		AtomicInteger threads = new AtomicInteger();
+		XDocRecordPipeline<XDoc> pipeline = new XDocRecordPipeline<XDoc>("records/record", doc -> doc)
+			.setWorkers(2)
+			.setThreadFactory(runnable -> {
+				threads.incrementAndGet();
+				return new Thread(runnable);
+			});
+		
+		pipeline.run(records(10), doc -> {});
+		
+		assertEquals(3, threads.get());
+	}
+	
+	@Test
+	public void workerFailureIsRethrown()
+	{
+		XDocRecordPipeline<String> pipeline = new XDocRecordPipeline<String>("records/record", doc -> {
+			if ("50".equals(doc.at("@id").getContents())) {
+				throw new IllegalArgumentException("bad record");
+			}
+			return doc.at("@id").getContents();
+		}).setWorkers(2).setQueueCapacity(4);
+		
+		try {
+			pipeline.run(records(1000), value -> {});
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals("bad record", e.getMessage());
+		}
+		assertTrue(pipeline.getStats().getRead() < 1000);
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void readerFailureIsRethrown()
+	{
+		InputStream in = new ByteArrayInputStream("<records><record></records>".getBytes(StandardCharsets.UTF_8));
+		new XDocRecordPipeline<XDoc>("records/record", doc -> doc).run(in, doc -> {});
+	}
+}
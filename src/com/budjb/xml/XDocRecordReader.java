@@ -0,0 +1,390 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits a large xml stream into one small XDoc per record element, without building a DOM for
+ * the whole input.
+ *
+ * Records are selected by a path of element names from the document element down, such as
+ * "records/record". A step may be "*" to match any name, and prefixed names match the prefix
+ * as written in the input. Each record gets its own Document, with the namespace declarations
+ * of its ancestors copied onto the record element so that it stands alone.
+ *
+ * Only one record is held in memory at a time. The reader is not thread-safe.
+ */
+public final class XDocRecordReader implements Iterator<XDoc>, Closeable
+{
+	/**
+	 * Property asking the JDK's StAX parser to report CDATA sections instead of merging them
+	 * into character events.
+	 */
+	private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+	/**
+	 * Shared StAX factory; creating one involves a service lookup.
+	 */
+	private static final XMLInputFactory factory = createFactory();
+
+	/**
+	 * Element names leading to a record.
+	 */
+	private final String[] steps;
+
+	/**
+	 * Underlying StAX reader.
+	 */
+	private final XMLStreamReader reader;
+
+	/**
+	 * Namespace declarations of the open elements, as prefix/uri pairs.
+	 */
+	private final ArrayList<String> namespaces = new ArrayList<String>();
+
+	/**
+	 * Size of namespaces before each open element's declarations were added.
+	 */
+	private int[] namespaceMarks = new int[16];
+
+	/**
+	 * Number of open elements outside the current record.
+	 */
+	private int depth;
+
+	/**
+	 * Number of leading steps matched by the open elements.
+	 */
+	private int matched;
+
+	/**
+	 * The next record, or null if it has not been read yet.
+	 */
+	private XDoc next;
+
+	/**
+	 * Whether the end of the input has been reached.
+	 */
+	private boolean finished;
+
+	/**
+	 * Creates a record reader over a stream. The encoding is detected from the byte order mark
+	 * and declaration. Closing the record reader does not close the stream.
+	 *
+	 * @param in Stream to read.
+	 * @param recordPath Element names leading to a record, separated by '/'.
+	 */
+	public XDocRecordReader(InputStream in, String recordPath)
+	{
+		// Make sure we're given input
+		if (in == null) {
+			throw new IllegalArgumentException("in");
+		}
+		steps = parsePath(recordPath);
+
+		// The factory is only read after configuration, but JAXP makes no promises
+		try {
+			synchronized (factory) {
+				reader = factory.createXMLStreamReader(in);
+			}
+		}
+		catch (XMLStreamException e) {
+			throw new IllegalStateException("could not read records", e);
+		}
+	}
+
+	/**
+	 * Creates the shared StAX factory.
+	 *
+	 * @return
+	 */
+	static XMLInputFactory createFactory()
+	{
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		if (factory.isPropertySupported(REPORT_CDATA)) {
+			factory.setProperty(REPORT_CDATA, Boolean.TRUE);
+		}
+		return factory;
+	}
+
+	/**
+	 * Returns whether another record is available, reading ahead to it if needed.
+	 *
+	 * @return
+	 */
+	@Override
+	public boolean hasNext()
+	{
+		if (next == null && !finished) {
+			try {
+				next = readNext();
+			}
+			catch (XMLStreamException e) {
+				finished = true;
+				throw new IllegalStateException("could not read records", e);
+			}
+		}
+		return next != null;
+	}
+
+	/**
+	 * Returns the next record.
+	 *
+	 * @return
+	 */
+	@Override
+	public XDoc next()
+	{
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		XDoc record = next;
+		next = null;
+		return record;
+	}
+
+	/**
+	 * Releases the StAX reader. The underlying stream is not closed.
+	 */
+	@Override
+	public void close()
+	{
+		finished = true;
+		next = null;
+		try {
+			reader.close();
+		}
+		catch (XMLStreamException e) {
+			// Nothing left to release
+		}
+	}
+
+	/**
+	 * Advances to the next record and reads it.
+	 *
+	 * @return The record, or null at the end of the input.
+	 * @throws XMLStreamException
+	 */
+	private XDoc readNext() throws XMLStreamException
+	{
+		while (reader.hasNext()) {
+			int event = reader.next();
+
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				// Remember the namespaces declared on the way down
+				pushNamespaces();
+
+				// Check whether this element continues the path
+				if (matched == depth && depth < steps.length && matches(steps[depth], getName())) {
+					matched++;
+				}
+				depth++;
+
+				if (matched == steps.length && depth == steps.length) {
+					XDoc record = readRecord();
+					endElement();
+					return record;
+				}
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT) {
+				endElement();
+			}
+		}
+
+		finished = true;
+		return null;
+	}
+
+	/**
+	 * Pops the bookkeeping for an element that ended outside a record.
+	 */
+	private void endElement()
+	{
+		if (matched == depth) {
+			matched--;
+		}
+		depth--;
+		namespaces.subList(namespaceMarks[depth], namespaces.size()).clear();
+	}
+
+	/**
+	 * Reads the record starting at the current element into its own document.
+	 *
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	private XDoc readRecord() throws XMLStreamException
+	{
+		Document doc = XDoc.getNewDocument();
+
+		// The record element carries every namespace in scope
+		Element root = createElement(doc);
+		for (int i = namespaces.size() - 2; i >= 0; i -= 2) {
+			String attribute = namespaces.get(i).isEmpty() ? "xmlns" : "xmlns:" + namespaces.get(i);
+			if (!root.hasAttribute(attribute)) {
+				root.setAttribute(attribute, namespaces.get(i + 1));
+			}
+		}
+		doc.appendChild(root);
+
+		// Copy the record's content
+		// Parsers split text at entity references and buffer boundaries, so runs of text events
+		// are joined into one text node, as the DOM parser does
+		StringBuilder text = new StringBuilder();
+		Node parent = root;
+		while (parent != doc) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE) {
+				text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+				continue;
+			}
+			if (text.length() > 0) {
+				parent.appendChild(doc.createTextNode(text.toString()));
+				text.setLength(0);
+			}
+
+			switch (event) {
+			case XMLStreamConstants.START_ELEMENT:
+				Element element = createElement(doc);
+				for (int i = 0, count = reader.getNamespaceCount(); i < count; i++) {
+					String prefix = reader.getNamespacePrefix(i);
+					element.setAttribute(prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix, reader.getNamespaceURI(i));
+				}
+				parent.appendChild(element);
+				parent = element;
+				break;
+
+			case XMLStreamConstants.END_ELEMENT:
+				parent = parent.getParentNode();
+				break;
+
+			case XMLStreamConstants.CDATA:
+				parent.appendChild(doc.createCDATASection(reader.getText()));
+				break;
+
+			case XMLStreamConstants.COMMENT:
+				parent.appendChild(doc.createComment(reader.getText()));
+				break;
+
+			case XMLStreamConstants.PROCESSING_INSTRUCTION:
+				parent.appendChild(doc.createProcessingInstruction(reader.getPITarget(), reader.getPIData()));
+				break;
+
+			case XMLStreamConstants.ENTITY_REFERENCE:
+				parent.appendChild(doc.createEntityReference(reader.getLocalName()));
+				break;
+			}
+		}
+
+		return new XDoc(doc);
+	}
+
+	/**
+	 * Creates an element for the current start tag, with its attributes but without its
+	 * namespace declarations.
+	 *
+	 * @param doc Document to create the element in.
+	 * @return
+	 */
+	private Element createElement(Document doc)
+	{
+		Element element = doc.createElement(getName());
+		for (int i = 0, count = reader.getAttributeCount(); i < count; i++) {
+			String prefix = reader.getAttributePrefix(i);
+			String name = reader.getAttributeLocalName(i);
+			element.setAttribute(prefix == null || prefix.isEmpty() ? name : prefix + ":" + name, reader.getAttributeValue(i));
+		}
+		return element;
+	}
+
+	/**
+	 * Records the namespace declarations of the current start tag.
+	 */
+	private void pushNamespaces()
+	{
+		if (depth == namespaceMarks.length) {
+			namespaceMarks = Arrays.copyOf(namespaceMarks, depth * 2);
+		}
+		namespaceMarks[depth] = namespaces.size();
+
+		for (int i = 0, count = reader.getNamespaceCount(); i < count; i++) {
+			String prefix = reader.getNamespacePrefix(i);
+			namespaces.add(prefix == null ? "" : prefix);
+			namespaces.add(reader.getNamespaceURI(i) == null ? "" : reader.getNamespaceURI(i));
+		}
+	}
+
+	/**
+	 * Returns the qualified name of the current element as written in the input.
+	 *
+	 * @return
+	 */
+	private String getName()
+	{
+		String prefix = reader.getPrefix();
+		return prefix == null || prefix.isEmpty() ? reader.getLocalName() : prefix + ":" + reader.getLocalName();
+	}
+
+	/**
+	 * Returns whether a path step matches an element name.
+	 *
+	 * @param step Path step.
+	 * @param name Qualified element name.
+	 * @return
+	 */
+	private static boolean matches(String step, String name)
+	{
+		return step.equals("*") || step.equals(name);
+	}
+
+	/**
+	 * Splits a record path into its steps.
+	 *
+	 * @param recordPath Element names separated by '/', optionally starting with '/'.
+	 * @return
+	 */
+	private static String[] parsePath(String recordPath)
+	{
+		if (recordPath == null) {
+			throw new IllegalArgumentException("recordPath");
+		}
+
+		String path = recordPath.startsWith("/") ? recordPath.substring(1) : recordPath;
+		String[] steps = path.split("/", -1);
+		for (String step : steps) {
+			if (step.isEmpty()) {
+				throw new IllegalArgumentException("recordPath");
+			}
+		}
+		return steps;
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class XDocRecordReaderTest
+{
+	private static InputStream input(String xml)
+	{
+		return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void recordsAreSplit()
+	{
+		String xml = "<records><record id=\"1\"><name>a</name></record><other/><record id=\"2\">b<!--c--><![CDATA[<d>]]></record></records>";
+		try (Stream<XDoc> records = XDoc.streamRecords(input(xml), "records/record")) {
+			List<String> result = records.map(XDoc::toString).collect(Collectors.toList());
+			
+			assertEquals(2, result.size());
+			assertEquals("<record id=\"1\"><name>a</name></record>", result.get(0));
+			assertEquals("<record id=\"2\">b<!--c--><![CDATA[<d>]]></record>", result.get(1));
+		}
+	}
+	
+	@Test
+	public void entitiesJoinText()
+	{
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			text.append("ab&amp;");
+		}
+		String xml = "<records><record>" + text + "<x>&lt;1&gt;</x><![CDATA[c]]>d&#65;</record></records>";
+		
+		try (Stream<XDoc> records = XDoc.streamRecords(input(xml), "records/record")) {
+			XDoc record = records.findFirst().get();
+			
+			assertEquals(4, record.asNode().getChildNodes().getLength());
+			assertEquals(1, record.at("x").asNode().getChildNodes().getLength());
+			assertEquals(XDoc.load(record.toString()), record);
+		}
+	}
+	
+	@Test
+	public void nestedMatchesAreIgnored()
+	{
+		String xml = "<records><record><record>inner</record></record><group><record>deep</record></group></records>";
+		XDocRecordReader reader = new XDocRecordReader(input(xml), "/records/record");
+		
+		assertTrue(reader.hasNext());
+		assertEquals("<record><record>inner</record></record>", reader.next().toString());
+		assertFalse(reader.hasNext());
+		reader.close();
+	}
+	
+	@Test
+	public void wildcardStep()
+	{
+		String xml = "<feed><a><item>1</item></a><b><item>2</item><skip>3</skip></b></feed>";
+		
+		assertEquals("1,2", XDoc.streamRecords(input(xml), "feed/*/item").map(XDoc::getContents).collect(Collectors.joining(",")));
+	}
+	
+	@Test
+	public void namespacesAreCarried()
+	{
+		String xml = "<r:records xmlns:r=\"urn:r\" xmlns=\"urn:d\"><r:record xmlns:x=\"urn:x\"><x:v/></r:record></r:records>";
+		XDoc record = XDoc.streamRecords(input(xml), "r:records/r:record").findFirst().get();
+		String text = record.toString();
+		
+		assertTrue(text.startsWith("<r:record "));
+		assertTrue(text.contains("xmlns:r=\"urn:r\""));
+		assertTrue(text.contains("xmlns=\"urn:d\""));
+		assertTrue(text.contains("xmlns:x=\"urn:x\""));
+		assertTrue(text.endsWith("><x:v/></r:record>"));
+	}
+	
+	@Test(expected = NoSuchElementException.class)
+	public void emptyInput()
+	{
+		XDocRecordReader reader = new XDocRecordReader(input("<records/>"), "records/record");
+		assertFalse(reader.hasNext());
+		reader.next();
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void malformedInput()
+	{
+		XDoc.streamRecords(input("<records><record></records>"), "records/record").count();
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidPath()
+	{
+		new XDocRecordReader(input("<records/>"), "records//record");
+	}
+}
@@ -0,0 +1,1143 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Serializes a DOM tree straight to characters, without going through a Transformer.
+ *
+ * The output follows the JDK's identity Transformer with the xml output method: the same
+ * declaration, the same escaping, the same namespace declarations for namespace-aware nodes
+ * and, when indenting, the same four-space layout. Escaped output is collected in a per-thread
+ * character buffer and handed to the target in blocks.
+ *
+ * XDocWriter drives an instance node by node through the streaming methods instead of handing
+ * it a tree.
+ */
+final class XDocSerializer
+{
+	/**
+	 * Default output encoding.
+	 */
+	static final String DEFAULT_ENCODING = "UTF-8";
+
+	/**
+	 * Size of the character buffer.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Indention used per nesting level.
+	 */
+	private static final String INDENT = "    ";
+
+	/**
+	 * Per-thread character buffer, or null while a serializer on this thread is using it.
+	 */
+	private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>();
+
+	/**
+	 * Target writer, or null when collecting into builder.
+	 */
+	private final Writer out;
+
+	/**
+	 * Target string builder, or null when writing to out.
+	 */
+	private final StringBuilder builder;
+
+	/**
+	 * Whether to indent the output.
+	 */
+	private final boolean indent;
+
+	/**
+	 * Encoder used to find characters the target charset cannot represent, or null when
+	 * every character can be written as is.
+	 */
+	private final CharsetEncoder encoder;
+
+	/**
+	 * Character buffer.
+	 */
+	private char[] buffer;
+
+	/**
+	 * Number of characters in the buffer.
+	 */
+	private int length;
+
+	/**
+	 * Namespace bindings in scope, as prefix/uri pairs.
+	 */
+	private String[] namespaces = new String[16];
+
+	/**
+	 * Number of entries used in namespaces.
+	 */
+	private int namespaceCount;
+
+	/**
+	 * Number of open elements.
+	 */
+	private int depth;
+
+	/**
+	 * Whether the last start tag still needs its closing '>'.
+	 */
+	private boolean startTagOpen;
+
+	/**
+	 * Whether the next indention starts with a line break.
+	 */
+	private boolean startNewLine;
+
+	/**
+	 * Whether the last thing written was character data.
+	 */
+	private boolean prevText;
+
+	/**
+	 * Number of child nodes seen so far in the current element, for indention.
+	 */
+	private int childNodeNum;
+
+	/**
+	 * Whether the current element preserves whitespace (xml:space="preserve").
+	 */
+	private boolean preserveSpace;
+
+	/**
+	 * Saved namespaceCount values of the open elements' parents.
+	 */
+	private int[] namespaceMarks = new int[16];
+
+	/**
+	 * Saved childNodeNum values of the open elements' parents.
+	 */
+	private int[] childNodeNums = new int[16];
+
+	/**
+	 * Saved preserveSpace values of the open elements' parents.
+	 */
+	private boolean[] preserveSpaces = new boolean[16];
+
+	/**
+	 * Text waiting to be written until the next node decides its indention.
+	 */
+	private final ArrayList<String> pendingText = new ArrayList<String>();
+
+	/**
+	 * Returns the serialized form of a node as a string.
+	 *
+	 * @param node The node to serialize.
+	 * @param decl Whether to include the declaration.
+	 * @param indent Whether to indent the output.
+	 * @return
+	 */
+	static String toString(Node node, boolean decl, boolean indent)
+	{
+		StringBuilder result = new StringBuilder();
+		try {
+			new XDocSerializer(null, result, indent, null).serialize(node, decl, DEFAULT_ENCODING);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Writes the serialized form of a node to a writer. The writer is flushed but not closed.
+	 *
+	 * When a charset is given it is named in the declaration, and characters it cannot
+	 * represent are written as character references where the markup allows it.
+	 *
+	 * @param node The node to serialize.
+	 * @param decl Whether to include the declaration.
+	 * @param indent Whether to indent the output.
+	 * @param charset Charset the writer encodes to, or null if unknown.
+	 * @param out Target writer.
+	 * @throws IOException
+	 */
+	static void write(Node node, boolean decl, boolean indent, Charset charset, Writer out) throws IOException
+	{
+		new XDocSerializer(out, null, indent, getEncoder(charset)).serialize(node, decl, getEncoding(charset));
+		out.flush();
+	}
+
+	/**
+	 * Creates a serializer that is driven one node at a time by the streaming methods below,
+	 * for XDocWriter. It keeps its own buffer instead of borrowing the thread's.
+	 *
+	 * @param out Target writer.
+	 * @param indent Whether to indent the output.
+	 * @param charset Charset the writer encodes to, or null if unknown.
+	 * @return
+	 */
+	static XDocSerializer open(Writer out, boolean indent, Charset charset)
+	{
+		XDocSerializer serializer = new XDocSerializer(out, null, indent, getEncoder(charset));
+		serializer.buffer = new char[BUFFER_SIZE];
+		return serializer;
+	}
+
+	/**
+	 * Returns the encoding named in the declaration for a charset.
+	 *
+	 * @param charset Target charset, or null if unknown.
+	 * @return
+	 */
+	static String getEncoding(Charset charset)
+	{
+		return (charset == null) ? DEFAULT_ENCODING : charset.name();
+	}
+
+	/**
+	 * Returns the encoder used to find unrepresentable characters of a charset.
+	 *
+	 * @param charset Target charset, or null if unknown.
+	 * @return The encoder, or null if the charset can represent everything.
+	 */
+	private static CharsetEncoder getEncoder(Charset charset)
+	{
+		// The UTF encodings can represent everything
+		if (charset != null && !charset.name().startsWith("UTF-")) {
+			return charset.newEncoder();
+		}
+		return null;
+	}
+
+	/**
+	 * Creates a new serializer.
+	 *
+	 * @param out Target writer, or null.
+	 * @param builder Target string builder, or null.
+	 * @param indent Whether to indent the output.
+	 * @param encoder Encoder of the target charset, or null.
+	 */
+	private XDocSerializer(Writer out, StringBuilder builder, boolean indent, CharsetEncoder encoder)
+	{
+		this.out = out;
+		this.builder = builder;
+		this.indent = indent;
+		this.encoder = encoder;
+	}
+
+	/**
+	 * Serializes a node, borrowing this thread's buffer for the duration.
+	 *
+	 * @param node The node to serialize.
+	 * @param decl Whether to include the declaration.
+	 * @param encoding Encoding named in the declaration.
+	 * @throws IOException
+	 */
+	private void serialize(Node node, boolean decl, String encoding) throws IOException
+	{
+		// Borrow the thread's buffer unless a serializer further up the stack holds it
+		buffer = buffers.get();
+		buffers.set(null);
+		if (buffer == null) {
+			buffer = new char[BUFFER_SIZE];
+		}
+
+		try {
+			if (decl) {
+				// Whole documents also state whether they are standalone
+				writeDeclaration(encoding, (node instanceof Document) && !((Document)node).getXmlStandalone());
+			}
+
+			writeNode(node);
+			finish();
+		}
+		finally {
+			buffers.set(buffer);
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Writes the XML declaration.
+	 *
+	 * @param encoding Encoding named in the declaration.
+	 * @throws IOException
+	 */
+	void startDocument(String encoding) throws IOException
+	{
+		writeDeclaration(encoding, false);
+	}
+
+	/**
+	 * Starts an element, declaring its namespace if it is not yet in scope.
+	 *
+	 * @param name Element name.
+	 * @param namespaceUri Namespace of the element, or null.
+	 * @throws IOException
+	 */
+	void startElement(String name, String namespaceUri) throws IOException
+	{
+		openElement(name);
+
+		if (namespaceUri != null) {
+			namespace(name, namespaceUri);
+		}
+	}
+
+	/**
+	 * Declares the namespace of a prefixed name on the element just started, unless the prefix
+	 * is already bound to it. A name without a prefix stands for the default namespace.
+	 *
+	 * @param name Element or attribute name.
+	 * @param namespaceUri Namespace of the name, "" for no namespace.
+	 * @throws IOException
+	 */
+	void namespace(String name, String namespaceUri) throws IOException
+	{
+		int colon = name.indexOf(':');
+		String prefix = (colon < 0) ? "" : name.substring(0, colon);
+		if (!isBound(prefix, namespaceUri)) {
+			writeNamespace(prefix, namespaceUri);
+		}
+	}
+
+	/**
+	 * Adds an attribute to the element just started. Namespace declarations only take effect
+	 * if they change the scope.
+	 *
+	 * @param name Attribute name.
+	 * @param value Attribute value.
+	 * @throws IOException
+	 */
+	void attribute(String name, String value) throws IOException
+	{
+		if (!startTagOpen) {
+			throw new IllegalStateException("attributes must come before the contents of an element");
+		}
+
+		String prefix = getDeclaredPrefix(name);
+		if (prefix == null) {
+			writeAttribute(name, value);
+		}
+		else if (!isBound(prefix, value)) {
+			writeNamespace(prefix, value);
+		}
+	}
+
+	/**
+	 * Writes text in the current element.
+	 *
+	 * @param value Text to write.
+	 * @throws IOException
+	 */
+	void text(String value) throws IOException
+	{
+		writeText(value);
+	}
+
+	/**
+	 * Writes a CDATA section in the current element.
+	 *
+	 * @param value Contents of the CDATA section.
+	 * @throws IOException
+	 */
+	void cData(String value) throws IOException
+	{
+		writeCData(value);
+	}
+
+	/**
+	 * Writes a comment in the current element.
+	 *
+	 * @param value Comment text.
+	 * @throws IOException
+	 */
+	void comment(String value) throws IOException
+	{
+		writeComment(value);
+	}
+
+	/**
+	 * Writes a processing instruction in the current element.
+	 *
+	 * @param target Processing instruction target.
+	 * @param data Processing instruction data.
+	 * @throws IOException
+	 */
+	void processingInstruction(String target, String data) throws IOException
+	{
+		writeProcessingInstruction(target, data);
+	}
+
+	/**
+	 * Writes a DOM node and its descendants in the current element.
+	 *
+	 * @param node The node to write.
+	 * @throws IOException
+	 */
+	void node(Node node) throws IOException
+	{
+		writeNode(node);
+	}
+
+	/**
+	 * Ends the current element.
+	 *
+	 * @param name Element name.
+	 * @throws IOException
+	 */
+	void endElement(String name) throws IOException
+	{
+		closeElement(name);
+	}
+
+	/**
+	 * Ends the output and flushes it to the target writer.
+	 *
+	 * @throws IOException
+	 */
+	void endDocument() throws IOException
+	{
+		finish();
+		out.flush();
+	}
+
+	/**
+	 * Hands the characters written so far to the target writer and flushes it.
+	 *
+	 * @throws IOException
+	 */
+	void flush() throws IOException
+	{
+		flushBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Writes the XML declaration.
+	 *
+	 * @param encoding Encoding named in the declaration.
+	 * @param standalone Whether to state that the document is not standalone.
+	 * @throws IOException
+	 */
+	private void writeDeclaration(String encoding, boolean standalone) throws IOException
+	{
+		write("<?xml version=\"1.0\" encoding=\"");
+		write(encoding);
+		write('"');
+		if (standalone) {
+			write(" standalone=\"no\"");
+		}
+		write("?>");
+		if (standalone && indent) {
+			write('\n');
+		}
+	}
+
+	/**
+	 * Settles the end of the document and empties the buffer.
+	 *
+	 * @throws IOException
+	 */
+	private void finish() throws IOException
+	{
+		if (indent) {
+			flushText(false);
+			closeStartTag();
+			if (!prevText) {
+				write('\n');
+			}
+		}
+
+		flushBuffer();
+	}
+
+	/**
+	 * Writes a node and its descendants.
+	 *
+	 * @param node The node to write.
+	 * @throws IOException
+	 */
+	private void writeNode(Node node) throws IOException
+	{
+		switch (node.getNodeType()) {
+		case Node.ELEMENT_NODE:
+			writeElement(node);
+			break;
+
+		case Node.TEXT_NODE:
+			writeText(node.getNodeValue());
+			break;
+
+		case Node.CDATA_SECTION_NODE:
+			writeCData(node.getNodeValue());
+			break;
+
+		case Node.COMMENT_NODE:
+			writeComment(node.getNodeValue());
+			break;
+
+		case Node.PROCESSING_INSTRUCTION_NODE:
+			writeProcessingInstruction(node.getNodeName(), node.getNodeValue());
+			break;
+
+		case Node.DOCUMENT_NODE:
+		case Node.DOCUMENT_FRAGMENT_NODE:
+			for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+				writeNode(child);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Writes an element, declaring any namespaces it uses that are not yet in scope.
+	 *
+	 * @param element The element to write.
+	 * @throws IOException
+	 */
+	private void writeElement(Node element) throws IOException
+	{
+		String name = element.getNodeName();
+		openElement(name);
+
+		// Namespace declarations come first, and only if they change the scope
+		NamedNodeMap attributes = element.getAttributes();
+		int attributeCount = (attributes == null) ? 0 : attributes.getLength();
+
+		for (int i = 0; i < attributeCount; i++) {
+			Node attribute = attributes.item(i);
+			String prefix = getDeclaredPrefix(attribute);
+			if (prefix != null && !isBound(prefix, attribute.getNodeValue())) {
+				writeNamespace(prefix, attribute.getNodeValue());
+			}
+		}
+
+		// Write attributes, declaring the namespaces of namespace-aware ones
+		for (int i = 0; i < attributeCount; i++) {
+			Attr attribute = (Attr)attributes.item(i);
+			if (getDeclaredPrefix(attribute) != null || isWritten(attributes, i)) {
+				continue;
+			}
+
+			String prefix = attribute.getPrefix();
+			String uri = attribute.getNamespaceURI();
+			if (prefix != null && uri != null && !uri.isEmpty() && !isBound(prefix, uri)) {
+				writeNamespace(prefix, uri);
+			}
+
+			writeAttribute(attribute.getNodeName(), attribute.getNodeValue());
+		}
+
+		// Declare the element's own namespace for namespace-aware elements
+		if (element.getNamespaceURI() != null || element.getLocalName() != null) {
+			String prefix = (element.getPrefix() != null) ? element.getPrefix() : "";
+			String uri = (element.getNamespaceURI() != null) ? element.getNamespaceURI() : "";
+			if (!isBound(prefix, uri)) {
+				writeNamespace(prefix, uri);
+			}
+		}
+
+		// Write children
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			writeNode(child);
+		}
+
+		closeElement(name);
+	}
+
+	/**
+	 * Writes the beginning of a start tag and enters the element. The tag stays open for
+	 * attributes until the next node is written.
+	 *
+	 * @param name Element name.
+	 * @throws IOException
+	 */
+	private void openElement(String name) throws IOException
+	{
+		// Settle the pending text and the parent's start tag
+		if (indent) {
+			childNodeNum++;
+			flushText(false);
+		}
+		closeStartTag();
+
+		if (shouldIndent() && startNewLine) {
+			writeIndent(depth);
+		}
+		startNewLine = true;
+
+		write('<');
+		write(name);
+
+		// Remember the parent's namespace scope and indention state
+		if (depth == namespaceMarks.length) {
+			namespaceMarks = Arrays.copyOf(namespaceMarks, depth * 2);
+			childNodeNums = Arrays.copyOf(childNodeNums, depth * 2);
+			preserveSpaces = Arrays.copyOf(preserveSpaces, depth * 2);
+		}
+		namespaceMarks[depth] = namespaceCount;
+		if (indent) {
+			childNodeNums[depth] = childNodeNum;
+			preserveSpaces[depth] = preserveSpace;
+			childNodeNum = 0;
+		}
+
+		depth++;
+		startTagOpen = true;
+		prevText = false;
+	}
+
+	/**
+	 * Writes an attribute into the open start tag.
+	 *
+	 * @param name Attribute name.
+	 * @param value Attribute value.
+	 * @throws IOException
+	 */
+	private void writeAttribute(String name, String value) throws IOException
+	{
+		write(' ');
+		write(name);
+		write("=\"");
+		writeEscaped(value, true);
+		write('"');
+
+		// Whitespace handling follows xml:space
+		if (indent && name.equals("xml:space")) {
+			if (value.equals("preserve")) {
+				preserveSpace = true;
+			}
+			else if (value.equals("default")) {
+				preserveSpace = false;
+			}
+		}
+	}
+
+	/**
+	 * Writes the end of the current element and leaves it.
+	 *
+	 * @param name Element name.
+	 * @throws IOException
+	 */
+	private void closeElement(String name) throws IOException
+	{
+		if (indent) {
+			flushText(false);
+		}
+
+		if (startTagOpen) {
+			write("/>");
+			startTagOpen = false;
+		}
+		else {
+			if (shouldIndent() && (childNodeNum > 1 || !prevText)) {
+				writeIndent(depth - 1);
+			}
+			write("</");
+			write(name);
+			write('>');
+		}
+
+		depth--;
+		namespaceCount = namespaceMarks[depth];
+
+		if (indent) {
+			childNodeNum = childNodeNums[depth];
+			preserveSpace = preserveSpaces[depth];
+			prevText = false;
+		}
+	}
+
+	/**
+	 * Writes a text node. When indenting, text is held back until the next node decides
+	 * whether it goes on its own line.
+	 *
+	 * @param value Text to write.
+	 * @throws IOException
+	 */
+	private void writeText(String value) throws IOException
+	{
+		if (value.isEmpty()) {
+			return;
+		}
+
+		closeStartTag();
+
+		if (shouldFormat()) {
+			pendingText.add(value);
+		}
+		else {
+			writeEscaped(value, false);
+			prevText = true;
+		}
+	}
+
+	/**
+	 * Writes the held back text, on its own line if the element already has other children.
+	 *
+	 * @param isText Whether the next node is itself character data.
+	 * @throws IOException
+	 */
+	private void flushText(boolean isText) throws IOException
+	{
+		if (pendingText.isEmpty()) {
+			return;
+		}
+
+		if (shouldFormat()) {
+			if (!isText) {
+				childNodeNum++;
+			}
+
+			// Indented text drops its leading line breaks
+			boolean skipNewlines = false;
+			if (shouldIndent() && childNodeNum > 1) {
+				writeIndent(depth);
+				startNewLine = true;
+				skipNewlines = true;
+			}
+
+			for (String value : pendingText) {
+				int start = 0;
+				while (skipNewlines && start < value.length() && value.charAt(start) == '\n') {
+					start++;
+				}
+				if (start == value.length()) {
+					continue;
+				}
+				writeEscaped(value.substring(start), false);
+				prevText = true;
+				skipNewlines = false;
+			}
+		}
+
+		pendingText.clear();
+	}
+
+	/**
+	 * Writes a CDATA section, splitting it around any "]]>" in the value.
+	 *
+	 * @param value Contents of the CDATA section.
+	 * @throws IOException
+	 */
+	private void writeCData(String value) throws IOException
+	{
+		if (indent) {
+			flushText(true);
+		}
+
+		if (value.isEmpty()) {
+			return;
+		}
+
+		closeStartTag();
+
+		if (shouldIndent() && childNodeNum > 1) {
+			writeIndent(depth);
+		}
+
+		write("<![CDATA[");
+		int start = 0;
+		int end;
+		while ((end = value.indexOf("]]>", start)) >= 0) {
+			write(value, start, end + 2);
+			write("]]><![CDATA[");
+			start = end + 2;
+		}
+		write(value, start, value.length());
+		write("]]>");
+
+		prevText = true;
+	}
+
+	/**
+	 * Returns whether an attribute of the same name comes earlier in the map. A DOM may hold several
+	 * attributes of one name, but only the first is written so the output stays well-formed.
+	 *
+	 * @param attributes The attributes of an element.
+	 * @param index Index of the attribute to check.
+	 * @return
+	 */
+	private static boolean isWritten(NamedNodeMap attributes, int index)
+	{
+		String name = attributes.item(index).getNodeName();
+		for (int i = 0; i < index; i++) {
+			if (name.equals(attributes.item(i).getNodeName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Writes a comment. A space follows every dash that is followed by another dash, and a trailing dash.
+	 *
+	 * @param value Comment text.
+	 * @throws IOException
+	 */
+	private void writeComment(String value) throws IOException
+	{
+		if (indent) {
+			childNodeNum++;
+			flushText(false);
+		}
+		closeStartTag();
+
+		if (shouldIndent()) {
+			writeIndent(depth);
+		}
+
+		write("<!--");
+		int start = 0;
+		for (int i = 0; i < value.length() - 1; i++) {
+			if (value.charAt(i) == '-' && value.charAt(i + 1) == '-') {
+				write(value, start, i + 1);
+				write(' ');
+				start = i + 1;
+			}
+		}
+		write(value, start, value.length());
+		if (value.endsWith("-")) {
+			write(' ');
+		}
+		write("-->");
+
+		startNewLine = true;
+	}
+
+	/**
+	 * Writes a processing instruction. A "?>" inside the data is separated by a space.
+	 *
+	 * @param target Processing instruction target.
+	 * @param data Processing instruction data.
+	 * @throws IOException
+	 */
+	private void writeProcessingInstruction(String target, String data) throws IOException
+	{
+		if (indent) {
+			childNodeNum++;
+			flushText(false);
+		}
+		closeStartTag();
+
+		if (shouldIndent()) {
+			writeIndent(depth);
+		}
+
+		write("<?");
+		write(target);
+		if (data != null && !data.isEmpty()) {
+			if (!Character.isSpaceChar(data.charAt(0))) {
+				write(' ');
+			}
+			int end = data.indexOf("?>");
+			if (end >= 0) {
+				write(data, 0, end);
+				write("? >");
+				write(data, end + 2, data.length());
+			}
+			else {
+				write(data);
+			}
+		}
+		write("?>");
+
+		startNewLine = true;
+	}
+
+	/**
+	 * Writes the closing '>' of the last start tag if it is still open.
+	 *
+	 * @throws IOException
+	 */
+	private void closeStartTag() throws IOException
+	{
+		if (startTagOpen) {
+			write('>');
+			startTagOpen = false;
+		}
+	}
+
+	/**
+	 * Returns true if the current content is formatted.
+	 *
+	 * @return
+	 */
+	private boolean shouldFormat()
+	{
+		return indent && !preserveSpace;
+	}
+
+	/**
+	 * Returns true if the next node is indented.
+	 *
+	 * @return
+	 */
+	private boolean shouldIndent()
+	{
+		return shouldFormat() && depth > 0;
+	}
+
+	/**
+	 * Returns the prefix declared by an xmlns attribute, "" for a default namespace declaration,
+	 * or null if the attribute is not a namespace declaration.
+	 *
+	 * @param attribute The attribute to check.
+	 * @return
+	 */
+	private static String getDeclaredPrefix(Node attribute)
+	{
+		return getDeclaredPrefix(attribute.getNodeName());
+	}
+
+	/**
+	 * Returns the prefix declared by an attribute name, "" for a default namespace declaration,
+	 * or null if the name is not a namespace declaration.
+	 *
+	 * @param name Attribute name.
+	 * @return
+	 */
+	private static String getDeclaredPrefix(String name)
+	{
+		if (name.equals("xmlns")) {
+			return "";
+		}
+		if (name.startsWith("xmlns:")) {
+			return name.substring(6);
+		}
+		return null;
+	}
+
+	/**
+	 * Checks whether a prefix is bound to the given namespace in the current scope.
+	 *
+	 * @param prefix Namespace prefix, "" for the default namespace.
+	 * @param uri Namespace URI, "" for no namespace.
+	 * @return
+	 */
+	private boolean isBound(String prefix, String uri)
+	{
+		for (int i = namespaceCount - 2; i >= 0; i -= 2) {
+			if (namespaces[i].equals(prefix)) {
+				return namespaces[i + 1].equals(uri);
+			}
+		}
+		return (prefix.isEmpty() && uri.isEmpty()) || prefix.equals("xml");
+	}
+
+	/**
+	 * Binds a prefix to a namespace in the current scope.
+	 *
+	 * @param prefix Namespace prefix, "" for the default namespace.
+	 * @param uri Namespace URI.
+	 */
+	private void bind(String prefix, String uri)
+	{
+		if (namespaceCount == namespaces.length) {
+			String[] grown = new String[namespaces.length * 2];
+			System.arraycopy(namespaces, 0, grown, 0, namespaceCount);
+			namespaces = grown;
+		}
+		namespaces[namespaceCount++] = prefix;
+		namespaces[namespaceCount++] = (uri != null) ? uri : "";
+	}
+
+	/**
+	 * Writes and binds a namespace declaration.
+	 *
+	 * @param prefix Namespace prefix, "" for the default namespace.
+	 * @param uri Namespace URI.
+	 * @throws IOException
+	 */
+	private void writeNamespace(String prefix, String uri) throws IOException
+	{
+		write(prefix.isEmpty() ? " xmlns" : " xmlns:");
+		write(prefix);
+		write("=\"");
+		writeEscaped(uri, true);
+		write('"');
+		bind(prefix, uri);
+	}
+
+	/**
+	 * Writes a line break followed by the indention for the given depth.
+	 *
+	 * @param depth Nesting depth.
+	 * @throws IOException
+	 */
+	private void writeIndent(int depth) throws IOException
+	{
+		if (startNewLine) {
+			write('\n');
+		}
+		for (int i = 0; i < depth; i++) {
+			write(INDENT);
+		}
+	}
+
+	/**
+	 * Writes character data with markup characters and characters outside the plain text range
+	 * replaced by references.
+	 *
+	 * @param value Value to write.
+	 * @param attribute Whether the value is an attribute value.
+	 * @throws IOException
+	 */
+	private void writeEscaped(String value, boolean attribute) throws IOException
+	{
+		int start = 0;
+		for (int i = 0, end = value.length(); i < end; i++) {
+			char c = value.charAt(i);
+
+			// OPTIMIZATION: most characters need no escaping and are copied in runs
+			if (c >= ' ' && c != '&' && c != '<' && c != '>' && c != '"' && c < 0x7f) {
+				continue;
+			}
+
+			String entity = null;
+			int code = -1;
+
+			switch (c) {
+			case '&':
+				entity = "&amp;";
+				break;
+			case '<':
+				entity = "&lt;";
+				break;
+			case '>':
+				entity = "&gt;";
+				break;
+			case '"':
+				if (attribute) {
+					entity = "&quot;";
+				}
+				break;
+			case '\n':
+			case '\t':
+				if (attribute) {
+					code = c;
+				}
+				break;
+			default:
+				if (c < ' ' || (!attribute && c >= 0x7f && c <= 0x9f)) {
+					code = c;
+				}
+				else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1))) {
+					code = Character.toCodePoint(c, value.charAt(i + 1));
+				}
+				else if (encoder != null && c >= 0x80 && !encoder.canEncode(c)) {
+					code = c;
+				}
+			}
+
+			if (entity == null && code < 0) {
+				continue;
+			}
+
+			// Flush the plain run and write the reference
+			write(value, start, i);
+			if (entity != null) {
+				write(entity);
+			}
+			else {
+				write("&#");
+				write(Integer.toString(code));
+				write(';');
+				if (code > 0xffff) {
+					i++;
+				}
+			}
+			start = i + 1;
+		}
+		write(value, start, value.length());
+	}
+
+	/**
+	 * Writes a single character.
+	 *
+	 * @param c Character to write.
+	 * @throws IOException
+	 */
+	private void write(char c) throws IOException
+	{
+		if (length == buffer.length) {
+			flushBuffer();
+		}
+		buffer[length++] = c;
+	}
+
+	/**
+	 * Writes a string.
+	 *
+	 * @param value String to write.
+	 * @throws IOException
+	 */
+	private void write(String value) throws IOException
+	{
+		write(value, 0, value.length());
+	}
+
+	/**
+	 * Writes part of a string.
+	 *
+	 * @param value String to write.
+	 * @param start Index of the first character.
+	 * @param end Index after the last character.
+	 * @throws IOException
+	 */
+	private void write(String value, int start, int end) throws IOException
+	{
+		while (start < end) {
+			if (length == buffer.length) {
+				flushBuffer();
+			}
+			int count = Math.min(end - start, buffer.length - length);
+			value.getChars(start, start + count, buffer, length);
+			length += count;
+			start += count;
+		}
+	}
+
+	/**
+	 * Hands the buffered characters to the target.
+	 *
+	 * @throws IOException
+	 */
+	private void flushBuffer() throws IOException
+	{
+		if (length > 0) {
+			if (out != null) {
+				out.write(buffer, 0, length);
+			}
+			else {
+				builder.append(buffer, 0, length);
+			}
+			length = 0;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml;
+import static org.junit.Assert.*;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.Test;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+public class XDocSerializerTest
+{
+	@Test
+	public void compactOutput()
+	{
+		XDoc doc = new XDoc("a").start("b").elem("c", "1").start("d").end().end().value("mixed").elem("e", "2");
+		
+		assertEquals("<a><b><c>1</c><d/></b>mixed<e>2</e></a>", doc.toString());
+		assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><a><b><c>1</c><d/></b>mixed<e>2</e></a>", doc.toString(true));
+	}
+	
+	@Test
+	public void prettyOutput()
+	{
+		XDoc doc = new XDoc("a").start("b").elem("c", "1").start("d").end().end().value("mixed").elem("e", "2");
+		
+		assertEquals(
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?><a>\n" +
+			"    <b>\n" +
+			"        <c>1</c>\n" +
+			"        <d/>\n" +
+			"    </b>\n" +
+			"    mixed\n" +
+			"    <e>2</e>\n" +
+			"</a>\n",
+			doc.toPrettyString()
+		);
+	}
+	
+	@Test
+	public void escaping()
+	{
+		XDoc doc = new XDoc("t").attr("q", "\"<&>\n\t").value("a<b>&c\r\u0085");
+		
+		assertEquals("<t q=\"&quot;&lt;&amp;&gt;&#10;&#9;\">a&lt;b&gt;&amp;c&#13;&#133;</t>", doc.toString());
+	}
+	
+	@Test
+	public void cDataSplitsTerminator()
+	{
+		XDoc doc = new XDoc("t").cDataSection("a]]>b").cDataSection("");
+		
+		assertEquals("<t><![CDATA[a]]]]><![CDATA[>b]]></t>", doc.toString());
+	}
+	
+	@Test
+	public void commentDashes() throws ParserConfigurationException
+	{
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		
+		assertEquals("<!--a- -b-->", XDocSerializer.toString(doc.createComment("a--b"), false, false));
+		assertEquals("<!--a- - -b-->", XDocSerializer.toString(doc.createComment("a---b"), false, false));
+		assertEquals("<!--- - - - -->", XDocSerializer.toString(doc.createComment("----"), false, false));
+		assertEquals("<!--a- -->", XDocSerializer.toString(doc.createComment("a-"), false, false));
+		
+		// Written comments parse back
+		XDoc parsed = XDoc.load("<r>" + XDocSerializer.toString(doc.createComment("x----y-"), false, false) + "</r>");
+		assertEquals("x- - - -y- ", parsed.asNode().getFirstChild().getNodeValue());
+	}
+	
+	@Test
+	public void repeatedAttributes() throws ParserConfigurationException
+	{
+		XDoc doc = new XDoc("r").attr("k", "1").attr("k", "2");
+		assertEquals("<r k=\"2\"/>", doc.toString());
+		assertEquals(doc.toString(), XDoc.load(doc.toString()).toString());
+		
+		doc = XDoc.load("<r><b k='v'/></r>");
+		doc.at("b").attr("k", "v2");
+		assertEquals("<r><b k=\"v2\"/></r>", doc.toString());
+		assertEquals(doc, XDoc.load(doc.toString()));
+		
+		// Only the first of several attributes of one name in a DOM is written
+		Document dom = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		Element root = dom.createElement("r");
+		for (String value : new String[] { "1", "2" }) {
+			Attr attribute = dom.createAttribute("k");
+			attribute.setValue(value);
+			root.getAttributes().setNamedItemNS(attribute);
+		}
+		String xml = XDocSerializer.toString(root, false, false);
+		assertEquals(1, xml.split("k=", -1).length - 1);
+		assertNotNull(XDoc.load(xml));
+	}
+	
+	@Test
+	public void namespacesAreDeclared() throws ParserConfigurationException, IOException
+	{
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		Element root = doc.createElementNS("urn:x", "r");
+		Element child = doc.createElementNS("urn:y", "p:c");
+		child.setAttributeNS("urn:z", "z:att", "1");
+		root.appendChild(child);
+		root.appendChild(doc.createElementNS("urn:x", "same"));
+		root.appendChild(doc.createElementNS(null, "none"));
+		doc.appendChild(root);
+		
+		String body = "<r xmlns=\"urn:x\"><p:c xmlns:z=\"urn:z\" z:att=\"1\" xmlns:p=\"urn:y\"/><same/><none xmlns=\"\"/></r>";
+		assertEquals(body, XDocSerializer.toString(root, false, false));
+		
+		StringWriter writer = new StringWriter();
+		XDocSerializer.write(root, true, false, StandardCharsets.ISO_8859_1, writer);
+		assertEquals("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>" + body, writer.toString());
+	}
+	
+	@Test
+	public void emptyDocument()
+	{
+		XDoc doc = new XDoc("a").at("missing");
+		
+		assertEquals("", doc.toString());
+		assertEquals("", doc.toPrettyString());
+	}
+}
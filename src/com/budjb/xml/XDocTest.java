@@ -17,6 +17,30 @@
 package com.budjb.xml;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -56,6 +80,47 @@ public class XDocTest
 		assertEquals("Cool", testDoc.at(4).getContents());
 	}
 	
+	@Test
+	public void elementAccessIndexedOutOfRange()
+	{
+		assertTrue(testDoc.at(-1).isEmpty());
+		assertTrue(testDoc.at(9).isEmpty());
+	}
+	
+	@Test
+	public void elementAccessIndexedWalksSiblings()
+	{
+		XDoc child = testDoc.at(1);
+		assertEquals("bold", child.getName());
+		assertEquals(7, child.length());
+		assertEquals("!", child.getNext().asText());
+		assertEquals("Hello ", child.getFirst().asText());
+		assertEquals(7, child.toList().size());
+		assertEquals("struct", child.toList().get(6).getName());
+	}
+	
+	@Test
+	public void elementAccessIndexedLargeLoop()
+	{
+		XDoc doc = new XDoc("root");
+		for (int i = 0; i < 50000; i++) {
+			doc.elem("item", i);
+		}
+		for (int i = 0; i < 50000; i++) {
+			assertEquals(String.valueOf(i), doc.at(i).asText());
+		}
+	}
+	
+	@Test
+	public void elementAccessIndexedReplace()
+	{
+		XDoc doc = new XDoc("root").elem("a", "1").elem("b", "2");
+		XDoc child = doc.at(0).replace(new XDoc("c").value("3"));
+		assertEquals("c", child.getName());
+		assertEquals("b", child.getNext().getName());
+		assertEquals("<root><c>3</c><b>2</b></root>", doc.toString());
+	}
+	
 	@Test
 	public void elementAccessXPathFirst()
 	{
@@ -164,6 +229,127 @@ public class XDocTest
 		assertEquals(xml, XDoc.load(xml).toString());
 	}
 	
+	@Test
+	public void loadXmlLeadingGarbage()
+	{
+		assertEquals("<root/>", XDoc.load("  \ufeff<root/>").toString());
+		assertEquals("<root/>", XDoc.load("\n\t<root/>").toString());
+		assertEquals("<root>\u00e9</root>", XDoc.load("<root>\u00e9</root>").toString());
+	}
+	
+	@Test
+	public void loadStream()
+	{
+		byte[] bytes = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><root>\u00e9</root>".getBytes(StandardCharsets.ISO_8859_1);
+		assertEquals("<root>\u00e9</root>", XDoc.load(new ByteArrayInputStream(bytes)).toString());
+		assertTrue(XDoc.load(new ByteArrayInputStream(new byte[0])).isEmpty());
+	}
+	
+	@Test
+	public void loadLeavesSourcesOpen()
+	{
+		boolean[] closed = new boolean[2];
+		InputStream in = new ByteArrayInputStream("<root/>".getBytes(StandardCharsets.UTF_8)) {
+			@Override
+			public void close()
+			{
+				closed[0] = true;
+			}
+		};
+		Reader reader = new StringReader("<root/>") {
+			@Override
+			public void close()
+			{
+				closed[1] = true;
+			}
+		};
+		
+		assertEquals("<root/>", XDoc.load(in).toString());
+		assertEquals("<root/>", XDoc.load(reader).toString());
+		assertFalse(closed[0]);
+		assertFalse(closed[1]);
+	}
+	
+	@Test
+	public void loadBytes()
+	{
+		byte[] bytes = "xx\ufeff<root>\u00e9</root>yy".getBytes(StandardCharsets.UTF_8);
+		assertEquals("<root>\u00e9</root>", XDoc.load(bytes, 2, bytes.length - 4).toString());
+		
+		bytes = "<root>\u00e9</root>".getBytes(StandardCharsets.UTF_16);
+		assertEquals("<root>\u00e9</root>", XDoc.load(bytes, 0, bytes.length).toString());
+	}
+	
+	@Test
+	public void loadByteBuffer()
+	{
+		byte[] bytes = "<root><a/></root>".getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes).flip();
+		assertEquals("<root><a/></root>", XDoc.load(buffer).toString());
+		assertEquals(0, buffer.position());
+		
+		assertEquals("<a/>", XDoc.load(ByteBuffer.wrap(bytes, 6, 4)).toString());
+	}
+	
+	@Test
+	public void loadReader()
+	{
+		assertEquals("<root>\u00e9</root>", XDoc.load(new StringReader(" <?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><root>\u00e9</root>")).toString());
+	}
+	
+	@Test
+	public void loadPath() throws IOException
+	{
+		Path path = Files.createTempFile("xdoc", ".xml");
+		try {
+			Files.write(path, "<root>\u00e9</root>".getBytes(StandardCharsets.UTF_8));
+			assertEquals("<root>\u00e9</root>", XDoc.load(path).toString());
+		}
+		finally {
+			Files.delete(path);
+		}
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void loadMissingPath()
+	{
+		XDoc.load(Paths.get("missing", "xdoc.xml"));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void loadMissingPathMapped()
+	{
+		XDoc.load(Paths.get("missing", "xdoc.xml"), new LoadOptions());
+	}
+	
+	@Test
+	public void loadPathMapped() throws IOException
+	{
+		Path path = Files.createTempFile("xdoc", ".xml");
+		try {
+			XDoc doc = new XDoc("root");
+			for (int i = 0; i < 10000; i++) {
+				doc.elem("item", "\u00e9" + i);
+			}
+			Files.write(path, ("\ufeff" + doc.toString(true)).getBytes(StandardCharsets.UTF_8));
+			
+			assertEquals(doc.toString(), XDoc.load(path, new LoadOptions().setMapThreshold(0)).toString());
+			assertEquals(doc.toString(), XDoc.load(path, new LoadOptions().setMemoryMapped(false)).toString());
+			assertEquals(doc.toString(), XDoc.load(path, null).toString());
+			try {
+				XDoc.load(path, new LoadOptions().setMaxSize(1024));
+				fail();
+			}
+			catch (IllegalArgumentException e) {
+				assertEquals("file is " + Files.size(path) + " bytes, over the limit of 1024", e.getMessage());
+			}
+		}
+		finally {
+			Files.delete(path);
+		}
+	}
+	
 	@Test
 	public void renderXml()
 	{
@@ -560,4 +746,379 @@ public class XDocTest
 	{
 		assertNull(XDoc.empty.asInnerText());
 	}
+
+	@Test
+	public void iterateSelection()
+	{
+		StringBuilder names = new StringBuilder();
+		for (XDoc item : testDoc.at("*")) {
+			names.append(item.getName()).append(' ');
+		}
+		assertEquals("bold br bold span struct ", names.toString());
+	}
+	
+	@Test
+	public void iterateEmpty()
+	{
+		assertFalse(XDoc.empty.iterator().hasNext());
+		assertEquals(0, XDoc.empty.stream().count());
+	}
+	
+	@Test
+	public void streamSelection()
+	{
+		assertEquals("World,Cool", testDoc.at("bold").stream().map(XDoc::getContents).collect(Collectors.joining(",")));
+	}
+	
+	@Test
+	public void streamChildSelection()
+	{
+		assertEquals(7, testDoc.at(3).stream().count());
+	}
+	
+	@Test
+	public void parallelStreamSelection()
+	{
+		XDoc doc = new XDoc("root");
+		for (int i = 0; i < 1000; i++) {
+			doc.elem("item", i);
+		}
+		Spliterator<XDoc> spliterator = doc.at("item").spliterator();
+		assertEquals(1000, spliterator.getExactSizeIfKnown());
+		assertEquals(500, spliterator.trySplit().getExactSizeIfKnown());
+		assertFalse(doc.at("item").parallelStream().isParallel());
+		assertTrue(doc.freeze().at("item").parallelStream().isParallel());
+		assertEquals(499500L, doc.freeze().at("item").parallelStream().mapToLong(XDoc::asLong).sum());
+	}
+	
+	@Test
+	public void writeToWriter() throws IOException
+	{
+		StringWriter writer = new StringWriter();
+		testDoc.writeTo(writer);
+		assertEquals(testDoc.toString(), writer.toString());
+		
+		writer = new StringWriter();
+		testDoc.writeTo(writer, true);
+		assertEquals(testDoc.toString(true), writer.toString());
+		
+		writer = new StringWriter();
+		testDoc.writePrettyTo(writer);
+		assertEquals(testDoc.toPrettyString(), writer.toString());
+	}
+	
+	@Test
+	public void writeToStream() throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		testDoc.writeTo(out, StandardCharsets.UTF_8, true);
+		assertEquals(testDoc.toString(true), new String(out.toByteArray(), StandardCharsets.UTF_8));
+		
+		out = new ByteArrayOutputStream();
+		testDoc.at("span").writeTo(out, StandardCharsets.US_ASCII, true);
+		assertEquals("<span>Ce&#231;i est \"une\" id&#233;e</span>", new String(out.toByteArray(), StandardCharsets.US_ASCII));
+		
+		out = new ByteArrayOutputStream();
+		testDoc.writePrettyTo(out, StandardCharsets.ISO_8859_1);
+		assertEquals(testDoc.toPrettyString().replace("UTF-8", "ISO-8859-1"), new String(out.toByteArray(), StandardCharsets.ISO_8859_1));
+	}
+	
+	@Test
+	public void writeToChannel() throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		XDoc doc = new XDoc("root");
+		for (int i = 0; i < 5000; i++) {
+			doc.elem("item", i);
+		}
+		doc.writeTo(Channels.newChannel(out));
+		assertEquals(doc.toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void writeToEmpty() throws IOException
+	{
+		StringWriter writer = new StringWriter();
+		testDoc.at("missing").writeTo(writer, true);
+		assertEquals("", writer.toString());
+	}
+	
+	@Test
+	public void writeToChecksArguments() throws IOException
+	{
+		try {
+			testDoc.writeTo((OutputStream)null, StandardCharsets.UTF_8, true);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals("out", e.getMessage());
+		}
+		try {
+			testDoc.writePrettyTo(new ByteArrayOutputStream(), null);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals("charset", e.getMessage());
+		}
+		try {
+			testDoc.writeTo((WritableByteChannel)null, StandardCharsets.UTF_8, false);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals("channel", e.getMessage());
+		}
+	}
+	
+	@Test
+	public void typedAccessors()
+	{
+		XDoc doc = new XDoc("root").attr("count", " 12 ").elem("price", "19.99").elem("flag", "1").elem("big", "12345678901").elem("bad", "n/a");
+		
+		assertEquals(12, doc.at("@count").asInt());
+		assertEquals(19.99, doc.at("price").asDouble(), 0);
+		assertEquals(new BigDecimal("19.99"), doc.at("price").asDecimal());
+		assertEquals(19.99f, doc.at("price").asFloat(), 0);
+		assertTrue(doc.at("flag").asBoolean());
+		assertEquals(12345678901L, doc.at("big").asLong());
+		assertEquals(12, doc.at("@count").asShort());
+		assertEquals(12, doc.at("@count").asByte());
+	}
+	
+	@Test
+	public void typedAccessorsDefaults()
+	{
+		XDoc doc = new XDoc("root").elem("big", "12345678901").elem("bad", "n/a").start("mixed").value("1").start("b").end().end();
+		
+		assertEquals(-1, doc.at("big").asInt(-1));
+		assertEquals(-1, doc.at("bad").asLong(-1));
+		assertEquals(-1, doc.at("bad").asDouble(-1), 0);
+		assertEquals(BigDecimal.ONE, doc.at("bad").asDecimal(BigDecimal.ONE));
+		assertTrue(doc.at("bad").asBoolean(true));
+		assertEquals(-1, doc.at("missing").asInt(-1));
+		assertEquals(1, doc.at("mixed").asInt(-1));
+	}
+	
+	@Test(expected = NumberFormatException.class)
+	public void typedAccessorsStrict()
+	{
+		new XDoc("root").elem("bad", "n/a").at("bad").asInt();
+	}
+	
+	@Test
+	public void dateValues()
+	{
+		Date date = new Date(1341059696000L);
+		XDoc doc = new XDoc("root").attr("at", date).start("date").value(date).end();
+		
+		assertEquals(date, doc.at("@at").asDate());
+		assertEquals(date, doc.at("date").asDate());
+		assertEquals(date.toInstant(), doc.at("date").asInstant());
+	}
+	
+	@Test
+	public void timeValues()
+	{
+		Instant instant = Instant.parse("2012-06-30T12:34:56.789Z");
+		OffsetDateTime offset = OffsetDateTime.parse("2012-06-30T14:34:56+02:00");
+		LocalDate day = LocalDate.parse("2012-06-30");
+		XDoc doc = new XDoc("root").attr("at", instant).start("offset").value(offset).end().start("day").value(day).end();
+		
+		assertEquals("<root at=\"2012-06-30T12:34:56.789Z\"><offset>2012-06-30T14:34:56+02:00</offset><day>2012-06-30</day></root>", doc.toString());
+		assertEquals(instant, doc.at("@at").asInstant());
+		assertEquals(offset, doc.at("offset").asOffsetDateTime());
+		assertEquals(offset.toInstant(), doc.at("offset").asInstant());
+		assertEquals(day, doc.at("day").asLocalDate());
+		assertNull(doc.at("day").asOffsetDateTime());
+		assertNull(doc.at("missing").asInstant());
+		
+		doc.at("day").addBefore(instant).addAfter(day).replace(offset);
+		assertEquals("<root at=\"2012-06-30T12:34:56.789Z\"><offset>2012-06-30T14:34:56+02:00</offset>2012-06-30T12:34:56.789Z2012-06-30T14:34:56+02:002012-06-30</root>", doc.toString());
+	}
+	
+	@Test
+	public void extractColumns()
+	{
+		XDoc doc = new XDoc("trades");
+		for (int i = 0; i < 10; i++) {
+			doc.start("trade").attr("id", i).elem("price", i + 0.5).start("qty").elem("lots", i * 100).end().end();
+		}
+		doc.start("trade").elem("price", "n/a").end();
+		XDoc trades = doc.at("trade");
+		
+		double[] prices = trades.extractDoubles("price");
+		assertEquals(11, prices.length);
+		assertEquals(3.5, prices[3], 0);
+		assertTrue(Double.isNaN(prices[10]));
+		
+		long[] ids = trades.extractLongs("@id", -1, false);
+		assertEquals(9, ids[9]);
+		assertEquals(-1, ids[10]);
+		
+		assertEquals(700, trades.extractLongs("qty/lots")[7]);
+		assertEquals(700, trades.extractLongs("qty/*[1]")[7]);
+		assertEquals(700, trades.extractLongs("descendant::lots")[7]);
+		assertEquals("n/a", trades.extractStrings("price")[10]);
+		assertNull(trades.extractStrings("qty")[10]);
+		assertEquals("2.5", doc.at("trade/price").extractStrings(".")[2]);
+		assertEquals(0, doc.at("missing").extractDoubles("price").length);
+	}
+	
+	@Test
+	public void extractColumnsParallel()
+	{
+		XDoc doc = new XDoc("trades");
+		for (int i = 0; i < 20000; i++) {
+			doc.start("trade").elem("price", i * 0.25).elem("qty", i).end();
+		}
+		
+		double[] prices = doc.at("trade").extractDoubles("price", Double.NaN, true);
+		long[] quantities = doc.at("trade").extractLongs("qty", -1, true);
+		for (int i = 0; i < 20000; i++) {
+			assertEquals(i * 0.25, prices[i], 0);
+			assertEquals(i, quantities[i]);
+		}
+	}
+	
+	@Test
+	public void freeze() throws Exception
+	{
+		XDoc doc = XDoc.load("<config><item id=\"1\">a</item><item id=\"2\">b</item></config>");
+		XDoc frozen = doc.freeze();
+		
+		assertTrue(frozen.isFrozen());
+		assertFalse(doc.isFrozen());
+		assertSame(frozen, frozen.freeze());
+		assertEquals(doc.toString(), frozen.toString());
+		assertEquals("b", frozen.at("item[@id='2']").asText());
+		assertEquals(2, frozen.at("item").length());
+		assertEquals("a", frozen.at(0).getContents());
+		
+		// Changes to the original don't show through
+		doc.at("item").remove();
+		assertEquals("1", frozen.at("item/@id").asText());
+		assertEquals(2, frozen.at("item").length());
+		
+		// Everything taken from the snapshot is frozen too
+		for (XDoc item : frozen.at("item")) {
+			assertTrue(item.isFrozen());
+		}
+		assertTrue(frozen.at("item").getNext().isFrozen());
+		assertTrue(frozen.at("//item").isFrozen());
+		assertTrue(frozen.at("item").getParent().isFrozen());
+		assertTrue(new XDoc(frozen).isFrozen());
+		assertTrue(XDoc.createSelection(new XDoc[] { doc, frozen }).isFrozen());
+		assertFalse(frozen.clone().isFrozen());
+		
+		// Mutators fail fast
+		XDoc item = frozen.at("item");
+		try {
+			item.attr("x", "y");
+			fail();
+		}
+		catch (IllegalStateException e) {
+			assertEquals("xdoc is frozen", e.getMessage());
+		}
+		try {
+			frozen.start("x");
+			fail();
+		}
+		catch (IllegalStateException e) {
+		}
+		try {
+			item.remove();
+			fail();
+		}
+		catch (IllegalStateException e) {
+		}
+		try {
+			item.replace("z");
+			fail();
+		}
+		catch (IllegalStateException e) {
+		}
+	}
+	
+	@Test
+	public void frozenClone() throws Exception
+	{
+		XDoc template = XDoc.load("<config><item id=\"1\">a</item><item id=\"2\">b</item><!-- c --></config>").freeze();
+		
+		// Clones get a private, mutable copy of the template
+		XDoc clone = template.clone();
+		assertFalse(clone.isFrozen());
+		assertNotSame(template.asNode(), clone.asNode());
+		assertEquals(template.toString(), clone.toString());
+		assertEquals(" c ", clone.at(2).asNode().getNodeValue());
+		
+		// Nodes handed out by a clone don't reach the template
+		((Element)clone.asNode()).setAttribute("leak", "1");
+		clone.at("item[@id='2']").replaceValue("z");
+		assertEquals("<config leak=\"1\"><item id=\"1\">a</item><item id=\"2\">z</item><!-- c --></config>", clone.toString());
+		assertEquals("<config><item id=\"1\">a</item><item id=\"2\">b</item><!-- c --></config>", template.toString());
+		assertEquals(template.toString(), template.clone().toString());
+	}
+	
+	@Test
+	public void frozenConcurrentReads() throws Exception
+	{
+		XDoc doc = new XDoc("config");
+		for (int i = 0; i < 500; i++) {
+			doc.start("item").attr("id", i).elem("name", "n" + i).end();
+		}
+		final XDoc frozen = doc.freeze();
+		
+		// Many threads read the same snapshot
+		long total = java.util.stream.IntStream.range(0, 5000).parallel()
+			.mapToLong(i -> frozen.at("item[@id='" + (i % 500) + "']/name").asText().length() + frozen.at(i % 500).at("@id").asLong())
+			.sum();
+		
+		long expected = 0;
+		for (int i = 0; i < 5000; i++) {
+			expected += ("n" + (i % 500)).length() + (i % 500);
+		}
+		assertEquals(expected, total);
+	}
+	
+	@Test
+	public void structuralHash() throws Exception
+	{
+		String xml = "<config a=\"1\" b=\"2\"><item>x</item><!-- c --><item><![CDATA[y]]></item></config>";
+		XDoc doc = XDoc.load(xml);
+		XDoc same = XDoc.load(xml);
+		
+		// Equal documents hash alike, whichever way they were built
+		assertEquals(doc.hashCode(), same.hashCode());
+		assertEquals(doc.hashCode(), doc.clone().hashCode());
+		assertEquals(doc.hashCode(), doc.freeze().hashCode());
+		assertEquals(doc.at("item").hashCode(), same.at("item").hashCode());
+		assertEquals(0, XDoc.empty.hashCode());
+		
+		// Changes through any instance of the document refresh the hash
+		int before = doc.hashCode();
+		doc.at("item").replaceValue("z");
+		assertNotEquals(before, doc.hashCode());
+		assertFalse(doc.equals(same));
+		doc.at("item").replaceValue("x");
+		assertEquals(before, doc.hashCode());
+		assertTrue(doc.equals(same));
+		
+		// Attributes, names and values all count
+		assertNotEquals(doc.hashCode(), XDoc.load("<config a=\"1\" b=\"3\"><item>x</item><!-- c --><item><![CDATA[y]]></item></config>").hashCode());
+		assertNotEquals(doc.hashCode(), XDoc.load("<config a=\"1\" b=\"2\"><items>x</items><!-- c --><item><![CDATA[y]]></item></config>").hashCode());
+		assertNotEquals(doc.hashCode(), XDoc.load("<config a=\"1\" b=\"2\"><item>x</item><!-- d --><item><![CDATA[y]]></item></config>").hashCode());
+		
+		// Dedupe through a hash set
+		java.util.HashSet<XDoc> seen = new java.util.HashSet<XDoc>();
+		for (int i = 0; i < 100; i++) {
+			seen.add(XDoc.load("<message id=\"" + (i % 10) + "\"/>"));
+		}
+		assertEquals(10, seen.size());
+		
+		// Deep documents don't overflow the stack
+		XDoc deep = new XDoc("a");
+		for (int i = 0; i < 20000; i++) {
+			deep.start("a");
+		}
+		assertEquals(deep.hashCode(), deep.hashCode());
+	}
 }
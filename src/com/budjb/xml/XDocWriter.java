@@ -0,0 +1,580 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.budjb.xml;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Writes XML straight to a stream through the same fluent builder methods as XDoc, without
+ * building a DOM tree. Memory use depends on the nesting depth only, not on the document size.
+ *
+ * The output, including escaping and indention, is the same as building the document with XDoc
+ * and writing it with XDoc.writeTo(...) or XDoc.writePrettyTo(...). Since nothing is kept, the
+ * attributes of an element must be added before its contents, and the document has a single
+ * root element. Failures of the underlying stream are thrown as IllegalStateException.
+ *
+ * An XDocWriter is not thread-safe.
+ */
+public final class XDocWriter implements Closeable, Flushable
+{
+	/**
+	 * Serializer doing the escaping and indention.
+	 */
+	private final XDocSerializer serializer;
+
+	/**
+	 * Target writer.
+	 */
+	private final Writer out;
+
+	/**
+	 * Names of the open elements.
+	 */
+	private String[] names = new String[16];
+
+	/**
+	 * Number of open elements.
+	 */
+	private int depth;
+
+	/**
+	 * Whether the root element has been started.
+	 */
+	private boolean started;
+
+	/**
+	 * Whether the writer has been closed.
+	 */
+	private boolean closed;
+
+	/**
+	 * Creates a writer without a declaration or indention.
+	 *
+	 * @param out Writer to write to.
+	 */
+	public XDocWriter(Writer out)
+	{
+		this(out, null, false, false);
+	}
+
+	/**
+	 * Creates a writer.
+	 *
+	 * @param out Writer to write to.
+	 * @param charset Charset the writer encodes to, or null if unknown. Characters it cannot
+	 *                represent are written as character references.
+	 * @param decl Whether to start with the XML declaration.
+	 * @param indent Whether to indent the output.
+	 */
+	public XDocWriter(Writer out, Charset charset, boolean decl, boolean indent)
+	{
+		// Make sure we're given a target
+		if (out == null) {
+			throw new IllegalArgumentException("out");
+		}
+
+		this.out = out;
+		this.serializer = XDocSerializer.open(out, indent, charset);
+
+		if (decl) {
+			try {
+				serializer.startDocument(XDocSerializer.getEncoding(charset));
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("could not write xml", e);
+			}
+		}
+	}
+
+	/**
+	 * Creates a writer to a stream without a declaration or indention.
+	 *
+	 * @param out Stream to write to.
+	 * @param charset The charset to encode with.
+	 */
+	public XDocWriter(OutputStream out, Charset charset)
+	{
+		this(out, charset, false, false);
+	}
+
+	/**
+	 * Creates a writer to a stream.
+	 *
+	 * @param out Stream to write to.
+	 * @param charset The charset to encode with.
+	 * @param decl Whether to start with the XML declaration.
+	 * @param indent Whether to indent the output.
+	 */
+	public XDocWriter(OutputStream out, Charset charset, boolean decl, boolean indent)
+	{
+		this(toWriter(out, charset), charset, decl, indent);
+	}
+
+	/**
+	 * Wraps a stream in a writer.
+	 *
+	 * @param out Stream to write to.
+	 * @param charset The charset to encode with.
+	 * @return
+	 */
+	private static Writer toWriter(OutputStream out, Charset charset)
+	{
+		// Make sure we're given a target and a charset
+		if (out == null) {
+			throw new IllegalArgumentException("out");
+		}
+		if (charset == null) {
+			throw new IllegalArgumentException("charset");
+		}
+		return new OutputStreamWriter(out, charset);
+	}
+
+	/**
+	 * Starts a new element. The first element started is the root element. (e.g. <foo>)
+	 *
+	 * @param tag Element name.
+	 * @return
+	 */
+	public XDocWriter start(String tag)
+	{
+		return start(tag, null);
+	}
+
+	/**
+	 * Starts a new element in a namespace. The namespace is declared unless it is already in
+	 * scope for the element's prefix.
+	 *
+	 * @param tag Element name.
+	 * @param namespaceUri Element XML namespace.
+	 * @return
+	 */
+	public XDocWriter start(String tag, String namespaceUri)
+	{
+		// Make sure the tag isn't null
+		if (tag == null) {
+			throw new IllegalArgumentException("tag");
+		}
+
+		// Only one root element
+		checkOpen();
+		if (depth == 0 && started) {
+			throw new IllegalStateException("document already has a root element");
+		}
+
+		try {
+			serializer.startElement(tag, namespaceUri);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("could not write xml", e);
+		}
+
+		// Remember the name for the end tag
+		if (depth == names.length) {
+			names = Arrays.copyOf(names, depth * 2);
+		}
+		names[depth++] = tag;
+		started = true;
+
+		return this;
+	}
+
+	/**
+	 * Adds a complete child element.
+	 *
+	 * @param tag Element name.
+	 * @return
+	 */
+	public XDocWriter elem(String tag)
+	{
+		return start(tag).end();
+	}
+
+	/**
+	 * Adds a complete child element.
+	 *
+	 * @param tag Element name.
+	 * @param value Value to add.
+	 * @return
+	 */
+	public XDocWriter elem(String tag, Object value)
+	{
+		// Make sure value isn't null
+		if (value == null) {
+			return this;
+		}
+		return start(tag).value(value).end();
+	}
+
+	/**
+	 * Adds an attribute to the element just started.
+	 *
+	 * @param tag Attribute name.
+	 * @param value Value of the attribute.
+	 * @return
+	 */
+	public XDocWriter attr(String tag, String value)
+	{
+		// Make sure they gave us a tag
+		if (tag == null) {
+			throw new IllegalArgumentException("tag");
+		}
+		checkElement();
+
+		// Make sure they gave us a value
+		if (value == null) {
+			return this;
+		}
+
+		try {
+			serializer.attribute(tag, value);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("could not write xml", e);
+		}
+
+		return this;
+	}
+
+	/**
+	 * Adds an attribute to the element just started.
+	 *
+	 * @param tag Attribute name.
+	 * @param value Value of the attribute.
+	 * @return
+	 */
+	public XDocWriter attr(String tag, Object value)
+	{
+		return attr(tag, value.toString());
+	}
+
+	/**
+	 * Adds an attribute to the element just started.
+	 *
+	 * @param tag Attribute name.
+	 * @param value Date value of the attribute.
+	 * @return
+	 */
+	public XDocWriter attr(String tag, Date value)
+	{
+		return attr(tag, XDoc.formatDate(value));
+	}
+
+	/**
+	 * Adds an attribute to the element just started.
+	 *
+	 * @param tag Attribute name.
+	 * @param value Instant value of the attribute.
+	 * @return
+	 */
+	public XDocWriter attr(String tag, Instant value)
+	{
+		return attr(tag, DateTimeFormatter.ISO_INSTANT.format(value));
+	}
+
+	/**
+	 * Adds an attribute to the element just started.
+	 *
+	 * @param tag Attribute name.
+	 * @param value OffsetDateTime value of the attribute.
+	 * @return
+	 */
+	public XDocWriter attr(String tag, OffsetDateTime value)
+	{
+		return attr(tag, DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(value));
+	}
+
+	/**
+	 * Adds an attribute to the element just started.
+	 *
+	 * @param tag Attribute name.
+	 * @param value LocalDate value of the attribute.
+	 * @return
+	 */
+	public XDocWriter attr(String tag, LocalDate value)
+	{
+		return attr(tag, DateTimeFormatter.ISO_LOCAL_DATE.format(value));
+	}
+
+	/**
+	 * Adds text to the current element.
+	 *
+	 * @param value Value to add.
+	 * @return
+	 */
+	public XDocWriter value(String value)
+	{
+		checkElement();
+
+		// Make sure they gave us a value
+		if (value == null) {
+			return this;
+		}
+
+		try {
+			serializer.text(value);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("could not write xml", e);
+		}
+
+		return this;
+	}
+
+	/**
+	 * Adds text to the current element.
+	 *
+	 * @param value Value to add.
+	 * @return
+	 */
+	public XDocWriter value(Object value)
+	{
+		return value(value.toString());
+	}
+
+	/**
+	 * Adds text to the current element.
+	 *
+	 * @param value Value to add.
+	 * @return
+	 */
+	public XDocWriter value(Date value)
+	{
+		return value(XDoc.formatDate(value));
+	}
+
+	/**
+	 * Adds text to the current element.
+	 *
+	 * @param value Value to add.
+	 * @return
+	 */
+	public XDocWriter value(Instant value)
+	{
+		return value(DateTimeFormatter.ISO_INSTANT.format(value));
+	}
+
+	/**
+	 * Adds text to the current element.
+	 *
+	 * @param value Value to add.
+	 * @return
+	 */
+	public XDocWriter value(OffsetDateTime value)
+	{
+		return value(DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(value));
+	}
+
+	/**
+	 * Adds text to the current element.
+	 *
+	 * @param value Value to add.
+	 * @return
+	 */
+	public XDocWriter value(LocalDate value)
+	{
+		return value(DateTimeFormatter.ISO_LOCAL_DATE.format(value));
+	}
+
+	/**
+	 * Adds a CDATA section to the current element.
+	 *
+	 * @param value Contents of the CDATA section.
+	 * @return
+	 */
+	public XDocWriter cDataSection(String value)
+	{
+		checkElement();
+
+		// Make sure the value isn't empty
+		if (value == null) {
+			return this;
+		}
+
+		try {
+			serializer.cData(value);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("could not write xml", e);
+		}
+
+		return this;
+	}
+
+	/**
+	 * Adds a comment to the current element.
+	 *
+	 * @param value Comment text.
+	 * @return
+	 */
+	public XDocWriter comment(String value)
+	{
+		checkElement();
+
+		// Make sure the value isn't empty
+		if (value == null) {
+			return this;
+		}
+
+		try {
+			serializer.comment(value);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("could not write xml", e);
+		}
+
+		return this;
+	}
+
+	/**
+	 * Adds a copy of an XDoc instance to the current element. Like XDoc.add(), the whole document is
+	 * added from its root, wherever the instance's cursor is.
+	 *
+	 * @param doc XDoc instance to add.
+	 * @return
+	 */
+	public XDocWriter add(XDoc doc)
+	{
+		checkElement();
+
+		// Check for null or empty doc
+		if (doc == null || doc.isEmpty()) {
+			return this;
+		}
+
+		try {
+			serializer.node(doc.getRootNode());
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("could not write xml", e);
+		}
+
+		return this;
+	}
+
+	/**
+	 * Ends the current element. (e.g. </foo>)
+	 *
+	 * @return
+	 */
+	public XDocWriter end()
+	{
+		checkElement();
+
+		try {
+			serializer.endElement(names[--depth]);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("could not write xml", e);
+		}
+		names[depth] = null;
+
+		return this;
+	}
+
+	/**
+	 * Ends every open element except the root element.
+	 *
+	 * @return
+	 */
+	public XDocWriter endAll()
+	{
+		checkElement();
+
+		// Close tags until we reach the root
+		while (depth > 1) {
+			end();
+		}
+
+		return this;
+	}
+
+	/**
+	 * Returns the number of open elements.
+	 *
+	 * @return
+	 */
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * Hands everything written so far to the target and flushes it.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		checkOpen();
+		serializer.flush();
+	}
+
+	/**
+	 * Ends every open element, including the root element, and closes the target.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (closed) {
+			return;
+		}
+
+		try {
+			while (depth > 0) {
+				serializer.endElement(names[--depth]);
+			}
+			serializer.endDocument();
+		}
+		finally {
+			closed = true;
+			out.close();
+		}
+	}
+
+	/**
+	 * Makes sure the writer has not been closed.
+	 */
+	private void checkOpen()
+	{
+		if (closed) {
+			throw new IllegalStateException("writer is closed");
+		}
+	}
+
+	/**
+	 * Makes sure there is an open element to write into.
+	 */
+	private void checkElement()
+	{
+		checkOpen();
+		if (depth == 0) {
+			throw new IllegalStateException("no open element");
+		}
+	}
+}
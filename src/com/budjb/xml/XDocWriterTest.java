@@ -0,0 +1,126 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.budjb.xml;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+public class XDocWriterTest
+{
+	private static XDoc build()
+	{
+		return new XDoc("a").attr("id", "x\"y").start("b").elem("c", "1 < 2").start("d").end().end()
+			.value("mixed & text").cDataSection("raw ]]> data").elem("e", Instant.parse("2012-06-30T12:00:00Z"));
+	}
+	
+	private static XDocWriter build(XDocWriter writer)
+	{
+		return writer.start("a").attr("id", "x\"y").start("b").elem("c", "1 < 2").start("d").end().end()
+			.value("mixed & text").cDataSection("raw ]]> data").elem("e", Instant.parse("2012-06-30T12:00:00Z"));
+	}
+	
+	@Test
+	public void matchesXDoc() throws Exception
+	{
+		StringWriter out = new StringWriter();
+		build(new XDocWriter(out)).close();
+		
+		assertEquals(build().toString(), out.toString());
+	}
+	
+	@Test
+	public void matchesPrettyXDoc() throws Exception
+	{
+		StringWriter out = new StringWriter();
+		build(new XDocWriter(out, StandardCharsets.UTF_8, true, true)).close();
+		
+		assertEquals(build().toPrettyString(), out.toString());
+	}
+	
+	@Test
+	public void encodesStream() throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		XDocWriter writer = new XDocWriter(out, StandardCharsets.US_ASCII, true, false);
+		writer.start("a").value("caf\u00e9").end();
+		writer.flush();
+		
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new XDoc("a").value("caf\u00e9").writeTo(expected, StandardCharsets.US_ASCII, true);
+		
+		assertEquals("<?xml version=\"1.0\" encoding=\"US-ASCII\"?><a>caf&#233;</a>", new String(out.toByteArray(), StandardCharsets.US_ASCII));
+		assertEquals(new String(expected.toByteArray(), StandardCharsets.US_ASCII), new String(out.toByteArray(), StandardCharsets.US_ASCII));
+	}
+	
+	@Test
+	public void namespaces() throws Exception
+	{
+		StringWriter out = new StringWriter();
+		new XDocWriter(out).start("a", "urn:a").attr("xmlns:p", "urn:p").start("p:b", "urn:p").elem("c").end().close();
+		
+		assertEquals("<a xmlns=\"urn:a\" xmlns:p=\"urn:p\"><p:b><c/></p:b></a>", out.toString());
+	}
+	
+	@Test
+	public void addAndEndAll() throws Exception
+	{
+		StringWriter out = new StringWriter();
+		XDocWriter writer = new XDocWriter(out).start("a").start("b").start("c");
+		writer.add(new XDoc("d").elem("e", "f")).endAll();
+		
+		assertEquals(1, writer.getDepth());
+		writer.close();
+		assertEquals(0, writer.getDepth());
+		assertEquals("<a><b><c><d><e>f</e></d></c></b></a>", out.toString());
+	}
+	
+	@Test
+	public void addWritesRoot() throws Exception
+	{
+		XDoc part = new XDoc("r").start("x").value("1").end().start("y");
+		
+		StringWriter out = new StringWriter();
+		new XDocWriter(out).start("root").add(part).close();
+		
+		assertEquals(new XDoc("root").add(part).toString(), out.toString());
+		assertEquals("<root><r><x>1</x><y/></r></root>", out.toString());
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void attributeAfterContent()
+	{
+		new XDocWriter(new StringWriter()).start("a").value("b").attr("c", "d");
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void secondRoot()
+	{
+		new XDocWriter(new StringWriter()).elem("a").start("b");
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void endWithoutElement()
+	{
+		new XDocWriter(new StringWriter()).end();
+	}
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of compiled XPath expressions keyed by their expression text.
+ *
+ * JAXP does not guarantee that XPath or XPathExpression instances are safe to share between
+ * threads, so each thread keeps its own XPath instance and its own LRU table of compiled
+ * expressions. The hit and miss counters are shared across all threads.
+ */
+public final class XPathCache
+{
+	/**
+	 * Default number of compiled expressions kept per thread.
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * Maximum number of compiled expressions kept per thread.
+	 */
+	private volatile int capacity;
+
+	/**
+	 * Number of lookups that found a compiled expression.
+	 */
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * Number of lookups that had to compile the expression.
+	 */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Number of compiled expressions dropped from a full table.
+	 */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Per-thread XPath instance, created once per thread.
+	 */
+	private final ThreadLocal<XPath> xpath = new ThreadLocal<XPath>() {
+		@Override
+		protected XPath initialValue()
+		{
+			return XPathFactory.newInstance().newXPath();
+		}
+	};
+
+	/**
+	 * Incremented by clear(); tables filled before that are emptied on their next use.
+	 */
+	private final AtomicInteger generation = new AtomicInteger();
+
+	/**
+	 * Per-thread LRU table of compiled expressions.
+	 */
+	private final ThreadLocal<Table> expressions = new ThreadLocal<Table>() {
+		@Override
+		protected Table initialValue()
+		{
+			return new Table(generation.get());
+		}
+	};
+
+	/**
+	 * LRU table of one thread's compiled expressions, eldest first.
+	 */
+	private static final class Table extends LinkedHashMap<String, XPathExpression>
+	{
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Generation of the cache the table was last cleared in.
+		 */
+		int generation;
+
+		/**
+		 * Creates an empty table.
+		 *
+		 * @param generation Current generation of the cache.
+		 */
+		Table(int generation)
+		{
+			super(16, 0.75f, true);
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * Creates a new cache with the default capacity.
+	 */
+	public XPathCache()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new cache with the given capacity.
+	 *
+	 * @param capacity Maximum number of compiled expressions kept per thread.
+	 */
+	public XPathCache(int capacity)
+	{
+		setCapacity(capacity);
+	}
+
+	/**
+	 * Returns the compiled form of the given expression, compiling it on a miss.
+	 *
+	 * @param path XPath 1.0 expression.
+	 * @return The compiled expression. Only use it on the calling thread.
+	 * @throws XPathExpressionException If the expression could not be compiled.
+	 */
+	public XPathExpression compile(String path) throws XPathExpressionException
+	{
+		// Make sure we're given a path
+		if (path == null) {
+			throw new IllegalArgumentException("path");
+		}
+
+		// Check this thread's table, unless the cache was cleared since it was filled
+		Table table = expressions.get();
+		int current = generation.get();
+		if (table.generation != current) {
+			table.clear();
+			table.generation = current;
+		}
+		XPathExpression expression = table.get(path);
+
+		if (expression != null) {
+			hits.incrementAndGet();
+			return expression;
+		}
+
+		// Compile and remember it; failures are not cached
+		misses.incrementAndGet();
+		expression = xpath.get().compile(path);
+		table.put(path, expression);
+
+		// Drop the least recently used expressions, more than one if the capacity was lowered
+		Iterator<String> eldest = table.keySet().iterator();
+		while (table.size() > capacity) {
+			eldest.next();
+			eldest.remove();
+			evictions.incrementAndGet();
+		}
+
+		return expression;
+	}
+
+	/**
+	 * Returns the XPath instance owned by the calling thread.
+	 *
+	 * @return
+	 */
+	public XPath getXPath()
+	{
+		return xpath.get();
+	}
+
+	/**
+	 * Returns the maximum number of compiled expressions kept per thread.
+	 *
+	 * @return
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Sets the maximum number of compiled expressions kept per thread. Each table that is
+	 * over the new capacity shrinks to it on its thread's next insert.
+	 *
+	 * @param capacity New capacity. Must be positive.
+	 */
+	public void setCapacity(int capacity)
+	{
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity");
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the number of lookups that found a compiled expression.
+	 *
+	 * @return
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups that had to compile the expression.
+	 *
+	 * @return
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of compiled expressions evicted from a full table.
+	 *
+	 * @return
+	 */
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * Drops the compiled expressions of every thread and resets the counters. The tables of
+	 * other threads are emptied the next time those threads use the cache.
+	 */
+	public void clear()
+	{
+		generation.incrementAndGet();
+		expressions.get().clear();
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml;
+import static org.junit.Assert.*;
+
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class XPathCacheTest
+{
+	@Test
+	public void repeatedCompileHitsCache() throws XPathExpressionException
+	{
+		XPathCache cache = new XPathCache();
+		XPathExpression first = cache.compile("a/b");
+		XPathExpression second = cache.compile("a/b");
+		
+		assertSame(first, second);
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+	}
+	
+	@Test
+	public void leastRecentlyUsedIsEvicted() throws XPathExpressionException
+	{
+		XPathCache cache = new XPathCache(2);
+		XPathExpression a = cache.compile("a");
+		cache.compile("b");
+		cache.compile("a");
+		cache.compile("c");
+		
+		assertEquals(1, cache.getEvictions());
+		assertSame(a, cache.compile("a"));
+		cache.compile("b");
+		assertEquals(2, cache.getHits());
+		assertEquals(4, cache.getMisses());
+	}
+	
+	@Test
+	public void loweredCapacityShrinksTable() throws XPathExpressionException
+	{
+		XPathCache cache = new XPathCache(4);
+		for (String path : new String[] { "a", "b", "c", "d" }) {
+			cache.compile(path);
+		}
+		cache.setCapacity(1);
+		XPathExpression e = cache.compile("e");
+		
+		assertEquals(4, cache.getEvictions());
+		assertSame(e, cache.compile("e"));
+		cache.compile("d");
+		assertEquals(6, cache.getMisses());
+	}
+	
+	@Test
+	public void clearAffectsEveryThread() throws Exception
+	{
+		XPathCache cache = new XPathCache();
+		ExecutorService other = Executors.newSingleThreadExecutor();
+		try {
+			XPathExpression first = other.submit(() -> cache.compile("a")).get();
+			cache.compile("a");
+			cache.clear();
+			
+			// The other thread's table is emptied too
+			assertNotSame(first, other.submit(() -> cache.compile("a")).get());
+			assertEquals(0, cache.getHits());
+			assertEquals(1, cache.getMisses());
+		}
+		finally {
+			other.shutdown();
+		}
+	}
+	
+	@Test(expected = XPathExpressionException.class)
+	public void invalidExpressionThrows() throws XPathExpressionException
+	{
+		new XPathCache().compile("a[");
+	}
+	
+	@Test
+	public void atPathUsesCache()
+	{
+		XDoc doc = new XDoc("root").start("a").elem("b", "1").end();
+		long hits = XDoc.getXPathCache().getHits();
+		
+		assertEquals("1", doc.atPath("a/b").asText());
+		assertEquals("1", doc.atPath("a/b").asText());
+		assertTrue(XDoc.getXPathCache().getHits() > hits);
+	}
+}
@@ -0,0 +1,499 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml.bind;
+
+import com.budjb.xml.XDoc;
+import com.budjb.xml.XDocPath;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Maps XDoc instances onto annotated Java classes.
+ *
+ * A class is bound either through its constructor, when it has exactly one constructor whose
+ * parameters are all annotated, or through its no-argument constructor followed by its annotated
+ * fields. Fields must not be static or final. Supported types are String, the primitive types and
+ * their wrappers, BigDecimal, Instant, OffsetDateTime, LocalDate, Date, XDoc (the selection
+ * itself), other bindable classes, and Lists of any of these. A List gets every selected node.
+ * A path that selects nothing leaves a field untouched and passes null, zero, false or an empty
+ * List to a constructor.
+ *
+ * The paths, converters and method handles of each class are worked out once and cached, so a
+ * bind only evaluates paths and invokes handles.
+ */
+public final class XDocBinder
+{
+	/**
+	 * Cached binding plan per class.
+	 */
+	private static final ClassValue<Binding> bindings = new ClassValue<Binding>() {
+		@Override
+		protected Binding computeValue(Class<?> type)
+		{
+			return new Binding(type);
+		}
+	};
+
+	private XDocBinder()
+	{
+	}
+
+	/**
+	 * Binds an XDoc to a new instance of a class.
+	 *
+	 * @param doc The XDoc to bind.
+	 * @param type Class to create.
+	 * @return The new instance, or null if the XDoc is empty.
+	 */
+	public static <T> T bind(XDoc doc, Class<T> type)
+	{
+		// Make sure we're given input
+		if (doc == null) {
+			throw new IllegalArgumentException("doc");
+		}
+		if (type == null) {
+			throw new IllegalArgumentException("type");
+		}
+
+		if (doc.isEmpty()) {
+			return null;
+		}
+		return type.cast(bindings.get(type).bind(doc));
+	}
+
+	/**
+	 * Binds every node of a selection to a new instance of a class.
+	 *
+	 * @param selection The selection to bind.
+	 * @param type Class to create.
+	 * @return The new instances, in selection order.
+	 */
+	public static <T> List<T> bindAll(XDoc selection, Class<T> type)
+	{
+		// Make sure we're given input
+		if (selection == null) {
+			throw new IllegalArgumentException("selection");
+		}
+		if (type == null) {
+			throw new IllegalArgumentException("type");
+		}
+
+		Binding binding = bindings.get(type);
+		List<T> result = new ArrayList<T>(selection.length());
+		for (XDoc item : selection) {
+			result.add(type.cast(binding.bind(item)));
+		}
+		return result;
+	}
+
+	/**
+	 * Converts a non-empty selection to a value of some type.
+	 */
+	private interface Converter
+	{
+		/**
+		 * Converts the selection.
+		 *
+		 * @param value Selected nodes.
+		 * @return
+		 */
+		Object convert(XDoc value);
+	}
+
+	/**
+	 * A bound field or constructor parameter.
+	 */
+	private static final class Property
+	{
+		/**
+		 * Name used in error messages.
+		 */
+		final String name;
+
+		/**
+		 * Path of the bound node.
+		 */
+		final XDocPath path;
+
+		/**
+		 * Converter from the selection to the value.
+		 */
+		final Converter converter;
+
+		/**
+		 * Constructor argument used when the path selects nothing.
+		 */
+		final Object missing;
+
+		/**
+		 * Setter taking (Object target, Object value), or null for constructor parameters.
+		 */
+		final MethodHandle setter;
+
+		/**
+		 * Creates a property.
+		 *
+		 * @param name Name used in error messages.
+		 * @param path Path of the bound node.
+		 * @param converter Converter from the selection to the value.
+		 * @param missing Constructor argument used when the path selects nothing.
+		 * @param setter Field setter, or null.
+		 */
+		Property(String name, XDocPath path, Converter converter, Object missing, MethodHandle setter)
+		{
+			this.name = name;
+			this.path = path;
+			this.converter = converter;
+			this.missing = missing;
+			this.setter = setter;
+		}
+
+		/**
+		 * Converts the non-empty selection of this property.
+		 *
+		 * @param value Selected nodes.
+		 * @return
+		 */
+		Object convert(XDoc value)
+		{
+			try {
+				return converter.convert(value);
+			}
+			catch (RuntimeException e) {
+				throw new IllegalStateException("could not bind " + name, e);
+			}
+		}
+	}
+
+	/**
+	 * Binding plan for one class.
+	 */
+	private static final class Binding
+	{
+		/**
+		 * Creates an instance: () for field binding, (Object[]) for constructor binding.
+		 */
+		private final MethodHandle constructor;
+
+		/**
+		 * Whether the constructor takes the properties as arguments.
+		 */
+		private final boolean constructorBinding;
+
+		/**
+		 * Bound properties, in constructor parameter or field declaration order.
+		 */
+		private final Property[] properties;
+
+		/**
+		 * Works out the binding plan for a class.
+		 *
+		 * @param type Class to bind.
+		 */
+		Binding(Class<?> type)
+		{
+			if (type.isInterface() || type.isPrimitive() || type.isArray() || Modifier.isAbstract(type.getModifiers())) {
+				throw new IllegalArgumentException("cannot bind to " + type.getName());
+			}
+
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			ArrayList<Property> properties = new ArrayList<Property>();
+
+			try {
+				// Prefer a constructor whose parameters are all annotated
+				Constructor<?> annotated = findAnnotatedConstructor(type);
+
+				if (annotated != null) {
+					for (Parameter parameter : annotated.getParameters()) {
+						String path = getPath(parameter.getAnnotation(XPath.class), parameter.getAnnotation(Attr.class));
+						properties.add(createProperty(type.getName() + "(" + parameter.getName() + ")", path, parameter.getType(), parameter.getParameterizedType(), null));
+					}
+					annotated.setAccessible(true);
+					constructor = lookup.unreflectConstructor(annotated)
+						.asSpreader(Object[].class, properties.size())
+						.asType(MethodType.methodType(Object.class, Object[].class));
+					constructorBinding = true;
+				}
+				else {
+					// Otherwise create the instance and set the annotated fields
+					Constructor<?> noArgs;
+					try {
+						noArgs = type.getDeclaredConstructor();
+					}
+					catch (NoSuchMethodException e) {
+						throw new IllegalArgumentException(type.getName() + " needs a no-argument constructor or an annotated constructor");
+					}
+					noArgs.setAccessible(true);
+					constructor = lookup.unreflectConstructor(noArgs).asType(MethodType.methodType(Object.class));
+					constructorBinding = false;
+
+					for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+						for (Field field : current.getDeclaredFields()) {
+							String path = getPath(field.getAnnotation(XPath.class), field.getAnnotation(Attr.class));
+							if (path == null) {
+								continue;
+							}
+							if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers())) {
+								throw new IllegalArgumentException(current.getName() + "." + field.getName() + " must not be static or final");
+							}
+							field.setAccessible(true);
+							MethodHandle setter = lookup.unreflectSetter(field)
+								.asType(MethodType.methodType(void.class, Object.class, Object.class));
+							properties.add(createProperty(current.getName() + "." + field.getName(), path, field.getType(), field.getGenericType(), setter));
+						}
+					}
+				}
+			}
+			catch (IllegalAccessException e) {
+				throw new IllegalArgumentException("cannot bind to " + type.getName(), e);
+			}
+
+			this.properties = properties.toArray(new Property[properties.size()]);
+		}
+
+		/**
+		 * Creates a new instance bound to an XDoc.
+		 *
+		 * @param doc The XDoc to bind.
+		 * @return
+		 */
+		Object bind(XDoc doc)
+		{
+			try {
+				if (constructorBinding) {
+					Object[] arguments = new Object[properties.length];
+					for (int i = 0; i < properties.length; i++) {
+						XDoc value = doc.at(properties[i].path);
+						arguments[i] = value.isEmpty() ? properties[i].missing : properties[i].convert(value);
+					}
+					return (Object)constructor.invokeExact(arguments);
+				}
+
+				Object instance = (Object)constructor.invokeExact();
+				for (Property property : properties) {
+					// Fields keep their initial value when nothing is selected
+					XDoc value = doc.at(property.path);
+					if (!value.isEmpty()) {
+						property.setter.invokeExact(instance, property.convert(value));
+					}
+				}
+				return instance;
+			}
+			catch (RuntimeException | Error e) {
+				throw e;
+			}
+			catch (Throwable e) {
+				throw new IllegalStateException("could not bind " + doc, e);
+			}
+		}
+
+		/**
+		 * Returns the only constructor whose parameters are all annotated, or null.
+		 *
+		 * @param type Class to look at.
+		 * @return
+		 */
+		private static Constructor<?> findAnnotatedConstructor(Class<?> type)
+		{
+			Constructor<?> found = null;
+			for (Constructor<?> candidate : type.getDeclaredConstructors()) {
+				Parameter[] parameters = candidate.getParameters();
+				if (parameters.length == 0) {
+					continue;
+				}
+
+				boolean annotated = true;
+				for (Parameter parameter : parameters) {
+					if (getPath(parameter.getAnnotation(XPath.class), parameter.getAnnotation(Attr.class)) == null) {
+						annotated = false;
+						break;
+					}
+				}
+				if (annotated) {
+					if (found != null) {
+						throw new IllegalArgumentException(type.getName() + " has more than one annotated constructor");
+					}
+					found = candidate;
+				}
+			}
+			return found;
+		}
+	}
+
+	/**
+	 * Returns the path named by a property's annotations, or null if it has none.
+	 *
+	 * @param xpath XPath annotation, or null.
+	 * @param attr Attr annotation, or null.
+	 * @return
+	 */
+	static String getPath(XPath xpath, Attr attr)
+	{
+		if (xpath != null && attr != null) {
+			throw new IllegalArgumentException("use either @XPath or @Attr, not both");
+		}
+		if (xpath != null) {
+			return xpath.value();
+		}
+		if (attr != null) {
+			return "@" + attr.value();
+		}
+		return null;
+	}
+
+	/**
+	 * Creates a property with the converter for its type.
+	 *
+	 * @param name Name used in error messages.
+	 * @param path Path of the bound node.
+	 * @param type Declared type.
+	 * @param genericType Declared generic type.
+	 * @param setter Field setter, or null.
+	 * @return
+	 */
+	private static Property createProperty(String name, String path, Class<?> type, Type genericType, MethodHandle setter)
+	{
+		// Lists take every selected node
+		if (type == List.class) {
+			if (!(genericType instanceof ParameterizedType)) {
+				throw new IllegalArgumentException(name + " needs a List element type");
+			}
+			Type element = ((ParameterizedType)genericType).getActualTypeArguments()[0];
+			if (!(element instanceof Class)) {
+				throw new IllegalArgumentException(name + " has an unsupported List element type");
+			}
+			final Converter item = getConverter(name, (Class<?>)element);
+			Converter converter = value -> {
+				ArrayList<Object> result = new ArrayList<Object>(value.length());
+				for (XDoc node : value) {
+					result.add(item.convert(node));
+				}
+				return result;
+			};
+			return new Property(name, XDocPath.compile(path), converter, Collections.emptyList(), setter);
+		}
+
+		return new Property(name, XDocPath.compile(path), getConverter(name, type), getMissingValue(type), setter);
+	}
+
+	/**
+	 * Returns the converter for a type.
+	 *
+	 * @param name Name used in error messages.
+	 * @param type Declared type.
+	 * @return
+	 */
+	private static Converter getConverter(String name, final Class<?> type)
+	{
+		if (type == String.class) {
+			return XDoc::asText;
+		}
+		if (type == int.class || type == Integer.class) {
+			return XDoc::asInt;
+		}
+		if (type == long.class || type == Long.class) {
+			return XDoc::asLong;
+		}
+		if (type == double.class || type == Double.class) {
+			return XDoc::asDouble;
+		}
+		if (type == float.class || type == Float.class) {
+			return XDoc::asFloat;
+		}
+		if (type == short.class || type == Short.class) {
+			return XDoc::asShort;
+		}
+		if (type == byte.class || type == Byte.class) {
+			return XDoc::asByte;
+		}
+		if (type == boolean.class || type == Boolean.class) {
+			return XDoc::asBoolean;
+		}
+		if (type == BigDecimal.class) {
+			return XDoc::asDecimal;
+		}
+		if (type == Instant.class) {
+			return XDoc::asInstant;
+		}
+		if (type == OffsetDateTime.class) {
+			return XDoc::asOffsetDateTime;
+		}
+		if (type == LocalDate.class) {
+			return XDoc::asLocalDate;
+		}
+		if (type == Date.class) {
+			return XDoc::asDate;
+		}
+		if (type == XDoc.class) {
+			return value -> value;
+		}
+		if (type.isPrimitive() || type.isArray() || type.getName().startsWith("java.")) {
+			throw new IllegalArgumentException(name + " has an unsupported type " + type.getName());
+		}
+
+		// Nested classes are looked up on use, so classes may refer to each other
+		return value -> bindings.get(type).bind(value);
+	}
+
+	/**
+	 * Returns the value used for a primitive constructor parameter when nothing is selected.
+	 *
+	 * @param type Declared type.
+	 * @return The zero value of a primitive type, or null.
+	 */
+	private static Object getMissingValue(Class<?> type)
+	{
+		if (!type.isPrimitive()) {
+			return null;
+		}
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		}
+		if (type == double.class) {
+			return Double.valueOf(0);
+		}
+		if (type == float.class) {
+			return Float.valueOf(0);
+		}
+		if (type == long.class) {
+			return Long.valueOf(0);
+		}
+		if (type == int.class) {
+			return Integer.valueOf(0);
+		}
+		if (type == short.class) {
+			return Short.valueOf((short)0);
+		}
+		return Byte.valueOf((byte)0);
+	}
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.budjb.xml.bind;
+import static org.junit.Assert.*;
+
+import com.budjb.xml.XDoc;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+public class XDocBinderTest
+{
+	static class Line
+	{
+		@Attr("sku")
+		String sku;
+		
+		@XPath("qty")
+		int quantity;
+	}
+	
+	static class Order
+	{
+		@Attr("id")
+		long id;
+		
+		@XPath("customer/name")
+		String customer;
+		
+		@XPath("total")
+		BigDecimal total;
+		
+		@XPath("placed")
+		Instant placed;
+		
+		@XPath("rush")
+		boolean rush;
+		
+		@XPath("lines/line")
+		List<Line> lines;
+		
+		@XPath("lines/line/@sku")
+		List<String> skus;
+		
+		@XPath("note")
+		String note = "none";
+		
+		@XPath("customer")
+		XDoc raw;
+	}
+	
+	static final class Point
+	{
+		final int x;
+		final int y;
+		final String label;
+		
+		Point(@Attr("x") int x, @Attr("y") int y, @XPath("label") String label)
+		{
+			this.x = x;
+			this.y = y;
+			this.label = label;
+		}
+	}
+	
+	static class Unsupported
+	{
+		@XPath("a")
+		Object value;
+	}
+	
+	private static XDoc order()
+	{
+		return new XDoc("order").attr("id", 42)
+			.start("customer").elem("name", "Ann").end()
+			.elem("total", "19.90")
+			.elem("placed", "2012-06-30T12:00:00Z")
+			.elem("rush", "true")
+			.start("lines")
+				.start("line").attr("sku", "a-1").elem("qty", 2).end()
+				.start("line").attr("sku", "b-2").elem("qty", 5).end()
+			.end();
+	}
+	
+	@Test
+	public void bindFields()
+	{
+		Order order = XDocBinder.bind(order(), Order.class);
+		
+		assertEquals(42, order.id);
+		assertEquals("Ann", order.customer);
+		assertEquals(new BigDecimal("19.90"), order.total);
+		assertEquals(Instant.parse("2012-06-30T12:00:00Z"), order.placed);
+		assertTrue(order.rush);
+		assertEquals(2, order.lines.size());
+		assertEquals("b-2", order.lines.get(1).sku);
+		assertEquals(5, order.lines.get(1).quantity);
+		assertEquals(Arrays.asList("a-1", "b-2"), order.skus);
+		assertEquals("none", order.note);
+		assertEquals("<customer><name>Ann</name></customer>", order.raw.toString());
+	}
+	
+	@Test
+	public void bindConstructor()
+	{
+		Point point = XDocBinder.bind(new XDoc("point").attr("x", 3).attr("y", -4).elem("label", "origin"), Point.class);
+		assertEquals(3, point.x);
+		assertEquals(-4, point.y);
+		assertEquals("origin", point.label);
+		
+		Point empty = XDocBinder.bind(new XDoc("point"), Point.class);
+		assertEquals(0, empty.x);
+		assertNull(empty.label);
+	}
+	
+	@Test
+	public void bindAll()
+	{
+		List<Line> lines = XDocBinder.bindAll(order().at("lines/line"), Line.class);
+		
+		assertEquals(2, lines.size());
+		assertEquals("a-1", lines.get(0).sku);
+		assertEquals(2, lines.get(0).quantity);
+		assertNull(XDocBinder.bind(XDoc.empty, Line.class));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void badValue()
+	{
+		XDocBinder.bind(new XDoc("line").elem("qty", "many"), Line.class);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void unsupportedType()
+	{
+		XDocBinder.bind(new XDoc("a"), Unsupported.class);
+	}
+}
@@ -0,0 +1,706 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.budjb.xml.bind;
+
+import com.budjb.xml.XDoc;
+import com.budjb.xml.XDocWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes annotated Java objects as XML, the reverse of XDocBinder.
+ *
+ * Every annotated field is written, whether or not it is final, so classes bound through an
+ * annotated constructor need their fields annotated as well. Paths must be plain element steps,
+ * optionally ending in an attribute step, such as "customer/name" or "lines/@count"; "." writes
+ * the value as the text of the current element. Fields whose paths share leading steps are
+ * written inside the same elements, and attributes are always written before child elements.
+ * A List repeats the last step of its path once per item. An XDoc field is copied in place of
+ * the last step of its path. Null values are skipped.
+ *
+ * The paths, formatters and method handles of each class are worked out once and cached, so a
+ * write only reads fields and calls the XDoc or XDocWriter builder methods. The stream variants
+ * go through an XDocWriter and never build a DOM tree.
+ */
+public final class XDocMarshaller
+{
+	/**
+	 * Formatter for Date values, matching XDoc.value(Date).
+	 */
+	private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern(XDoc.RFC_TIMESTAMP_FORMAT, Locale.ROOT);
+
+	/**
+	 * Cached marshalling plan per class.
+	 */
+	private static final ClassValue<Marshalling> marshallings = new ClassValue<Marshalling>() {
+		@Override
+		protected Marshalling computeValue(Class<?> type)
+		{
+			return new Marshalling(type);
+		}
+	};
+
+	private XDocMarshaller()
+	{
+	}
+
+	/**
+	 * Writes an object into the current element of an XDoc.
+	 *
+	 * @param value Object to write.
+	 * @param target XDoc to write into.
+	 */
+	public static void write(Object value, XDoc target)
+	{
+		// Make sure we're given input
+		if (value == null) {
+			throw new IllegalArgumentException("value");
+		}
+		if (target == null) {
+			throw new IllegalArgumentException("target");
+		}
+		if (target.isEmpty()) {
+			throw new IllegalStateException("xdoc is empty");
+		}
+
+		marshallings.get(value.getClass()).write(value, new XDocSink(target));
+	}
+
+	/**
+	 * Writes an object as a new XDoc.
+	 *
+	 * @param value Object to write.
+	 * @param tag Name of the root element.
+	 * @return
+	 */
+	public static XDoc toXDoc(Object value, String tag)
+	{
+		XDoc doc = new XDoc(tag);
+		write(value, doc);
+		return doc;
+	}
+
+	/**
+	 * Writes an object as an XML document to a stream.
+	 *
+	 * @param value Object to write.
+	 * @param tag Name of the root element.
+	 * @param out Stream to write to. It is flushed but not closed.
+	 * @param charset Encoding of the output.
+	 * @throws IOException
+	 */
+	public static void writeTo(Object value, String tag, OutputStream out, Charset charset) throws IOException
+	{
+		XDocWriter writer = new XDocWriter(out, charset);
+		write(value, tag, writer);
+		writer.flush();
+	}
+
+	/**
+	 * Writes an object as an XML document to a writer.
+	 *
+	 * @param value Object to write.
+	 * @param tag Name of the root element.
+	 * @param out Writer to write to. It is flushed but not closed.
+	 * @throws IOException
+	 */
+	public static void writeTo(Object value, String tag, Writer out) throws IOException
+	{
+		XDocWriter writer = new XDocWriter(out);
+		write(value, tag, writer);
+		writer.flush();
+	}
+
+	/**
+	 * Writes an object as an element to an XDocWriter.
+	 *
+	 * @param value Object to write.
+	 * @param tag Element name.
+	 * @param writer XDocWriter to write to.
+	 */
+	public static void write(Object value, String tag, XDocWriter writer)
+	{
+		// Make sure we're given input
+		if (value == null) {
+			throw new IllegalArgumentException("value");
+		}
+		if (writer == null) {
+			throw new IllegalArgumentException("writer");
+		}
+
+		Marshalling marshalling = marshallings.get(value.getClass());
+		writer.start(tag);
+		marshalling.write(value, new WriterSink(writer));
+		writer.end();
+	}
+
+	/**
+	 * Receives the builder calls of a write.
+	 */
+	private interface Sink
+	{
+		/**
+		 * Starts a child element.
+		 *
+		 * @param tag Element name.
+		 */
+		void start(String tag);
+
+		/**
+		 * Adds an attribute to the current element.
+		 *
+		 * @param name Attribute name.
+		 * @param value Attribute value.
+		 */
+		void attr(String name, String value);
+
+		/**
+		 * Adds text to the current element.
+		 *
+		 * @param value Text to add.
+		 */
+		void value(String value);
+
+		/**
+		 * Adds a copy of an XDoc to the current element.
+		 *
+		 * @param doc XDoc to add.
+		 */
+		void add(XDoc doc);
+
+		/**
+		 * Ends the current element.
+		 */
+		void end();
+	}
+
+	/**
+	 * Sink that builds into an XDoc.
+	 */
+	private static final class XDocSink implements Sink
+	{
+		/**
+		 * XDoc being built.
+		 */
+		private final XDoc doc;
+
+		/**
+		 * Creates a sink for an XDoc.
+		 *
+		 * @param doc XDoc being built.
+		 */
+		XDocSink(XDoc doc)
+		{
+			this.doc = doc;
+		}
+
+		@Override
+		public void start(String tag)
+		{
+			doc.start(tag);
+		}
+
+		@Override
+		public void attr(String name, String value)
+		{
+			doc.attr(name, value);
+		}
+
+		@Override
+		public void value(String value)
+		{
+			doc.value(value);
+		}
+
+		@Override
+		public void add(XDoc value)
+		{
+			doc.add(value);
+		}
+
+		@Override
+		public void end()
+		{
+			doc.end();
+		}
+	}
+
+	/**
+	 * Sink that streams to an XDocWriter.
+	 */
+	private static final class WriterSink implements Sink
+	{
+		/**
+		 * Writer being written to.
+		 */
+		private final XDocWriter writer;
+
+		/**
+		 * Creates a sink for an XDocWriter.
+		 *
+		 * @param writer Writer being written to.
+		 */
+		WriterSink(XDocWriter writer)
+		{
+			this.writer = writer;
+		}
+
+		@Override
+		public void start(String tag)
+		{
+			writer.start(tag);
+		}
+
+		@Override
+		public void attr(String name, String value)
+		{
+			writer.attr(name, value);
+		}
+
+		@Override
+		public void value(String value)
+		{
+			writer.value(value);
+		}
+
+		@Override
+		public void add(XDoc value)
+		{
+			writer.add(value);
+		}
+
+		@Override
+		public void end()
+		{
+			writer.end();
+		}
+	}
+
+	/**
+	 * Writes a non-null value at the current element of a sink.
+	 */
+	private interface Emitter
+	{
+		/**
+		 * Writes the value.
+		 *
+		 * @param value Value to write.
+		 * @param sink Sink to write to.
+		 */
+		void emit(Object value, Sink sink);
+	}
+
+	/**
+	 * Something written inside an element: a field or a group of fields.
+	 */
+	private interface Member
+	{
+		/**
+		 * Writes this member of an instance.
+		 *
+		 * @param instance Object being written.
+		 * @param sink Sink to write to.
+		 * @throws Throwable
+		 */
+		void write(Object instance, Sink sink) throws Throwable;
+	}
+
+	/**
+	 * An annotated field.
+	 */
+	private static final class Property implements Member
+	{
+		/**
+		 * Name used in error messages.
+		 */
+		final String name;
+
+		/**
+		 * Getter taking (Object target) and returning Object.
+		 */
+		final MethodHandle getter;
+
+		/**
+		 * Writer for a single value at the current element.
+		 */
+		final Emitter emitter;
+
+		/**
+		 * Whether the field is a List of values.
+		 */
+		final boolean list;
+
+		/**
+		 * Creates a property.
+		 *
+		 * @param name Name used in error messages.
+		 * @param getter Field getter.
+		 * @param emitter Writer for a single value.
+		 * @param list Whether the field is a List.
+		 */
+		Property(String name, MethodHandle getter, Emitter emitter, boolean list)
+		{
+			this.name = name;
+			this.getter = getter;
+			this.emitter = emitter;
+			this.list = list;
+		}
+
+		@Override
+		public void write(Object instance, Sink sink) throws Throwable
+		{
+			Object value = (Object)getter.invokeExact(instance);
+			if (value == null) {
+				return;
+			}
+
+			if (!list) {
+				emitter.emit(value, sink);
+				return;
+			}
+			for (Object item : (List<?>)value) {
+				if (item != null) {
+					emitter.emit(item, sink);
+				}
+			}
+		}
+	}
+
+	/**
+	 * An element holding the fields whose paths start with the same steps.
+	 */
+	private static final class Group implements Member
+	{
+		/**
+		 * Element name.
+		 */
+		final String tag;
+
+		/**
+		 * Attribute members, written first.
+		 */
+		final ArrayList<Member> attributes = new ArrayList<Member>();
+
+		/**
+		 * Child members, in declaration order.
+		 */
+		final ArrayList<Member> children = new ArrayList<Member>();
+
+		/**
+		 * Creates a group.
+		 *
+		 * @param tag Element name, or null for the element being written.
+		 */
+		Group(String tag)
+		{
+			this.tag = tag;
+		}
+
+		/**
+		 * Returns the child group with a name, creating it if needed.
+		 *
+		 * @param name Element name.
+		 * @return
+		 */
+		Group getGroup(String name)
+		{
+			for (Member member : children) {
+				if (member instanceof Group && ((Group)member).tag.equals(name)) {
+					return (Group)member;
+				}
+			}
+			Group group = new Group(name);
+			children.add(group);
+			return group;
+		}
+
+		/**
+		 * Writes the members of this group at the current element.
+		 *
+		 * @param instance Object being written.
+		 * @param sink Sink to write to.
+		 * @throws Throwable
+		 */
+		void writeMembers(Object instance, Sink sink) throws Throwable
+		{
+			for (Member member : attributes) {
+				member.write(instance, sink);
+			}
+			for (Member member : children) {
+				member.write(instance, sink);
+			}
+		}
+
+		@Override
+		public void write(Object instance, Sink sink) throws Throwable
+		{
+			sink.start(tag);
+			writeMembers(instance, sink);
+			sink.end();
+		}
+	}
+
+	/**
+	 * Marshalling plan for one class.
+	 */
+	private static final class Marshalling
+	{
+		/**
+		 * Members written inside the current element.
+		 */
+		private final Group root = new Group(null);
+
+		/**
+		 * Works out the marshalling plan for a class.
+		 *
+		 * @param type Class to write.
+		 */
+		Marshalling(Class<?> type)
+		{
+			if (type.isPrimitive() || type.isArray() || type.getName().startsWith("java.")) {
+				throw new IllegalArgumentException("cannot write " + type.getName());
+			}
+
+			// Superclass fields come first
+			ArrayList<Class<?>> hierarchy = new ArrayList<Class<?>>();
+			for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+				hierarchy.add(current);
+			}
+			Collections.reverse(hierarchy);
+
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			try {
+				for (Class<?> current : hierarchy) {
+					for (Field field : current.getDeclaredFields()) {
+						String path = XDocBinder.getPath(field.getAnnotation(XPath.class), field.getAnnotation(Attr.class));
+						if (path == null) {
+							continue;
+						}
+						String name = current.getName() + "." + field.getName();
+						if (Modifier.isStatic(field.getModifiers())) {
+							throw new IllegalArgumentException(name + " must not be static");
+						}
+						field.setAccessible(true);
+						MethodHandle getter = lookup.unreflectGetter(field)
+							.asType(MethodType.methodType(Object.class, Object.class));
+						addProperty(name, path, field.getType(), field.getGenericType(), getter);
+					}
+				}
+			}
+			catch (IllegalAccessException e) {
+				throw new IllegalArgumentException("cannot write " + type.getName(), e);
+			}
+		}
+
+		/**
+		 * Adds a field to the plan under the groups of its path.
+		 *
+		 * @param name Name used in error messages.
+		 * @param path Path of the field.
+		 * @param type Declared type.
+		 * @param genericType Declared generic type.
+		 * @param getter Field getter.
+		 */
+		private void addProperty(String name, String path, Class<?> type, Type genericType, MethodHandle getter)
+		{
+			// Lists write every item with the same emitter
+			boolean list = type == List.class;
+			if (list) {
+				if (!(genericType instanceof ParameterizedType)) {
+					throw new IllegalArgumentException(name + " needs a List element type");
+				}
+				Type element = ((ParameterizedType)genericType).getActualTypeArguments()[0];
+				if (!(element instanceof Class)) {
+					throw new IllegalArgumentException(name + " has an unsupported List element type");
+				}
+				type = (Class<?>)element;
+			}
+
+			// Walk the leading steps down to the group holding the last step
+			String[] steps = path.split("/", -1);
+			Group group = root;
+			for (int i = 0; i < steps.length - 1; i++) {
+				if (!isName(steps[i])) {
+					throw new IllegalArgumentException(name + " has a path that cannot be written: " + path);
+				}
+				group = group.getGroup(steps[i]);
+			}
+			String last = steps[steps.length - 1];
+
+			// Attributes
+			if (last.startsWith("@") && isName(last.substring(1))) {
+				if (list || type == XDoc.class || getFormatter(type) == null) {
+					throw new IllegalArgumentException(name + " cannot be written as an attribute");
+				}
+				final String attribute = last.substring(1);
+				final Formatter formatter = getFormatter(type);
+				group.attributes.add(new Property(name, getter, (value, sink) -> sink.attr(attribute, formatter.format(value)), false));
+				return;
+			}
+
+			// Text of the current element
+			if (last.equals(".")) {
+				if (list || type == XDoc.class) {
+					throw new IllegalArgumentException(name + " cannot be written as text");
+				}
+				group.children.add(new Property(name, getter, getContentEmitter(name, type), false));
+				return;
+			}
+
+			// Child elements
+			if (!isName(last)) {
+				throw new IllegalArgumentException(name + " has a path that cannot be written: " + path);
+			}
+			if (type == XDoc.class) {
+				group.children.add(new Property(name, getter, (value, sink) -> sink.add((XDoc)value), list));
+				return;
+			}
+			final String tag = last;
+			final Emitter content = getContentEmitter(name, type);
+			group.children.add(new Property(name, getter, (value, sink) -> {
+				sink.start(tag);
+				content.emit(value, sink);
+				sink.end();
+			}, list));
+		}
+
+		/**
+		 * Writes the fields of an instance at the current element of a sink.
+		 *
+		 * @param instance Object to write.
+		 * @param sink Sink to write to.
+		 */
+		void write(Object instance, Sink sink)
+		{
+			try {
+				root.writeMembers(instance, sink);
+			}
+			catch (RuntimeException | Error e) {
+				throw e;
+			}
+			catch (Throwable e) {
+				throw new IllegalStateException("could not write " + instance.getClass().getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * Formats a non-null value as text.
+	 */
+	private interface Formatter
+	{
+		/**
+		 * Formats the value.
+		 *
+		 * @param value Value to format.
+		 * @return
+		 */
+		String format(Object value);
+	}
+
+	/**
+	 * Returns the formatter for a simple type, or null if the type is not simple.
+	 *
+	 * @param type Declared type.
+	 * @return
+	 */
+	private static Formatter getFormatter(Class<?> type)
+	{
+		if (type == String.class) {
+			return value -> (String)value;
+		}
+		if (type.isPrimitive() || Number.class.isAssignableFrom(type) || type == Boolean.class || type == Character.class) {
+			return Object::toString;
+		}
+		if (type == Instant.class) {
+			return value -> DateTimeFormatter.ISO_INSTANT.format((Instant)value);
+		}
+		if (type == OffsetDateTime.class) {
+			return value -> DateTimeFormatter.ISO_OFFSET_DATE_TIME.format((OffsetDateTime)value);
+		}
+		if (type == LocalDate.class) {
+			return value -> DateTimeFormatter.ISO_LOCAL_DATE.format((LocalDate)value);
+		}
+		if (type == Date.class) {
+			return value -> TIMESTAMP_FORMATTER.format(((Date)value).toInstant().atZone(ZoneId.systemDefault()));
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the emitter that writes a value as the contents of the current element.
+	 *
+	 * @param name Name used in error messages.
+	 * @param type Declared type.
+	 * @return
+	 */
+	private static Emitter getContentEmitter(String name, final Class<?> type)
+	{
+		final Formatter formatter = getFormatter(type);
+		if (formatter != null) {
+			return (value, sink) -> sink.value(formatter.format(value));
+		}
+		if (type.isArray() || type.getName().startsWith("java.")) {
+			throw new IllegalArgumentException(name + " has an unsupported type " + type.getName());
+		}
+
+		// Nested classes are looked up on use, so classes may refer to each other
+		return (value, sink) -> marshallings.get(value.getClass()).write(value, sink);
+	}
+
+	/**
+	 * Returns whether a path step is a plain element or attribute name.
+	 *
+	 * @param step Path step.
+	 * @return
+	 */
+	private static boolean isName(String step)
+	{
+		if (step.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < step.length(); i++) {
+			char c = step.charAt(i);
+			boolean valid = Character.isLetter(c) || c == '_' || c == ':' || (i > 0 && (Character.isDigit(c) || c == '-' || c == '.'));
+			if (!valid) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2012 Bud Byrd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.budjb.xml.bind;
+import static org.junit.Assert.*;
+
+import com.budjb.xml.XDoc;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+public class XDocMarshallerTest
+{
+	static class Line
+	{
+		@Attr("sku")
+		String sku;
+		
+		@XPath("qty")
+		int quantity;
+		
+		Line()
+		{
+		}
+		
+		Line(String sku, int quantity)
+		{
+			this.sku = sku;
+			this.quantity = quantity;
+		}
+	}
+	
+	static class Order
+	{
+		@XPath("customer/name")
+		String customer;
+		
+		@XPath("total")
+		BigDecimal total;
+		
+		@Attr("id")
+		long id;
+		
+		@XPath("placed")
+		Instant placed;
+		
+		@XPath("lines/line")
+		List<Line> lines;
+		
+		@XPath("customer/@vip")
+		boolean vip;
+		
+		@XPath("note")
+		String note;
+	}
+	
+	static final class Point
+	{
+		@Attr("x")
+		final int x;
+		
+		@Attr("y")
+		final int y;
+		
+		@XPath(".")
+		final String label;
+		
+		Point(@Attr("x") int x, @Attr("y") int y, @XPath(".") String label)
+		{
+			this.x = x;
+			this.y = y;
+			this.label = label;
+		}
+	}
+	
+	static class Shape
+	{
+		@XPath("point")
+		Point origin;
+		
+		@XPath("extra")
+		XDoc extra;
+	}
+	
+	static class Predicate
+	{
+		@XPath("a[1]")
+		String value;
+	}
+	
+	static class ListAttribute
+	{
+		@Attr("tags")
+		List<String> tags;
+	}
+	
+	private static Order order()
+	{
+		Order order = new Order();
+		order.id = 42;
+		order.customer = "Ann & Co";
+		order.vip = true;
+		order.total = new BigDecimal("19.90");
+		order.placed = Instant.parse("2012-06-30T12:00:00Z");
+		order.lines = Arrays.asList(new Line("a-1", 2), new Line("b-2", 5));
+		return order;
+	}
+	
+	@Test
+	public void writeFields()
+	{
+		XDoc doc = XDocMarshaller.toXDoc(order(), "order");
+		
+		assertEquals("<order id=\"42\"><customer vip=\"true\"><name>Ann &amp; Co</name></customer><total>19.90</total>"
+			+ "<placed>2012-06-30T12:00:00Z</placed><lines><line sku=\"a-1\"><qty>2</qty></line>"
+			+ "<line sku=\"b-2\"><qty>5</qty></line></lines></order>", doc.toString());
+	}
+	
+	@Test
+	public void roundTrip()
+	{
+		Order order = XDocBinder.bind(XDocMarshaller.toXDoc(order(), "order"), Order.class);
+		
+		assertEquals(42, order.id);
+		assertEquals("Ann & Co", order.customer);
+		assertTrue(order.vip);
+		assertEquals(new BigDecimal("19.90"), order.total);
+		assertEquals(2, order.lines.size());
+		assertEquals("b-2", order.lines.get(1).sku);
+		assertEquals(5, order.lines.get(1).quantity);
+		assertNull(order.note);
+		
+		Point point = XDocBinder.bind(XDocMarshaller.toXDoc(new Point(3, -4, "origin"), "point"), Point.class);
+		assertEquals(3, point.x);
+		assertEquals(-4, point.y);
+		assertEquals("origin", point.label);
+	}
+	
+	@Test
+	public void writeNested()
+	{
+		Shape shape = new Shape();
+		shape.origin = new Point(1, 2, "a");
+		shape.extra = new XDoc("extra").elem("b", "c");
+		
+		XDoc doc = new XDoc("shapes").start("shape");
+		XDocMarshaller.write(shape, doc);
+		
+		assertEquals("<shapes><shape><point x=\"1\" y=\"2\">a</point><extra><b>c</b></extra></shape></shapes>", doc.toString());
+	}
+	
+	@Test
+	public void writeToStream() throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		XDocMarshaller.writeTo(new Line("a-1", 2), "line", out, StandardCharsets.UTF_8);
+		
+		StringWriter writer = new StringWriter();
+		XDocMarshaller.writeTo(new Line("a-1", 2), "line", writer);
+		
+		assertEquals("<line sku=\"a-1\"><qty>2</qty></line>", writer.toString());
+		assertEquals(writer.toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void unwritablePath()
+	{
+		XDocMarshaller.toXDoc(new Predicate(), "a");
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void listAttribute()
+	{
+		XDocMarshaller.toXDoc(new ListAttribute(), "a");
+	}
+}